@@ -0,0 +1,386 @@
+package com.sjsu.cmpe281.vmware.hw2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import com.vmware.vim25.mo.Folder;
+import com.vmware.vim25.mo.InventoryNavigator;
+import com.vmware.vim25.mo.ManagedEntity;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.ws.XmlGenDom;
+/**
+ * @author Pratik Pandey.
+ *
+ * This class benchmarks the command layer against the vCenter Server simulator, for inventories of
+ * several sizes: the VM listing, host info and host datastores, the search of one VM by name (through
+ * InventoryNavigator and through the inventory cache), and on its own the deserialization by vijava of a
+ * recorded RetrievePropertiesEx response. The VM listing is also timed the way it was done before the
+ * bulk retrieval, with InventoryNavigator and one getter call per VM, and over the stock SOAP transport of
+ * vijava and over the pooled, compressed one. Every benchmark is warmed up first and then timed call by
+ * call, with the round trips to the server, the response bytes on the wire and the bytes allocated by the
+ * calling thread per call.
+ *
+ * The results are written as JSON Lines (one object per benchmark and size) to -out=file, by default
+ * bench-results.jsonl. Given -baseline=file with the results of an earlier run, e.g., before upgrading
+ * the vijava jar, every benchmark whose median got slower by more than -threshold=percent (20 by
+ * default) is reported and the run exits with status 1.
+ *
+ * e.g., java ... CommandBenchmark -sizes=100,1000,10000 -iterations=20 -warmup=5 -latency=0
+ */
+class CommandBenchmark
+{
+	/**
+	 * Used for logging purposes.
+	 */
+	private final Logger logger = Logger.getLogger(CommandBenchmark.class.getName());
+
+	private static final Pattern RESULT_PATTERN = Pattern.compile(
+			"\"benchmark\":\"([^\"]*)\",\"size\":(\\d+),.*\"p50Millis\":([0-9.]+)");
+
+	private final int iterations;
+	private final int warmup;
+	private final String simulatorSettings;
+	private final List<ResultRecord> results = new ArrayList<ResultRecord>();
+	/**
+	 * The simulator of the benchmarks running, to count the bytes it sends.
+	 */
+	private VCenterSimulator simulator;
+
+	public CommandBenchmark(int iterations, int warmup, String simulatorSettings)
+	{
+		this.iterations = iterations;
+		this.warmup = warmup;
+		this.simulatorSettings = simulatorSettings;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		Logger.getLogger("com.sjsu.cmpe281.vmware.hw2").setLevel(Level.WARNING);
+		CommandBenchmark commandBenchmark = new CommandBenchmark(getValue("-iterations=", args, 20),
+				getValue("-warmup=", args, 5), "latency=" + getValue("-latency=", args, 0));
+		String sizes = getValue("-sizes=", args) == null ? "100,1000,10000" : getValue("-sizes=", args);
+		for (String size : sizes.split(","))
+		{
+			commandBenchmark.run(Integer.parseInt(size.trim()));
+		}
+		String out = getValue("-out=", args) == null ? "bench-results.jsonl" : getValue("-out=", args);
+		commandBenchmark.write(out);
+		if (getValue("-baseline=", args) != null
+				&& !commandBenchmark.compare(getValue("-baseline=", args), getValue("-threshold=", args, 20)))
+		{
+			System.exit(1);
+		}
+	}
+	/**
+	 * The operation being timed.
+	 */
+	interface Operation
+	{
+		void run() throws Exception;
+	}
+	/**
+	 * This method is used to run all the benchmarks against a simulated inventory of the given number of VMs.
+	 */
+	public void run(int size) throws Exception
+	{
+		simulator = new VCenterSimulator(1, simulatorSettings + ",vms=" + size + ",hosts="
+				+ Math.max(2, size / 50));
+		simulator.start();
+		CloudServer cloudServer = new CloudServer(simulator.getAddress(), simulator.getUrl(), "bench", "bench");
+		cloudServer.connect();
+		ServiceInstance serviceInstance = cloudServer.getServiceInstance();
+		Folder rootFolder = cloudServer.getCloudServerRootFolder();
+		TaskCompletionTracker taskTracker = new TaskCompletionTracker(serviceInstance);
+		InventoryCache inventoryCache = new InventoryCache(rootFolder, serviceInstance);
+		try
+		{
+			inventoryCache.start();
+			final CloudServerCommand direct = new CloudServerCommand(rootFolder, serviceInstance, null, taskTracker, null);
+			final CloudServerCommand cached = new CloudServerCommand(rootFolder, serviceInstance, inventoryCache,
+					taskTracker, null);
+			final String hostName = "10.1.0.1";
+			final String vmName = String.format("sim1-vm-%04d", size);
+			final CountingResponseSink sink = new CountingResponseSink();
+
+			measure("getAllVMList", size, () -> direct.getAllVMList(sink));
+			measure("getAllVMList.cached", size, () -> cached.getAllVMList(sink));
+			measure("getAllVMList.navigator", size, () -> listWithNavigator(rootFolder, sink));
+			measure("getHostInfo", size, () -> direct.getHostInfo(hostName, sink));
+			measure("getHostDataStores", size, () -> direct.getHostDataStores(hostName, sink));
+			measure("inventorySearch.navigator", size, () -> direct.contains("VirtualMachine", vmName));
+			measure("inventorySearch.cached", size, () -> cached.contains("VirtualMachine", vmName));
+
+			measureTransport("vijava", null, size);
+			measureTransport("pooled", new SoapTransport(RequestScheduler.DEFAULT_MAX_CALLS), size);
+
+			final byte[] payload = recordRetrievePropertiesEx(simulator.getUrl(), size);
+			measure("deserialize.RetrieveResult", size, () -> new XmlGenDom().fromXML("RetrieveResult",
+					new ByteArrayInputStream(payload))).add("payloadBytes", "Payload", payload.length, " bytes");
+			logger.log(Level.INFO, "Simulator answered " + simulator.getCalls() + " calls, " + simulator.getBytesSent()
+					+ " bytes, rows seen = " + sink.rows);
+		}
+		finally
+		{
+			inventoryCache.stop();
+			taskTracker.stop();
+			cloudServer.logoutFromCloudService();
+			simulator.stop();
+		}
+	}
+	/**
+	 * This method is used to time the VM listing on a session of its own, whose SOAP calls are sent through
+	 * the transport, or the stock one of vijava if it is null.
+	 */
+	private void measureTransport(String name, SoapTransport transport, int size) throws Exception
+	{
+		CloudServer cloudServer = new CloudServer(simulator.getAddress(), simulator.getUrl(), "bench", "bench");
+		cloudServer.connect();
+		try
+		{
+			new SoapCallMetrics().instrument(cloudServer.getServiceInstance(), null, transport);
+			final CloudServerCommand command = new CloudServerCommand(cloudServer.getCloudServerRootFolder(),
+					cloudServer.getServiceInstance(), null, null, null);
+			final CountingResponseSink sink = new CountingResponseSink();
+			measure("getAllVMList.transport." + name, size, () -> command.getAllVMList(sink));
+		}
+		finally
+		{
+			cloudServer.logoutFromCloudService();
+		}
+	}
+	/**
+	 * This method is used to time the operation and @return its result record, which is also printed.
+	 */
+	private ResultRecord measure(String benchmark, int size, Operation operation) throws Exception
+	{
+		for (int i = 0; i < warmup; i++)
+		{
+			operation.run();
+		}
+		long[] durations = new long[iterations];
+		long startCalls = simulator.getCalls();
+		long startBytes = simulator.getBytesSent();
+		long startAllocated = getAllocatedBytes();
+		long startTime = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+		{
+			long callStart = System.nanoTime();
+			operation.run();
+			durations[i] = System.nanoTime() - callStart;
+		}
+		long totalNanos = System.nanoTime() - startTime;
+		long allocatedBytes = getAllocatedBytes() - startAllocated;
+		long wireBytes = simulator.getBytesSent() - startBytes;
+		long roundTrips = simulator.getCalls() - startCalls;
+		Arrays.sort(durations);
+		ResultRecord record = new ResultRecord("benchmark", "bench", results.size())
+				.add("benchmark", "Benchmark", benchmark)
+				.add("size", "VMs", size)
+				.add("iterations", "Iterations", iterations)
+				.add("meanMillis", "Mean", toMillis(totalNanos / iterations), " ms")
+				.add("p50Millis", "p50", toMillis(BatchPowerOperation.percentile(durations, 50)), " ms")
+				.add("p99Millis", "p99", toMillis(BatchPowerOperation.percentile(durations, 99)), " ms")
+				.add("opsPerSecond", "Throughput", Math.round(iterations * 1e9 / totalNanos), " ops/s")
+				.add("roundTripsPerOp", "Round trips", (double) roundTrips / iterations)
+				.add("wireBytesPerOp", "Wire", wireBytes / iterations, " bytes")
+				.add("allocatedBytesPerOp", "Allocated", allocatedBytes / iterations, " bytes")
+				.add("javaVersion", null, System.getProperty("java.version"));
+		results.add(record);
+		System.out.println(record);
+		return record;
+	}
+	/**
+	 * This method is used to list the VMs the way the vm command did before the listings were retrieved in
+	 * bulk: walking the inventory with InventoryNavigator and asking every VM for its name with a call of
+	 * its own.
+	 */
+	private static void listWithNavigator(Folder rootFolder, ResponseSink responseSink) throws Exception
+	{
+		ManagedEntity[] managedEntities = new InventoryNavigator(rootFolder).searchManagedEntities("VirtualMachine");
+		for (int i = 0; i < managedEntities.length; i++)
+		{
+			responseSink.add("vm[" + i + "]: Name = " + managedEntities[i].getName());
+		}
+	}
+	/**
+	 * This method is used to write all the results as JSON Lines.
+	 */
+	public void write(String fileName) throws IOException
+	{
+		try (Writer writer = Files.newBufferedWriter(Paths.get(fileName), StandardCharsets.UTF_8))
+		{
+			RecordEncoder recordEncoder = new JsonLinesRecordEncoder();
+			for (ResultRecord result : results)
+			{
+				recordEncoder.writeRecord(writer, result);
+			}
+		}
+		System.out.println("Results written to " + fileName);
+	}
+	/**
+	 * This method is used to compare the medians with the ones of the baseline file and @return false if
+	 * one of them got slower by more than the threshold percentage.
+	 */
+	public boolean compare(String baselineFile, int thresholdPercent) throws IOException
+	{
+		Map<String, Double> baseline = new HashMap<String, Double>();
+		for (String line : Files.readAllLines(Paths.get(baselineFile), StandardCharsets.UTF_8))
+		{
+			Matcher matcher = RESULT_PATTERN.matcher(line);
+			if (matcher.find())
+			{
+				baseline.put(matcher.group(1) + "/" + matcher.group(2), Double.parseDouble(matcher.group(3)));
+			}
+		}
+		boolean passed = true;
+		for (ResultRecord result : results)
+		{
+			Double before = baseline.get(result.get("benchmark") + "/" + result.get("size"));
+			double now = (Double) result.get("p50Millis");
+			if (before != null && before > 0 && now > before * (100 + thresholdPercent) / 100)
+			{
+				System.out.println("Regression: " + result.get("benchmark") + " with " + result.get("size") + " VMs, p50 = "
+						+ now + " ms, baseline = " + before + " ms");
+				passed = false;
+			}
+		}
+		System.out.println(passed ? "No regression against " + baselineFile : "Regressions found against " + baselineFile);
+		return passed;
+	}
+	/**
+	 * This method is used to @return the raw RetrievePropertiesEx response listing all the VMs with the VM
+	 * listing properties, as the server sends it, using a session of its own.
+	 */
+	private static byte[] recordRetrievePropertiesEx(String url, int size) throws IOException
+	{
+		String cookie = post(url, null, "<Login xmlns=\"urn:vim25\"><_this type=\"SessionManager\">SessionManager</_this>"
+				+ "<userName>bench</userName><password>bench</password></Login>", null);
+		String view = new String(postForBody(url, cookie, "<CreateContainerView xmlns=\"urn:vim25\"><_this type=\"ViewManager\">"
+				+ "ViewManager</_this><container type=\"Folder\">group-d1</container><type>VirtualMachine</type>"
+				+ "<recursive>true</recursive></CreateContainerView>"), StandardCharsets.UTF_8)
+				.replaceAll("(?s).*<returnval type=\"ContainerView\">([^<]*)</returnval>.*", "$1");
+		StringBuilder pathSet = new StringBuilder();
+		for (String path : new String[] { "name", "runtime.powerState", "runtime.host", "guest.ipAddress" })
+		{
+			pathSet.append("<pathSet>").append(path).append("</pathSet>");
+		}
+		return postForBody(url, cookie, "<RetrievePropertiesEx xmlns=\"urn:vim25\"><_this type=\"PropertyCollector\">"
+				+ "propertyCollector</_this><specSet><propSet><type>VirtualMachine</type><all>false</all>" + pathSet
+				+ "</propSet><objectSet><obj type=\"ContainerView\">" + view + "</obj><skip>true</skip>"
+				+ "<selectSet xsi:type=\"TraversalSpec\"><name>traverseView</name><type>ContainerView</type><path>view</path>"
+				+ "<skip>false</skip></selectSet></objectSet></specSet><options><maxObjects>" + size
+				+ "</maxObjects></options></RetrievePropertiesEx>");
+	}
+
+	private static byte[] postForBody(String url, String cookie, String body) throws IOException
+	{
+		ByteArrayOutputStream response = new ByteArrayOutputStream();
+		post(url, cookie, body, response);
+		return response.toByteArray();
+	}
+	/**
+	 * This method is used to send one SOAP call, copy the response to the stream if any and @return the
+	 * session cookie set by the server.
+	 */
+	private static String post(String url, String cookie, String body, OutputStream response) throws IOException
+	{
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		connection.setDoOutput(true);
+		connection.setRequestProperty("Content-Type", "text/xml; charset=utf-8");
+		connection.setRequestProperty("SOAPAction", "urn:vim25/5.5");
+		if (cookie != null)
+		{
+			connection.setRequestProperty("Cookie", cookie);
+		}
+		try (OutputStream out = connection.getOutputStream())
+		{
+			out.write(("<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\""
+					+ " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"><soapenv:Body>" + body
+					+ "</soapenv:Body></soapenv:Envelope>").getBytes(StandardCharsets.UTF_8));
+		}
+		try (InputStream in = connection.getInputStream())
+		{
+			byte[] buffer = new byte[8192];
+			for (int read = in.read(buffer); read > 0; read = in.read(buffer))
+			{
+				if (response != null)
+				{
+					response.write(buffer, 0, read);
+				}
+			}
+		}
+		String setCookie = connection.getHeaderField("Set-Cookie");
+		return setCookie == null ? null : setCookie.split(";")[0];
+	}
+
+	/**
+	 * This method is used to @return the bytes allocated so far by the current thread, 0 if the JVM does
+	 * not tell.
+	 */
+	private static long getAllocatedBytes()
+	{
+		java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+		return threadMXBean instanceof com.sun.management.ThreadMXBean
+				? ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+	}
+
+	private static double toMillis(long nanos)
+	{
+		return Math.round(nanos / 1000.0) / 1000.0;
+	}
+
+	private static String getValue(String parameterName, String[] args)
+	{
+		for (String value : args)
+		{
+			if (value.startsWith(parameterName))
+			{
+				return value.substring(parameterName.length());
+			}
+		}
+		return null;
+	}
+
+	private static int getValue(String parameterName, String[] args, int defaultValue)
+	{
+		String value = getValue(parameterName, args);
+		return value == null ? defaultValue : Integer.parseInt(value);
+	}
+	/**
+	 * The sink only counting the rows, so that the cost of the console does not hide the command layer.
+	 */
+	private static class CountingResponseSink implements ResponseSink
+	{
+		private long rows;
+
+		@Override
+		public void add(String response)
+		{
+			rows++;
+		}
+
+		@Override
+		public void add(ResultRecord record)
+		{
+			rows++;
+		}
+	}
+}
@@ -0,0 +1,273 @@
+package com.sjsu.cmpe281.vmware.hw2;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+/**
+ * @author Pratik Pandey.
+ *
+ * This class performs one power operation (on, off or shutdown) on many VMs at once. The VMs are selected
+ * by a glob (web-*), a regular expression (/web-[0-9]+/), a file of names (@vms.txt) or a comma separated
+ * list. The operations are submitted in parallel up to a concurrency limit, the record of every VM is
+ * written as soon as its operation completes and a throughput and latency summary record is written at
+ * the end.
+ */
+class BatchPowerOperation
+{
+	/**
+	 * Used for logging purposes.
+	 */
+	private final Logger logger = Logger.getLogger(BatchPowerOperation.class.getName());
+	/**
+	 * Number of power operations running at the same time unless -parallel=N is given.
+	 */
+	static final int DEFAULT_CONCURRENCY = 8;
+
+	private final CloudServerCommand cloudServerCommand;
+	/**
+	 * The metrics the SOAP calls are recorded in, null if they are not measured.
+	 */
+	private final SoapCallMetrics callMetrics;
+	private final String operation;
+	private final int concurrency;
+
+	public BatchPowerOperation(CloudServerCommand cloudServerCommand, String operation, int concurrency)
+	{
+		this.cloudServerCommand = cloudServerCommand;
+		this.callMetrics = cloudServerCommand.getCallMetrics();
+		this.operation = operation;
+		this.concurrency = Math.max(1, concurrency);
+	}
+	/**
+	 * This method is used to @return the names of all the VMs selected by the target, keeping the order in
+	 * which they are listed (or the inventory order for patterns). The VM names of the inventory are only
+	 * fetched for patterns, or when onlyExisting asks to drop the listed names which are not present in the
+	 * inventory (used when the same list is applied to several vCenter Servers).
+	 * @throws IOException if the file of names cannot be read or the inventory cannot be listed.
+	 */
+	public List<String> resolveTargets(String target, boolean onlyExisting) throws IOException
+	{
+		Set<String> vmNames = new LinkedHashSet<String>();
+		if (target.startsWith("@"))
+		{
+			for (String line : Files.readAllLines(Paths.get(target.substring(1)), StandardCharsets.UTF_8))
+			{
+				if (!line.trim().isEmpty() && !line.trim().startsWith("#"))
+				{
+					vmNames.add(line.trim());
+				}
+			}
+		}
+		else if (SearchIndex.Query.isPattern(target))
+		{
+			vmNames.addAll(cloudServerCommand.findVMNames(target));
+		}
+		else
+		{
+			for (String vmName : target.split(","))
+			{
+				if (!vmName.trim().isEmpty())
+				{
+					vmNames.add(vmName.trim());
+				}
+			}
+		}
+		if (onlyExisting)
+		{
+			vmNames.retainAll(new HashSet<String>(cloudServerCommand.getAllVMNames()));
+		}
+		return new ArrayList<String>(vmNames);
+	}
+	/**
+	 * This method is used to run the operation on all the given VMs, writing the record of each VM to the
+	 * response sink as it completes, followed by the summary record.
+	 */
+	public void execute(List<String> vmNames, ResponseSink responseSink)
+	{
+		if (vmNames.isEmpty())
+		{
+			responseSink.add("No VM matches the given names");
+			return;
+		}
+		responseSink.add("Power " + operation + " of " + vmNames.size() + " VM(s), " + concurrency + " at a time");
+		ExecutorService executorService = Executors.newFixedThreadPool(Math.min(concurrency, vmNames.size()));
+		CompletionService<Result> completionService = new ExecutorCompletionService<Result>(executorService);
+		final String commandName = callMetrics == null ? null : callMetrics.getCommand();
+		long startTime = System.currentTimeMillis();
+		try
+		{
+			for (final String vmName : vmNames)
+			{
+				completionService.submit(new Callable<Result>()
+				{
+					@Override
+					public Result call()
+					{
+						setCommandName(commandName);
+						try
+						{
+							return executeSingle(vmName);
+						}
+						finally
+						{
+							setCommandName(null);
+						}
+					}
+				});
+			}
+			long[] durations = new long[vmNames.size()];
+			int failures = 0;
+			for (int i = 0; i < vmNames.size(); i++)
+			{
+				Result result = completionService.take().get();
+				durations[i] = result.durationMillis;
+				if (!result.success)
+				{
+					failures++;
+				}
+				responseSink.add(new ResultRecord("batchPower", "vm", i)
+						.add("vm", "Name", result.vmName)
+						.add("status", "Status", result.status)
+						.add("success", null, result.success)
+						.add("durationMillis", "Time", result.durationMillis, " ms"));
+			}
+			long elapsedMillis = Math.max(1, System.currentTimeMillis() - startTime);
+			Arrays.sort(durations);
+			responseSink.add(new ResultRecord("batchPowerTotal", "Total", -1)
+					.add("completed", "Completed", vmNames.size())
+					.add("succeeded", "Succeeded", vmNames.size() - failures)
+					.add("failed", "Failed", failures)
+					.add("elapsedMillis", "Elapsed", elapsedMillis, " ms")
+					.add("vmPerSecond", "Throughput", Math.round(vmNames.size() * 100000.0 / elapsedMillis) / 100.0, " VM/s")
+					.add("p50Millis", "p50", percentile(durations, 50), " ms")
+					.add("p95Millis", "p95", percentile(durations, 95), " ms")
+					.add("p99Millis", "p99", percentile(durations, 99), " ms")
+					.add("maxMillis", "Max", durations[durations.length - 1], " ms"));
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			responseSink.add("Batch power " + operation + " was interrupted");
+		}
+		catch (ExecutionException e)
+		{
+			logger.log(Level.SEVERE, "Batch power operation failed", e.getCause());
+			responseSink.add("Batch power " + operation + " failed: " + e.getCause());
+		}
+		finally
+		{
+			executorService.shutdownNow();
+		}
+	}
+	/**
+	 * This method is used to count the SOAP calls of the current thread for the given command, null for none,
+	 * so that the worker threads count their calls for the command which started them.
+	 */
+	private void setCommandName(String commandName)
+	{
+		if (callMetrics != null)
+		{
+			callMetrics.setCommand(commandName);
+		}
+	}
+	/**
+	 * This method is used to run the operation on one VM and @return its outcome. Errors of one VM are
+	 * reported in the result so that they do not stop the rest of the batch.
+	 */
+	private Result executeSingle(String vmName)
+	{
+		long startTime = System.currentTimeMillis();
+		Result result = new Result(vmName);
+		try
+		{
+			/*
+			 * The outcome is taken from the status of the power operation record; without one, the last
+			 * line written (like the one saying the VM cannot be found) becomes the status.
+			 */
+			final ResultRecord[] outcome = new ResultRecord[1];
+			final List<String> lines = new ArrayList<String>();
+			ResponseSink outcomeSink = new ResponseSink()
+			{
+				@Override
+				public void add(String response)
+				{
+					lines.add(response);
+				}
+
+				@Override
+				public void add(ResultRecord record)
+				{
+					if (record.getType().equals("powerOperation"))
+					{
+						outcome[0] = record;
+					}
+				}
+			};
+			if (operation.equalsIgnoreCase("on"))
+			{
+				cloudServerCommand.startVM(vmName, outcomeSink);
+			}
+			else if (operation.equalsIgnoreCase("off"))
+			{
+				cloudServerCommand.stopVM(vmName, outcomeSink);
+			}
+			else
+			{
+				cloudServerCommand.shutdownVM(vmName, outcomeSink);
+			}
+			if (outcome[0] == null)
+			{
+				result.status = lines.isEmpty() ? "failed without a status" : lines.get(lines.size() - 1);
+			}
+			else
+			{
+				result.status = String.valueOf(outcome[0].get("status"));
+				result.success = result.status.equals("success") || result.status.equals("completed");
+			}
+		}
+		catch (Exception e)
+		{
+			result.status = "failed due to " + e.toString();
+		}
+		result.durationMillis = System.currentTimeMillis() - startTime;
+		return result;
+	}
+	/**
+	 * This method is used to @return the nearest-rank percentile of the sorted durations.
+	 */
+	static long percentile(long[] sortedValues, int percentile)
+	{
+		int rank = (int) Math.ceil(percentile / 100.0 * sortedValues.length);
+		return sortedValues[Math.max(0, rank - 1)];
+	}
+	/**
+	 * The outcome of the operation on one VM.
+	 */
+	private static class Result
+	{
+		private final String vmName;
+		private String status;
+		private boolean success;
+		private long durationMillis;
+
+		private Result(String vmName)
+		{
+			this.vmName = vmName;
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package com.sjsu.cmpe281.vmware.hw2;
+
+import java.util.ArrayList;
+import java.util.List;
+/**
+ * @author Pratik Pandey.
+ *
+ * This class is the sink of a command whose response is shown later, like a command of a script run in
+ * parallel or a background job. It keeps the lines and the records in the order they came, and the error
+ * the command failed with, until they are written to the real sink.
+ */
+class BufferedResponseSink implements ResponseSink
+{
+	private final List<Object> responseList = new ArrayList<Object>();
+	private volatile Exception error;
+
+	@Override
+	public synchronized void add(String response)
+	{
+		responseList.add(response);
+	}
+
+	@Override
+	public synchronized void add(ResultRecord record)
+	{
+		responseList.add(record);
+	}
+	/**
+	 * This method is used to @return the number of lines and records kept so far.
+	 */
+	public synchronized int size()
+	{
+		return responseList.size();
+	}
+	/**
+	 * This method is used to @return the error the command failed with, or null.
+	 */
+	public Exception getError()
+	{
+		return error;
+	}
+
+	public void setError(Exception error)
+	{
+		this.error = error;
+	}
+	/**
+	 * This method is used to write the kept lines and records to the response sink, followed by the error
+	 * if the command failed.
+	 */
+	public synchronized void writeTo(ResponseSink responseSink)
+	{
+		for (Object response : responseList)
+		{
+			if (response instanceof ResultRecord)
+			{
+				responseSink.add((ResultRecord) response);
+			}
+			else
+			{
+				responseSink.add((String) response);
+			}
+		}
+		if (error != null)
+		{
+			responseSink.add("Error: the command failed due to \"" + error.toString() + "\"");
+		}
+	}
+}
@@ -0,0 +1,279 @@
+package com.sjsu.cmpe281.vmware.hw2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.mo.util.PropertyCollectorUtil;
+/**
+ * @author Pratik Pandey.
+ *
+ * This class computes the capacity and utilization of the clusters and datastores from one bulk retrieval
+ * of each of the clusters, hosts, datastores and VMs, instead of asking every host and every datastore on
+ * its own. A datastore mounted by several hosts is counted once per cluster and once in the totals.
+ */
+class CapacityReport
+{
+	/**
+	 * Properties fetched in bulk for the report.
+	 */
+	static final String[] CLUSTER_PROPERTIES = { "name" };
+	static final String[] HOST_PROPERTIES = { "name", "parent", "runtime.connectionState", "hardware.memorySize",
+			"hardware.cpuInfo.numCpuCores", "hardware.cpuInfo.hz", "summary.quickStats.overallCpuUsage",
+			"summary.quickStats.overallMemoryUsage", "datastore" };
+	static final String[] DATASTORE_PROPERTIES = { "name", "summary.type", "summary.capacity", "summary.freeSpace",
+			"summary.uncommitted" };
+	static final String[] VM_PROPERTIES = { "runtime.host", "runtime.powerState", "summary.config.numCpu",
+			"summary.config.memorySizeMB", "datastore" };
+
+	private static final long GB = 1024L * 1024 * 1024;
+
+	private final Map<String, EntityProperties> datastoresByMOR = new HashMap<String, EntityProperties>();
+	/**
+	 * Totals keyed by the managed object reference value of the cluster, or of the compute resource of a
+	 * standalone host, as clusters of different datacenters may have the same name.
+	 */
+	private final Map<String, Totals> totalsByCluster = new LinkedHashMap<String, Totals>();
+	private final Totals totals = new Totals("Total");
+	private final Map<String, Set<String>> hostsByDatastore = new HashMap<String, Set<String>>();
+	private final Map<String, Integer> vmsByDatastore = new HashMap<String, Integer>();
+
+	public CapacityReport(List<EntityProperties> clusters, List<EntityProperties> hosts,
+			List<EntityProperties> datastores, List<EntityProperties> virtualMachines)
+	{
+		Map<String, String> clusterNames = new HashMap<String, String>();
+		for (EntityProperties cluster : clusters)
+		{
+			clusterNames.put(cluster.getMOR().get_value(), cluster.getName());
+		}
+		for (EntityProperties datastore : datastores)
+		{
+			datastoresByMOR.put(datastore.getMOR().get_value(), datastore);
+		}
+		List<EntityProperties> sortedHosts = new ArrayList<EntityProperties>(hosts);
+		Collections.sort(sortedHosts, new Comparator<EntityProperties>()
+		{
+			@Override
+			public int compare(EntityProperties first, EntityProperties second)
+			{
+				return String.valueOf(first.getName()).compareTo(String.valueOf(second.getName()));
+			}
+		});
+		Map<String, Totals> totalsByHost = new HashMap<String, Totals>();
+		for (EntityProperties host : sortedHosts)
+		{
+			ManagedObjectReference parent = (ManagedObjectReference) host.get("parent");
+			String clusterKey = parent == null ? host.getMOR().get_value() : parent.get_value();
+			Totals clusterTotals = totalsByCluster.get(clusterKey);
+			if (clusterTotals == null)
+			{
+				String clusterName = clusterNames.get(clusterKey);
+				clusterTotals = new Totals(clusterName == null ? host.getName() : clusterName);
+				totalsByCluster.put(clusterKey, clusterTotals);
+			}
+			clusterTotals.addHost(host);
+			totals.addHost(host);
+			totalsByHost.put(host.getMOR().get_value(), clusterTotals);
+			for (ManagedObjectReference datastore : getReferences(host.get("datastore")))
+			{
+				Set<String> hostNames = hostsByDatastore.get(datastore.get_value());
+				if (hostNames == null)
+				{
+					hostNames = new HashSet<String>();
+					hostsByDatastore.put(datastore.get_value(), hostNames);
+				}
+				hostNames.add(host.getMOR().get_value());
+			}
+		}
+		for (EntityProperties virtualMachine : virtualMachines)
+		{
+			ManagedObjectReference host = (ManagedObjectReference) virtualMachine.get("runtime.host");
+			Totals clusterTotals = host == null ? null : totalsByHost.get(host.get_value());
+			if (clusterTotals != null)
+			{
+				clusterTotals.addVM(virtualMachine);
+			}
+			totals.addVM(virtualMachine);
+			for (ManagedObjectReference datastore : getReferences(virtualMachine.get("datastore")))
+			{
+				Integer count = vmsByDatastore.get(datastore.get_value());
+				vmsByDatastore.put(datastore.get_value(), count == null ? 1 : count + 1);
+			}
+		}
+	}
+	/**
+	 * This method is used to write one record per cluster followed by the totals.
+	 */
+	public void writeClusters(ResponseSink responseSink)
+	{
+		int index = 0;
+		for (Totals clusterTotals : totalsByCluster.values())
+		{
+			responseSink.add(clusterTotals.toRecord(index++));
+		}
+		responseSink.add(totals.toRecord(-1));
+	}
+	/**
+	 * This method is used to write one record per datastore, the fullest first, followed by the totals.
+	 */
+	public void writeDatastores(ResponseSink responseSink)
+	{
+		List<EntityProperties> datastores = new ArrayList<EntityProperties>(datastoresByMOR.values());
+		Collections.sort(datastores, new Comparator<EntityProperties>()
+		{
+			@Override
+			public int compare(EntityProperties first, EntityProperties second)
+			{
+				int order = Long.compare(getUsedPercent(second), getUsedPercent(first));
+				return order != 0 ? order : String.valueOf(first.getName()).compareTo(String.valueOf(second.getName()));
+			}
+		});
+		long capacity = 0;
+		long freeSpace = 0;
+		long uncommitted = 0;
+		int index = 0;
+		for (EntityProperties datastore : datastores)
+		{
+			String morValue = datastore.getMOR().get_value();
+			capacity += getLong(datastore.get("summary.capacity"));
+			freeSpace += getLong(datastore.get("summary.freeSpace"));
+			uncommitted += getLong(datastore.get("summary.uncommitted"));
+			responseSink.add(createDatastoreRecord(index++, datastore.getName(), datastore.get("summary.type"),
+					getLong(datastore.get("summary.capacity")), getLong(datastore.get("summary.freeSpace")),
+					getLong(datastore.get("summary.uncommitted")),
+					hostsByDatastore.containsKey(morValue) ? hostsByDatastore.get(morValue).size() : 0,
+					vmsByDatastore.containsKey(morValue) ? vmsByDatastore.get(morValue) : 0));
+		}
+		responseSink.add(createDatastoreRecord(-1, "Total", datastores.size() + " datastore(s)", capacity, freeSpace,
+				uncommitted, totals.hosts, totals.vms));
+	}
+
+	private static ResultRecord createDatastoreRecord(int index, String name, Object type, long capacity,
+			long freeSpace, long uncommitted, int hosts, int vms)
+	{
+		return new ResultRecord("datastoreReport", index < 0 ? "total" : "datastore", index)
+				.add("name", "Name", name)
+				.add("type", "Type", type)
+				.add("capacityGB", "Capacity", capacity / GB, " GB")
+				.add("freeSpaceGB", "Free", freeSpace / GB, " GB")
+				.add("usedPercent", "Used", getPercent(capacity - freeSpace, capacity), " %")
+				.add("provisionedGB", "Provisioned", (capacity - freeSpace + uncommitted) / GB, " GB")
+				.add("hosts", "Hosts", hosts)
+				.add("vms", "VMs", vms);
+	}
+
+	private static long getUsedPercent(EntityProperties datastore)
+	{
+		long capacity = getLong(datastore.get("summary.capacity"));
+		return getPercent(capacity - getLong(datastore.get("summary.freeSpace")), capacity);
+	}
+
+	private static long getPercent(long part, long whole)
+	{
+		return whole <= 0 ? 0 : part * 100 / whole;
+	}
+
+	private static long getLong(Object value)
+	{
+		return value instanceof Number ? ((Number) value).longValue() : 0;
+	}
+	/**
+	 * This method is used to @return the references of an array property, which vijava returns wrapped
+	 * into an ArrayOfManagedObjectReference.
+	 */
+	static ManagedObjectReference[] getReferences(Object value)
+	{
+		Object references = value == null || value instanceof ManagedObjectReference[] ? value
+				: PropertyCollectorUtil.convertProperty(value);
+		return references instanceof ManagedObjectReference[] ? (ManagedObjectReference[]) references
+				: new ManagedObjectReference[0];
+	}
+	/**
+	 * The sums over the hosts and VMs of a cluster, or of the whole inventory.
+	 */
+	private class Totals
+	{
+		private final String name;
+		private final Set<String> datastores = new HashSet<String>();
+		private int hosts;
+		private int connectedHosts;
+		private long cpuCores;
+		private long cpuMHz;
+		private long cpuUsedMHz;
+		private long memoryBytes;
+		private long memoryUsedMB;
+		private int vms;
+		private int poweredOnVMs;
+		private long vCPUs;
+		private long vmMemoryMB;
+
+		private Totals(String name)
+		{
+			this.name = name;
+		}
+
+		private void addHost(EntityProperties host)
+		{
+			hosts++;
+			connectedHosts += "connected".equals(host.getString("runtime.connectionState")) ? 1 : 0;
+			long cores = getLong(host.get("hardware.cpuInfo.numCpuCores"));
+			cpuCores += cores;
+			cpuMHz += cores * getLong(host.get("hardware.cpuInfo.hz")) / 1000000;
+			cpuUsedMHz += getLong(host.get("summary.quickStats.overallCpuUsage"));
+			memoryBytes += getLong(host.get("hardware.memorySize"));
+			memoryUsedMB += getLong(host.get("summary.quickStats.overallMemoryUsage"));
+			for (ManagedObjectReference datastore : getReferences(host.get("datastore")))
+			{
+				datastores.add(datastore.get_value());
+			}
+		}
+
+		private void addVM(EntityProperties virtualMachine)
+		{
+			vms++;
+			if ("poweredOn".equals(virtualMachine.getString("runtime.powerState")))
+			{
+				poweredOnVMs++;
+				vCPUs += getLong(virtualMachine.get("summary.config.numCpu"));
+				vmMemoryMB += getLong(virtualMachine.get("summary.config.memorySizeMB"));
+			}
+		}
+
+		private ResultRecord toRecord(int index)
+		{
+			long storageCapacity = 0;
+			long storageFree = 0;
+			for (String datastore : datastores)
+			{
+				EntityProperties properties = datastoresByMOR.get(datastore);
+				if (properties != null)
+				{
+					storageCapacity += getLong(properties.get("summary.capacity"));
+					storageFree += getLong(properties.get("summary.freeSpace"));
+				}
+			}
+			return new ResultRecord("capacity", index < 0 ? "total" : "cluster", index)
+					.add("name", "Name", name)
+					.add("hosts", "Hosts", hosts)
+					.add("connectedHosts", "Connected", connectedHosts)
+					.add("cpuCores", "CPU cores", cpuCores)
+					.add("cpuGHz", "CPU", cpuMHz / 1000, " GHz")
+					.add("cpuUsedPercent", "CPU used", getPercent(cpuUsedMHz, cpuMHz), " %")
+					.add("memoryGB", "RAM", memoryBytes / GB, " GB")
+					.add("memoryUsedPercent", "RAM used", getPercent(memoryUsedMB * 1024 * 1024, memoryBytes), " %")
+					.add("vms", "VMs", vms)
+					.add("poweredOnVMs", "Powered on", poweredOnVMs)
+					.add("vCPUsPerCore", "vCPU per core", cpuCores == 0 ? 0 : Math.round(vCPUs * 100.0 / cpuCores) / 100.0)
+					.add("vmMemoryGB", "VM RAM", vmMemoryMB / 1024, " GB")
+					.add("datastores", "Datastores", datastores.size())
+					.add("storageGB", "Storage", storageCapacity / GB, " GB")
+					.add("storageFreeGB", "Storage free", storageFree / GB, " GB");
+		}
+	}
+}
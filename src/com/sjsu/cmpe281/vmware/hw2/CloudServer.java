@@ -5,13 +5,15 @@ import java.net.URL;
 import java.rmi.RemoteException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import com.vmware.vim25.NotAuthenticated;
 import com.vmware.vim25.mo.Folder;
 import com.vmware.vim25.mo.ServiceInstance;
 /**
  * @author Pratik Pandey.
  * 
  * This class contains only server related data and operations like making connection with the server and to 
- * gracefully disconnect with server.
+ * gracefully disconnect with server. Creating it does not connect yet: the login happens once, when the
+ * session is opened, and its ServiceInstance with the ServiceContent fetched by the login is used from then on.
  */
 public class CloudServer
 {
@@ -33,29 +35,52 @@ public class CloudServer
 	private static final String URL_PROTOCOL = "https://";
 
 	private String ipAddress;
+	private String serverUrl;
 	private String username;
 	private String password;
 	
+	/**
+	 * The service instance of the current login, null until connect is called.
+	 */
 	private ServiceInstance serviceInstance;
 	/**
 	 * Used when taking the input values as arguments from command line.
 	 */
-	public CloudServer(String ipAddress, String username, String password) throws MalformedURLException, RemoteException
+	public CloudServer(String ipAddress, String username, String password) throws MalformedURLException
+	{
+		this(ipAddress, CloudServer.URL_PROTOCOL + ipAddress + CloudServer.CLOUD_SERVER_URL, username, password);
+	}
+	/**
+	 * Used when the SDK endpoint is not the usual https one, like the one of the vCenter Server simulator.
+	 */
+	public CloudServer(String ipAddress, String serverUrl, String username, String password) throws MalformedURLException
 	{
 		this.ipAddress = ipAddress;
+		this.serverUrl = new URL(serverUrl).toString();
 		this.username = username;
 		this.password = password;
-		serviceInstance = getServerInstance();
 	}
 	/**
 	 * Used when using default contant values.
 	 */
-	public CloudServer() throws MalformedURLException, RemoteException
+	public CloudServer()
 	{
 		this.ipAddress = DEFAULT_IP;
+		this.serverUrl = CloudServer.URL_PROTOCOL + DEFAULT_IP + CloudServer.CLOUD_SERVER_URL;
 		this.username = DEFAULT_LOGIN_USERNAME;
 		this.password = DEFAULT_LOGIN_PASSWORD;
-		serviceInstance = getServerInstance();
+	}
+	/**
+	 * This method is used to log in to the server, unless it is logged in already.
+	 */
+	public synchronized void connect() throws MalformedURLException, RemoteException
+	{
+		if (serviceInstance == null)
+		{
+			long startTime = System.currentTimeMillis();
+			serviceInstance = getServerInstance();
+			logger.log(Level.INFO, "Logged in to " + ipAddress + " in " + (System.currentTimeMillis() - startTime) + " ms");
+		}
 	}
 	/**
 	 * This method is used to @return the service instance object after successful connection with the 
@@ -63,10 +88,9 @@ public class CloudServer
 	 */
 	public ServiceInstance getServerInstance() throws MalformedURLException, RemoteException
 	{
-		logger.log(Level.INFO, "Using IP : "+ipAddress + " Username : " + username + " Password : " + password);
+		logger.log(Level.INFO, "Using IP : "+ipAddress + " Username : " + username);
 		
-		URL serverUrl = new URL(CloudServer.URL_PROTOCOL + ipAddress + CloudServer.CLOUD_SERVER_URL);
-		return new ServiceInstance(serverUrl, username , password , true);
+		return new ServiceInstance(new URL(serverUrl), username , password , true);
 	}
 	/**
 	 * This method is used to @return the root folder object by using service instance object.
@@ -76,11 +100,69 @@ public class CloudServer
 		logger.log(Level.INFO, "Trying to get the root folder from the cloud server");
 		return serviceInstance.getRootFolder();		
 	}
+	/**
+	 * This method is used to @return the service instance of the current session, null before connect.
+	 */
+	public synchronized ServiceInstance getServiceInstance()
+	{
+		return serviceInstance;
+	}
+	/**
+	 * This method is used to @return the IP address of the vCenter Server.
+	 */
+	public String getIpAddress()
+	{
+		return ipAddress;
+	}
+	/**
+	 * This method is used to keep the session from expiring on the server. It asks the server for the
+	 * current session, which also tells whether the session is still valid, and logs in again if it is
+	 * not. @return true if a new session had to be created.
+	 */
+	public synchronized boolean keepAlive() throws MalformedURLException, RemoteException
+	{
+		if (serviceInstance == null)
+		{
+			return false;
+		}
+		try
+		{
+			if (serviceInstance.getSessionManager().getCurrentSession() != null)
+			{
+				return false;
+			}
+		}
+		catch (RuntimeException e)
+		{
+			/*
+			 * The property getters of vijava wrap the fault of the server into a RuntimeException.
+			 */
+			if (!(e.getCause() instanceof NotAuthenticated))
+			{
+				throw e;
+			}
+			logger.log(Level.INFO, "Session of " + ipAddress + " is no longer authenticated");
+		}
+		relogin();
+		return true;
+	}
+	/**
+	 * This method is used to replace the expired session by a new one.
+	 */
+	public synchronized void relogin() throws MalformedURLException, RemoteException
+	{
+		logger.log(Level.INFO, "Logging in again to " + ipAddress);
+		serviceInstance = getServerInstance();
+	}
 	/**
 	 * This method is used to gracefully close the connection.
 	 */
-	public void logoutFromCloudService()
+	public synchronized void logoutFromCloudService()
 	{
+		if (serviceInstance == null)
+		{
+			return;
+		}
 		logger.log(Level.INFO, "Logging out from server");
 		serviceInstance.getServerConnection().logout();
 	}
@@ -1,14 +1,25 @@
 package com.sjsu.cmpe281.vmware.hw2;
 
 import java.rmi.RemoteException;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
+import com.vmware.vim25.DatastoreSummary;
 import com.vmware.vim25.InvalidProperty;
+import com.vmware.vim25.LocalizedMethodFault;
+import com.vmware.vim25.ManagedObjectReference;
 import com.vmware.vim25.RuntimeFault;
+import com.vmware.vim25.TaskInfoState;
 import com.vmware.vim25.VirtualMachinePowerState;
 import com.vmware.vim25.VirtualMachineRuntimeInfo;
 import com.vmware.vim25.mo.Datastore;
@@ -20,6 +31,7 @@ import com.vmware.vim25.mo.Network;
 import com.vmware.vim25.mo.ServiceInstance;
 import com.vmware.vim25.mo.Task;
 import com.vmware.vim25.mo.VirtualMachine;
+import com.vmware.vim25.mo.util.MorUtil;
 /**
  * @author Pratik Pandey.
  * 
@@ -38,41 +50,134 @@ class CloudServerCommand
 	private static final Pattern PATTERN = Pattern.compile(
 	        "^(([01]?\\d\\d?|2[0-4]\\d|25[0-5])\\.){3}([01]?\\d\\d?|2[0-4]\\d|25[0-5])$");
 	
+	/**
+	 * Properties fetched in bulk for the host and VM listings.
+	 */
+	private static final String[] HOST_LIST_PROPERTIES = { "name", "runtime.connectionState" };
+	private static final String[] VM_LIST_PROPERTIES = { "name", "runtime.powerState", "runtime.host",
+			"guest.ipAddress" };
+	/**
+	 * How long the power operations wait for their task, and a guest shutdown for the VM to power off.
+	 */
+	private static final long TASK_TIMEOUT_MILLIS = 30 * 60 * 1000;
+	private static final long SHUTDOWN_TIMEOUT_MILLIS = 3 * 60 * 1000;
+	/**
+	 * Properties of the VM export: the guest, runtime, configuration and storage summary of every VM.
+	 */
+	private static final String[] VM_EXPORT_PROPERTIES = { "name", "guest.guestFullName", "guest.guestState",
+			"guest.ipAddress", "guest.toolsRunningStatus", "runtime.powerState", "runtime.connectionState",
+			"runtime.host", "summary.config.numCpu", "summary.config.memorySizeMB", "summary.storage.committed",
+			"summary.storage.uncommitted" };
+	
 	private final Folder rootFolder;
 	private final ServiceInstance serviceInstance;
+	private final PropertyRetriever propertyRetriever;
+	/**
+	 * The inventory cache, null if it could not be started in which case every lookup goes to the server.
+	 */
+	private final InventoryCache inventoryCache;
+	private final TaskCompletionTracker taskTracker;
+	/**
+	 * The metrics the SOAP calls are recorded in, null if they are not measured.
+	 */
+	private final SoapCallMetrics callMetrics;
+	/**
+	 * The sampler of the performance counters, created with the first perf command so that the counter
+	 * descriptions are fetched only once per session.
+	 */
+	private PerformanceSampler performanceSampler;
+	/**
+	 * The topology graph, built with the first topology command and kept until topology refresh.
+	 */
+	private TopologyGraph topologyGraph;
 	
-	public CloudServerCommand(Folder rootFolder, ServiceInstance serviceInstance)
+	public CloudServerCommand(Folder rootFolder, ServiceInstance serviceInstance, InventoryCache inventoryCache,
+			TaskCompletionTracker taskTracker, SoapCallMetrics callMetrics)
 	{
 		this.rootFolder = rootFolder;
 		this.serviceInstance = serviceInstance;
+		this.propertyRetriever = new PropertyRetriever(serviceInstance);
+		this.inventoryCache = inventoryCache;
+		this.taskTracker = taskTracker;
+		this.callMetrics = callMetrics;
+	}
+	/**
+	 * This method is used to @return the metrics the SOAP calls are recorded in, null if they are not measured.
+	 */
+	public SoapCallMetrics getCallMetrics()
+	{
+		return callMetrics;
+	}
+	/**
+	 * This method is used to @return the inventory cache the commands look entities up in, null if there is none.
+	 */
+	public InventoryCache getInventoryCache()
+	{
+		return inventoryCache;
 	}
 	/**
-	 * This method is used to @return the list of all the available commands to User when 
+	 * This method is used to write the list of all the available commands to the response sink when 
 	 * needed for execution.
 	 * @throws InvalidProperty, RuntimeFault, RemoteException
 	 */
-	public List<String> getHelpResponse()
-	{
-		List<String> responseList = new ArrayList<String>();
-		responseList.add("\n-----------------------------------------------------------------------------");
-		responseList.add("\t\t\t List of Available Commands");
-		responseList.add("-----------------------------------------------------------------------------");
-		responseList.add("exit" + "\t\t\t" + "Exit the program");
-		responseList.add("help" + "\t\t\t" + "Print out the usage, e.g., the entire list of commands");
-		responseList.add("host" + "\t\t\t" + "Enumerate all hosts");
-		responseList.add("host hname info" + "\t\t" + "Show info of host hname, e.g., host 130.65.159.11 info");
-		responseList.add("host hname datastore" + "\t"
+	public static void getHelpResponse(ResponseSink responseSink)
+	{
+		responseSink.add("\n-----------------------------------------------------------------------------");
+		responseSink.add("\t\t\t List of Available Commands");
+		responseSink.add("-----------------------------------------------------------------------------");
+		responseSink.add("exit" + "\t\t\t" + "Exit the program");
+		responseSink.add("help" + "\t\t\t" + "Print out the usage, e.g., the entire list of commands");
+		responseSink.add("host" + "\t\t\t" + "Enumerate all hosts");
+		responseSink.add("host hname info" + "\t\t" + "Show info of host hname, e.g., host 130.65.159.11 info");
+		responseSink.add("host hname datastore" + "\t"
 				+ "Enumerate datastores of host hname, e.g., host 130.65.159.11 datastore");
-		responseList.add(
+		responseSink.add(
 				"Host hname network" + "\t" + "Enumerate datastores of host hname, e.g., host 130.65.159.11 network");
-		responseList.add("vm" + "\t\t\t" + "Enumerate all virtual machines");
-		responseList.add("vm vname info" + "\t\t" + "Show info of VM vname, e.g., vm demo-centos7-123 info");
-		responseList.add("vm vname on" + "\t\t"
+		responseSink.add("vm" + "\t\t\t" + "Enumerate all virtual machines");
+		responseSink.add("vm vname info" + "\t\t" + "Show info of VM vname, e.g., vm demo-centos7-123 info");
+		responseSink.add("vm vms info" + "\t\t" + "Show info of the VMs matching a glob or /regex/, e.g., vm web-* info");
+		responseSink.add("vm vms info --export" + "\t"
+				+ "Stream guest, runtime, config and storage of the VMs, e.g., vm * info --export --format=csv");
+		responseSink.add("vm vname on" + "\t\t"
 				+ "Power on VM vname and wait until task completes, e.g., vm demo-centos7-123 on");
-		responseList.add("vm vname off" + "\t\t"
+		responseSink.add("vm vname off" + "\t\t"
 				+ "Power off VM vname and wait until task completes, e.g., vm demo-centos7-123 off");
-		responseList.add("vm vname shutdown" + "\t" + "Shutdown guest of VM vname, e.g., vm demo-centos7-123 shutdown");
-		return responseList;
+		responseSink.add("vm vname shutdown" + "\t" + "Shutdown guest of VM vname, e.g., vm demo-centos7-123 shutdown");
+		responseSink.add("vm on|off|shutdown vms" + "\t"
+				+ "Power many VMs in parallel, vms is a glob, /regex/, @file or list, e.g., vm on web-* -parallel=16");
+		responseSink.add("search text [-host=h]" + "\t"
+				+ "Find VMs and hosts by name or IP, text is a part, glob or /regex/, e.g., search 10.0.1.*");
+		responseSink.add("watch vm|host [f]" + "\t"
+				+ "Show changes as they happen until Enter, f is a name filter, e.g., watch vm web-* -seconds=60");
+		responseSink.add("perf host|vm n [c] [i]" + "\t"
+				+ "Show min/avg/max/p95 of counters c every i seconds, e.g., perf vm web-* cpu.usage.average 20 -seconds=60");
+		responseSink.add("report capacity" + "\t\t" + "Show CPU, RAM, VM and storage totals per cluster");
+		responseSink.add("report datastore" + "\t" + "Show capacity, usage, hosts and VMs of every datastore, fullest first");
+		responseSink.add("datastore scan [ds]" + "\t"
+				+ "Find orphaned disks, stale snapshots and the largest folders, e.g., datastore scan * -parallel=16 -days=30");
+		responseSink.add("snapshot report [vms]" + "\t"
+				+ "Show the oldest and the largest snapshots of the VMs, e.g., snapshot report web-* -top=10");
+		responseSink.add("snapshot prune [vms]" + "\t"
+				+ "Remove older snapshots, e.g., snapshot prune * --older-than=30 -parallel=16 -per-datastore=2 --dry-run");
+		responseSink.add("topology [refresh]" + "\t" + "Show node and edge counts of the host, VM, network, switch and datastore graph");
+		responseSink.add("topology neighbors [k] n" + "\t"
+				+ "Show the nodes of kind k connected to n, e.g., topology neighbors vm VM Network 1");
+		responseSink.add("topology reach [k] n" + "\t"
+				+ "Show the nodes of kind k reachable from n, e.g., topology reach datastore web-01 -depth=2");
+		responseSink.add("topology lacking k n" + "\t"
+				+ "Show the nodes of kind k not connected to n, e.g., topology lacking host VM Network 1");
+		responseSink.add("topology path a to b" + "\t" + "Show a shortest path between a and b, e.g., topology path web-01 to db-01");
+		responseSink.add("events [n] [--since=t]" + "\t"
+				+ "Stream the events of VM or host n since t (7d, 12h, 30m or MM/dd/yyyy), e.g., events web-01 --since=7d --type=VmPoweredOnEvent");
+		responseSink.add("tasks [n] [--since=t]" + "\t"
+				+ "Stream the tasks of VM or host n queued since t, e.g., tasks web-01 --since=12h --state=error");
+		responseSink.add("stats [reset]" + "\t\t" + "Show the SOAP calls made per command with latency, bytes and errors");
+		responseSink.add("cache stats" + "\t\t" + "Show hit rate, version and update lag of the inventory cache");
+		responseSink.add("command &" + "\t\t" + "Run the command as a background job, power operations and prunes always are");
+		responseSink.add("jobs" + "\t\t\t" + "Show the background jobs with their status and time");
+		responseSink.add("wait [id]" + "\t\t" + "Wait for job id, or all the jobs, and show the response, e.g., wait 1");
+		responseSink.add("cancel id" + "\t\t" + "Stop waiting for the task of job id, e.g., cancel 1");
+		responseSink.add("command --format=f" + "\t" + "Write the response as table, jsonl or csv, e.g., vm --format=jsonl");
 	}
 	/**
 	 * This method is used to @return boolean and verify whether the provided IP address is correct or not.
@@ -82,303 +187,809 @@ class CloudServerCommand
 	    return PATTERN.matcher(ipAddress).matches();
 	}
 	/**
-	 * This method is used to @return the list of all hosts present in the remote vCenter Server.
+	 * This method is used to write the list of all hosts present in the remote vCenter Server.
 	 * @throws InvalidProperty, RuntimeFault, RemoteException
 	 */
-	public List<String> getAllHostList() throws InvalidProperty , RuntimeFault , RemoteException
+	public void getAllHostList(final ResponseSink responseSink) throws InvalidProperty , RuntimeFault , RemoteException
 	{
-		List<String> responseList = new ArrayList<String>();
-		ManagedEntity[] managedEntities = retrieveMultipleME(rootFolder, "HostSystem");
-		if (managedEntities == null)
-		{
-			logger.log(Level.SEVERE, "There was some problem in accessing the server");
-			responseList.add("There was some problem in accessing the server");
-		}
-		if (managedEntities.length == 0)
+		final int[] index = { 0 };
+		int count = retrieveEach("HostSystem", HOST_LIST_PROPERTIES, host -> responseSink.add(
+				new ResultRecord("host", "host", index[0]++)
+						.add("name", "Name", host.getName())
+						.add("connectionState", "Connection state", host.get("runtime.connectionState"))));
+		if (count == 0)
 		{
 			logger.log(Level.INFO, "There are no host present");
-			responseList.add("There are no host present");
+			responseSink.add("There are no host present");
 		}
-		else
-		{
-			for (int i = 0; i < managedEntities.length; i++)
-			{
-				HostSystem hostSystem = (HostSystem) managedEntities[i];
-				if (hostSystem != null)
-				{
-					String ipAddress = hostSystem.getName();
-					responseList.add("host[" + i + "]: Name = " + ipAddress);
-				}
-			}
-		}
-		return responseList;
 	}
 	/**
-	 * This method is used to @return the list of all required information of a particular host present 
+	 * This method is used to write the list of all required information of a particular host present 
 	 * in the remote vCenter Server.
 	 * @throws InvalidProperty, RuntimeFault, RemoteException
 	 */
-	public List<String> getHostInfo(String hostName) throws InvalidProperty , RuntimeFault , RemoteException
+	public void getHostInfo(String hostName, ResponseSink responseSink) throws InvalidProperty , RuntimeFault , RemoteException
 	{
-		List<String> responseList = new ArrayList<String>();
 		ManagedEntity managedEntity = retrieveSingleME(rootFolder, "HostSystem", hostName);
 		if (managedEntity == null)
 		{
 			logger.log(Level.SEVERE, "There was some problem in accessing the server");
-			responseList.add("There was some problem in accessing the server");
+			responseSink.add("There was some problem in accessing the server");
 		}
 		else
 		{
 			HostSystem hs = (HostSystem) managedEntity;
-			responseList.add("Name = " + managedEntity.getName());
-			responseList.add("Product Full Name  = " + hs.getConfig().getProduct().getFullName());
-			responseList.add("CPU Cores  = " + hs.getHardware().getCpuInfo().getNumCpuCores());
-			responseList.add("RAM  = " + (((hs.getHardware().getMemorySize()/1024)/1024)/1024)+" GB.");
+			responseSink.add(new ResultRecord("hostInfo")
+					.add("name", "Name", managedEntity.getName())
+					.add("productFullName", "Product Full Name ", hs.getConfig().getProduct().getFullName())
+					.add("cpuCores", "CPU Cores ", hs.getHardware().getCpuInfo().getNumCpuCores())
+					.add("ramGB", "RAM ", ((hs.getHardware().getMemorySize()/1024)/1024)/1024, " GB."));
 		}
-		return responseList;
 	}
 	/**
-	 * This method is used to @return the list of all required information of a particular VM present 
+	 * This method is used to write the list of all required information of a particular VM present 
 	 * in the remote vCenter Server.
 	 * @throws InvalidProperty, RuntimeFault, RemoteException
 	 */
-	public List<String> getVMInfo(String vmName) throws InvalidProperty, RuntimeFault, RemoteException
+	public void getVMInfo(String vmName, ResponseSink responseSink) throws InvalidProperty, RuntimeFault, RemoteException
 	{
-		List<String> responseList = new ArrayList<String>();
-		ManagedEntity managedEntity = retrieveSingleME(rootFolder, "VirtualMachine", vmName);
+		EntityProperties cachedVM = inventoryCache == null ? null : inventoryCache.find("VirtualMachine", vmName);
+		if (cachedVM != null)
+		{
+			/*
+			 * All the info properties are kept in the cache, so no server call is needed at all.
+			 */
+			responseSink.add(createVMInfo(cachedVM.getName(), cachedVM.get("guest.guestFullName"),
+					cachedVM.get("guest.guestState"), cachedVM.get("guest.ipAddress"),
+					cachedVM.get("guest.toolsRunningStatus"), cachedVM.get("runtime.powerState")));
+			return;
+		}
+		if (serviceInstance == null)
+		{
+			responseSink.add("There is no VM " + vmName + " in the inventory snapshot");
+			return;
+		}
+		ManagedEntity managedEntity = new InventoryNavigator(rootFolder).searchManagedEntity("VirtualMachine", vmName);
 		if (managedEntity == null)
 		{
 			logger.log(Level.SEVERE, "There was some problem in accessing the server");
-			responseList.add("There was some problem in accessing the server");
+			responseSink.add("There was some problem in accessing the server");
 		}
 		else
 		{
 			VirtualMachine virtualMachine = (VirtualMachine) managedEntity;
-			responseList.add("Name = " + virtualMachine.getName());
-			responseList.add("GuestFullName = " + virtualMachine.getGuest().getGuestFullName()); 
-			responseList.add("GuestState = " + virtualMachine.getGuest().getGuestState()); 
-			responseList.add("IP addr = " + virtualMachine.getGuest().getIpAddress());
-			responseList.add("Tool running status = " + virtualMachine.getGuest().getToolsRunningStatus());
-			responseList.add("Power state = " + virtualMachine.getRuntime().getPowerState()); 
+			responseSink.add(createVMInfo(virtualMachine.getName(), virtualMachine.getGuest().getGuestFullName(),
+					virtualMachine.getGuest().getGuestState(), virtualMachine.getGuest().getIpAddress(),
+					virtualMachine.getGuest().getToolsRunningStatus(), virtualMachine.getRuntime().getPowerState()));
 		}
-		return responseList;
 	}
 	/**
-	 * This method is used to @return the list of all VMs present in the remote vCenter Server.
+	 * This method is used to @return the record of vm vname info.
+	 */
+	private static ResultRecord createVMInfo(String name, Object guestFullName, Object guestState, Object ipAddress,
+			Object toolsRunningStatus, Object powerState)
+	{
+		return new ResultRecord("vmInfo")
+				.add("name", "Name", name)
+				.add("guestFullName", "GuestFullName", guestFullName)
+				.add("guestState", "GuestState", guestState)
+				.add("ipAddress", "IP addr", ipAddress)
+				.add("toolsRunningStatus", "Tool running status", toolsRunningStatus)
+				.add("powerState", "Power state", powerState);
+	}
+	/**
+	 * This method is used to write one row with the guest, runtime, configuration and storage summary of
+	 * every VM whose name matches the glob or /regex/. The rows are streamed as the pages arrive from the
+	 * server, so that even an inventory of 100k VMs is exported with the memory of a few pages. Offline
+	 * only the properties kept in the inventory snapshot are filled in.
 	 * @throws InvalidProperty, RuntimeFault, RemoteException
 	 */
-	public List<String> getAllVMList() throws InvalidProperty, RuntimeFault, RemoteException
+	public void exportVMInfo(String pattern, final ResponseSink responseSink)
+			throws InvalidProperty, RuntimeFault, RemoteException
 	{
-		List<String> responseList = new ArrayList<String>();
-		ManagedEntity[] managedEntities = retrieveMultipleME(rootFolder, "VirtualMachine");
-		if (managedEntities == null)
+		final SearchIndex.Query query = pattern.equals("*") ? null : new SearchIndex.Query(pattern);
+		final Map<String, String> hostNames = retrieveNames("HostSystem");
+		final int[] index = { 0 };
+		PropertyRetriever.EntityHandler entityHandler = virtualMachine -> {
+			if (query == null || query.matches(virtualMachine.getName()))
+			{
+				responseSink.add(createVMExportRow(index[0]++, virtualMachine, hostNames));
+			}
+		};
+		if (serviceInstance == null)
 		{
-			logger.log(Level.SEVERE, "There was some problem in accessing the server");
-			responseList.add("There was some problem in accessing the server");
+			retrieveEach("VirtualMachine", VM_EXPORT_PROPERTIES, entityHandler);
 		}
-		if (managedEntities.length == 0)
+		else
 		{
-			logger.log(Level.INFO, "There are no host present");
-			responseList.add("There are no host present");
+			propertyRetriever.stream(rootFolder, "VirtualMachine", VM_EXPORT_PROPERTIES, entityHandler);
 		}
-		else
+		if (index[0] == 0)
 		{
-			for (int i = 0; i < managedEntities.length; i++)
+			responseSink.add("There are no VM matching " + pattern);
+		}
+	}
+	/**
+	 * This method is used to @return the record of one VM of the VM export.
+	 */
+	private static ResultRecord createVMExportRow(int index, EntityProperties virtualMachine,
+			Map<String, String> hostNames)
+	{
+		ManagedObjectReference hostMOR = (ManagedObjectReference) virtualMachine.get("runtime.host");
+		return new ResultRecord("vmExport", "vm", index)
+				.add("name", "Name", virtualMachine.getName())
+				.add("guestFullName", "GuestFullName", virtualMachine.get("guest.guestFullName"))
+				.add("guestState", "GuestState", virtualMachine.get("guest.guestState"))
+				.add("ipAddress", "IP addr", virtualMachine.get("guest.ipAddress"))
+				.add("toolsRunningStatus", "Tool running status", virtualMachine.get("guest.toolsRunningStatus"))
+				.add("powerState", "Power state", virtualMachine.get("runtime.powerState"))
+				.add("connectionState", "Connection state", virtualMachine.get("runtime.connectionState"))
+				.add("host", "Host", hostMOR == null ? null : hostNames.get(hostMOR.get_value()))
+				.add("numCpu", "CPUs", virtualMachine.get("summary.config.numCpu"))
+				.add("memoryMB", "Memory", virtualMachine.get("summary.config.memorySizeMB"), " MB")
+				.add("committedMB", "Committed", toMegabytes(virtualMachine.get("summary.storage.committed")), " MB")
+				.add("uncommittedMB", "Uncommitted", toMegabytes(virtualMachine.get("summary.storage.uncommitted")),
+						" MB");
+	}
+
+	private static Long toMegabytes(Object bytes)
+	{
+		return bytes instanceof Long ? (Long) bytes / (1024 * 1024) : null;
+	}
+	/**
+	 * This method is used to write the list of all VMs present in the remote vCenter Server.
+	 * @throws InvalidProperty, RuntimeFault, RemoteException
+	 */
+	public void getAllVMList(final ResponseSink responseSink) throws InvalidProperty, RuntimeFault, RemoteException
+	{
+		/*
+		 * runtime.host is only a reference, so the host names are fetched once in bulk as well rather
+		 * than resolving the reference of every VM with its own call.
+		 */
+		final Map<String, String> hostNames = retrieveNames("HostSystem");
+		final int[] index = { 0 };
+		int count = retrieveEach("VirtualMachine", VM_LIST_PROPERTIES,
+				virtualMachine -> responseSink.add(createVMRow(index[0]++, virtualMachine, hostNames)));
+		if (count == 0)
+		{
+			logger.log(Level.INFO, "There are no VM present");
+			responseSink.add("There are no VM present");
+		}
+	}
+	/**
+	 * This method is used to @return the record of one VM of the vm listing.
+	 */
+	private static ResultRecord createVMRow(int index, EntityProperties virtualMachine, Map<String, String> hostNames)
+	{
+		ManagedObjectReference hostMOR = (ManagedObjectReference) virtualMachine.get("runtime.host");
+		return new ResultRecord("vm", "vm", index)
+				.add("name", "Name", virtualMachine.getName())
+				.add("powerState", "Power state", virtualMachine.get("runtime.powerState"))
+				.add("host", "Host", hostMOR == null ? null : hostNames.get(hostMOR.get_value()))
+				.add("ipAddress", "IP addr", virtualMachine.get("guest.ipAddress"));
+	}
+	/**
+	 * This method is used to write the VMs and hosts whose name or guest IP address matches the query,
+	 * a glob (web-*), a /regex/ or a part of the name. If hostName is not null only the VMs on that host
+	 * are written.
+	 * @throws InvalidProperty, RuntimeFault, RemoteException
+	 */
+	public void search(String query, String hostName, ResponseSink responseSink)
+			throws InvalidProperty, RuntimeFault, RemoteException
+	{
+		SearchIndex.Query searchQuery = new SearchIndex.Query(query);
+		Map<String, String> hostNames = retrieveNames("HostSystem");
+		int index = 0;
+		for (EntityProperties virtualMachine : search("VirtualMachine", VM_LIST_PROPERTIES, searchQuery, hostName, hostNames))
+		{
+			responseSink.add(createVMRow(index++, virtualMachine, hostNames));
+		}
+		if (hostName == null)
+		{
+			for (EntityProperties host : search("HostSystem", HOST_LIST_PROPERTIES, searchQuery, null, hostNames))
 			{
-				VirtualMachine virtualMachine = (VirtualMachine) managedEntities[i];
-				if (virtualMachine != null)
-				{
-					String vmName = virtualMachine.getName();
-					responseList.add("vm[" + i + "]: Name = " + vmName);
-				}
+				responseSink.add(new ResultRecord("host", "host", index++)
+						.add("name", "Name", host.getName())
+						.add("connectionState", "Connection state", host.get("runtime.connectionState")));
+			}
+		}
+		if (index == 0)
+		{
+			responseSink.add("Nothing matches " + query);
+		}
+	}
+	/**
+	 * This method is used to @return the names of the VMs matching the glob or /regex/, sorted.
+	 * @throws InvalidProperty, RuntimeFault, RemoteException
+	 */
+	public List<String> findVMNames(String pattern) throws InvalidProperty, RuntimeFault, RemoteException
+	{
+		SearchIndex.Query query = new SearchIndex.Query(pattern);
+		List<String> vmNames = new ArrayList<String>();
+		for (EntityProperties virtualMachine : search("VirtualMachine", VM_LIST_PROPERTIES, query, null, null))
+		{
+			/*
+			 * The search also matches the IP addresses, the targets are chosen by name only.
+			 */
+			if (query.matches(virtualMachine.getName()))
+			{
+				vmNames.add(virtualMachine.getName());
 			}
 		}
-		return responseList;
+		return vmNames;
+	}
+	/**
+	 * This method is used to @return the entities of the given type matching the query, sorted by name,
+	 * from the search index of the inventory cache when it is fresh and otherwise by fetching all of them
+	 * in bulk and matching them one by one.
+	 * @throws InvalidProperty, RuntimeFault, RemoteException
+	 */
+	private List<EntityProperties> search(String type, String[] propertyPaths, SearchIndex.Query query,
+			String hostName, Map<String, String> hostNames) throws InvalidProperty, RuntimeFault, RemoteException
+	{
+		List<EntityProperties> entities = inventoryCache == null ? null : inventoryCache.search(type, query, hostName);
+		if (entities != null)
+		{
+			return entities;
+		}
+		entities = new ArrayList<EntityProperties>();
+		for (EntityProperties entity : retrieveAll(type, propertyPaths))
+		{
+			Object hostMOR = entity.get("runtime.host");
+			if ((hostName == null || (hostMOR instanceof ManagedObjectReference
+					&& hostName.equals(hostNames.get(((ManagedObjectReference) hostMOR).get_value()))))
+					&& (query.matches(entity.getName()) || query.matches(entity.getString("guest.ipAddress"))))
+			{
+				entities.add(entity);
+			}
+		}
+		Collections.sort(entities, new Comparator<EntityProperties>()
+		{
+			@Override
+			public int compare(EntityProperties first, EntityProperties second)
+			{
+				return String.valueOf(first.getName()).compareTo(String.valueOf(second.getName()));
+			}
+		});
+		return entities;
+	}
+	/**
+	 * This method is used to @return the names of all VMs present in the remote vCenter Server.
+	 * @throws InvalidProperty, RuntimeFault, RemoteException
+	 */
+	public List<String> getAllVMNames() throws InvalidProperty, RuntimeFault, RemoteException
+	{
+		List<String> vmNames = new ArrayList<String>();
+		for (EntityProperties virtualMachine : retrieveAll("VirtualMachine", VM_LIST_PROPERTIES))
+		{
+			vmNames.add(virtualMachine.getName());
+		}
+		return vmNames;
+	}
+	/**
+	 * This method is used to @return the names of all entities of the given type keyed by the value of 
+	 * their managed object reference, fetched with a single bulk retrieval.
+	 * @throws InvalidProperty, RuntimeFault, RemoteException
+	 */
+	private Map<String, String> retrieveNames(String type) throws InvalidProperty, RuntimeFault, RemoteException
+	{
+		Map<String, String> names = new HashMap<String, String>();
+		for (EntityProperties entity : retrieveAll(type, new String[] { "name" }))
+		{
+			names.put(entity.getMOR().get_value(), entity.getName());
+		}
+		return names;
 	}
 	/**
-	 * This method is used to @return multiple managed entities based on inventory object.
+	 * This method is used to @return the properties of all entities of the given type, read from the 
+	 * inventory cache when it is fresh (the cache always holds the listing properties) and fetched in bulk
+	 * from the server otherwise.
 	 * @throws InvalidProperty, RuntimeFault, RemoteException
 	 */
-	private ManagedEntity[] retrieveMultipleME(Folder rootFolder, String type)
+	private List<EntityProperties> retrieveAll(String type, String[] propertyPaths)
 			throws InvalidProperty , RuntimeFault , RemoteException
 	{
-		return new InventoryNavigator(rootFolder).searchManagedEntities(type);
+		final List<EntityProperties> entities = new ArrayList<EntityProperties>();
+		retrieveEach(type, propertyPaths, entities::add);
+		return entities;
+	}
+	/**
+	 * This method is used to hand the properties of all entities of the given type to the handler one
+	 * by one, as soon as they are read from the inventory cache or arrive from the server, and @return 
+	 * their number.
+	 * @throws InvalidProperty, RuntimeFault, RemoteException
+	 */
+	private int retrieveEach(String type, String[] propertyPaths, PropertyRetriever.EntityHandler entityHandler)
+			throws InvalidProperty , RuntimeFault , RemoteException
+	{
+		List<EntityProperties> cachedEntities = inventoryCache == null ? null : inventoryCache.list(type);
+		if (cachedEntities == null)
+		{
+			return propertyRetriever.retrieve(rootFolder, type, propertyPaths, entityHandler);
+		}
+		for (EntityProperties entity : cachedEntities)
+		{
+			entityHandler.handle(entity);
+		}
+		return cachedEntities.size();
 	}
 	/**
 	 * This method is used to @return managed entity based on inventory object and particular VM or host.
+	 * The reference is taken from the inventory cache if possible, so that only a missing or stale entry
+	 * makes the server walk the inventory tree.
 	 * @throws InvalidProperty, RuntimeFault, RemoteException
 	 */
 	private ManagedEntity retrieveSingleME(Folder rootFolder, String type, String specific)
 			throws InvalidProperty , RuntimeFault , RemoteException
 	{
+		EntityProperties entity = inventoryCache == null ? null : inventoryCache.find(type, specific);
+		if (entity != null)
+		{
+			return MorUtil.createExactManagedEntity(serviceInstance.getServerConnection(), entity.getMOR());
+		}
 		return new InventoryNavigator(rootFolder).searchManagedEntity(type, specific);
 	}
 	/**
-	 * This method is used to @return the list of all required information related to datastore 
+	 * This method is used to @return true if a VM or host (depending on type) of the given name is present
+	 * in the remote vCenter Server, or offline in its inventory snapshot.
+	 * @throws InvalidProperty, RuntimeFault, RemoteException
+	 */
+	public boolean contains(String type, String name) throws InvalidProperty , RuntimeFault , RemoteException
+	{
+		if (serviceInstance == null)
+		{
+			return inventoryCache != null && inventoryCache.find(type, name) != null;
+		}
+		return retrieveSingleME(rootFolder, type, name) != null;
+	}
+	/**
+	 * This method is used to write the changes of the VMs or hosts (depending on type) whose name matches
+	 * the filter, all if it is null, as they happen until stopped is set or one of the limits is reached.
+	 * @throws InvalidProperty, RuntimeFault, RemoteException
+	 */
+	public void watch(String type, String filter, long maxChanges, long maxMillis, AtomicBoolean stopped,
+			ResponseSink responseSink) throws InvalidProperty, RuntimeFault, RemoteException
+	{
+		long startTime = System.currentTimeMillis();
+		InventoryWatcher inventoryWatcher = new InventoryWatcher(rootFolder, serviceInstance, type,
+				filter == null ? null : new SearchIndex.Query(filter));
+		long changes = inventoryWatcher.watch(stopped, maxChanges, maxMillis, responseSink);
+		responseSink.add("Watched " + changes + " change(s) in " + (System.currentTimeMillis() - startTime) + " ms");
+	}
+	/**
+	 * This method is used to sample the performance counters of the hosts or VMs matching the name, glob or
+	 * /regex/ and to write the minimum, average, maximum and 95th percentile of every counter. The first
+	 * round fetches the recent samples the server keeps; with maxMillis not negative the sampling goes on
+	 * once per interval for that long, or until stopped if it is 0.
+	 * @throws InvalidProperty, RuntimeFault, RemoteException
+	 */
+	public void samplePerformance(String type, String pattern, String[] counterNames, int interval, long maxMillis,
+			AtomicBoolean stopped, ResponseSink responseSink) throws InvalidProperty, RuntimeFault, RemoteException
+	{
+		long startTime = System.currentTimeMillis();
+		SearchIndex.Query query = new SearchIndex.Query(pattern);
+		List<EntityProperties> entities = new ArrayList<EntityProperties>();
+		for (EntityProperties entity : search(type, type.equals("VirtualMachine") ? VM_LIST_PROPERTIES
+				: HOST_LIST_PROPERTIES, query, null, null))
+		{
+			if (SearchIndex.Query.isPattern(pattern) ? query.matches(entity.getName()) : entity.getName().equals(pattern))
+			{
+				entities.add(entity);
+			}
+		}
+		if (entities.isEmpty())
+		{
+			responseSink.add("Nothing matches " + pattern);
+			return;
+		}
+		PerformanceSampler.Sampling sampling = getPerformanceSampler().createSampling(entities, counterNames, interval,
+				responseSink);
+		if (sampling == null)
+		{
+			return;
+		}
+		long samples = maxMillis < 0 ? sampling.sample() : sampling.sampleUntil(maxMillis, stopped);
+		sampling.write(responseSink);
+		responseSink.add("Sampled " + samples + " value(s) of " + entities.size() + " entities in " + sampling.getRounds()
+				+ " round(s) in " + (System.currentTimeMillis() - startTime) + " ms");
+	}
+
+	private synchronized PerformanceSampler getPerformanceSampler()
+	{
+		if (performanceSampler == null)
+		{
+			performanceSampler = new PerformanceSampler(serviceInstance.getPerformanceManager());
+		}
+		return performanceSampler;
+	}
+	/**
+	 * This method is used to write the list of lines describing the inventory cache.
+	 */
+	public void getCacheStats(ResponseSink responseSink)
+	{
+		if (inventoryCache == null)
+		{
+			responseSink.add("Inventory cache is not running");
+		}
+		else
+		{
+			for (String response : inventoryCache.getStats())
+			{
+				responseSink.add(response);
+			}
+		}
+	}
+	/**
+	 * This method is used to write the list of all required information related to datastore 
 	 * of particular host present in the remote vCenter Server.
 	 * @throws InvalidProperty, RuntimeFault, RemoteException
 	 */
-	public List<String> getHostDataStores(String hostName) throws InvalidProperty, RuntimeFault, RemoteException
+	public void getHostDataStores(String hostName, ResponseSink responseSink) throws InvalidProperty, RuntimeFault, RemoteException
 	{
-		List<String> responseList = new ArrayList<String>();
 		ManagedEntity managedEntity = retrieveSingleME(rootFolder, "HostSystem", hostName);
 		if (managedEntity == null)
 		{
 			logger.log(Level.SEVERE, "There was some problem in accessing the server");
-			responseList.add("There was some problem in accessing the server");
+			responseSink.add("There was some problem in accessing the server");
 		}
 		else{
 			HostSystem hs = (HostSystem) managedEntity;
 			Datastore[] ds = hs.getDatastores();
-			responseList.add("Name = " + hostName);
+			responseSink.add(new ResultRecord("host").add("name", "Name", hostName));
 			if (ds != null){
 				for (int i = 0; i < ds.length; i++)
 				{
-					responseList.add("Datastore[" + i + "]: Name = " + ds[i].getSummary().getName() 
-					+ ", Capacity = " + (((ds[i].getSummary().getCapacity()/1024)/1024)/1024) + " GB, FreeSpace = " 
-					+ (((ds[i].getSummary().getFreeSpace()/1024)/1024)/1024) + " GB.");
+					/*
+					 * Every getSummary() is a round trip of its own, so it is asked once per datastore.
+					 */
+					DatastoreSummary summary = ds[i].getSummary();
+					responseSink.add(new ResultRecord("datastore", "Datastore", i)
+							.add("host", null, hostName)
+							.add("name", "Name", summary.getName())
+							.add("capacityGB", "Capacity", ((summary.getCapacity()/1024)/1024)/1024, " GB")
+							.add("freeSpaceGB", "FreeSpace", ((summary.getFreeSpace()/1024)/1024)/1024, " GB."));
 				}
 			}
 		}
-		return responseList;
 	}
 	/**
-	 * This method is used to @return the list of all required information related to network 
+	 * This method is used to write the capacity and utilization of every cluster and of the whole
+	 * inventory, computed from one bulk retrieval of each kind of entity.
+	 * @throws InvalidProperty, RuntimeFault, RemoteException
+	 */
+	public void getCapacityReport(ResponseSink responseSink) throws InvalidProperty, RuntimeFault, RemoteException
+	{
+		createCapacityReport().writeClusters(responseSink);
+	}
+	/**
+	 * This method is used to write the capacity, usage and sharing of every datastore.
+	 * @throws InvalidProperty, RuntimeFault, RemoteException
+	 */
+	public void getDatastoreReport(ResponseSink responseSink) throws InvalidProperty, RuntimeFault, RemoteException
+	{
+		createCapacityReport().writeDatastores(responseSink);
+	}
+	/**
+	 * This method is used to @return the capacity report of the whole inventory. The properties are not
+	 * kept in the inventory cache, so they are always fetched in bulk from the server.
+	 * @throws InvalidProperty, RuntimeFault, RemoteException
+	 */
+	private CapacityReport createCapacityReport() throws InvalidProperty, RuntimeFault, RemoteException
+	{
+		return new CapacityReport(
+				propertyRetriever.retrieveAll(rootFolder, "ComputeResource", CapacityReport.CLUSTER_PROPERTIES),
+				propertyRetriever.retrieveAll(rootFolder, "HostSystem", CapacityReport.HOST_PROPERTIES),
+				propertyRetriever.retrieveAll(rootFolder, "Datastore", CapacityReport.DATASTORE_PROPERTIES),
+				propertyRetriever.retrieveAll(rootFolder, "VirtualMachine", CapacityReport.VM_PROPERTIES));
+	}
+	/**
+	 * This method is used to scan the files of the datastores matching the pattern (a name, glob or /regex/)
+	 * for orphaned disks, stale snapshots and the largest folders, searching concurrency datastores at once.
+	 * @throws InvalidProperty, RuntimeFault, RemoteException
+	 */
+	public void scanDatastores(String pattern, int concurrency, int staleDays, ResponseSink responseSink)
+			throws InvalidProperty, RuntimeFault, RemoteException
+	{
+		SearchIndex.Query query = new SearchIndex.Query(pattern);
+		List<EntityProperties> datastores = new ArrayList<EntityProperties>();
+		for (EntityProperties datastore : propertyRetriever.retrieveAll(rootFolder, "Datastore",
+				DatastoreScanner.DATASTORE_PROPERTIES))
+		{
+			if (SearchIndex.Query.isPattern(pattern) ? query.matches(datastore.getName()) : pattern.equals(datastore.getName()))
+			{
+				datastores.add(datastore);
+			}
+		}
+		new DatastoreScanner(serviceInstance, taskTracker, callMetrics,
+				propertyRetriever.retrieveAll(rootFolder, "VirtualMachine", DatastoreScanner.VM_PROPERTIES), concurrency,
+				staleDays).scan(datastores, responseSink);
+	}
+	/**
+	 * This method is used to write the oldest and the largest snapshots, top of each, of the VMs matching
+	 * the pattern (a name, glob or /regex/), from one bulk retrieval of the snapshot trees of all the VMs.
+	 * @throws InvalidProperty, RuntimeFault, RemoteException
+	 */
+	public void getSnapshotReport(String pattern, int top, ResponseSink responseSink)
+			throws InvalidProperty, RuntimeFault, RemoteException
+	{
+		createSnapshotReport(pattern).write(top, responseSink);
+	}
+	/**
+	 * This method is used to remove the snapshots older than the given number of days of the VMs matching
+	 * the pattern, of concurrency VMs at once and at most perDatastore of them on one datastore, or with
+	 * dryRun only to write what would be removed.
+	 * @throws InvalidProperty, RuntimeFault, RemoteException
+	 */
+	public void pruneSnapshots(String pattern, int olderThanDays, int concurrency, int perDatastore, boolean dryRun,
+			ResponseSink responseSink) throws InvalidProperty, RuntimeFault, RemoteException
+	{
+		createSnapshotReport(pattern).prune(olderThanDays, concurrency, perDatastore, dryRun, responseSink);
+	}
+
+	private SnapshotReport createSnapshotReport(String pattern) throws InvalidProperty, RuntimeFault, RemoteException
+	{
+		SearchIndex.Query query = new SearchIndex.Query(pattern);
+		List<EntityProperties> virtualMachines = new ArrayList<EntityProperties>();
+		for (EntityProperties virtualMachine : propertyRetriever.retrieveAll(rootFolder, "VirtualMachine",
+				SnapshotReport.VM_PROPERTIES))
+		{
+			if (SearchIndex.Query.isPattern(pattern) ? query.matches(virtualMachine.getName())
+					: pattern.equals(virtualMachine.getName()))
+			{
+				virtualMachines.add(virtualMachine);
+			}
+		}
+		return new SnapshotReport(serviceInstance, taskTracker, callMetrics, virtualMachines);
+	}
+	/**
+	 * This method is used to stream the events of the VM or host of the given name, or of all the inventory
+	 * if it is null, since the given time (see HistoryReader.parseSince) and of the given types unless
+	 * they are null.
+	 * @throws InvalidProperty, RuntimeFault, RemoteException, ParseException
+	 */
+	public void getEvents(String entityName, String since, String[] eventTypeIds, ResponseSink responseSink)
+			throws InvalidProperty, RuntimeFault, RemoteException, ParseException
+	{
+		ManagedObjectReference entity = findHistoryEntity(entityName);
+		if (entityName != null && entity == null)
+		{
+			responseSink.add("There is no VM or host named " + entityName);
+			return;
+		}
+		new HistoryReader(serviceInstance).writeEvents(entity, getSinceTime(since), eventTypeIds, responseSink);
+	}
+	/**
+	 * This method is used to stream the tasks of the VM or host of the given name, or of all the inventory
+	 * if it is null, queued since the given time and in the given states unless they are null.
+	 * @throws InvalidProperty, RuntimeFault, RemoteException, ParseException
+	 */
+	public void getTasks(String entityName, String since, TaskInfoState[] states, ResponseSink responseSink)
+			throws InvalidProperty, RuntimeFault, RemoteException, ParseException
+	{
+		ManagedObjectReference entity = findHistoryEntity(entityName);
+		if (entityName != null && entity == null)
+		{
+			responseSink.add("There is no VM or host named " + entityName);
+			return;
+		}
+		new HistoryReader(serviceInstance).writeTasks(entity, getSinceTime(since), states, responseSink);
+	}
+	/**
+	 * This method is used to @return the reference of the VM, or else the host, of the given name, or null
+	 * if there is none or the name is null.
+	 * @throws InvalidProperty, RuntimeFault, RemoteException
+	 */
+	private ManagedObjectReference findHistoryEntity(String entityName) throws InvalidProperty, RuntimeFault, RemoteException
+	{
+		if (entityName == null)
+		{
+			return null;
+		}
+		ManagedEntity managedEntity = retrieveSingleME(rootFolder, "VirtualMachine", entityName);
+		if (managedEntity == null)
+		{
+			managedEntity = retrieveSingleME(rootFolder, "HostSystem", entityName);
+		}
+		return managedEntity == null ? null : managedEntity.getMOR();
+	}
+	/**
+	 * This method is used to @return the time since stands for, counted back from the time of the server
+	 * rather than of this machine, as the history is stamped with the former.
+	 * @throws RemoteException, ParseException
+	 */
+	private Calendar getSinceTime(String since) throws RemoteException, ParseException
+	{
+		Calendar sinceTime = serviceInstance.currentTime();
+		sinceTime.setTimeInMillis(HistoryReader.parseSince(since, sinceTime.getTimeInMillis()));
+		return sinceTime;
+	}
+	/**
+	 * This method is used to answer a topology query: stats, neighbors, reach, lacking or path, where kind
+	 * is the index of a node kind or -1 for any, and maxDepth 0 for any depth. The graph is built from one
+	 * bulk retrieval of each type the first time and then reused, until it is rebuilt with refresh.
+	 * @throws InvalidProperty, RuntimeFault, RemoteException
+	 */
+	public void queryTopology(String query, int kind, String name, String otherName, int maxDepth, boolean refresh,
+			ResponseSink responseSink) throws InvalidProperty, RuntimeFault, RemoteException
+	{
+		TopologyGraph graph = getTopologyGraph(refresh);
+		boolean found = true;
+		if (query.equals("neighbors"))
+		{
+			found = graph.writeNeighbors(name, kind, responseSink);
+		}
+		else if (query.equals("reach"))
+		{
+			found = graph.writeReachable(name, kind, maxDepth, responseSink);
+		}
+		else if (query.equals("lacking"))
+		{
+			found = graph.writeLacking(kind, name, responseSink);
+		}
+		else if (query.equals("path"))
+		{
+			found = graph.writePath(name, otherName, responseSink);
+		}
+		else
+		{
+			graph.writeStats(responseSink);
+		}
+		if (!found)
+		{
+			responseSink.add("There is no host, VM, network, switch or datastore named "
+					+ (query.equals("path") ? name + " or " + otherName : name));
+		}
+	}
+
+	private synchronized TopologyGraph getTopologyGraph(boolean refresh) throws InvalidProperty, RuntimeFault, RemoteException
+	{
+		if (topologyGraph == null || refresh)
+		{
+			topologyGraph = new TopologyGraph(
+					propertyRetriever.retrieveAll(rootFolder, "HostSystem", TopologyGraph.HOST_PROPERTIES),
+					propertyRetriever.retrieveAll(rootFolder, "VirtualMachine", TopologyGraph.VM_PROPERTIES),
+					propertyRetriever.retrieveAll(rootFolder, "Network", TopologyGraph.NETWORK_PROPERTIES),
+					propertyRetriever.retrieveAll(rootFolder, "DistributedVirtualPortgroup", TopologyGraph.PORTGROUP_PROPERTIES),
+					propertyRetriever.retrieveAll(rootFolder, "DistributedVirtualSwitch", TopologyGraph.SWITCH_PROPERTIES),
+					propertyRetriever.retrieveAll(rootFolder, "Datastore", TopologyGraph.DATASTORE_PROPERTIES));
+		}
+		return topologyGraph;
+	}
+	/**
+	 * This method is used to write the list of all required information related to network 
 	 * of particular host present in the remote vCenter Server.
 	 * @throws InvalidProperty, RuntimeFault, RemoteException
 	 */
-	public List<String> getHostNetworks(String hostName) throws InvalidProperty, RuntimeFault, RemoteException
+	public void getHostNetworks(String hostName, ResponseSink responseSink) throws InvalidProperty, RuntimeFault, RemoteException
 	{
-		List<String> responseList = new ArrayList<String>();
 		ManagedEntity managedEntity = retrieveSingleME(rootFolder, "HostSystem", hostName);
 		if (managedEntity == null)
 		{
 			logger.log(Level.SEVERE, "There was some problem in accessing the server");
-			responseList.add("There was some problem in accessing the server");
+			responseSink.add("There was some problem in accessing the server");
 		}
 		else{
 			HostSystem hs = (HostSystem) managedEntity;
 			Network []network = hs.getNetworks();
-			responseList.add("Name = " + hostName);
+			responseSink.add(new ResultRecord("host").add("name", "Name", hostName));
 			if (network != null){
 				for (int i = 0; i < network.length; i++)
 				{
-					responseList.add("Network[" + i + "]: Name = " + network[i].getName());
+					responseSink.add(new ResultRecord("network", "Network", i)
+							.add("host", null, hostName)
+							.add("name", "Name", network[i].getName()));
 				}
 			}
 		}
-		return responseList;
 	}
 	/**
-	 * This method is used to start a particular VM and @return the list of all required 
-	 * information like status and completion time. 
-	 * @throws InvalidProperty, RuntimeFault, RemoteException
+	 * This method is used to start a particular VM and write all required 
+	 * information like status and completion time to the response sink. 
+	 * @throws InvalidProperty, RuntimeFault, RemoteException, InterruptedException
 	 */
-	public List<String> startVM(String vmName) throws InvalidProperty, RuntimeFault, RemoteException
+	public void startVM(String vmName, ResponseSink responseSink) throws InvalidProperty, RuntimeFault, RemoteException, InterruptedException
 	{
-		List<String> responseList = new ArrayList<String>();
 		ManagedEntity managedEntity = retrieveSingleME(rootFolder, "VirtualMachine", vmName);
-		SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy HH:mm:ss");
 		if (managedEntity == null)
 		{
 			logger.log(Level.SEVERE, "There was some problem in accessing the server");
-			responseList.add("There was some problem in accessing the server");
+			responseSink.add("There was some problem in accessing the server");
 		}
 		else{
 			VirtualMachine virtualMachine = (VirtualMachine) managedEntity;
 			Task task = virtualMachine.powerOnVM_Task(null);
-			responseList.add("Name = " + virtualMachine.getName());
-			if(task.waitForMe()==Task.SUCCESS)
-			{
-				responseList.add("Power on VM: status = " + "success" + ", completion time = " + sdf.format(task.getTaskInfo().getCompleteTime().getTime()));
-			}
-			else{
-				responseList.add("Power on VM: status = " + "The attempted operation cannot be performed in the current state (Powered on)." + ", completion time = " + sdf.format(task.getTaskInfo().getCompleteTime().getTime()));
-			}	
+			responseSink.add(new ResultRecord("vm").add("name", "Name", vmName));
+			responseSink.add(getTaskCompletion(task, vmName, "Power on VM",
+					"The attempted operation cannot be performed in the current state (Powered on)."));
 		}
-		return responseList;
 	}
 	/**
-	 * This method is used to stop a particular VM and @return the list of all required 
-	 * information like status and completion time. 
-	 * @throws InvalidProperty, RuntimeFault, RemoteException
+	 * This method is used to stop a particular VM and write all required 
+	 * information like status and completion time to the response sink. 
+	 * @throws InvalidProperty, RuntimeFault, RemoteException, InterruptedException
 	 */
-	public List<String> stopVM(String vmName) throws InvalidProperty, RuntimeFault, RemoteException
+	public void stopVM(String vmName, ResponseSink responseSink) throws InvalidProperty, RuntimeFault, RemoteException, InterruptedException
 	{
-		List<String> responseList = new ArrayList<String>();
 		ManagedEntity managedEntity = retrieveSingleME(rootFolder, "VirtualMachine", vmName);
 		if (managedEntity == null)
 		{
 			logger.log(Level.SEVERE, "There was some problem in accessing the server");
-			responseList.add("There was some problem in accessing the server");
+			responseSink.add("There was some problem in accessing the server");
 		}
 		else
 		{
 			VirtualMachine virtualMachine = (VirtualMachine) managedEntity;
 			Task task = virtualMachine.powerOffVM_Task();
-			responseList.add("Name = " + virtualMachine.getName());
-			SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy HH:mm:ss");
-			if(task.waitForMe()==Task.SUCCESS)
-			{
-				responseList.add("Power off VM: status = " + "success" + ", completion time = " +  sdf.format(task.getTaskInfo().getCompleteTime().getTime()));
-			}
-			else{
-				responseList.add("Power off VM: status = " + "The attempted operation cannot be performed in the current state (Powered off)." + ", completion time = " +  sdf.format(task.getTaskInfo().getCompleteTime().getTime()));
-			}
+			responseSink.add(new ResultRecord("vm").add("name", "Name", vmName));
+			responseSink.add(getTaskCompletion(task, vmName, "Power off VM",
+					"The attempted operation cannot be performed in the current state (Powered off)."));
 		}
-		return responseList;
 	}
 	/**
-	 * This method is used to shutdown a particular VM and @return the list of all required 
-	 * information like status and completion time. 
+	 * This method is used to shutdown a particular VM and write all required 
+	 * information like status and completion time to the response sink. 
 	 * @throws InvalidProperty, RuntimeFault, RemoteException, InterruptedException 
 	 */
-	public List<String> shutdownVM(String vmName) throws InvalidProperty, RuntimeFault, RemoteException, InvalidProperty, RuntimeFault, RemoteException, InterruptedException
+	public void shutdownVM(String vmName, ResponseSink responseSink) throws InvalidProperty, RuntimeFault, RemoteException, InterruptedException
 	{
-		List<String> responseList = new ArrayList<String>();
-		int defaultTimeOut = 60*1000*3;
 		ManagedEntity managedEntity = retrieveSingleME(rootFolder, "VirtualMachine", vmName);
 		if (managedEntity == null)
 		{
 			logger.log(Level.SEVERE, "There was some problem in accessing the server");
-			responseList.add("There was some problem in accessing the server");
+			responseSink.add("There was some problem in accessing the server");
 		}
 		else
 		{
 			VirtualMachine virtualMachine = (VirtualMachine) managedEntity;
 			SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy HH:mm:ss");
-			responseList.add("Name = " + virtualMachine.getName());	
+			responseSink.add(new ResultRecord("vm").add("name", "Name", vmName));
 			virtualMachine.shutdownGuest();
-		   boolean isConditionMet = true;
-	       while (isConditionMet && defaultTimeOut>0) {
-	        	/*
-				 * By knowing the fact that after shutdown of any VM, the VM automatically changes its state
-				 * to poweredoff. After this condition met, I instantly get the current time of the same VM
-				 * which becomes the completion time of this operation. If this condition is not met, then I 
-				 * wait for 1 sec and try to check it again and again untill the condition met.
-				 */
-	            isConditionMet = ((virtualMachine.getRuntime().getPowerState().toString()).equals("poweredOff"));
-	            //System.out.println("isConditionMet"+isConditionMet);
-	            if (isConditionMet) {
-	            	isConditionMet = false; 
-	            	responseList.add("Shutdown guest: completed"+", time = " + sdf.format(serviceInstance.currentTime().getTime()));
-	            	break;
-	            } else {
-	                try
-					{
-						Thread.sleep(1000); //Wait for 1 Seconds.
-						isConditionMet = true;
-						defaultTimeOut -=1000;
-						//System.out.println("defaultTimeOut"+defaultTimeOut);
-					}
-					catch (InterruptedException e)
-					{
-						e.printStackTrace();
-					}
-	            }
-	        }
-		}
-		return responseList;
+			/*
+			 * By knowing the fact that after shutdown of any VM, the VM automatically changes its state
+			 * to poweredOff, the tracker is told to wake us up as soon as the server reports that state.
+			 * At that moment I get the current time of the server which becomes the completion time.
+			 */
+			EntityProperties runtime = taskTracker.waitForPowerState(virtualMachine, "poweredOff", SHUTDOWN_TIMEOUT_MILLIS);
+			if (runtime != null)
+			{
+				responseSink.add(new ResultRecord("powerOperation", "Shutdown guest", -1)
+						.add("vm", null, vmName)
+						.add("status", "status", "completed")
+						.add("time", "time", sdf.format(serviceInstance.currentTime().getTime())));
+			}
+			else
+			{
+				responseSink.add(new ResultRecord("powerOperation", "Shutdown guest", -1)
+						.add("vm", null, vmName)
+						.add("status", "status", "timed out")
+						.add("powerState", "power state", virtualMachine.getRuntime().getPowerState()));
+			}
+		}
+	}
+	/**
+	 * This method is used to wait for the task through the completion tracker and @return the status record
+	 * with the completion time.
+	 * @throws InvalidProperty, RuntimeFault, RemoteException, InterruptedException 
+	 */
+	private ResultRecord getTaskCompletion(Task task, String vmName, String operation, String failure)
+			throws InvalidProperty, RuntimeFault, RemoteException, InterruptedException
+	{
+		SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy HH:mm:ss");
+		ResultRecord record = new ResultRecord("powerOperation", operation, -1).add("vm", null, vmName);
+		EntityProperties taskInfo = taskTracker.waitForTask(task, TASK_TIMEOUT_MILLIS);
+		if (taskInfo == null)
+		{
+			return record.add("status", "status", "timed out after " + (TASK_TIMEOUT_MILLIS / 1000) + " seconds");
+		}
+		Calendar completeTime = (Calendar) taskInfo.get("info.completeTime");
+		/*
+		 * The fault of the task says why it failed, the failure text is only used if it has none.
+		 */
+		LocalizedMethodFault error = (LocalizedMethodFault) taskInfo.get("info.error");
+		String status = Task.SUCCESS.equals(taskInfo.getString("info.state")) ? "success"
+				: error != null && error.getLocalizedMessage() != null ? error.getLocalizedMessage() : failure;
+		return record.add("status", "status", status)
+				.add("completionTime", "completion time", completeTime == null ? null : sdf.format(completeTime.getTime()));
 	}
 
 }
\ No newline at end of file
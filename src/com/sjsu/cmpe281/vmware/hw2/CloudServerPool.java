@@ -0,0 +1,361 @@
+package com.sjsu.cmpe281.vmware.hw2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+/**
+ * @author Pratik Pandey.
+ *
+ * This class manages the authenticated sessions of several vCenter Servers. The sessions are opened and
+ * kept alive in the background and logged in again when they expire. Listing commands are fanned out to
+ * all the servers in parallel and their results merged, while commands on one VM or host are routed to
+ * the server which has it.
+ */
+class CloudServerPool
+{
+	/**
+	 * Used for logging purposes.
+	 */
+	private final Logger logger = Logger.getLogger(CloudServerPool.class.getName());
+	/**
+	 * vCenter drops idle sessions after 30 minutes by default.
+	 */
+	private static final long KEEP_ALIVE_MINUTES = 10;
+
+	private final List<CloudSession> sessions = new ArrayList<CloudSession>();
+	/**
+	 * The threads opening the sessions and running the commands on every server. They are not limited to
+	 * one per server, so that a background job fanned out to all the servers does not hold up the commands
+	 * typed while it runs.
+	 */
+	private final ExecutorService fanOutExecutor;
+	private final ScheduledExecutorService keepAliveExecutor;
+	/**
+	 * The SOAP call metrics of all the sessions, null if the calls are not measured.
+	 */
+	private final SoapCallMetrics callMetrics;
+	/**
+	 * How the opening of every session ended, until it is shown.
+	 */
+	private final List<String> openNotices = new ArrayList<String>();
+
+	public CloudServerPool(List<CloudSession> sessions, SoapCallMetrics callMetrics)
+	{
+		this.callMetrics = callMetrics;
+		this.sessions.addAll(sessions);
+		fanOutExecutor = Executors.newCachedThreadPool();
+		keepAliveExecutor = Executors.newSingleThreadScheduledExecutor();
+	}
+	/**
+	 * This method is used to start opening all the sessions in parallel in the background, so that the
+	 * prompt does not wait for the logins, and to start keeping them alive. The commands needing a session
+	 * wait for it to be opened.
+	 */
+	public void open()
+	{
+		for (final CloudSession session : sessions)
+		{
+			session.openInBackground(fanOutExecutor, notice -> {
+				synchronized (openNotices)
+				{
+					openNotices.add(notice);
+				}
+			});
+		}
+		keepAliveExecutor.scheduleWithFixedDelay(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				keepAlive();
+			}
+		}, KEEP_ALIVE_MINUTES, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES);
+	}
+	/**
+	 * This method is used to @return the notices of the sessions which finished opening since the last
+	 * call, printed before the next prompt.
+	 */
+	public List<String> takeOpenNotices()
+	{
+		synchronized (openNotices)
+		{
+			List<String> notices = new ArrayList<String>(openNotices);
+			openNotices.clear();
+			return notices;
+		}
+	}
+	/**
+	 * This method is used to stop keeping the sessions alive and to log out from all the servers.
+	 */
+	public void close()
+	{
+		keepAliveExecutor.shutdownNow();
+		fanOutExecutor.shutdownNow();
+		for (CloudSession session : sessions)
+		{
+			session.close();
+		}
+	}
+	/**
+	 * This method is used to @return the number of servers in the pool.
+	 */
+	public int size()
+	{
+		return sessions.size();
+	}
+	/**
+	 * This method is used to @return the sessions of all the servers.
+	 */
+	public List<CloudSession> getSessions()
+	{
+		return Collections.unmodifiableList(sessions);
+	}
+	/**
+	 * This method is used to @return the session of the first server, used for server independent work.
+	 */
+	public CloudSession getPrimary()
+	{
+		return sessions.get(0);
+	}
+	/**
+	 * This method is used to run the command on all the servers in parallel and to write the merged results
+	 * to the response sink as they arrive. With more than one server every line is marked with its server,
+	 * failures of one server are reported without failing the others, and the latency of every server is
+	 * added at the end.
+	 */
+	public void fanOut(final CloudSession.SessionCommand sessionCommand, final ResponseSink responseSink) throws Exception
+	{
+		if (sessions.size() == 1)
+		{
+			getPrimary().execute(sessionCommand, responseSink);
+			return;
+		}
+		List<Future<Long>> futures = new ArrayList<Future<Long>>();
+		final long[] latencies = new long[sessions.size()];
+		final String commandName = getCommandName();
+		for (int i = 0; i < sessions.size(); i++)
+		{
+			final int index = i;
+			futures.add(fanOutExecutor.submit(new Callable<Long>()
+			{
+				@Override
+				public Long call() throws Exception
+				{
+					EndpointResponseSink endpointSink = new EndpointResponseSink(sessions.get(index).getName(), responseSink);
+					long startTime = System.currentTimeMillis();
+					setCommandName(commandName);
+					try
+					{
+						sessions.get(index).execute(sessionCommand, endpointSink);
+						return endpointSink.lines;
+					}
+					finally
+					{
+						latencies[index] = System.currentTimeMillis() - startTime;
+						setCommandName(null);
+					}
+				}
+			}));
+		}
+		List<String> latencyList = new ArrayList<String>();
+		for (int i = 0; i < sessions.size(); i++)
+		{
+			String name = sessions.get(i).getName();
+			try
+			{
+				long lines = getResult(futures.get(i));
+				latencyList.add("Endpoint " + name + ": " + lines + " line(s) in " + latencies[i] + " ms");
+			}
+			catch (InterruptedException e)
+			{
+				cancelAll(futures);
+				Thread.currentThread().interrupt();
+				throw e;
+			}
+			catch (Exception e)
+			{
+				logger.log(Level.WARNING, "Command failed on " + name, e);
+				latencyList.add("Endpoint " + name + ": failed due to " + e.toString() + " after " + latencies[i] + " ms");
+			}
+		}
+		for (String latency : latencyList)
+		{
+			responseSink.add(latency);
+		}
+	}
+	/**
+	 * This method is used to @return the session of the server which has the VM or host of the given name,
+	 * asking all the servers in parallel. If none has it, the first server is returned so that the command
+	 * reports the missing entity as usual.
+	 */
+	public CloudSession route(final String type, final String name) throws Exception
+	{
+		if (sessions.size() == 1)
+		{
+			return getPrimary();
+		}
+		List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+		final String commandName = getCommandName();
+		for (final CloudSession session : sessions)
+		{
+			futures.add(fanOutExecutor.submit(new Callable<Boolean>()
+			{
+				@Override
+				public Boolean call() throws Exception
+				{
+					setCommandName(commandName);
+					try
+					{
+						return session.getCommand().contains(type, name);
+					}
+					finally
+					{
+						setCommandName(null);
+					}
+				}
+			}));
+		}
+		for (int i = 0; i < sessions.size(); i++)
+		{
+			try
+			{
+				if (getResult(futures.get(i)))
+				{
+					cancelAll(futures);
+					return sessions.get(i);
+				}
+			}
+			catch (InterruptedException e)
+			{
+				cancelAll(futures);
+				Thread.currentThread().interrupt();
+				throw e;
+			}
+			catch (Exception e)
+			{
+				logger.log(Level.WARNING, "Could not look up " + name + " on " + sessions.get(i).getName(), e);
+			}
+		}
+		return getPrimary();
+	}
+
+	private void keepAlive()
+	{
+		for (CloudSession session : sessions)
+		{
+			try
+			{
+				session.keepAlive();
+			}
+			catch (Exception e)
+			{
+				logger.log(Level.WARNING, "Keep-alive of " + session.getName() + " failed: " + e.toString());
+			}
+		}
+	}
+
+	/**
+	 * The sink passing the response of one server on to the shared sink, marking every line and record
+	 * with the server and counting them.
+	 */
+	private static class EndpointResponseSink implements ResponseSink
+	{
+		private final String endpoint;
+		private final ResponseSink responseSink;
+		private long lines;
+
+		private EndpointResponseSink(String endpoint, ResponseSink responseSink)
+		{
+			this.endpoint = endpoint;
+			this.responseSink = responseSink;
+		}
+
+		@Override
+		public void add(String response)
+		{
+			lines++;
+			synchronized (responseSink)
+			{
+				responseSink.add("[" + endpoint + "] " + response);
+			}
+		}
+
+		@Override
+		public void add(ResultRecord record)
+		{
+			lines++;
+			record.setEndpoint(endpoint);
+			synchronized (responseSink)
+			{
+				responseSink.add(record);
+			}
+		}
+
+		@Override
+		public void flush()
+		{
+			synchronized (responseSink)
+			{
+				responseSink.flush();
+			}
+		}
+	}
+
+	/**
+	 * This method is used to @return the command the SOAP calls of the current thread are counted for, so
+	 * that the worker threads can count their calls for the same command.
+	 */
+	private String getCommandName()
+	{
+		return callMetrics == null ? null : callMetrics.getCommand();
+	}
+
+	private void setCommandName(String commandName)
+	{
+		if (callMetrics != null)
+		{
+			callMetrics.setCommand(commandName);
+		}
+	}
+
+	/**
+	 * This method is used to wait for the future and @return its result, throwing what the work threw. An
+	 * InterruptedException only comes from the calling thread being interrupted, e.g., by cancelling its
+	 * job; one thrown by the work stays wrapped.
+	 */
+	private static <T> T getResult(Future<T> future) throws Exception
+	{
+		try
+		{
+			return future.get();
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof Exception && !(e.getCause() instanceof InterruptedException))
+			{
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+	}
+	/**
+	 * This method is used to interrupt the work of every server still in progress, when the command is
+	 * cancelled or no longer needs it.
+	 */
+	private static void cancelAll(List<? extends Future<?>> futures)
+	{
+		for (Future<?> future : futures)
+		{
+			future.cancel(true);
+		}
+	}
+}
@@ -0,0 +1,324 @@
+package com.sjsu.cmpe281.vmware.hw2;
+
+import java.io.File;
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import com.vmware.vim25.NotAuthenticated;
+import com.vmware.vim25.mo.Folder;
+/**
+ * @author Pratik Pandey.
+ *
+ * This class holds everything which belongs to the authenticated session of one vCenter Server: the
+ * connection itself, its inventory cache, its task completion tracker and the commands working on them.
+ * When the session expires, the whole set is rebuilt on top of a new login. An offline session has no
+ * server at all and answers the read commands from the inventory snapshot of the last session.
+ * The session can be opened in the background, in which case the first command needing it waits for it,
+ * except for the read commands, which are answered from the snapshot of the last session until then.
+ */
+class CloudSession
+{
+	/**
+	 * Used for logging purposes.
+	 */
+	private final Logger logger = Logger.getLogger(CloudSession.class.getName());
+
+	private final CloudServer cloudServer;
+	/**
+	 * The metrics every SOAP call of the session is recorded in, null to leave the calls unmeasured.
+	 */
+	private final SoapCallMetrics callMetrics;
+	/**
+	 * The scheduler of the SOAP calls to the server, kept across logins so that what it has learned about
+	 * the server is kept as well. Null offline.
+	 */
+	private final RequestScheduler requestScheduler;
+	/**
+	 * The transport of the SOAP calls to the server, null for the one of vijava.
+	 */
+	private final SoapTransport transport;
+	/**
+	 * The name of the server, and the file its inventory cache is saved to, null to run without a snapshot.
+	 */
+	private final String name;
+	private final File snapshotFile;
+	private InventoryCache inventoryCache;
+	private TaskCompletionTracker taskTracker;
+	private CloudServerCommand cloudServerCommand;
+	/**
+	 * The read-only commands on top of the snapshot, used while the session is being opened. Null if there
+	 * is no snapshot or once the session is open.
+	 */
+	private volatile CloudServerCommand snapshotCommand;
+	/**
+	 * The opening of the session in the background, null if it was opened directly.
+	 */
+	private volatile Future<?> opening;
+
+	public CloudSession(CloudServer cloudServer, SoapCallMetrics callMetrics, RequestScheduler requestScheduler,
+			SoapTransport transport, File snapshotFile)
+	{
+		this.cloudServer = cloudServer;
+		this.callMetrics = callMetrics;
+		this.requestScheduler = requestScheduler;
+		this.transport = transport;
+		this.name = cloudServer.getIpAddress();
+		this.snapshotFile = snapshotFile;
+	}
+	/**
+	 * Used for an offline session answering from the snapshot file of the named server.
+	 */
+	public CloudSession(String name, File snapshotFile)
+	{
+		this.cloudServer = null;
+		this.callMetrics = null;
+		this.requestScheduler = null;
+		this.transport = null;
+		this.name = name;
+		this.snapshotFile = snapshotFile;
+	}
+	/**
+	 * The operation performed by a command on one session.
+	 */
+	interface SessionCommand
+	{
+		void execute(CloudServerCommand cloudServerCommand, ResponseSink responseSink) throws Exception;
+	}
+	/**
+	 * The operation of a command which only reads the inventory, so that it can be answered from the
+	 * snapshot as well.
+	 */
+	interface ReadCommand extends SessionCommand
+	{
+	}
+	/**
+	 * This method is used to set up the inventory cache, the task tracker and the commands on top of the
+	 * current login of the server, or offline the inventory cache and the commands on top of the snapshot.
+	 * The snapshot is loaded before logging in, so that the read commands are answered from it meanwhile.
+	 * @throws IOException if the server cannot be reached or, offline, the snapshot cannot be read.
+	 */
+	public synchronized void open() throws IOException
+	{
+		if (isOffline())
+		{
+			inventoryCache = InventoryCache.loadOffline(snapshotFile);
+			cloudServerCommand = new CloudServerCommand(null, null, inventoryCache, null, null);
+			return;
+		}
+		InventoryCache cache = new InventoryCache(getName(), snapshotFile);
+		if (cache.preload())
+		{
+			snapshotCommand = new CloudServerCommand(null, null, cache, null, null);
+		}
+		cloudServer.connect();
+		if (callMetrics != null)
+		{
+			callMetrics.instrument(cloudServer.getServiceInstance(), requestScheduler, transport);
+		}
+		Folder rootFolder = cloudServer.getCloudServerRootFolder();
+		inventoryCache = startInventoryCache(cache, rootFolder);
+		taskTracker = new TaskCompletionTracker(cloudServer.getServiceInstance());
+		cloudServerCommand = new CloudServerCommand(rootFolder, cloudServer.getServiceInstance(), inventoryCache,
+				taskTracker, callMetrics);
+		snapshotCommand = null;
+	}
+	/**
+	 * This method is used to start opening the session on the executor, so that the caller does not wait
+	 * for the login and the inventory. The notice handler gets one line telling how the opening ended.
+	 */
+	public void openInBackground(ExecutorService executorService, final Consumer<String> noticeHandler)
+	{
+		opening = executorService.submit(() -> {
+			long startTime = System.currentTimeMillis();
+			try
+			{
+				open();
+				noticeHandler.accept((isOffline() ? "Loaded the inventory snapshot of " : "Connected to ") + getName()
+						+ " in " + (System.currentTimeMillis() - startTime) + " ms");
+			}
+			catch (IOException | RuntimeException e)
+			{
+				noticeHandler.accept("Could not open " + getName() + " due to " + e.toString()
+						+ ", trying again with the next command");
+				throw e;
+			}
+			return null;
+		});
+	}
+	/**
+	 * This method is used to stop the background work of the session and to log out. A session still
+	 * being opened is left alone, as waiting for it could take as long as the server takes to answer.
+	 */
+	public void close()
+	{
+		Future<?> future = opening;
+		if (future != null && !future.isDone())
+		{
+			logger.log(Level.INFO, "Session of " + getName() + " is still being opened, not logging out");
+			return;
+		}
+		synchronized (this)
+		{
+			release();
+			if (!isOffline())
+			{
+				cloudServer.logoutFromCloudService();
+			}
+		}
+	}
+	/**
+	 * This method is used to run the command on this session. If the server says that the session is no
+	 * longer authenticated, the session is renewed and the command is tried once more.
+	 */
+	public void execute(SessionCommand sessionCommand, ResponseSink responseSink) throws Exception
+	{
+		try
+		{
+			sessionCommand.execute(sessionCommand instanceof ReadCommand ? getReadCommand() : getCommand(), responseSink);
+		}
+		catch (Exception e)
+		{
+			/*
+			 * The property getters of vijava report the fault wrapped into a RuntimeException.
+			 */
+			if (!(e instanceof NotAuthenticated || e.getCause() instanceof NotAuthenticated))
+			{
+				throw e;
+			}
+			logger.log(Level.INFO, "Session of " + getName() + " expired, logging in again");
+			renew();
+			sessionCommand.execute(getCommand(), responseSink);
+		}
+	}
+	/**
+	 * This method is used to keep the session alive, and to renew it if it has expired nevertheless.
+	 */
+	public void keepAlive() throws IOException
+	{
+		synchronized (this)
+		{
+			if (isOffline() || !cloudServer.keepAlive())
+			{
+				return;
+			}
+			release();
+		}
+		open();
+	}
+	/**
+	 * This method is used to @return the commands of the current login, waiting for the session to be
+	 * opened first. If opening it in the background failed, it is opened once more right away.
+	 * @throws IOException if the session cannot be opened.
+	 */
+	public CloudServerCommand getCommand() throws IOException, InterruptedException
+	{
+		Future<?> future = opening;
+		if (future != null)
+		{
+			try
+			{
+				future.get();
+			}
+			catch (ExecutionException e)
+			{
+				logger.log(Level.FINE, "Opening " + getName() + " in the background failed: " + e.getCause());
+			}
+		}
+		synchronized (this)
+		{
+			if (cloudServerCommand == null)
+			{
+				release();
+				open();
+			}
+			return cloudServerCommand;
+		}
+	}
+	/**
+	 * This method is used to @return the read-only commands on top of the snapshot while the session is
+	 * being opened in the background and the snapshot is recent enough to be used, or else the commands of
+	 * the current login.
+	 * @throws IOException if the session cannot be opened.
+	 */
+	public CloudServerCommand getReadCommand() throws IOException, InterruptedException
+	{
+		Future<?> future = opening;
+		CloudServerCommand command = snapshotCommand;
+		if (future != null && !future.isDone() && command != null && command.getInventoryCache().isFresh())
+		{
+			return command;
+		}
+		return getCommand();
+	}
+	/**
+	 * This method is used to @return the name of the vCenter Server of this session.
+	 */
+	public String getName()
+	{
+		return name;
+	}
+	/**
+	 * This method is used to @return true if the session answers from the snapshot without a server.
+	 */
+	public boolean isOffline()
+	{
+		return cloudServer == null;
+	}
+	/**
+	 * This method is used to @return the scheduler of the SOAP calls of this session, null if there is none.
+	 */
+	public RequestScheduler getRequestScheduler()
+	{
+		return requestScheduler;
+	}
+	/**
+	 * This method is used to @return the server of this session, null if it is offline.
+	 */
+	public CloudServer getCloudServer()
+	{
+		return cloudServer;
+	}
+
+	private synchronized void renew() throws IOException
+	{
+		release();
+		cloudServer.relogin();
+		open();
+	}
+
+	private void release()
+	{
+		if (inventoryCache != null)
+		{
+			inventoryCache.stop();
+		}
+		if (taskTracker != null)
+		{
+			taskTracker.stop();
+		}
+	}
+	/**
+	 * This method is used to start the inventory cache on top of the login and @return it, or null if it
+	 * could not be loaded in which case the commands keep working directly against the server.
+	 */
+	private InventoryCache startInventoryCache(InventoryCache cache, Folder rootFolder)
+	{
+		try
+		{
+			cache.start(rootFolder, cloudServer.getServiceInstance());
+			return cache;
+		}
+		catch (RemoteException e)
+		{
+			logger.log(Level.WARNING, "Inventory cache of " + getName() + " could not be loaded, using the server directly: "
+					+ e.toString());
+			cache.stop();
+			return null;
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package com.sjsu.cmpe281.vmware.hw2;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+/**
+ * @author Pratik Pandey.
+ *
+ * This class writes the response of one command to the console line by line as it arrives. The lines go
+ * through a buffer which is flushed when it is full, when the previous flush is older than the flush
+ * interval and when the command ends, so that the first rows show up at once without flushing every row.
+ * The records are written by the record encoder of the chosen output format. It also measures the time
+ * to the first row, the total time and the peak heap of the command.
+ */
+class ConsoleResponseSink implements ResponseSink
+{
+	private static final long FLUSH_INTERVAL_NANOS = 100 * 1000 * 1000L;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final Writer writer;
+	private final RecordEncoder recordEncoder;
+	private final long startNanos;
+	private long firstRowNanos;
+	private long lastFlushNanos;
+	private long rows;
+
+	public ConsoleResponseSink(PrintStream out)
+	{
+		this(out, new TableRecordEncoder());
+	}
+
+	public ConsoleResponseSink(PrintStream out, RecordEncoder recordEncoder)
+	{
+		this.recordEncoder = recordEncoder;
+		this.writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+		resetPeakHeap();
+		this.startNanos = System.nanoTime();
+		this.lastFlushNanos = startNanos;
+	}
+
+	@Override
+	public synchronized void add(String response)
+	{
+		long now = countRow();
+		try
+		{
+			recordEncoder.writeMessage(writer, response);
+			flushIfDue(now);
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException("Could not write the response", e);
+		}
+	}
+
+	@Override
+	public synchronized void add(ResultRecord record)
+	{
+		long now = countRow();
+		try
+		{
+			recordEncoder.writeRecord(writer, record);
+			flushIfDue(now);
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException("Could not write the response", e);
+		}
+	}
+
+	private long countRow()
+	{
+		long now = System.nanoTime();
+		if (rows++ == 0)
+		{
+			firstRowNanos = now;
+		}
+		return now;
+	}
+
+	private void flushIfDue(long now) throws IOException
+	{
+		if (now - lastFlushNanos > FLUSH_INTERVAL_NANOS)
+		{
+			writer.flush();
+			lastFlushNanos = now;
+		}
+	}
+	/**
+	 * This method is used to write out what is still buffered at the end of the command.
+	 */
+	@Override
+	public synchronized void flush()
+	{
+		try
+		{
+			writer.flush();
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException("Could not write the response", e);
+		}
+	}
+	/**
+	 * This method is used to @return the line with the timing and memory figures of the command, shown
+	 * after every command with -timing=true.
+	 */
+	public synchronized String getTiming()
+	{
+		long endNanos = System.nanoTime();
+		return "Rows = " + rows + ", time to first row = "
+				+ (rows == 0 ? "n/a" : ((firstRowNanos - startNanos) / 1000000) + " ms") + ", total time = "
+				+ ((endNanos - startNanos) / 1000000) + " ms, peak heap = " + (getPeakHeap() / (1024 * 1024)) + " MB";
+	}
+
+	private static void resetPeakHeap()
+	{
+		for (MemoryPoolMXBean memoryPool : getHeapPools())
+		{
+			memoryPool.resetPeakUsage();
+		}
+	}
+
+	private static long getPeakHeap()
+	{
+		long peak = 0;
+		for (MemoryPoolMXBean memoryPool : getHeapPools())
+		{
+			peak += memoryPool.getPeakUsage().getUsed();
+		}
+		return peak;
+	}
+
+	private static List<MemoryPoolMXBean> getHeapPools()
+	{
+		List<MemoryPoolMXBean> memoryPools = new ArrayList<MemoryPoolMXBean>(ManagementFactory.getMemoryPoolMXBeans());
+		memoryPools.removeIf(memoryPool -> memoryPool.getType() != MemoryType.HEAP);
+		return memoryPools;
+	}
+}
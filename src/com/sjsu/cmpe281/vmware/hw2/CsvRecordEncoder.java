@@ -0,0 +1,134 @@
+package com.sjsu.cmpe281.vmware.hw2;
+
+import java.io.IOException;
+/**
+ * @author Pratik Pandey.
+ *
+ * This class writes the records as CSV rows (RFC 4180 quoting). A header row with the column names is
+ * written before the first record and again whenever the columns change, e.g., between the host line and
+ * the datastore rows of host hname datastore. Free text lines are rows of type message with one text
+ * column. An encoder keeps the current header, so every command gets its own encoder.
+ */
+class CsvRecordEncoder implements RecordEncoder
+{
+	private ResultRecord header;
+	private boolean messageHeader;
+
+	@Override
+	public void writeRecord(Appendable out, ResultRecord record) throws IOException
+	{
+		if (header == null || !hasSameColumns(header, record))
+		{
+			out.append("type");
+			if (record.getEndpoint() != null)
+			{
+				out.append(",endpoint");
+			}
+			if (record.getIndex() >= 0)
+			{
+				out.append(",index");
+			}
+			for (int field = 0; field < record.size(); field++)
+			{
+				out.append(',');
+				appendCell(out, record.getName(field));
+			}
+			out.append('\n');
+			header = record;
+			messageHeader = false;
+		}
+		appendCell(out, record.getType());
+		if (record.getEndpoint() != null)
+		{
+			out.append(',');
+			appendCell(out, record.getEndpoint());
+		}
+		if (record.getIndex() >= 0)
+		{
+			out.append(',');
+			RecordEncoder.appendLong(out, record.getIndex());
+		}
+		for (int field = 0; field < record.size(); field++)
+		{
+			out.append(',');
+			Object value = record.getValue(field);
+			if (value instanceof Number || value instanceof Enum || value instanceof Boolean)
+			{
+				RecordEncoder.appendValue(out, value);
+			}
+			else if (value instanceof CharSequence)
+			{
+				appendCell(out, (CharSequence) value);
+			}
+			else if (value != null)
+			{
+				appendCell(out, value.toString());
+			}
+		}
+		out.append('\n');
+	}
+
+	@Override
+	public void writeMessage(Appendable out, String message) throws IOException
+	{
+		if (!messageHeader)
+		{
+			out.append("type,text\n");
+			header = null;
+			messageHeader = true;
+		}
+		out.append("message,");
+		appendCell(out, message);
+		out.append('\n');
+	}
+	/**
+	 * This method is used to @return true if both records have the same columns, compared field by field
+	 * rather than by building the header text.
+	 */
+	private static boolean hasSameColumns(ResultRecord first, ResultRecord second)
+	{
+		if (!first.getType().equals(second.getType()) || first.size() != second.size()
+				|| (first.getEndpoint() == null) != (second.getEndpoint() == null)
+				|| (first.getIndex() >= 0) != (second.getIndex() >= 0))
+		{
+			return false;
+		}
+		for (int field = 0; field < first.size(); field++)
+		{
+			if (!first.getName(field).equals(second.getName(field)))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+	/**
+	 * This method is used to write the text as one cell, quoted only if it contains a comma, a quote or a
+	 * line break, with the quotes doubled.
+	 */
+	private static void appendCell(Appendable out, CharSequence text) throws IOException
+	{
+		boolean quoted = false;
+		for (int i = 0; i < text.length() && !quoted; i++)
+		{
+			char c = text.charAt(i);
+			quoted = c == ',' || c == '"' || c == '\n' || c == '\r';
+		}
+		if (!quoted)
+		{
+			out.append(text);
+			return;
+		}
+		out.append('"');
+		for (int i = 0; i < text.length(); i++)
+		{
+			char c = text.charAt(i);
+			if (c == '"')
+			{
+				out.append('"');
+			}
+			out.append(c);
+		}
+		out.append('"');
+	}
+}
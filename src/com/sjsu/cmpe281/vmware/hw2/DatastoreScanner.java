@@ -0,0 +1,395 @@
+package com.sjsu.cmpe281.vmware.hw2;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import com.vmware.vim25.FileInfo;
+import com.vmware.vim25.FileQueryFlags;
+import com.vmware.vim25.HostDatastoreBrowserSearchResults;
+import com.vmware.vim25.HostDatastoreBrowserSearchSpec;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.TaskInfo;
+import com.vmware.vim25.VirtualMachineFileLayoutExFileInfo;
+import com.vmware.vim25.mo.HostDatastoreBrowser;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.Task;
+import com.vmware.vim25.mo.util.PropertyCollectorUtil;
+/**
+ * @author Pratik Pandey.
+ *
+ * This class finds what is using the space of the datastores. It lists the files of many datastores at once
+ * with SearchDatastoreSubFolders_Task, up to a concurrency limit, and checks every file against the files
+ * of all the VMs (their layoutEx.file property): virtual disks no VM uses are orphaned, and snapshot files
+ * not written to for a number of days are stale. The listing of a datastore is checked as soon as its task
+ * completes and dropped right after, keeping only the findings and the largest folders, so the memory
+ * needed does not grow with the number of datastores scanned.
+ */
+class DatastoreScanner
+{
+	/**
+	 * Used for logging purposes.
+	 */
+	private final Logger logger = Logger.getLogger(DatastoreScanner.class.getName());
+	/**
+	 * Properties fetched in bulk for the scan.
+	 */
+	static final String[] DATASTORE_PROPERTIES = { "name", "browser", "summary.accessible" };
+	static final String[] VM_PROPERTIES = { "name", "layoutEx.file" };
+	/**
+	 * Number of datastores searched at the same time unless -parallel=N is given, and number of days after
+	 * which a snapshot file is stale unless -days=N is given.
+	 */
+	static final int DEFAULT_CONCURRENCY = 8;
+	static final int DEFAULT_STALE_DAYS = 7;
+	/**
+	 * Number of the largest folders written at the end of the scan.
+	 */
+	private static final int TOP_FOLDERS = 20;
+	private static final long SEARCH_TIMEOUT_MILLIS = 10 * 60 * 1000;
+	/**
+	 * The delta disks and memory files of snapshots, e.g., web-01-000001-delta.vmdk or web-01-Snapshot1.vmsn.
+	 */
+	private static final Pattern SNAPSHOT_FILE = Pattern.compile(".*-\\d{6}(-delta|-sesparse)?\\.vmdk|.*\\.vmsn");
+
+	private final ServiceInstance serviceInstance;
+	private final TaskCompletionTracker taskTracker;
+	/**
+	 * The metrics the SOAP calls are recorded in, null if they are not measured.
+	 */
+	private final SoapCallMetrics callMetrics;
+	private final int concurrency;
+	private final long staleMillis;
+	/**
+	 * The name of the VM using each file, by the datastore path of the file, e.g., [datastore1] web-01/web-01.vmdk.
+	 */
+	private final Map<String, String> vmsByFile = new HashMap<String, String>();
+	/**
+	 * The largest folders found so far, the smallest of them first.
+	 */
+	private final PriorityQueue<Folder> largestFolders = new PriorityQueue<Folder>(TOP_FOLDERS + 1,
+			(first, second) -> Long.compare(first.size, second.size));
+
+	public DatastoreScanner(ServiceInstance serviceInstance, TaskCompletionTracker taskTracker,
+			SoapCallMetrics callMetrics, List<EntityProperties> virtualMachines, int concurrency, int staleDays)
+	{
+		this.serviceInstance = serviceInstance;
+		this.taskTracker = taskTracker;
+		this.callMetrics = callMetrics;
+		this.concurrency = Math.max(1, concurrency);
+		this.staleMillis = TimeUnit.DAYS.toMillis(staleDays);
+		for (EntityProperties virtualMachine : virtualMachines)
+		{
+			Object files = virtualMachine.get("layoutEx.file");
+			files = files == null || files instanceof VirtualMachineFileLayoutExFileInfo[] ? files
+					: PropertyCollectorUtil.convertProperty(files);
+			if (files instanceof VirtualMachineFileLayoutExFileInfo[])
+			{
+				for (VirtualMachineFileLayoutExFileInfo file : (VirtualMachineFileLayoutExFileInfo[]) files)
+				{
+					vmsByFile.put(file.getName(), virtualMachine.getName());
+				}
+			}
+		}
+	}
+	/**
+	 * This method is used to scan the datastores, writing the findings and a summary of each datastore as
+	 * soon as it has been searched, followed by the largest folders and the totals.
+	 */
+	public void scan(List<EntityProperties> datastores, ResponseSink responseSink)
+	{
+		if (datastores.isEmpty())
+		{
+			responseSink.add("No datastore matches the given name");
+			return;
+		}
+		responseSink.add("Scanning " + datastores.size() + " datastore(s), " + concurrency + " at a time");
+		ExecutorService executorService = Executors.newFixedThreadPool(Math.min(concurrency, datastores.size()));
+		CompletionService<Result> completionService = new ExecutorCompletionService<Result>(executorService);
+		final String commandName = callMetrics == null ? null : callMetrics.getCommand();
+		long startTime = System.currentTimeMillis();
+		try
+		{
+			for (final EntityProperties datastore : datastores)
+			{
+				completionService.submit(new Callable<Result>()
+				{
+					@Override
+					public Result call()
+					{
+						setCommandName(commandName);
+						try
+						{
+							return scanSingle(datastore);
+						}
+						finally
+						{
+							setCommandName(null);
+						}
+					}
+				});
+			}
+			Result total = new Result("Total");
+			int index = 0;
+			for (int i = 0; i < datastores.size(); i++)
+			{
+				Result result = completionService.take().get();
+				for (Finding finding : result.findings)
+				{
+					responseSink.add(new ResultRecord("datastoreFile", "file", index++)
+							.add("path", "Path", finding.path)
+							.add("finding", "Finding", finding.finding)
+							.add("vm", "VM", finding.vmName)
+							.add("sizeGB", "Size", toGigabytes(finding.size), " GB")
+							.add("modified", "Modified", finding.modified));
+				}
+				responseSink.add(result.getRecord("datastoreScan", i));
+				total.add(result);
+			}
+			List<Folder> folders = new ArrayList<Folder>(largestFolders);
+			Collections.sort(folders, (first, second) -> Long.compare(second.size, first.size));
+			for (int i = 0; i < folders.size(); i++)
+			{
+				responseSink.add(new ResultRecord("datastoreFolder", "Largest", i)
+						.add("folder", "Folder", folders.get(i).path)
+						.add("vm", "VM", folders.get(i).vmName)
+						.add("files", "Files", folders.get(i).files)
+						.add("sizeGB", "Size", toGigabytes(folders.get(i).size), " GB"));
+			}
+			total.millis = System.currentTimeMillis() - startTime;
+			responseSink.add(total.getRecord("datastoreScanTotal", -1));
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			responseSink.add("Datastore scan was interrupted");
+		}
+		catch (ExecutionException e)
+		{
+			logger.log(Level.SEVERE, "Datastore scan failed", e.getCause());
+			responseSink.add("Datastore scan failed: " + e.getCause());
+		}
+		finally
+		{
+			executorService.shutdownNow();
+		}
+	}
+	/**
+	 * This method is used to count the SOAP calls of the current thread for the given command, null for none,
+	 * so that the worker threads count their calls for the command which started them.
+	 */
+	private void setCommandName(String commandName)
+	{
+		if (callMetrics != null)
+		{
+			callMetrics.setCommand(commandName);
+		}
+	}
+	/**
+	 * This method is used to search all the folders of one datastore and @return what was found. Errors of
+	 * one datastore are reported in the result so that they do not stop the rest of the scan.
+	 */
+	private Result scanSingle(EntityProperties datastore)
+	{
+		long startTime = System.currentTimeMillis();
+		Result result = new Result(datastore.getName());
+		try
+		{
+			if (Boolean.FALSE.equals(datastore.get("summary.accessible")) || datastore.get("browser") == null)
+			{
+				result.error = "not accessible";
+				return result;
+			}
+			HostDatastoreBrowser browser = new HostDatastoreBrowser(serviceInstance.getServerConnection(),
+					(ManagedObjectReference) datastore.get("browser"));
+			Task task = browser.searchDatastoreSubFolders_Task("[" + datastore.getName() + "]", createSearchSpec());
+			EntityProperties taskState = taskTracker.waitForTask(task, SEARCH_TIMEOUT_MILLIS);
+			if (taskState == null || !Task.SUCCESS.equals(taskState.getString("info.state")))
+			{
+				result.error = taskState == null ? "timed out" : "search failed";
+				return result;
+			}
+			TaskInfo taskInfo = task.getTaskInfo();
+			Object folders = taskInfo.getResult() == null || taskInfo.getResult() instanceof HostDatastoreBrowserSearchResults[]
+					? taskInfo.getResult() : PropertyCollectorUtil.convertProperty(taskInfo.getResult());
+			if (folders instanceof HostDatastoreBrowserSearchResults[])
+			{
+				for (HostDatastoreBrowserSearchResults folder : (HostDatastoreBrowserSearchResults[]) folders)
+				{
+					checkFolder(folder, result);
+				}
+			}
+		}
+		catch (Exception e)
+		{
+			result.error = e.toString();
+		}
+		finally
+		{
+			result.millis = System.currentTimeMillis() - startTime;
+		}
+		return result;
+	}
+	/**
+	 * This method is used to check every file of the folder against the files of the VMs and to count the
+	 * folder among the largest ones.
+	 */
+	private void checkFolder(HostDatastoreBrowserSearchResults searchResults, Result result)
+	{
+		if (searchResults.getFile() == null)
+		{
+			return;
+		}
+		String folderPath = searchResults.getFolderPath();
+		folderPath = folderPath.endsWith("]") ? folderPath + " " : folderPath.endsWith("/") ? folderPath : folderPath + "/";
+		SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy HH:mm:ss");
+		long staleBefore = System.currentTimeMillis() - staleMillis;
+		Folder folder = new Folder(folderPath);
+		for (FileInfo file : searchResults.getFile())
+		{
+			String path = folderPath + file.getPath();
+			long size = file.getFileSize() == null ? 0 : file.getFileSize();
+			String vmName = vmsByFile.get(path);
+			String finding = null;
+			if (vmName == null && path.endsWith(".vmdk"))
+			{
+				finding = "orphaned disk";
+				result.orphanedBytes += size;
+			}
+			else if (SNAPSHOT_FILE.matcher(path).matches() && file.getModification() != null
+					&& file.getModification().getTimeInMillis() < staleBefore)
+			{
+				finding = "stale snapshot";
+				result.staleBytes += size;
+			}
+			if (finding != null)
+			{
+				result.findings.add(new Finding(path, finding, vmName, size, file.getModification() == null ? null
+						: sdf.format(file.getModification().getTime())));
+			}
+			if (folder.vmName == null)
+			{
+				folder.vmName = vmName;
+			}
+			folder.files++;
+			folder.size += size;
+			result.files++;
+			result.bytes += size;
+		}
+		synchronized (largestFolders)
+		{
+			largestFolders.add(folder);
+			if (largestFolders.size() > TOP_FOLDERS)
+			{
+				largestFolders.poll();
+			}
+		}
+	}
+	/**
+	 * This method is used to @return the search spec listing all the files with their size and time of
+	 * last modification.
+	 */
+	private static HostDatastoreBrowserSearchSpec createSearchSpec()
+	{
+		FileQueryFlags details = new FileQueryFlags();
+		details.setFileType(true);
+		details.setFileSize(true);
+		details.setModification(true);
+		details.setFileOwner(false);
+		HostDatastoreBrowserSearchSpec searchSpec = new HostDatastoreBrowserSearchSpec();
+		searchSpec.setDetails(details);
+		return searchSpec;
+	}
+
+	private static double toGigabytes(long bytes)
+	{
+		return Math.round(bytes / 1024.0 / 1024.0 / 1024.0 * 100) / 100.0;
+	}
+	/**
+	 * One orphaned or stale file.
+	 */
+	private static class Finding
+	{
+		private final String path;
+		private final String finding;
+		private final String vmName;
+		private final long size;
+		private final String modified;
+
+		private Finding(String path, String finding, String vmName, long size, String modified)
+		{
+			this.path = path;
+			this.finding = finding;
+			this.vmName = vmName;
+			this.size = size;
+			this.modified = modified;
+		}
+	}
+	/**
+	 * One folder of a datastore, counted among the largest ones.
+	 */
+	private static class Folder
+	{
+		private final String path;
+		private String vmName;
+		private int files;
+		private long size;
+
+		private Folder(String path)
+		{
+			this.path = path;
+		}
+	}
+	/**
+	 * The outcome of the scan of one datastore, or the sum of all of them.
+	 */
+	private static class Result
+	{
+		private final String name;
+		private final List<Finding> findings = new ArrayList<Finding>();
+		private String error;
+		private long files;
+		private long bytes;
+		private long orphanedBytes;
+		private long staleBytes;
+		private long millis;
+
+		private Result(String name)
+		{
+			this.name = name;
+		}
+
+		private void add(Result result)
+		{
+			files += result.files;
+			bytes += result.bytes;
+			orphanedBytes += result.orphanedBytes;
+			staleBytes += result.staleBytes;
+		}
+
+		private ResultRecord getRecord(String type, int index)
+		{
+			return new ResultRecord(type, "Datastore", index)
+					.add("name", "Name", name)
+					.add("status", "Status", error == null ? "scanned" : error)
+					.add("files", "Files", files)
+					.add("sizeGB", "Size", toGigabytes(bytes), " GB")
+					.add("orphanedGB", "Orphaned", toGigabytes(orphanedBytes), " GB")
+					.add("staleSnapshotGB", "Stale snapshots", toGigabytes(staleBytes), " GB")
+					.add("millis", "Time", millis, " ms");
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package com.sjsu.cmpe281.vmware.hw2;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import com.vmware.vim25.ManagedObjectReference;
+/**
+ * @author Pratik Pandey.
+ *
+ * This class holds the properties of a single managed entity as returned by one bulk PropertyCollector
+ * retrieval, so that the commands can read them locally instead of calling a getter (and thereby the server)
+ * for every single value.
+ */
+class EntityProperties
+{
+	private final ManagedObjectReference mor;
+	private final Map<String, Object> properties;
+
+	public EntityProperties(ManagedObjectReference mor)
+	{
+		this.mor = mor;
+		this.properties = new HashMap<String, Object>();
+	}
+	/**
+	 * Used to take a copy of an entity before applying changes, so that readers of the original never
+	 * observe a half applied update.
+	 */
+	public EntityProperties(EntityProperties entity)
+	{
+		this.mor = entity.mor;
+		this.properties = new HashMap<String, Object>(entity.properties);
+	}
+	/**
+	 * This method is used to @return the managed object reference of the entity.
+	 */
+	public ManagedObjectReference getMOR()
+	{
+		return mor;
+	}
+	/**
+	 * This method is used to @return the value of the property path (like runtime.powerState) or null
+	 * if the server has not returned it.
+	 */
+	public Object get(String propertyPath)
+	{
+		return properties.get(propertyPath);
+	}
+	/**
+	 * This method is used to @return the value of the property path as String, or null if not present.
+	 */
+	public String getString(String propertyPath)
+	{
+		Object value = properties.get(propertyPath);
+		return value == null ? null : value.toString();
+	}
+	/**
+	 * This method is used to @return the name of the entity.
+	 */
+	public String getName()
+	{
+		return getString("name");
+	}
+	/**
+	 * This method is used to @return the property paths the entity has values for.
+	 */
+	public Set<String> getPropertyPaths()
+	{
+		return Collections.unmodifiableSet(properties.keySet());
+	}
+	/**
+	 * This method is used to set or replace the value of a property path.
+	 */
+	public void put(String propertyPath, Object value)
+	{
+		properties.put(propertyPath, value);
+	}
+}
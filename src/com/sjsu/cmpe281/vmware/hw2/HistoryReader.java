@@ -0,0 +1,236 @@
+package com.sjsu.cmpe281.vmware.hw2;
+
+import java.rmi.RemoteException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import com.vmware.vim25.Event;
+import com.vmware.vim25.EventFilterSpec;
+import com.vmware.vim25.EventFilterSpecByEntity;
+import com.vmware.vim25.EventFilterSpecByTime;
+import com.vmware.vim25.EventFilterSpecRecursionOption;
+import com.vmware.vim25.InvalidState;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.RuntimeFault;
+import com.vmware.vim25.TaskFilterSpec;
+import com.vmware.vim25.TaskFilterSpecByEntity;
+import com.vmware.vim25.TaskFilterSpecByTime;
+import com.vmware.vim25.TaskFilterSpecRecursionOption;
+import com.vmware.vim25.TaskFilterSpecTimeOption;
+import com.vmware.vim25.TaskInfo;
+import com.vmware.vim25.TaskInfoState;
+import com.vmware.vim25.TaskReasonUser;
+import com.vmware.vim25.mo.EventHistoryCollector;
+import com.vmware.vim25.mo.HistoryCollector;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.TaskHistoryCollector;
+/**
+ * @author Pratik Pandey.
+ *
+ * This class reads the event and task history of vCenter Server through an EventHistoryCollector or a
+ * TaskHistoryCollector. The entity, the time range, the event types and the task states are filtered on the
+ * server, so only the matching entries are sent. The pages are read oldest first and streamed like the VM
+ * export: while a page is being written on a thread of its own, the calling thread already reads the next
+ * one, and at most one page waits to be written, so a week of millions of events is read with the memory
+ * of two pages. The collector is destroyed at the end, as the server only allows a few per session.
+ */
+class HistoryReader
+{
+	/**
+	 * Used for logging purposes.
+	 */
+	private final Logger logger = Logger.getLogger(HistoryReader.class.getName());
+	/**
+	 * Maximum number of entries read per page, which is the most ReadNextEvents and ReadNextTasks return.
+	 */
+	private static final int PAGE_SIZE = 1000;
+	/**
+	 * How far back the history is read unless --since is given.
+	 */
+	static final String DEFAULT_SINCE = "1d";
+
+	private final ServiceInstance serviceInstance;
+
+	public HistoryReader(ServiceInstance serviceInstance)
+	{
+		this.serviceInstance = serviceInstance;
+	}
+	/**
+	 * The source of the pages, called until it returns an empty page or null.
+	 */
+	private interface PageReader<T>
+	{
+		T[] read() throws RemoteException;
+	}
+	/**
+	 * The receiver of the entries, called on the writing thread one entry after the other.
+	 */
+	private interface EntryWriter<T>
+	{
+		void write(T entry, int index);
+	}
+	/**
+	 * This method is used to write the events of the entity and everything below it (all the events if it
+	 * is null) since the given time, only the ones of the given types unless they are null, followed by the
+	 * count and throughput, and @return the number of events.
+	 * @throws InvalidState, RuntimeFault, RemoteException
+	 */
+	public int writeEvents(ManagedObjectReference entity, Calendar since, String[] eventTypeIds,
+			final ResponseSink responseSink) throws InvalidState, RuntimeFault, RemoteException
+	{
+		EventFilterSpec filterSpec = new EventFilterSpec();
+		if (entity != null)
+		{
+			EventFilterSpecByEntity byEntity = new EventFilterSpecByEntity();
+			byEntity.setEntity(entity);
+			byEntity.setRecursion(EventFilterSpecRecursionOption.all);
+			filterSpec.setEntity(byEntity);
+		}
+		EventFilterSpecByTime byTime = new EventFilterSpecByTime();
+		byTime.setBeginTime(since);
+		filterSpec.setTime(byTime);
+		filterSpec.setEventTypeId(eventTypeIds);
+		final EventHistoryCollector collector = serviceInstance.getEventManager().createCollectorForEvents(filterSpec);
+		final SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy HH:mm:ss");
+		return stream("Events", collector, () -> collector.readNextEvents(PAGE_SIZE), (event, index) -> responseSink.add(
+				new ResultRecord("event", "Event", index)
+						.add("time", "Time", event.getCreatedTime() == null ? null : sdf.format(event.getCreatedTime().getTime()))
+						.add("type", "Type", event.getClass().getSimpleName())
+						.add("vm", "VM", event.getVm() == null ? null : event.getVm().getName())
+						.add("host", "Host", event.getHost() == null ? null : event.getHost().getName())
+						.add("user", "User", event.getUserName())
+						.add("message", "Message", event.getFullFormattedMessage())), responseSink);
+	}
+	/**
+	 * This method is used to write the tasks of the entity and everything below it (all the tasks if it is
+	 * null) queued since the given time, only the ones in the given states unless they are null, followed by
+	 * the count and throughput, and @return the number of tasks.
+	 * @throws InvalidState, RuntimeFault, RemoteException
+	 */
+	public int writeTasks(ManagedObjectReference entity, Calendar since, TaskInfoState[] states,
+			final ResponseSink responseSink) throws InvalidState, RuntimeFault, RemoteException
+	{
+		TaskFilterSpec filterSpec = new TaskFilterSpec();
+		if (entity != null)
+		{
+			TaskFilterSpecByEntity byEntity = new TaskFilterSpecByEntity();
+			byEntity.setEntity(entity);
+			byEntity.setRecursion(TaskFilterSpecRecursionOption.all);
+			filterSpec.setEntity(byEntity);
+		}
+		TaskFilterSpecByTime byTime = new TaskFilterSpecByTime();
+		byTime.setTimeType(TaskFilterSpecTimeOption.queuedTime);
+		byTime.setBeginTime(since);
+		filterSpec.setTime(byTime);
+		filterSpec.setState(states);
+		final TaskHistoryCollector collector = serviceInstance.getTaskManager().createCollectorForTasks(filterSpec);
+		final SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy HH:mm:ss");
+		return stream("Tasks", collector, () -> collector.readNextTasks(PAGE_SIZE), (task, index) -> responseSink.add(
+				new ResultRecord("task", "Task", index)
+						.add("queued", "Queued", task.getQueueTime() == null ? null : sdf.format(task.getQueueTime().getTime()))
+						.add("task", "Task", task.getDescriptionId())
+						.add("entity", "Entity", task.getEntityName())
+						.add("state", "State", task.getState())
+						.add("millis", "Duration", getDurationMillis(task), " ms")
+						.add("user", "User", task.getReason() instanceof TaskReasonUser
+								? ((TaskReasonUser) task.getReason()).getUserName() : null)
+						.add("error", "Error", task.getError() == null ? null : task.getError().getLocalizedMessage())),
+				responseSink);
+	}
+	/**
+	 * This method is used to read all the pages of the collector, writing every page while the next one is
+	 * read, to write the totals, and @return the number of entries.
+	 * @throws RemoteException
+	 */
+	private <T> int stream(String label, HistoryCollector collector, PageReader<T> pageReader,
+			final EntryWriter<T> entryWriter, ResponseSink responseSink) throws RemoteException
+	{
+		long startTime = System.currentTimeMillis();
+		int count = 0;
+		int pages = 0;
+		final int[] index = { 0 };
+		ExecutorService pageWriter = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "history-writer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		Future<Integer> writtenPage = null;
+		try
+		{
+			T[] page = pageReader.read();
+			while (page != null && page.length > 0)
+			{
+				pages++;
+				final T[] entries = page;
+				page = null;
+				count += PropertyRetriever.waitFor(writtenPage);
+				writtenPage = pageWriter.submit(() -> {
+					for (T entry : entries)
+					{
+						entryWriter.write(entry, index[0]++);
+					}
+					return entries.length;
+				});
+				page = pageReader.read();
+			}
+			count += PropertyRetriever.waitFor(writtenPage);
+			writtenPage = null;
+		}
+		finally
+		{
+			if (writtenPage != null)
+			{
+				writtenPage.cancel(true);
+			}
+			pageWriter.shutdownNow();
+			try
+			{
+				collector.destroyCollector();
+			}
+			catch (RemoteException e)
+			{
+				logger.log(Level.FINE, "Destroying the history collector failed: " + e.toString());
+			}
+		}
+		long elapsedMillis = Math.max(1, System.currentTimeMillis() - startTime);
+		logger.log(Level.INFO, "Read " + count + " " + label.toLowerCase() + " in " + pages + " page(s) in "
+				+ elapsedMillis + " ms");
+		responseSink.add(new ResultRecord("historyTotal", "Total", -1)
+				.add("count", label, count)
+				.add("pages", "Pages", pages)
+				.add("millis", "Elapsed", elapsedMillis, " ms")
+				.add("perSecond", "Throughput", Math.round(count * 1000.0 / elapsedMillis), " /s"));
+		return count;
+	}
+
+	private static Long getDurationMillis(TaskInfo task)
+	{
+		if (task.getStartTime() == null)
+		{
+			return null;
+		}
+		long endMillis = task.getCompleteTime() == null ? System.currentTimeMillis() : task.getCompleteTime().getTimeInMillis();
+		return endMillis - task.getStartTime().getTimeInMillis();
+	}
+	/**
+	 * This method is used to @return the time in milliseconds since is given as: a number of days, hours or
+	 * minutes before now, e.g., 7d, 12h or 30m, or a date as MM/dd/yyyy.
+	 * @throws ParseException if since is neither.
+	 */
+	static long parseSince(String since, long nowMillis) throws ParseException
+	{
+		if (since.matches("\\d+[dhm]"))
+		{
+			long amount = Long.parseLong(since.substring(0, since.length() - 1));
+			TimeUnit unit = since.endsWith("d") ? TimeUnit.DAYS : since.endsWith("h") ? TimeUnit.HOURS : TimeUnit.MINUTES;
+			return nowMillis - unit.toMillis(amount);
+		}
+		return new SimpleDateFormat("MM/dd/yyyy").parse(since).getTime();
+	}
+}
@@ -0,0 +1,115 @@
+package com.sjsu.cmpe281.vmware.hw2;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.rmi.RemoteException;
+import com.vmware.vim25.ws.Argument;
+import com.vmware.vim25.ws.WSClient;
+/**
+ * @author Pratik Pandey.
+ *
+ * The SOAP client of vijava with every call recorded in the SOAP call metrics. A call is timed from the
+ * request until its response has been parsed, as the commands see it, and its bytes are counted on the
+ * way out and while the response is read. With a request scheduler, every call waits for its turn first,
+ * and every attempt of a retried call is recorded on its own. With a transport, the calls are sent through
+ * it instead of the stock transport of vijava.
+ */
+class InstrumentedWSClient extends WSClient
+{
+	private final SoapCallMetrics callMetrics;
+	/**
+	 * The scheduler of the server, null to send the calls right away.
+	 */
+	private final RequestScheduler requestScheduler;
+	/**
+	 * The transport the calls are sent through, null for the one of vijava.
+	 */
+	private final SoapTransport transport;
+	private final String soapAction;
+	/**
+	 * Used to take over the logged in session of the given client.
+	 */
+	public InstrumentedWSClient(WSClient client, String apiVersion, SoapCallMetrics callMetrics,
+			RequestScheduler requestScheduler, SoapTransport transport) throws IOException
+	{
+		super(client.getBaseUrl().toString(), true);
+		setCookie(client.getCookie());
+		setVimNameSpace(client.getVimNameSpace());
+		setSoapActionOnApiVersion(apiVersion);
+		setConnectTimeout(client.getConnectTimeout());
+		setReadTimeout(client.getReadTimeout());
+		this.callMetrics = callMetrics;
+		this.requestScheduler = requestScheduler;
+		this.transport = transport;
+		this.soapAction = "urn:vim25/" + apiVersion;
+	}
+
+	@Override
+	public Object invoke(final String methodName, final Argument[] paras, final String returnType) throws RemoteException
+	{
+		if (requestScheduler == null)
+		{
+			return invokeTimed(methodName, paras, returnType);
+		}
+		return requestScheduler.execute(methodName, () -> invokeTimed(methodName, paras, returnType));
+	}
+
+	private Object invokeTimed(String methodName, Argument[] paras, String returnType) throws RemoteException
+	{
+		long startTime = System.nanoTime();
+		boolean failed = true;
+		try
+		{
+			Object result = super.invoke(methodName, paras, returnType);
+			failed = false;
+			return result;
+		}
+		finally
+		{
+			callMetrics.record(methodName, System.nanoTime() - startTime, failed);
+		}
+	}
+
+	@Override
+	public InputStream post(String soapMsg) throws IOException
+	{
+		if (transport != null)
+		{
+			return transport.post(getBaseUrl(), soapAction, getCookie(), soapMsg, getConnectTimeout(), getReadTimeout(),
+					cookie -> {
+						if (getCookie() == null)
+						{
+							setCookie(cookie);
+						}
+					}, callMetrics);
+		}
+		callMetrics.addRequestBytes(soapMsg.getBytes(StandardCharsets.UTF_8).length);
+		InputStream in = super.post(soapMsg);
+		return in == null ? null : new FilterInputStream(in)
+		{
+			@Override
+			public int read() throws IOException
+			{
+				int b = super.read();
+				if (b >= 0)
+				{
+					callMetrics.addResponseBytes(1);
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] buffer, int offset, int length) throws IOException
+			{
+				int count = super.read(buffer, offset, length);
+				if (count > 0)
+				{
+					callMetrics.addResponseBytes(count);
+				}
+				return count;
+			}
+		};
+	}
+}
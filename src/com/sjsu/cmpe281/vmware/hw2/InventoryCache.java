@@ -0,0 +1,679 @@
+package com.sjsu.cmpe281.vmware.hw2;
+
+import java.io.File;
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import com.vmware.vim25.InvalidProperty;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.ObjectUpdateKind;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyChangeOp;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.RuntimeFault;
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.WaitOptions;
+import com.vmware.vim25.mo.ContainerView;
+import com.vmware.vim25.mo.Folder;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.ServiceInstance;
+/**
+ * @author Pratik Pandey.
+ *
+ * This class keeps an in-memory copy of the VM and host inventory keyed by name and by managed object
+ * reference. It is loaded once at connect time and afterwards kept current by a background thread which
+ * long-polls a dedicated PropertyCollector with WaitForUpdatesEx, so that the commands can look entities
+ * up locally instead of walking the inventory tree on the server for every command.
+ * With a snapshot file, the cache is saved to it from time to time and loaded from it at the next start, so
+ * that the commands are answered from the snapshot right away while the cache catches up with the server in
+ * the background. Offline, the cache is only loaded from the snapshot and never talks to a server.
+ */
+class InventoryCache implements Runnable
+{
+	/**
+	 * Used for logging purposes.
+	 */
+	private final Logger logger = Logger.getLogger(InventoryCache.class.getName());
+	/**
+	 * Properties kept in the cache for VMs and hosts.
+	 */
+	static final String[] VM_PROPERTIES = { "name", "runtime.powerState", "runtime.host", "guest.ipAddress",
+			"guest.guestFullName", "guest.guestState", "guest.toolsRunningStatus" };
+	static final String[] HOST_PROPERTIES = { "name", "runtime.connectionState" };
+	/**
+	 * If the background thread has not heard from the server for longer than this, or the snapshot being
+	 * caught up with was saved longer ago than this, the cache is not used and the lookups fall back to the
+	 * server.
+	 */
+	private static final long MAX_STALENESS_MILLIS = 60 * 1000;
+	/**
+	 * How long a single WaitForUpdatesEx call may block on the server when nothing changes. Kept well
+	 * below the staleness window so that an idle but healthy cache stays fresh.
+	 */
+	private static final int MAX_WAIT_SECONDS = 20;
+	private static final long RETRY_DELAY_MILLIS = 5 * 1000;
+	/**
+	 * How often the snapshot is saved at most while the inventory keeps changing.
+	 */
+	private static final long SAVE_INTERVAL_MILLIS = 5 * 60 * 1000;
+
+	private Folder rootFolder;
+	private ServiceInstance serviceInstance;
+	/**
+	 * The server the snapshot belongs to, and the file it is saved to, null to run without a snapshot.
+	 */
+	private final String server;
+	private final File snapshotFile;
+	/**
+	 * Entities keyed by the value of their managed object reference.
+	 */
+	private final Map<String, EntityProperties> entitiesByMOR = new HashMap<String, EntityProperties>();
+	/**
+	 * Managed object reference values keyed by type and then by name.
+	 */
+	private final Map<String, Map<String, String>> morsByName = new HashMap<String, Map<String, String>>();
+	/**
+	 * Name, IP address and host index for the search queries.
+	 */
+	private final SearchIndex searchIndex = new SearchIndex();
+
+	private PropertyCollector propertyCollector;
+	private ContainerView vmView;
+	private ContainerView hostView;
+	private Thread updateThread;
+	private volatile boolean running;
+	private volatile String version = "";
+	private volatile long lastSyncMillis;
+	/**
+	 * True while the entities loaded from the snapshot are served before the first synchronization with the
+	 * server has completed, again after an update failed unexpectedly until the inventory has been loaded
+	 * anew, and for good when offline.
+	 */
+	private volatile boolean catchingUp;
+	private boolean offline;
+	private boolean preloaded;
+	/**
+	 * The entities seen during a synchronization, so that those which are gone since the snapshot can
+	 * be dropped at its end. Null between synchronizations.
+	 */
+	private Set<String> synchronizedMORs;
+	private boolean changedSinceSave;
+	private long lastSaveMillis;
+	private long snapshotSavedMillis;
+	private long snapshotLoadMillis;
+	private long hits;
+	private long misses;
+	private long updateSets;
+	private long objectUpdates;
+
+	public InventoryCache(Folder rootFolder, ServiceInstance serviceInstance)
+	{
+		this(rootFolder, serviceInstance, null, null);
+	}
+	/**
+	 * Used to keep the cache of the given server in the snapshot file as well.
+	 */
+	public InventoryCache(Folder rootFolder, ServiceInstance serviceInstance, String server, File snapshotFile)
+	{
+		this.rootFolder = rootFolder;
+		this.serviceInstance = serviceInstance;
+		this.server = server;
+		this.snapshotFile = snapshotFile;
+	}
+	/**
+	 * Used for a cache of the given server which is filled from the snapshot file before the login, see
+	 * preload, and started on top of the login afterwards.
+	 */
+	public InventoryCache(String server, File snapshotFile)
+	{
+		this(null, null, server, snapshotFile);
+	}
+	/**
+	 * This method is used to @return the cache loaded from the snapshot file, which serves the queries
+	 * without ever connecting to the server.
+	 * @throws IOException if the snapshot cannot be read.
+	 */
+	public static InventoryCache loadOffline(File snapshotFile) throws IOException
+	{
+		InventoryCache inventoryCache = new InventoryCache(null, null, null, snapshotFile);
+		inventoryCache.loadSnapshot();
+		inventoryCache.offline = true;
+		return inventoryCache;
+	}
+	/**
+	 * This method is used to load the whole inventory once and to start the background thread which keeps
+	 * it current. If the snapshot could be loaded, the inventory is loaded by the background thread instead,
+	 * and the snapshot is used until then.
+	 * @throws InvalidProperty, RuntimeFault, RemoteException
+	 */
+	public void start() throws InvalidProperty, RuntimeFault, RemoteException
+	{
+		preload();
+		/*
+		 * A separate PropertyCollector is used so that the long running WaitForUpdatesEx does not interfere
+		 * with the filters and retrievals of the commands on the session's default collector.
+		 */
+		propertyCollector = serviceInstance.getPropertyCollector().createPropertyCollector();
+		vmView = serviceInstance.getViewManager().createContainerView(rootFolder, new String[] { "VirtualMachine" }, true);
+		hostView = serviceInstance.getViewManager().createContainerView(rootFolder, new String[] { "HostSystem" }, true);
+
+		PropertyFilterSpec filterSpec = new PropertyFilterSpec();
+		filterSpec.setObjectSet(new ObjectSpec[] { PropertyRetriever.createObjectSpec(vmView),
+				PropertyRetriever.createObjectSpec(hostView) });
+		filterSpec.setPropSet(new PropertySpec[] { PropertyRetriever.createPropertySpec("VirtualMachine", VM_PROPERTIES),
+				PropertyRetriever.createPropertySpec("HostSystem", HOST_PROPERTIES) });
+		propertyCollector.createFilter(filterSpec, true);
+		if (!catchingUp)
+		{
+			synchronize();
+		}
+
+		running = true;
+		updateThread = new Thread(this, "inventory-cache-updater");
+		updateThread.setDaemon(true);
+		updateThread.start();
+	}
+	/**
+	 * This method is used to start the cache filled before the login on top of the given login.
+	 * @throws InvalidProperty, RuntimeFault, RemoteException
+	 */
+	public void start(Folder rootFolder, ServiceInstance serviceInstance) throws InvalidProperty, RuntimeFault, RemoteException
+	{
+		this.rootFolder = rootFolder;
+		this.serviceInstance = serviceInstance;
+		start();
+	}
+	/**
+	 * This method is used to fill the cache from the snapshot file, unless done already, and @return true
+	 * if it could be, in which case the cache answers from the snapshot until it has caught up with the
+	 * server.
+	 */
+	public boolean preload()
+	{
+		if (!preloaded && snapshotFile != null && snapshotFile.isFile())
+		{
+			preloaded = true;
+			try
+			{
+				loadSnapshot();
+			}
+			catch (IOException e)
+			{
+				logger.log(Level.WARNING, "Inventory snapshot could not be loaded, loading from the server: " + e.toString());
+			}
+		}
+		return catchingUp;
+	}
+	/**
+	 * This method is used to stop the background thread and to release the server side objects.
+	 */
+	public void stop()
+	{
+		running = false;
+		if (propertyCollector == null)
+		{
+			return;
+		}
+		try
+		{
+			propertyCollector.cancelWaitForUpdates();
+			propertyCollector.destroyPropertyCollector();
+			if (vmView != null)
+			{
+				vmView.destroyView();
+			}
+			if (hostView != null)
+			{
+				hostView.destroyView();
+			}
+		}
+		catch (RemoteException e)
+		{
+			logger.log(Level.WARNING, "Could not release the inventory cache on the server: " + e.toString());
+		}
+		if (updateThread != null)
+		{
+			updateThread.interrupt();
+		}
+		/*
+		 * Saved even without changes, since the time it is saved at tells how long it may be used at the next
+		 * start.
+		 */
+		saveSnapshot();
+	}
+	/**
+	 * The background loop which long-polls the server for changes and applies them to the cache.
+	 */
+	@Override
+	public void run()
+	{
+		WaitOptions waitOptions = createWaitOptions();
+		while (running)
+		{
+			try
+			{
+				if (catchingUp)
+				{
+					synchronize();
+				}
+				applyUpdateSet(propertyCollector.waitForUpdatesEx(version, waitOptions));
+				if (changedSinceSave && System.currentTimeMillis() - lastSaveMillis >= SAVE_INTERVAL_MILLIS)
+				{
+					saveSnapshot();
+				}
+			}
+			catch (RemoteException e)
+			{
+				if (!running)
+				{
+					break;
+				}
+				logger.log(Level.WARNING, "Inventory cache update failed, retrying: " + e.toString());
+				if (!pauseBeforeRetry())
+				{
+					break;
+				}
+			}
+			catch (RuntimeException e)
+			{
+				if (!running)
+				{
+					break;
+				}
+				/*
+				 * The update may have been applied only in part, so the whole inventory is loaded again.
+				 */
+				logger.log(Level.WARNING, "Inventory cache update failed, loading the inventory again", e);
+				catchingUp = true;
+				if (!pauseBeforeRetry())
+				{
+					break;
+				}
+			}
+		}
+		logger.log(Level.INFO, "Inventory cache updater stopped");
+	}
+	/**
+	 * This method is used to @return true if the cache has been synchronized with the server within the
+	 * staleness window and can be used in place of the server. Until the first synchronization after a
+	 * start from the snapshot, the snapshot is used in place of the server only within the staleness window
+	 * from the time it was saved, so that a slow catch-up does not serve an old inventory. Offline the
+	 * snapshot is always used.
+	 */
+	public boolean isFresh()
+	{
+		if (catchingUp)
+		{
+			return offline || System.currentTimeMillis() - snapshotSavedMillis <= MAX_STALENESS_MILLIS;
+		}
+		return lastSyncMillis > 0 && System.currentTimeMillis() - lastSyncMillis <= MAX_STALENESS_MILLIS;
+	}
+	/**
+	 * This method is used to @return the cached entity of the given type and name, or null if the cache
+	 * is stale or does not know the entity, in which case the caller has to ask the server.
+	 */
+	public synchronized EntityProperties find(String type, String name)
+	{
+		EntityProperties entity = null;
+		if (isFresh())
+		{
+			Map<String, String> names = morsByName.get(type);
+			String morValue = names == null ? null : names.get(name);
+			entity = morValue == null ? null : entitiesByMOR.get(morValue);
+		}
+		if (entity == null)
+		{
+			misses++;
+		}
+		else
+		{
+			hits++;
+		}
+		return entity;
+	}
+	/**
+	 * This method is used to @return the cached entity with the given managed object reference value,
+	 * or null if unknown.
+	 */
+	public synchronized EntityProperties get(String morValue)
+	{
+		return entitiesByMOR.get(morValue);
+	}
+	/**
+	 * This method is used to @return all the cached entities of the given type sorted by name, or null
+	 * if the cache is stale.
+	 */
+	public synchronized List<EntityProperties> list(String type)
+	{
+		if (!isFresh())
+		{
+			misses++;
+			return null;
+		}
+		hits++;
+		List<EntityProperties> entities = new ArrayList<EntityProperties>();
+		for (EntityProperties entity : entitiesByMOR.values())
+		{
+			if (type.equals(entity.getMOR().getType()))
+			{
+				entities.add(entity);
+			}
+		}
+		Collections.sort(entities, new Comparator<EntityProperties>()
+		{
+			@Override
+			public int compare(EntityProperties first, EntityProperties second)
+			{
+				return String.valueOf(first.getName()).compareTo(String.valueOf(second.getName()));
+			}
+		});
+		return entities;
+	}
+	/**
+	 * This method is used to @return the cached entities of the given type whose name or guest IP address
+	 * matches the query, sorted by name, or null if the cache is stale. If hostName is not null only the
+	 * VMs on that host are returned.
+	 */
+	public synchronized List<EntityProperties> search(String type, SearchIndex.Query query, String hostName)
+	{
+		if (!isFresh())
+		{
+			misses++;
+			return null;
+		}
+		hits++;
+		List<EntityProperties> entities = new ArrayList<EntityProperties>();
+		String hostMOR = null;
+		if (hostName != null)
+		{
+			Map<String, String> hosts = morsByName.get("HostSystem");
+			hostMOR = hosts == null ? null : hosts.get(hostName);
+			if (hostMOR == null)
+			{
+				return entities;
+			}
+		}
+		for (String morValue : searchIndex.search(type, query, hostMOR))
+		{
+			entities.add(entitiesByMOR.get(morValue));
+		}
+		return entities;
+	}
+	/**
+	 * This method is used to @return the number of cached entities.
+	 */
+	public synchronized int size()
+	{
+		return entitiesByMOR.size();
+	}
+	/**
+	 * This method is used to @return the list of lines describing the state of the cache for the
+	 * cache stats command.
+	 */
+	public synchronized List<String> getStats()
+	{
+		List<String> responseList = new ArrayList<String>();
+		long lookups = hits + misses;
+		responseList.add("Entities = " + entitiesByMOR.size() + " (VMs = " + count("VirtualMachine")
+				+ ", hosts = " + count("HostSystem") + ")");
+		responseList.add("Lookups = " + lookups + ", hits = " + hits + ", misses = " + misses + ", hit rate = "
+				+ (lookups == 0 ? 0 : (hits * 100 / lookups)) + " %");
+		responseList.add("Version = " + version);
+		if (snapshotFile != null)
+		{
+			responseList.add("Snapshot = " + snapshotFile + (snapshotSavedMillis == 0 ? ", none loaded"
+					: ", saved " + new SimpleDateFormat("MM/dd/yyyy HH:mm:ss").format(new Date(snapshotSavedMillis))
+							+ ", loaded in " + snapshotLoadMillis + " ms")
+					+ (offline ? ", offline" : catchingUp ? ", catching up" : ""));
+		}
+		responseList.add("Search index = " + searchIndex.size() + " entities, " + searchIndex.getTrigramCount() + " trigrams");
+		responseList.add("Update sets = " + updateSets + ", object updates = " + objectUpdates);
+		responseList.add("Update lag = " + (lastSyncMillis == 0 ? "n/a" : (System.currentTimeMillis() - lastSyncMillis) + " ms")
+				+ ", fresh = " + isFresh() + ", updater running = " + (updateThread != null && updateThread.isAlive()));
+		return responseList;
+	}
+	/**
+	 * This method is used to load the complete content of the filter and to drop the entities which were
+	 * loaded from the snapshot but are no longer there. The first WaitForUpdatesEx with an empty version
+	 * returns the complete content at once, possibly split into several truncated update sets.
+	 * @throws InvalidProperty, RuntimeFault, RemoteException
+	 */
+	private void synchronize() throws InvalidProperty, RuntimeFault, RemoteException
+	{
+		long startTime = System.currentTimeMillis();
+		synchronized (this)
+		{
+			version = "";
+			synchronizedMORs = new HashSet<String>();
+		}
+		UpdateSet updateSet;
+		do
+		{
+			updateSet = propertyCollector.waitForUpdatesEx(version, createWaitOptions());
+			applyUpdateSet(updateSet);
+		}
+		while (updateSet != null && Boolean.TRUE.equals(updateSet.getTruncated()));
+		int removed = 0;
+		synchronized (this)
+		{
+			Iterator<EntityProperties> iterator = entitiesByMOR.values().iterator();
+			while (iterator.hasNext())
+			{
+				EntityProperties entity = iterator.next();
+				if (!synchronizedMORs.contains(entity.getMOR().get_value()))
+				{
+					iterator.remove();
+					unindexName(entity);
+					searchIndex.remove(entity.getMOR().get_value());
+					removed++;
+				}
+			}
+			synchronizedMORs = null;
+			catchingUp = false;
+		}
+		logger.log(Level.INFO, "Inventory cache loaded " + size() + " entities in "
+				+ (System.currentTimeMillis() - startTime) + " ms" + (removed == 0 ? "" : ", " + removed + " gone since the snapshot"));
+		saveSnapshot();
+	}
+	/**
+	 * This method is used to fill the cache from the snapshot file.
+	 * @throws IOException if the snapshot cannot be read.
+	 */
+	private void loadSnapshot() throws IOException
+	{
+		long startTime = System.currentTimeMillis();
+		InventorySnapshot snapshot = InventorySnapshot.read(snapshotFile);
+		synchronized (this)
+		{
+			for (EntityProperties entity : snapshot.getEntities())
+			{
+				entitiesByMOR.put(entity.getMOR().get_value(), entity);
+				indexName(entity);
+				searchIndex.update(entity);
+			}
+			snapshotSavedMillis = snapshot.getSavedMillis();
+			snapshotLoadMillis = System.currentTimeMillis() - startTime;
+			catchingUp = true;
+		}
+		logger.log(Level.INFO, "Inventory snapshot of " + snapshot.getServer() + " loaded " + snapshot.getEntities().size()
+				+ " entities in " + snapshotLoadMillis + " ms");
+	}
+	/**
+	 * This method is used to save the cache to the snapshot file, unless it runs offline or has not yet
+	 * caught up with the server. The entities are never modified once cached, so only the map is copied
+	 * under the lock and the file is written outside of it.
+	 */
+	private void saveSnapshot()
+	{
+		List<EntityProperties> entities;
+		String savedVersion;
+		synchronized (this)
+		{
+			if (snapshotFile == null || offline || catchingUp)
+			{
+				return;
+			}
+			entities = new ArrayList<EntityProperties>(entitiesByMOR.values());
+			savedVersion = version;
+			changedSinceSave = false;
+			lastSaveMillis = System.currentTimeMillis();
+		}
+		try
+		{
+			InventorySnapshot.write(snapshotFile, server, savedVersion, entities);
+		}
+		catch (IOException e)
+		{
+			logger.log(Level.WARNING, "Inventory snapshot could not be saved: " + e.toString());
+		}
+	}
+	/**
+	 * This method is used to apply one update set received from the server. A null update set means that
+	 * the wait timed out without changes, which still proves that the cache is current.
+	 */
+	private synchronized void applyUpdateSet(UpdateSet updateSet)
+	{
+		lastSyncMillis = System.currentTimeMillis();
+		if (updateSet == null)
+		{
+			return;
+		}
+		updateSets++;
+		changedSinceSave = true;
+		version = updateSet.getVersion();
+		PropertyFilterUpdate[] filterUpdates = updateSet.getFilterSet();
+		if (filterUpdates == null)
+		{
+			return;
+		}
+		for (PropertyFilterUpdate filterUpdate : filterUpdates)
+		{
+			ObjectUpdate[] objectUpdateList = filterUpdate.getObjectSet();
+			if (objectUpdateList == null)
+			{
+				continue;
+			}
+			for (ObjectUpdate objectUpdate : objectUpdateList)
+			{
+				objectUpdates++;
+				applyObjectUpdate(objectUpdate);
+			}
+		}
+	}
+	/**
+	 * This method is used to apply the change of a single entity. Changed entities are copied and replaced
+	 * instead of modified in place, since the commands may still be reading the previous copy. During a
+	 * synchronization an entity enters with all its properties, so it is built afresh rather than on top of
+	 * what the snapshot had.
+	 */
+	private void applyObjectUpdate(ObjectUpdate objectUpdate)
+	{
+		ManagedObjectReference mor = objectUpdate.getObj();
+		EntityProperties previous = entitiesByMOR.get(mor.get_value());
+		if (objectUpdate.getKind() == ObjectUpdateKind.leave)
+		{
+			if (previous != null)
+			{
+				entitiesByMOR.remove(mor.get_value());
+				unindexName(previous);
+				searchIndex.remove(mor.get_value());
+			}
+			return;
+		}
+		boolean entered = objectUpdate.getKind() == ObjectUpdateKind.enter;
+		if (synchronizedMORs != null && entered)
+		{
+			synchronizedMORs.add(mor.get_value());
+		}
+		EntityProperties updated = previous == null || (synchronizedMORs != null && entered) ? new EntityProperties(mor)
+				: new EntityProperties(previous);
+		PropertyChange[] changes = objectUpdate.getChangeSet();
+		if (changes != null)
+		{
+			for (PropertyChange change : changes)
+			{
+				boolean removed = change.getOp() == PropertyChangeOp.remove
+						|| change.getOp() == PropertyChangeOp.indirectRemove;
+				updated.put(change.getName(), removed ? null : change.getVal());
+			}
+		}
+		if (previous != null)
+		{
+			unindexName(previous);
+		}
+		entitiesByMOR.put(mor.get_value(), updated);
+		indexName(updated);
+		searchIndex.update(updated);
+	}
+
+	private void indexName(EntityProperties entity)
+	{
+		if (entity.getName() == null)
+		{
+			return;
+		}
+		Map<String, String> names = morsByName.get(entity.getMOR().getType());
+		if (names == null)
+		{
+			names = new HashMap<String, String>();
+			morsByName.put(entity.getMOR().getType(), names);
+		}
+		names.put(entity.getName(), entity.getMOR().get_value());
+	}
+
+	private void unindexName(EntityProperties entity)
+	{
+		Map<String, String> names = morsByName.get(entity.getMOR().getType());
+		if (names != null && entity.getName() != null && entity.getMOR().get_value().equals(names.get(entity.getName())))
+		{
+			names.remove(entity.getName());
+		}
+	}
+
+	private int count(String type)
+	{
+		Map<String, String> names = morsByName.get(type);
+		return names == null ? 0 : names.size();
+	}
+
+	/**
+	 * This method is used to wait before the next attempt and @return false if the thread was interrupted
+	 * meanwhile.
+	 */
+	private boolean pauseBeforeRetry()
+	{
+		try
+		{
+			Thread.sleep(RETRY_DELAY_MILLIS);
+			return true;
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private WaitOptions createWaitOptions()
+	{
+		WaitOptions waitOptions = new WaitOptions();
+		waitOptions.setMaxWaitSeconds(MAX_WAIT_SECONDS);
+		return waitOptions;
+	}
+}
@@ -0,0 +1,380 @@
+package com.sjsu.cmpe281.vmware.hw2;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import com.vmware.vim25.ManagedObjectReference;
+/**
+ * @author Pratik Pandey.
+ *
+ * This class stores the inventory cache in a compact binary file, so that the next start can answer from
+ * it at once instead of waiting for the whole inventory, and so that it can be queried without connecting.
+ * Every distinct string (types, property paths, enum values and the like) is written once and referred to
+ * by number afterwards, numbers and lengths take as few bytes as their value needs, and the file is read
+ * with a single read into memory and decoded from there.
+ * The file is written to a temporary file first and then moved over the previous one, so that a crash
+ * while saving never leaves a broken snapshot behind.
+ */
+class InventorySnapshot
+{
+	private static final int MAGIC = 0x56434953;
+	private static final int FORMAT = 1;
+
+	private static final byte STRING = 1;
+	private static final byte LONG = 2;
+	private static final byte INTEGER = 3;
+	private static final byte SHORT = 4;
+	private static final byte BOOLEAN = 5;
+	private static final byte ENUM = 6;
+	private static final byte REFERENCE = 7;
+
+	private final String server;
+	private final String version;
+	private final long savedMillis;
+	private final List<EntityProperties> entities;
+
+	private InventorySnapshot(String server, String version, long savedMillis, List<EntityProperties> entities)
+	{
+		this.server = server;
+		this.version = version;
+		this.savedMillis = savedMillis;
+		this.entities = entities;
+	}
+	/**
+	 * This method is used to @return the server the snapshot was taken from.
+	 */
+	public String getServer()
+	{
+		return server;
+	}
+	/**
+	 * This method is used to @return the PropertyCollector version the snapshot corresponds to.
+	 */
+	public String getVersion()
+	{
+		return version;
+	}
+	/**
+	 * This method is used to @return the time the snapshot was saved.
+	 */
+	public long getSavedMillis()
+	{
+		return savedMillis;
+	}
+	/**
+	 * This method is used to @return the entities of the snapshot.
+	 */
+	public List<EntityProperties> getEntities()
+	{
+		return entities;
+	}
+	/**
+	 * This method is used to write the entities to the file. Values of types other than strings, numbers,
+	 * booleans, enums and managed object references are left out.
+	 * @throws IOException if the file cannot be written.
+	 */
+	public static void write(File file, String server, String version, Collection<EntityProperties> entities)
+			throws IOException
+	{
+		File directory = file.getAbsoluteFile().getParentFile();
+		Files.createDirectories(directory.toPath());
+		File temporaryFile = File.createTempFile(file.getName(), ".tmp", directory);
+		try
+		{
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile))))
+			{
+				Writer writer = new Writer(out);
+				out.writeInt(MAGIC);
+				out.writeInt(FORMAT);
+				out.writeLong(System.currentTimeMillis());
+				writer.writeString(server);
+				writer.writeString(version);
+				out.writeInt(entities.size());
+				for (EntityProperties entity : entities)
+				{
+					writer.writeEntity(entity);
+				}
+			}
+			Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally
+		{
+			Files.deleteIfExists(temporaryFile.toPath());
+		}
+	}
+	/**
+	 * This method is used to @return the snapshot stored in the file.
+	 * @throws IOException if the file cannot be read or is no snapshot of this format.
+	 */
+	public static InventorySnapshot read(File file) throws IOException
+	{
+		ByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			buffer = ByteBuffer.allocate((int) channel.size());
+			while (buffer.hasRemaining() && channel.read(buffer) >= 0)
+			{
+				continue;
+			}
+			buffer.flip();
+		}
+		try
+		{
+			if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT)
+			{
+				throw new IOException(file + " is no inventory snapshot of format " + FORMAT);
+			}
+			Reader reader = new Reader(buffer);
+			long savedMillis = buffer.getLong();
+			String server = reader.readString();
+			String version = reader.readString();
+			int count = buffer.getInt();
+			List<EntityProperties> entities = new ArrayList<EntityProperties>(count);
+			for (int i = 0; i < count; i++)
+			{
+				entities.add(reader.readEntity());
+			}
+			return new InventorySnapshot(server, version, savedMillis, entities);
+		}
+		catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException | ClassCastException e)
+		{
+			throw new IOException(file + " is damaged: " + e.toString());
+		}
+	}
+	/**
+	 * Writes the strings and entities, each distinct string in full only the first time.
+	 */
+	private static class Writer
+	{
+		private final DataOutputStream out;
+		private final Map<String, Integer> strings = new HashMap<String, Integer>();
+
+		private Writer(DataOutputStream out)
+		{
+			this.out = out;
+		}
+
+		private void writeEntity(EntityProperties entity) throws IOException
+		{
+			writeString(entity.getMOR().getType());
+			writeString(entity.getMOR().get_value());
+			List<String> paths = new ArrayList<String>();
+			for (String path : entity.getPropertyPaths())
+			{
+				if (getTag(entity.get(path)) != 0)
+				{
+					paths.add(path);
+				}
+			}
+			writeNumber(paths.size());
+			for (String path : paths)
+			{
+				Object value = entity.get(path);
+				byte tag = getTag(value);
+				writeString(path);
+				out.writeByte(tag);
+				switch (tag)
+				{
+				case STRING:
+					writeString((String) value);
+					break;
+				case LONG:
+					out.writeLong((Long) value);
+					break;
+				case INTEGER:
+					out.writeInt((Integer) value);
+					break;
+				case SHORT:
+					out.writeShort((Short) value);
+					break;
+				case BOOLEAN:
+					out.writeBoolean((Boolean) value);
+					break;
+				case ENUM:
+					writeString(value.getClass().getName());
+					writeString(((Enum<?>) value).name());
+					break;
+				default:
+					writeString(((ManagedObjectReference) value).getType());
+					writeString(((ManagedObjectReference) value).get_value());
+				}
+			}
+		}
+
+		private void writeString(String value) throws IOException
+		{
+			Integer id = strings.get(value == null ? "" : value);
+			if (id != null)
+			{
+				writeNumber(id);
+				return;
+			}
+			writeNumber(strings.size());
+			byte[] bytes = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+			writeNumber(bytes.length);
+			out.write(bytes);
+			strings.put(value == null ? "" : value, strings.size());
+		}
+		/**
+		 * Writes a non-negative number seven bits at a time, the lowest first, with the high bit set on all
+		 * but the last byte.
+		 */
+		private void writeNumber(int value) throws IOException
+		{
+			while ((value & ~0x7F) != 0)
+			{
+				out.writeByte((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			out.writeByte(value);
+		}
+
+		private static byte getTag(Object value)
+		{
+			if (value instanceof String)
+			{
+				return STRING;
+			}
+			if (value instanceof Long)
+			{
+				return LONG;
+			}
+			if (value instanceof Integer)
+			{
+				return INTEGER;
+			}
+			if (value instanceof Short)
+			{
+				return SHORT;
+			}
+			if (value instanceof Boolean)
+			{
+				return BOOLEAN;
+			}
+			if (value instanceof Enum)
+			{
+				return ENUM;
+			}
+			return value instanceof ManagedObjectReference ? REFERENCE : 0;
+		}
+	}
+	/**
+	 * Reads back what the writer wrote, collecting the strings in the order of their first appearance.
+	 */
+	private static class Reader
+	{
+		private final ByteBuffer buffer;
+		private final List<String> strings = new ArrayList<String>();
+
+		private Reader(ByteBuffer buffer)
+		{
+			this.buffer = buffer;
+		}
+
+		private EntityProperties readEntity() throws IOException
+		{
+			EntityProperties entity = new EntityProperties(createReference(readString(), readString()));
+			int count = readNumber();
+			for (int i = 0; i < count; i++)
+			{
+				String path = readString();
+				byte tag = buffer.get();
+				switch (tag)
+				{
+				case STRING:
+					entity.put(path, readString());
+					break;
+				case LONG:
+					entity.put(path, buffer.getLong());
+					break;
+				case INTEGER:
+					entity.put(path, buffer.getInt());
+					break;
+				case SHORT:
+					entity.put(path, buffer.getShort());
+					break;
+				case BOOLEAN:
+					entity.put(path, buffer.get() != 0);
+					break;
+				case ENUM:
+					entity.put(path, readEnum(readString(), readString()));
+					break;
+				case REFERENCE:
+					entity.put(path, createReference(readString(), readString()));
+					break;
+				default:
+					throw new IOException("Unknown value tag " + tag);
+				}
+			}
+			return entity;
+		}
+
+		private String readString()
+		{
+			int id = readNumber();
+			if (id < strings.size())
+			{
+				return strings.get(id);
+			}
+			int length = readNumber();
+			String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+			buffer.position(buffer.position() + length);
+			strings.add(value);
+			return value;
+		}
+
+		private int readNumber()
+		{
+			int value = 0;
+			for (int shift = 0; shift < 32; shift += 7)
+			{
+				byte b = buffer.get();
+				value |= (b & 0x7F) << shift;
+				if (b >= 0)
+				{
+					return value;
+				}
+			}
+			throw new IllegalArgumentException("Number too long");
+		}
+		/**
+		 * This method is used to @return the enum constant, or its name if the enum is unknown to this
+		 * version of vijava.
+		 */
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		private static Object readEnum(String className, String name)
+		{
+			try
+			{
+				return Enum.valueOf((Class<? extends Enum>) Class.forName(className), name);
+			}
+			catch (ClassNotFoundException | IllegalArgumentException e)
+			{
+				return name;
+			}
+		}
+
+		private static ManagedObjectReference createReference(String type, String value)
+		{
+			ManagedObjectReference mor = new ManagedObjectReference();
+			mor.setType(type);
+			mor.set_value(value);
+			return mor;
+		}
+	}
+}
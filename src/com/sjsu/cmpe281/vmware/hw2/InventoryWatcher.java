@@ -0,0 +1,218 @@
+package com.sjsu.cmpe281.vmware.hw2;
+
+import java.rmi.RemoteException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import com.vmware.vim25.InvalidProperty;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.ObjectUpdateKind;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyChangeOp;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.RuntimeFault;
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.WaitOptions;
+import com.vmware.vim25.mo.ContainerView;
+import com.vmware.vim25.mo.Folder;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.ServiceInstance;
+/**
+ * @author Pratik Pandey.
+ *
+ * This class is used by the watch command to write the changes of the VMs or hosts as they happen. It
+ * creates one filter on a PropertyCollector of its own and then only long-polls it with WaitForUpdatesEx,
+ * so the server sends the changed properties alone and the full set is never fetched again. The content
+ * returned by the first call is only used to learn the names; apart from the name of each entity nothing
+ * is kept, and the update sets are limited in size, so memory does not grow with the rate of changes.
+ */
+class InventoryWatcher
+{
+	/**
+	 * Used for logging purposes.
+	 */
+	private final Logger logger = Logger.getLogger(InventoryWatcher.class.getName());
+	/**
+	 * Properties watched for VMs and hosts.
+	 */
+	static final String[] VM_PROPERTIES = { "name", "runtime.powerState", "runtime.connectionState", "guest.ipAddress" };
+	static final String[] HOST_PROPERTIES = { "name", "runtime.connectionState", "runtime.inMaintenanceMode" };
+	/**
+	 * How long a single WaitForUpdatesEx call may block, which is also how quickly a stop is noticed.
+	 */
+	private static final int MAX_WAIT_SECONDS = 1;
+	/**
+	 * The most object updates in one update set, the server sends the rest with the following calls.
+	 */
+	private static final int MAX_OBJECT_UPDATES = 500;
+
+	private final Folder rootFolder;
+	private final ServiceInstance serviceInstance;
+	private final String type;
+	private final SearchIndex.Query filter;
+	/**
+	 * Names of the watched entities keyed by the value of their managed object reference.
+	 */
+	private final Map<String, String> names = new HashMap<String, String>();
+	private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS");
+	private String version = "";
+	private long changes;
+	private long maxChanges = Long.MAX_VALUE;
+
+	public InventoryWatcher(Folder rootFolder, ServiceInstance serviceInstance, String type, SearchIndex.Query filter)
+	{
+		this.rootFolder = rootFolder;
+		this.serviceInstance = serviceInstance;
+		this.type = type;
+		this.filter = filter;
+	}
+	/**
+	 * This method is used to write the changes to the response sink until stopped is set, maxChanges
+	 * changes have been written or maxMillis have passed (0 for no limit), and @return the number of changes.
+	 * @throws InvalidProperty, RuntimeFault, RemoteException
+	 */
+	public long watch(AtomicBoolean stopped, long maxChanges, long maxMillis, ResponseSink responseSink)
+			throws InvalidProperty, RuntimeFault, RemoteException
+	{
+		long deadline = maxMillis <= 0 ? Long.MAX_VALUE : System.currentTimeMillis() + maxMillis;
+		this.maxChanges = maxChanges <= 0 ? Long.MAX_VALUE : maxChanges;
+		PropertyCollector propertyCollector = serviceInstance.getPropertyCollector().createPropertyCollector();
+		ContainerView containerView = null;
+		try
+		{
+			containerView = serviceInstance.getViewManager().createContainerView(rootFolder, new String[] { type }, true);
+			PropertyFilterSpec filterSpec = new PropertyFilterSpec();
+			filterSpec.setObjectSet(new ObjectSpec[] { PropertyRetriever.createObjectSpec(containerView) });
+			filterSpec.setPropSet(new PropertySpec[] { PropertyRetriever.createPropertySpec(type,
+					"HostSystem".equals(type) ? HOST_PROPERTIES : VM_PROPERTIES) });
+			propertyCollector.createFilter(filterSpec, true);
+
+			WaitOptions waitOptions = new WaitOptions();
+			waitOptions.setMaxWaitSeconds(MAX_WAIT_SECONDS);
+			waitOptions.setMaxObjectUpdates(MAX_OBJECT_UPDATES);
+			UpdateSet updateSet;
+			do
+			{
+				updateSet = propertyCollector.waitForUpdatesEx(version, waitOptions);
+				apply(updateSet, null);
+			}
+			while (updateSet != null && Boolean.TRUE.equals(updateSet.getTruncated()));
+			responseSink.add("Watching " + names.size() + " " + ("HostSystem".equals(type) ? "host(s)" : "VM(s)")
+					+ " for changes");
+
+			while (!stopped.get() && changes < this.maxChanges && System.currentTimeMillis() < deadline)
+			{
+				long previousChanges = changes;
+				apply(propertyCollector.waitForUpdatesEx(version, waitOptions), responseSink);
+				if (changes > previousChanges)
+				{
+					responseSink.flush();
+				}
+			}
+			return changes;
+		}
+		finally
+		{
+			try
+			{
+				propertyCollector.destroyPropertyCollector();
+				if (containerView != null)
+				{
+					containerView.destroyView();
+				}
+			}
+			catch (RemoteException e)
+			{
+				logger.log(Level.WARNING, "Could not release the watch on the server: " + e.toString());
+			}
+		}
+	}
+	/**
+	 * This method is used to write the changes of one update set, or only to learn the names if the
+	 * response sink is null. A null update set means that nothing changed within the wait.
+	 */
+	private void apply(UpdateSet updateSet, ResponseSink responseSink)
+	{
+		if (updateSet == null)
+		{
+			return;
+		}
+		version = updateSet.getVersion();
+		if (updateSet.getFilterSet() == null)
+		{
+			return;
+		}
+		for (PropertyFilterUpdate filterUpdate : updateSet.getFilterSet())
+		{
+			if (filterUpdate.getObjectSet() == null)
+			{
+				continue;
+			}
+			for (ObjectUpdate objectUpdate : filterUpdate.getObjectSet())
+			{
+				apply(objectUpdate, responseSink);
+			}
+		}
+	}
+
+	private void apply(ObjectUpdate objectUpdate, ResponseSink responseSink)
+	{
+		String morValue = objectUpdate.getObj().get_value();
+		String previousName = names.get(morValue);
+		if (objectUpdate.getKind() == ObjectUpdateKind.leave)
+		{
+			names.remove(morValue);
+			if (filter == null || filter.matches(previousName))
+			{
+				write(responseSink, previousName, "removed", "name", previousName);
+			}
+			return;
+		}
+		String name = previousName;
+		PropertyChange[] changeSet = objectUpdate.getChangeSet() == null ? new PropertyChange[0] : objectUpdate.getChangeSet();
+		for (PropertyChange change : changeSet)
+		{
+			if (change.getName().equals("name") && change.getVal() != null)
+			{
+				name = change.getVal().toString();
+				names.put(morValue, name);
+			}
+		}
+		/*
+		 * A renamed entity is shown if either of its names matches the filter.
+		 */
+		if (filter != null && !filter.matches(name) && !filter.matches(previousName))
+		{
+			return;
+		}
+		String kind = objectUpdate.getKind() == ObjectUpdateKind.enter ? "added" : "modified";
+		for (PropertyChange change : changeSet)
+		{
+			boolean removed = change.getOp() == PropertyChangeOp.remove || change.getOp() == PropertyChangeOp.indirectRemove;
+			write(responseSink, name, kind, change.getName(), removed ? null : change.getVal());
+		}
+	}
+
+	private void write(ResponseSink responseSink, String name, String kind, String property, Object value)
+	{
+		if (responseSink == null || changes >= maxChanges)
+		{
+			return;
+		}
+		changes++;
+		responseSink.add(new ResultRecord("HostSystem".equals(type) ? "hostChange" : "vmChange",
+				"HostSystem".equals(type) ? "host" : "vm", -1)
+				.add("time", "Time", timeFormat.format(new Date()))
+				.add("name", "Name", name)
+				.add("change", "Change", kind)
+				.add("property", "Property", property)
+				.add("value", "Value", value));
+	}
+}
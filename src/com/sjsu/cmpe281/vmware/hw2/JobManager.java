@@ -0,0 +1,302 @@
+package com.sjsu.cmpe281.vmware.hw2;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+/**
+ * @author Pratik Pandey.
+ *
+ * This class runs commands as background jobs, so that the prompt stays responsive while power operations
+ * wait for their tasks. Every job gets a number at once, keeps its response until it is asked for with
+ * wait, and measures its own time. The jobs mostly wait for the server, so each one simply gets a thread
+ * of its own.
+ */
+class JobManager
+{
+	/**
+	 * Number of finished jobs kept for the jobs and wait commands, the oldest are dropped first.
+	 */
+	private static final int MAX_FINISHED_JOBS = 100;
+	private static final long POLL_MILLIS = 200;
+
+	private final ScriptRunner.CommandExecutor commandExecutor;
+	private final ExecutorService executorService;
+	private final Map<Integer, Job> jobs = new LinkedHashMap<Integer, Job>();
+	private final List<Job> finishedJobs = new ArrayList<Job>();
+	private int nextId = 1;
+
+	public JobManager(ScriptRunner.CommandExecutor commandExecutor)
+	{
+		this.commandExecutor = commandExecutor;
+		final AtomicInteger threadCount = new AtomicInteger();
+		this.executorService = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "job-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+	/**
+	 * This method is used to start the command in the background and @return its job.
+	 */
+	public synchronized Job submit(final String command)
+	{
+		final Job job = new Job(nextId++, command);
+		jobs.put(job.id, job);
+		job.future = executorService.submit(() -> {
+			try
+			{
+				commandExecutor.execute(command, job);
+				finish(job, "done", null);
+			}
+			catch (Exception e)
+			{
+				finish(job, "failed", e);
+			}
+		});
+		return job;
+	}
+	/**
+	 * This method is used to @return the notices of the jobs which finished since the last call and whose
+	 * response has not been shown yet, printed before the next prompt.
+	 */
+	public synchronized List<String> takeFinishedNotices()
+	{
+		List<String> notices = new ArrayList<String>();
+		for (Job job : finishedJobs)
+		{
+			if (!job.shown)
+			{
+				notices.add("[" + job.id + "] " + job.status + " in " + job.getMillis() + " ms: " + job.command
+						+ " (wait " + job.id + " shows the response)");
+			}
+		}
+		finishedJobs.clear();
+		return notices;
+	}
+	/**
+	 * This method is used to @return the number of jobs still running.
+	 */
+	public synchronized int getRunningCount()
+	{
+		int count = 0;
+		for (Job job : jobs.values())
+		{
+			count += job.isFinished() ? 0 : 1;
+		}
+		return count;
+	}
+	/**
+	 * This method is used to write one record per job with its state and time.
+	 */
+	public void writeJobs(ResponseSink responseSink)
+	{
+		List<Job> jobList;
+		synchronized (this)
+		{
+			jobList = new ArrayList<Job>(jobs.values());
+		}
+		if (jobList.isEmpty())
+		{
+			responseSink.add("There are no jobs");
+			return;
+		}
+		int index = 0;
+		for (Job job : jobList)
+		{
+			responseSink.add(new ResultRecord("job", "job", index++)
+					.add("id", "Job", job.id)
+					.add("command", "Command", job.command)
+					.add("status", "Status", job.status)
+					.add("millis", "Time", job.getMillis(), " ms")
+					.add("lines", "Lines", job.size()));
+		}
+	}
+	/**
+	 * This method is used to wait for the job with the given number, or for all the jobs whose response
+	 * has not been shown yet if it is null, and to write their responses. Waiting ends early when stopped
+	 * is set, leaving the jobs running.
+	 */
+	public void waitFor(String id, AtomicBoolean stopped, ResponseSink responseSink) throws InterruptedException
+	{
+		List<Job> jobList = new ArrayList<Job>();
+		synchronized (this)
+		{
+			if (id != null)
+			{
+				Job job = getJob(id, responseSink);
+				if (job == null)
+				{
+					return;
+				}
+				jobList.add(job);
+			}
+			else
+			{
+				for (Job job : jobs.values())
+				{
+					if (!job.shown)
+					{
+						jobList.add(job);
+					}
+				}
+			}
+		}
+		if (jobList.isEmpty())
+		{
+			responseSink.add("There are no jobs to wait for");
+			return;
+		}
+		for (Job job : jobList)
+		{
+			while (!job.finished.await(POLL_MILLIS, TimeUnit.MILLISECONDS))
+			{
+				if (stopped.get())
+				{
+					responseSink.add("[" + job.id + "] still running after " + job.getMillis() + " ms: " + job.command);
+					return;
+				}
+			}
+			job.writeTo(responseSink);
+		}
+	}
+	/**
+	 * This method is used to cancel the job with the given number. The thread of the job is interrupted,
+	 * which ends the waiting for a task, but what has already been sent to the server is not undone.
+	 */
+	public void cancel(String id, ResponseSink responseSink)
+	{
+		Job job;
+		synchronized (this)
+		{
+			job = getJob(id, responseSink);
+		}
+		if (job == null)
+		{
+			return;
+		}
+		if (job.isFinished())
+		{
+			responseSink.add("[" + job.id + "] is already " + job.status + ": " + job.command);
+			return;
+		}
+		finish(job, "cancelled", null);
+		job.future.cancel(true);
+		responseSink.add("[" + job.id + "] cancelled after " + job.getMillis() + " ms: " + job.command);
+	}
+	/**
+	 * This method is used to cancel all the running jobs, when the command line exits.
+	 */
+	public void stop()
+	{
+		executorService.shutdownNow();
+	}
+
+	private Job getJob(String id, ResponseSink responseSink)
+	{
+		Job job = null;
+		try
+		{
+			job = jobs.get(Integer.parseInt(id));
+		}
+		catch (NumberFormatException e)
+		{
+			// reported below like an unknown number
+		}
+		if (job == null)
+		{
+			responseSink.add("There is no job " + id);
+		}
+		return job;
+	}
+	/**
+	 * This method is used to end the job, unless it has ended already, and to drop the oldest finished jobs
+	 * beyond the limit.
+	 */
+	private synchronized void finish(Job job, String status, Exception error)
+	{
+		if (job.isFinished())
+		{
+			return;
+		}
+		job.endMillis = System.currentTimeMillis();
+		job.status = status;
+		job.setError(error);
+		job.finished.countDown();
+		if (!status.equals("cancelled"))
+		{
+			finishedJobs.add(job);
+		}
+		int finishedCount = jobs.size() - getRunningCount();
+		Iterator<Job> iterator = jobs.values().iterator();
+		while (finishedCount > MAX_FINISHED_JOBS && iterator.hasNext())
+		{
+			if (iterator.next().isFinished())
+			{
+				iterator.remove();
+				finishedCount--;
+			}
+		}
+	}
+	/**
+	 * One background job. It is the sink of its command, keeping the response until it is shown.
+	 */
+	static class Job extends BufferedResponseSink
+	{
+		private final int id;
+		private final String command;
+		private final long startMillis = System.currentTimeMillis();
+		private final CountDownLatch finished = new CountDownLatch(1);
+		private Future<?> future;
+		private volatile String status = "running";
+		private volatile long endMillis;
+		private volatile boolean shown;
+
+		private Job(int id, String command)
+		{
+			this.id = id;
+			this.command = command;
+		}
+		/**
+		 * This method is used to @return the number of the job.
+		 */
+		public int getId()
+		{
+			return id;
+		}
+		/**
+		 * This method is used to @return the command of the job.
+		 */
+		public String getCommand()
+		{
+			return command;
+		}
+
+		private boolean isFinished()
+		{
+			return finished.getCount() == 0;
+		}
+
+		private long getMillis()
+		{
+			return (isFinished() ? endMillis : System.currentTimeMillis()) - startMillis;
+		}
+
+		@Override
+		public synchronized void writeTo(ResponseSink responseSink)
+		{
+			shown = true;
+			responseSink.add("[" + id + "] " + command);
+			super.writeTo(responseSink);
+			responseSink.add("[" + id + "] " + status + " in " + getMillis() + " ms");
+		}
+	}
+}
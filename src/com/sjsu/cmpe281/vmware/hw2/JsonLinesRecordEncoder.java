@@ -0,0 +1,120 @@
+package com.sjsu.cmpe281.vmware.hw2;
+
+import java.io.IOException;
+/**
+ * @author Pratik Pandey.
+ *
+ * This class writes every record as one JSON object on its own line, e.g.,
+ * {"type":"vm","index":0,"name":"demo-centos7-123","powerState":"poweredOn",...}. Numbers and booleans
+ * keep their type, missing values are null, the server is given as "endpoint" when there are several,
+ * and a free text line becomes {"type":"message","text":"..."}.
+ */
+class JsonLinesRecordEncoder implements RecordEncoder
+{
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	@Override
+	public void writeRecord(Appendable out, ResultRecord record) throws IOException
+	{
+		out.append("{\"type\":");
+		appendString(out, record.getType());
+		if (record.getEndpoint() != null)
+		{
+			out.append(",\"endpoint\":");
+			appendString(out, record.getEndpoint());
+		}
+		if (record.getIndex() >= 0)
+		{
+			out.append(",\"index\":");
+			RecordEncoder.appendLong(out, record.getIndex());
+		}
+		for (int field = 0; field < record.size(); field++)
+		{
+			out.append(',');
+			appendString(out, record.getName(field));
+			out.append(':');
+			appendValue(out, record.getValue(field));
+		}
+		out.append("}\n");
+	}
+
+	@Override
+	public void writeMessage(Appendable out, String message) throws IOException
+	{
+		out.append("{\"type\":\"message\",\"text\":");
+		appendString(out, message);
+		out.append("}\n");
+	}
+
+	private static void appendValue(Appendable out, Object value) throws IOException
+	{
+		if (value == null)
+		{
+			out.append("null");
+		}
+		else if (value instanceof Boolean)
+		{
+			out.append(((Boolean) value).booleanValue() ? "true" : "false");
+		}
+		else if (value instanceof Number && !isNonFinite((Number) value))
+		{
+			RecordEncoder.appendValue(out, value);
+		}
+		else if (value instanceof CharSequence)
+		{
+			appendString(out, (CharSequence) value);
+		}
+		else
+		{
+			appendString(out, value instanceof Enum ? ((Enum<?>) value).name() : value.toString());
+		}
+	}
+	/**
+	 * This method is used to write the text as a JSON string, escaping the quote, the backslash and the
+	 * control characters.
+	 */
+	private static void appendString(Appendable out, CharSequence text) throws IOException
+	{
+		out.append('"');
+		for (int i = 0; i < text.length(); i++)
+		{
+			char c = text.charAt(i);
+			switch (c)
+			{
+			case '"':
+				out.append("\\\"");
+				break;
+			case '\\':
+				out.append("\\\\");
+				break;
+			case '\n':
+				out.append("\\n");
+				break;
+			case '\r':
+				out.append("\\r");
+				break;
+			case '\t':
+				out.append("\\t");
+				break;
+			default:
+				if (c < 0x20)
+				{
+					out.append("\\u00");
+					out.append(HEX_DIGITS[c >> 4]);
+					out.append(HEX_DIGITS[c & 0xf]);
+				}
+				else
+				{
+					out.append(c);
+				}
+			}
+		}
+		out.append('"');
+	}
+
+	private static boolean isNonFinite(Number value)
+	{
+		return (value instanceof Double || value instanceof Float)
+				&& (Double.isNaN(value.doubleValue()) || Double.isInfinite(value.doubleValue()));
+	}
+}
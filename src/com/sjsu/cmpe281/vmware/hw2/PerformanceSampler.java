@@ -0,0 +1,338 @@
+package com.sjsu.cmpe281.vmware.hw2;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.PerfCounterInfo;
+import com.vmware.vim25.PerfEntityMetric;
+import com.vmware.vim25.PerfEntityMetricBase;
+import com.vmware.vim25.PerfInterval;
+import com.vmware.vim25.PerfMetricId;
+import com.vmware.vim25.PerfMetricIntSeries;
+import com.vmware.vim25.PerfMetricSeries;
+import com.vmware.vim25.PerfQuerySpec;
+import com.vmware.vim25.PerfSampleInfo;
+import com.vmware.vim25.RuntimeFault;
+import com.vmware.vim25.mo.PerformanceManager;
+/**
+ * @author Pratik Pandey.
+ *
+ * This class samples the performance counters of many hosts or VMs through the PerformanceManager. The
+ * counter descriptions are fetched once per session and looked up by name (group.name.rollup, e.g.,
+ * cpu.usage.average). Every QueryPerf call asks for all the counters of a whole batch of entities, and
+ * the following calls only for the samples newer than the last one seen. The samples go into ring buffers
+ * of primitive longs which are allocated once, so that sampling thousands of entities for hours needs no
+ * more memory than the first round.
+ */
+class PerformanceSampler
+{
+	/**
+	 * Used for logging purposes.
+	 */
+	private final Logger logger = Logger.getLogger(PerformanceSampler.class.getName());
+	/**
+	 * Sampling period of the real-time statistics of hosts and VMs, in seconds.
+	 */
+	static final int REALTIME_INTERVAL = 20;
+	/**
+	 * Number of samples kept per entity and counter, the oldest are overwritten first. One hour of
+	 * real-time statistics.
+	 */
+	static final int RING_SIZE = 180;
+	/**
+	 * Counters sampled when none are given.
+	 */
+	static final String[] DEFAULT_COUNTERS = { "cpu.usage.average", "mem.usage.average", "net.usage.average",
+			"disk.usage.average" };
+	/**
+	 * Number of entities asked for in one QueryPerf call.
+	 */
+	private static final int QUERY_BATCH_SIZE = 250;
+	private static final long POLL_MILLIS = 200;
+
+	private final PerformanceManager performanceManager;
+	/**
+	 * The descriptions of the counters of the server by name, null until they are needed.
+	 */
+	private Map<String, PerfCounterInfo> countersByName;
+	private List<Integer> historicalIntervals;
+
+	public PerformanceSampler(PerformanceManager performanceManager)
+	{
+		this.performanceManager = performanceManager;
+	}
+	/**
+	 * This method is used to @return the sampling of the given counters of the entities, or null after
+	 * writing why if a counter or the interval is not known to the server.
+	 * @throws RuntimeFault, RemoteException
+	 */
+	public Sampling createSampling(List<EntityProperties> entities, String[] counterNames, int interval,
+			ResponseSink responseSink) throws RuntimeFault, RemoteException
+	{
+		loadCounters();
+		PerfCounterInfo[] counters = new PerfCounterInfo[counterNames.length];
+		for (int i = 0; i < counterNames.length; i++)
+		{
+			counters[i] = countersByName.get(counterNames[i]);
+			if (counters[i] == null)
+			{
+				responseSink.add("There is no counter " + counterNames[i] + ", e.g., " + String.join(",", DEFAULT_COUNTERS));
+				return null;
+			}
+		}
+		if (interval != REALTIME_INTERVAL && !historicalIntervals.contains(interval))
+		{
+			responseSink.add("There is no interval of " + interval + " seconds, the intervals are " + REALTIME_INTERVAL
+					+ " (real-time) and " + historicalIntervals);
+			return null;
+		}
+		return new Sampling(entities, counterNames, counters, interval);
+	}
+	/**
+	 * This method is used to fetch the descriptions of all the counters of the server, once.
+	 */
+	private synchronized void loadCounters()
+	{
+		if (countersByName != null)
+		{
+			return;
+		}
+		Map<String, PerfCounterInfo> counters = new HashMap<String, PerfCounterInfo>();
+		for (PerfCounterInfo counter : performanceManager.getPerfCounter())
+		{
+			counters.put(counter.getGroupInfo().getKey() + "." + counter.getNameInfo().getKey() + "."
+					+ counter.getRollupType().toString(), counter);
+		}
+		List<Integer> intervals = new ArrayList<Integer>();
+		PerfInterval[] perfIntervals = performanceManager.getHistoricalInterval();
+		for (PerfInterval perfInterval : perfIntervals == null ? new PerfInterval[0] : perfIntervals)
+		{
+			intervals.add(perfInterval.getSamplingPeriod());
+		}
+		historicalIntervals = intervals;
+		countersByName = counters;
+		logger.log(Level.INFO, "Loaded " + counters.size() + " performance counters");
+	}
+	/**
+	 * The samples of a fixed set of counters of a fixed set of entities. The ring of entity e and counter c
+	 * is the slice starting at (e * counters + c) * RING_SIZE of one long array.
+	 */
+	class Sampling
+	{
+		private final List<EntityProperties> entities;
+		private final String[] counterNames;
+		private final PerfCounterInfo[] counters;
+		private final int interval;
+		private final Map<String, Integer> entityIndexes = new HashMap<String, Integer>();
+		private final Map<Integer, Integer> counterIndexes = new HashMap<Integer, Integer>();
+		private final long[] samples;
+		private final int[] counts;
+		private final int[] next;
+		/**
+		 * The time of the newest sample per entity, 0 before the first one.
+		 */
+		private final long[] lastSampleMillis;
+		private int rounds;
+
+		private Sampling(List<EntityProperties> entities, String[] counterNames, PerfCounterInfo[] counters, int interval)
+		{
+			this.entities = entities;
+			this.counterNames = counterNames;
+			this.counters = counters;
+			this.interval = interval;
+			for (int e = 0; e < entities.size(); e++)
+			{
+				entityIndexes.put(entities.get(e).getMOR().get_value(), e);
+			}
+			for (int c = 0; c < counters.length; c++)
+			{
+				counterIndexes.put(counters[c].getKey(), c);
+			}
+			samples = new long[entities.size() * counters.length * RING_SIZE];
+			counts = new int[entities.size() * counters.length];
+			next = new int[entities.size() * counters.length];
+			lastSampleMillis = new long[entities.size()];
+		}
+		/**
+		 * This method is used to fetch the samples which are new since the last round, at most a full ring
+		 * in the first round, and @return their number.
+		 * @throws RuntimeFault, RemoteException
+		 */
+		public int sample() throws RuntimeFault, RemoteException
+		{
+			PerfMetricId[] metricIds = new PerfMetricId[counters.length];
+			for (int c = 0; c < counters.length; c++)
+			{
+				metricIds[c] = new PerfMetricId();
+				metricIds[c].setCounterId(counters[c].getKey());
+				metricIds[c].setInstance("");
+			}
+			int added = 0;
+			for (int start = 0; start < entities.size(); start += QUERY_BATCH_SIZE)
+			{
+				PerfQuerySpec[] querySpecs = new PerfQuerySpec[Math.min(QUERY_BATCH_SIZE, entities.size() - start)];
+				for (int i = 0; i < querySpecs.length; i++)
+				{
+					querySpecs[i] = createQuerySpec(start + i, metricIds);
+				}
+				PerfEntityMetricBase[] entityMetrics = performanceManager.queryPerf(querySpecs);
+				for (PerfEntityMetricBase entityMetric : entityMetrics == null ? new PerfEntityMetricBase[0] : entityMetrics)
+				{
+					if (entityMetric instanceof PerfEntityMetric)
+					{
+						added += add((PerfEntityMetric) entityMetric);
+					}
+				}
+			}
+			rounds++;
+			return added;
+		}
+		/**
+		 * This method is used to sample one round per interval until the time is up, or until stopped if
+		 * maxMillis is 0, and @return the number of samples.
+		 * @throws RuntimeFault, RemoteException
+		 */
+		public long sampleUntil(long maxMillis, AtomicBoolean stopped) throws RuntimeFault, RemoteException
+		{
+			long startTime = System.currentTimeMillis();
+			long added = sample();
+			long nextRound = startTime + TimeUnit.SECONDS.toMillis(interval);
+			while (!stopped.get() && (maxMillis == 0 || System.currentTimeMillis() - startTime < maxMillis))
+			{
+				if (System.currentTimeMillis() >= nextRound)
+				{
+					added += sample();
+					nextRound += TimeUnit.SECONDS.toMillis(interval);
+					continue;
+				}
+				try
+				{
+					Thread.sleep(POLL_MILLIS);
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			return added;
+		}
+		/**
+		 * This method is used to write the number of samples with their minimum, average, maximum and 95th
+		 * percentile for every entity and counter. Percentages are scaled from the hundredths the server
+		 * reports.
+		 */
+		public void write(ResponseSink responseSink)
+		{
+			long[] sorted = new long[RING_SIZE];
+			int index = 0;
+			for (int e = 0; e < entities.size(); e++)
+			{
+				for (int c = 0; c < counters.length; c++)
+				{
+					int ring = e * counters.length + c;
+					int count = counts[ring];
+					System.arraycopy(samples, ring * RING_SIZE, sorted, 0, count);
+					Arrays.sort(sorted, 0, count);
+					long sum = 0;
+					for (int i = 0; i < count; i++)
+					{
+						sum += sorted[i];
+					}
+					String unit = counters[c].getUnitInfo().getKey();
+					double scale = unit.equals("percent") ? 100 : 1;
+					responseSink.add(new ResultRecord("perf", "perf", index++)
+							.add("name", "Name", entities.get(e).getName())
+							.add("counter", "Counter", counterNames[c])
+							.add("samples", "Samples", count)
+							.add("min", "Min", count == 0 ? null : round(sorted[0] / scale))
+							.add("avg", "Avg", count == 0 ? null : round(sum / scale / count))
+							.add("max", "Max", count == 0 ? null : round(sorted[count - 1] / scale))
+							.add("p95", "P95", count == 0 ? null : round(sorted[(int) Math.ceil(count * 0.95) - 1] / scale))
+							.add("unit", "Unit", unit));
+				}
+			}
+		}
+		/**
+		 * This method is used to @return the number of rounds sampled so far.
+		 */
+		public int getRounds()
+		{
+			return rounds;
+		}
+
+		private PerfQuerySpec createQuerySpec(int entity, PerfMetricId[] metricIds)
+		{
+			PerfQuerySpec querySpec = new PerfQuerySpec();
+			querySpec.setEntity(entities.get(entity).getMOR());
+			querySpec.setMetricId(metricIds);
+			querySpec.setIntervalId(interval);
+			querySpec.setFormat("normal");
+			if (lastSampleMillis[entity] == 0)
+			{
+				querySpec.setMaxSample(RING_SIZE);
+			}
+			else
+			{
+				Calendar startTime = Calendar.getInstance();
+				startTime.setTimeInMillis(lastSampleMillis[entity]);
+				querySpec.setStartTime(startTime);
+			}
+			return querySpec;
+		}
+		/**
+		 * This method is used to put the samples of one entity newer than its last one into the rings and
+		 * @return their number. Missing samples, reported as -1, are left out.
+		 */
+		private int add(PerfEntityMetric entityMetric)
+		{
+			ManagedObjectReference entityMOR = entityMetric.getEntity();
+			Integer entity = entityMOR == null ? null : entityIndexes.get(entityMOR.get_value());
+			PerfSampleInfo[] sampleInfos = entityMetric.getSampleInfo();
+			if (entity == null || sampleInfos == null || entityMetric.getValue() == null)
+			{
+				return 0;
+			}
+			long since = lastSampleMillis[entity];
+			int added = 0;
+			for (PerfMetricSeries series : entityMetric.getValue())
+			{
+				Integer counter = counterIndexes.get(series.getId().getCounterId());
+				if (counter == null || !(series instanceof PerfMetricIntSeries))
+				{
+					continue;
+				}
+				long[] values = ((PerfMetricIntSeries) series).getValue();
+				int ring = entity * counters.length + counter;
+				for (int i = 0; values != null && i < values.length && i < sampleInfos.length; i++)
+				{
+					long timestamp = sampleInfos[i].getTimestamp().getTimeInMillis();
+					if (timestamp <= since || values[i] < 0)
+					{
+						continue;
+					}
+					samples[ring * RING_SIZE + next[ring]] = values[i];
+					next[ring] = (next[ring] + 1) % RING_SIZE;
+					counts[ring] = Math.min(RING_SIZE, counts[ring] + 1);
+					lastSampleMillis[entity] = Math.max(lastSampleMillis[entity], timestamp);
+					added++;
+				}
+			}
+			return added;
+		}
+	}
+
+	private static double round(double value)
+	{
+		return Math.round(value * 100) / 100.0;
+	}
+}
@@ -0,0 +1,288 @@
+package com.sjsu.cmpe281.vmware.hw2;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.InvalidProperty;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.RetrieveOptions;
+import com.vmware.vim25.RetrieveResult;
+import com.vmware.vim25.RuntimeFault;
+import com.vmware.vim25.SelectionSpec;
+import com.vmware.vim25.TraversalSpec;
+import com.vmware.vim25.mo.ContainerView;
+import com.vmware.vim25.mo.ManagedEntity;
+import com.vmware.vim25.mo.ManagedObjectView;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.ServiceInstance;
+/**
+ * @author Pratik Pandey.
+ *
+ * This class fetches the properties of all the managed entities of one type in bulk. Instead of walking the
+ * inventory with InventoryNavigator and calling a getter on every entity (one round trip per getter), it
+ * creates a ContainerView over the container and reads all the requested properties with paged
+ * RetrievePropertiesEx / ContinueRetrievePropertiesEx calls, i.e. a handful of round trips in total.
+ * For the exports of very large inventories the pages can also be streamed, handling one page while the
+ * next one is on its way.
+ */
+class PropertyRetriever
+{
+	/**
+	 * Used for logging purposes.
+	 */
+	private final Logger logger = Logger.getLogger(PropertyRetriever.class.getName());
+	/**
+	 * Maximum number of objects the server is asked to return per page.
+	 */
+	private static final int PAGE_SIZE = 1000;
+
+	private final ServiceInstance serviceInstance;
+
+	public PropertyRetriever(ServiceInstance serviceInstance)
+	{
+		this.serviceInstance = serviceInstance;
+	}
+	/**
+	 * The receiver of the entities, called as soon as the page holding the entity has arrived.
+	 */
+	interface EntityHandler
+	{
+		void handle(EntityProperties entity);
+	}
+	/**
+	 * This method is used to @return the requested properties of all the entities of the given type
+	 * (like VirtualMachine or HostSystem) present anywhere below the container.
+	 * @throws InvalidProperty, RuntimeFault, RemoteException
+	 */
+	public List<EntityProperties> retrieveAll(ManagedEntity container, String type, String[] propertyPaths)
+			throws InvalidProperty, RuntimeFault, RemoteException
+	{
+		final List<EntityProperties> entities = new ArrayList<EntityProperties>();
+		retrieve(container, type, propertyPaths, entities::add);
+		return entities;
+	}
+	/**
+	 * This method is used to hand the requested properties of all the entities of the given type to the
+	 * handler page by page, so that the first entities can be used while the next page is still being
+	 * fetched, and @return the number of entities.
+	 * @throws InvalidProperty, RuntimeFault, RemoteException
+	 */
+	public int retrieve(ManagedEntity container, String type, String[] propertyPaths, EntityHandler entityHandler)
+			throws InvalidProperty, RuntimeFault, RemoteException
+	{
+		int count = 0;
+		ContainerView containerView = serviceInstance.getViewManager().createContainerView(container,
+				new String[] { type }, true);
+		try
+		{
+			PropertyCollector propertyCollector = serviceInstance.getPropertyCollector();
+			RetrieveOptions retrieveOptions = new RetrieveOptions();
+			retrieveOptions.setMaxObjects(PAGE_SIZE);
+			RetrieveResult result = propertyCollector.retrievePropertiesEx(
+					new PropertyFilterSpec[] { createFilterSpec(containerView, type, propertyPaths) }, retrieveOptions);
+			int pages = 0;
+			while (result != null)
+			{
+				pages++;
+				count += handleEntities(result.getObjects(), entityHandler);
+				if (result.getToken() == null)
+				{
+					break;
+				}
+				result = propertyCollector.continueRetrievePropertiesEx(result.getToken());
+			}
+			logger.log(Level.INFO, "Retrieved " + count + " " + type + " in " + pages + " page(s)");
+		}
+		finally
+		{
+			containerView.destroyView();
+		}
+		return count;
+	}
+	/**
+	 * This method is used to hand the requested properties of all the entities of the given type to the
+	 * handler like retrieve does, but with the fetching and the handling overlapped: while a page is being
+	 * converted and handled on a thread of its own, the calling thread already fetches the next one. At
+	 * most one page waits to be handled, so the memory needed stays the same however large the inventory
+	 * is. The handler is called on the other thread, one entity after the other. @return the number of
+	 * entities.
+	 * @throws InvalidProperty, RuntimeFault, RemoteException
+	 */
+	public int stream(ManagedEntity container, String type, String[] propertyPaths, final EntityHandler entityHandler)
+			throws InvalidProperty, RuntimeFault, RemoteException
+	{
+		long startTime = System.currentTimeMillis();
+		int count = 0;
+		int pages = 0;
+		ExecutorService pageHandler = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "page-handler-" + type);
+			thread.setDaemon(true);
+			return thread;
+		});
+		PropertyCollector propertyCollector = serviceInstance.getPropertyCollector();
+		ContainerView containerView = serviceInstance.getViewManager().createContainerView(container,
+				new String[] { type }, true);
+		String token = null;
+		Future<Integer> handledPage = null;
+		try
+		{
+			RetrieveOptions retrieveOptions = new RetrieveOptions();
+			retrieveOptions.setMaxObjects(PAGE_SIZE);
+			RetrieveResult result = propertyCollector.retrievePropertiesEx(
+					new PropertyFilterSpec[] { createFilterSpec(containerView, type, propertyPaths) }, retrieveOptions);
+			while (result != null)
+			{
+				pages++;
+				token = result.getToken();
+				final ObjectContent[] objectContents = result.getObjects();
+				result = null;
+				count += waitFor(handledPage);
+				handledPage = pageHandler.submit(() -> handleEntities(objectContents, entityHandler));
+				if (token != null)
+				{
+					result = propertyCollector.continueRetrievePropertiesEx(token);
+				}
+			}
+			count += waitFor(handledPage);
+			handledPage = null;
+			logger.log(Level.INFO, "Streamed " + count + " " + type + " in " + pages + " page(s) in "
+					+ (System.currentTimeMillis() - startTime) + " ms");
+		}
+		finally
+		{
+			if (handledPage != null)
+			{
+				handledPage.cancel(true);
+			}
+			pageHandler.shutdownNow();
+			if (token != null)
+			{
+				cancelRetrieval(propertyCollector, token);
+			}
+			containerView.destroyView();
+		}
+		return count;
+	}
+	/**
+	 * This method is used to wait until the page has been handled and @return its number of entities, 0 if
+	 * there is no page. A failure of the handler is thrown as it is.
+	 * @throws RemoteException if interrupted while waiting.
+	 */
+	static int waitFor(Future<Integer> handledPage) throws RemoteException
+	{
+		if (handledPage == null)
+		{
+			return 0;
+		}
+		try
+		{
+			return handledPage.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new RemoteException("Interrupted while handling the retrieved properties", e);
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof RuntimeException)
+			{
+				throw (RuntimeException) e.getCause();
+			}
+			if (e.getCause() instanceof Error)
+			{
+				throw (Error) e.getCause();
+			}
+			throw new RemoteException("Handling the retrieved properties failed", e.getCause());
+		}
+	}
+	/**
+	 * This method is used to release the remaining pages of a retrieval which ended early on the server.
+	 */
+	private void cancelRetrieval(PropertyCollector propertyCollector, String token)
+	{
+		try
+		{
+			propertyCollector.cancelRetrievePropertiesEx(token);
+		}
+		catch (RemoteException e)
+		{
+			logger.log(Level.FINE, "Cancelling the retrieval failed: " + e.toString());
+		}
+	}
+	/**
+	 * This method is used to @return the filter spec which selects the given properties of every object
+	 * referenced by the container view.
+	 */
+	static PropertyFilterSpec createFilterSpec(ContainerView containerView, String type, String[] propertyPaths)
+	{
+		PropertyFilterSpec filterSpec = new PropertyFilterSpec();
+		filterSpec.setObjectSet(new ObjectSpec[] { createObjectSpec(containerView) });
+		filterSpec.setPropSet(new PropertySpec[] { createPropertySpec(type, propertyPaths) });
+		return filterSpec;
+	}
+	/**
+	 * This method is used to @return the object spec which starts at the container or list view and
+	 * traverses to all the objects in its view, without selecting the view itself.
+	 */
+	static ObjectSpec createObjectSpec(ManagedObjectView view)
+	{
+		TraversalSpec traversalSpec = new TraversalSpec();
+		traversalSpec.setName("traverseView");
+		traversalSpec.setType(view.getMOR().getType());
+		traversalSpec.setPath("view");
+		traversalSpec.setSkip(false);
+
+		ObjectSpec objectSpec = new ObjectSpec();
+		objectSpec.setObj(view.getMOR());
+		objectSpec.setSkip(true);
+		objectSpec.setSelectSet(new SelectionSpec[] { traversalSpec });
+		return objectSpec;
+	}
+	/**
+	 * This method is used to @return the property spec selecting the given property paths of one type.
+	 */
+	static PropertySpec createPropertySpec(String type, String[] propertyPaths)
+	{
+		PropertySpec propertySpec = new PropertySpec();
+		propertySpec.setType(type);
+		propertySpec.setAll(false);
+		propertySpec.setPathSet(propertyPaths);
+		return propertySpec;
+	}
+	/**
+	 * This method is used to convert one page of object contents into entity properties, hand them to the
+	 * handler and @return their number.
+	 */
+	private int handleEntities(ObjectContent[] objectContents, EntityHandler entityHandler)
+	{
+		if (objectContents == null)
+		{
+			return 0;
+		}
+		for (ObjectContent objectContent : objectContents)
+		{
+			EntityProperties entity = new EntityProperties(objectContent.getObj());
+			DynamicProperty[] dynamicProperties = objectContent.getPropSet();
+			if (dynamicProperties != null)
+			{
+				for (DynamicProperty dynamicProperty : dynamicProperties)
+				{
+					entity.put(dynamicProperty.getName(), dynamicProperty.getVal());
+				}
+			}
+			entityHandler.handle(entity);
+		}
+		return objectContents.length;
+	}
+}
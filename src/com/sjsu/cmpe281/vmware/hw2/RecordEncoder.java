@@ -0,0 +1,89 @@
+package com.sjsu.cmpe281.vmware.hw2;
+
+import java.io.IOException;
+/**
+ * @author Pratik Pandey.
+ *
+ * A record encoder writes the result records and the free text messages of a command in one output
+ * format straight to the output, character by character, without building a string for the whole line.
+ * The format is chosen with -format=table|jsonl|csv when starting, or with --format=... after a command.
+ */
+interface RecordEncoder
+{
+	/**
+	 * This method is used to write one record, ended by a line separator.
+	 */
+	void writeRecord(Appendable out, ResultRecord record) throws IOException;
+	/**
+	 * This method is used to write one line of free text, like a help line or an error message.
+	 */
+	void writeMessage(Appendable out, String message) throws IOException;
+	/**
+	 * This method is used to @return a new encoder of the given format, the table format if it is null.
+	 * @throws IllegalArgumentException if the format is unknown.
+	 */
+	static RecordEncoder forFormat(String format)
+	{
+		if (format == null || format.equalsIgnoreCase("table"))
+		{
+			return new TableRecordEncoder();
+		}
+		if (format.equalsIgnoreCase("jsonl"))
+		{
+			return new JsonLinesRecordEncoder();
+		}
+		if (format.equalsIgnoreCase("csv"))
+		{
+			return new CsvRecordEncoder();
+		}
+		throw new IllegalArgumentException("Unknown output format " + format + ", use table, jsonl or csv");
+	}
+	/**
+	 * This method is used to write a value in its plain text form. Whole numbers are written digit by digit
+	 * and enums by their constant name, so neither needs a temporary string.
+	 */
+	static void appendValue(Appendable out, Object value) throws IOException
+	{
+		if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte)
+		{
+			appendLong(out, ((Number) value).longValue());
+		}
+		else if (value instanceof Enum)
+		{
+			out.append(((Enum<?>) value).name());
+		}
+		else if (value instanceof CharSequence)
+		{
+			out.append((CharSequence) value);
+		}
+		else
+		{
+			out.append(String.valueOf(value));
+		}
+	}
+	/**
+	 * This method is used to write the decimal digits of the number.
+	 */
+	static void appendLong(Appendable out, long value) throws IOException
+	{
+		if (value == Long.MIN_VALUE)
+		{
+			out.append("-9223372036854775808");
+			return;
+		}
+		if (value < 0)
+		{
+			out.append('-');
+			value = -value;
+		}
+		long divisor = 1;
+		while (value / divisor >= 10)
+		{
+			divisor *= 10;
+		}
+		for (; divisor > 0; divisor /= 10)
+		{
+			out.append((char) ('0' + (value / divisor) % 10));
+		}
+	}
+}
@@ -0,0 +1,289 @@
+package com.sjsu.cmpe281.vmware.hw2;
+
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import com.vmware.vim25.MethodFault;
+import com.vmware.vim25.RequestCanceled;
+/**
+ * @author Pratik Pandey.
+ *
+ * This class protects one vCenter Server from being overloaded by the parallel commands. Every SOAP call
+ * first takes a token from a token bucket, which limits the calls per second, and then one of a limited
+ * number of slots for calls in progress. The number of slots adapts to the server (additive increase,
+ * multiplicative decrease): it grows by one per round of calls while the server keeps up, much slower near
+ * where the server was overloaded last, and shrinks by a quarter when the server throttles or a call takes
+ * much longer than the same method usually does. Reads
+ * which the server throttled or which failed on the way are retried after a random backoff.
+ */
+class RequestScheduler
+{
+	/**
+	 * Used for logging purposes.
+	 */
+	private final Logger logger = Logger.getLogger(RequestScheduler.class.getName());
+	/**
+	 * The calls which only read and can therefore be sent again.
+	 */
+	private static final Set<String> IDEMPOTENT_METHODS = new HashSet<String>(Arrays.asList("RetrieveProperties",
+			"RetrievePropertiesEx", "RetrieveServiceContent", "CurrentTime", "FindByIp", "FindByDnsName",
+			"FindByInventoryPath", "QueryPerf", "QueryPerfCounter", "QueryAvailablePerfMetric", "QueryEvents",
+			"ReadNextEvents", "ReadNextTasks"));
+	/**
+	 * The long polls, which wait on the server by design and are neither limited nor used for adapting.
+	 */
+	private static final Set<String> UNSCHEDULED_METHODS = new HashSet<String>(Arrays.asList("WaitForUpdatesEx",
+			"WaitForUpdates", "CancelWaitForUpdates"));
+	/**
+	 * Default number of calls in progress at most per server, and of calls per second (0 for no limit).
+	 */
+	static final int DEFAULT_MAX_CALLS = 16;
+	static final int DEFAULT_CALLS_PER_SECOND = 50;
+
+	private static final int INITIAL_CALLS = 4;
+	private static final double DECREASE_FACTOR = 0.75;
+	/**
+	 * How many times slower the slots grow again once they are back where the server was overloaded.
+	 */
+	private static final int CAREFUL_INCREASE = 8;
+	/**
+	 * A call taking this many times longer than the usual latency of its method counts as overload, unless
+	 * it took less than the minimum, which is noise.
+	 */
+	private static final double LATENCY_TOLERANCE = 3;
+	private static final long MIN_SLOW_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+	private static final int MAX_ATTEMPTS = 4;
+	private static final long BACKOFF_BASE_MILLIS = 100;
+	private static final long BACKOFF_MAX_MILLIS = 5000;
+
+	private final String endpoint;
+	private final int maxCalls;
+	private final double callsPerSecond;
+	/**
+	 * The current number of slots, fractional so that it can grow by less than one per call.
+	 */
+	private double limit;
+	private int inProgress;
+	private double tokens;
+	private long lastRefillNanos = System.nanoTime();
+	private long lastDecreaseNanos;
+	/**
+	 * The number of slots at the last overload, where the slots grow carefully; 0 before the first one.
+	 */
+	private double overloadLimit;
+	/**
+	 * The usual latency of every method, following slowly when it changes.
+	 */
+	private final Map<String, Long> usualNanos = new HashMap<String, Long>();
+	private long calls;
+	private long queuedNanos;
+	private long throttled;
+	private long retries;
+	private long decreases;
+
+	public RequestScheduler(String endpoint, int maxCalls, double callsPerSecond)
+	{
+		this.endpoint = endpoint;
+		this.maxCalls = Math.max(1, maxCalls);
+		this.callsPerSecond = callsPerSecond;
+		this.limit = Math.min(INITIAL_CALLS, this.maxCalls);
+		this.tokens = callsPerSecond;
+	}
+	/**
+	 * The SOAP call being scheduled.
+	 */
+	interface Call
+	{
+		Object invoke() throws RemoteException;
+	}
+	/**
+	 * This method is used to make the call once a token and a slot are free, retrying the reads which the
+	 * server throttled or which failed on the way, and @return its result.
+	 * @throws RemoteException the failure of the last attempt.
+	 */
+	public Object execute(String method, Call call) throws RemoteException
+	{
+		if (UNSCHEDULED_METHODS.contains(method))
+		{
+			return call.invoke();
+		}
+		for (int attempt = 1;; attempt++)
+		{
+			acquire();
+			long startTime = System.nanoTime();
+			RemoteException failure;
+			try
+			{
+				Object result = call.invoke();
+				release(method, System.nanoTime() - startTime, false);
+				return result;
+			}
+			catch (RemoteException e)
+			{
+				release(method, System.nanoTime() - startTime, isTransient(e));
+				failure = e;
+			}
+			catch (RuntimeException | Error e)
+			{
+				release(method, System.nanoTime() - startTime, false);
+				throw e;
+			}
+			if (attempt >= MAX_ATTEMPTS || !IDEMPOTENT_METHODS.contains(method) || !isTransient(failure))
+			{
+				throw failure;
+			}
+			backOff(method, attempt, failure);
+		}
+	}
+	/**
+	 * This method is used to @return the record describing the scheduler for the stats command.
+	 */
+	public synchronized ResultRecord getRecord()
+	{
+		return new ResultRecord("scheduler", "scheduler", -1)
+				.add("endpoint", "Endpoint", endpoint)
+				.add("limit", "Limit", (int) limit)
+				.add("maxCalls", "Max", maxCalls)
+				.add("callsPerSecond", "Rate", callsPerSecond <= 0 ? "unlimited" : callsPerSecond + "/s")
+				.add("inProgress", "In progress", inProgress)
+				.add("calls", "Calls", calls)
+				.add("queuedMillis", "Queued", TimeUnit.NANOSECONDS.toMillis(queuedNanos), " ms")
+				.add("throttled", "Throttled", throttled)
+				.add("retries", "Retries", retries)
+				.add("decreases", "Decreases", decreases);
+	}
+	/**
+	 * This method is used to @return true if the failure says that the server is overloaded or the call
+	 * got lost on the way, rather than that the call itself is wrong.
+	 */
+	static boolean isTransient(RemoteException e)
+	{
+		if (e instanceof RequestCanceled)
+		{
+			return true;
+		}
+		if (e instanceof MethodFault)
+		{
+			return false;
+		}
+		String message = String.valueOf(e.getMessage());
+		return e.getCause() instanceof IOException || message.contains("RequestCanceled") || message.contains("503");
+	}
+	/**
+	 * This method is used to wait for a token of the rate limit and then for a free slot.
+	 */
+	private void acquire() throws RemoteException
+	{
+		long startTime = System.nanoTime();
+		try
+		{
+			long waitNanos = takeToken();
+			if (waitNanos > 0)
+			{
+				TimeUnit.NANOSECONDS.sleep(waitNanos);
+			}
+			synchronized (this)
+			{
+				while (inProgress >= (int) limit)
+				{
+					wait();
+				}
+				inProgress++;
+				calls++;
+				queuedNanos += System.nanoTime() - startTime;
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new RemoteException("Interrupted while waiting to call " + endpoint, e);
+		}
+	}
+	/**
+	 * This method is used to take a token and @return how long to wait for it. The bucket may go into debt,
+	 * so that the callers get their tokens in the order they asked for them.
+	 */
+	private synchronized long takeToken()
+	{
+		if (callsPerSecond <= 0)
+		{
+			return 0;
+		}
+		long now = System.nanoTime();
+		tokens = Math.min(callsPerSecond, tokens + (now - lastRefillNanos) * callsPerSecond / 1e9);
+		lastRefillNanos = now;
+		tokens--;
+		return tokens >= 0 ? 0 : (long) (-tokens * 1e9 / callsPerSecond);
+	}
+	/**
+	 * This method is used to free the slot of a finished call and to adapt the number of slots to it.
+	 */
+	private synchronized void release(String method, long nanos, boolean overloaded)
+	{
+		boolean saturated = inProgress >= (int) limit;
+		inProgress--;
+		Long usual = usualNanos.get(method);
+		boolean slow = usual != null && nanos > MIN_SLOW_NANOS && nanos > usual * LATENCY_TOLERANCE;
+		if (overloaded)
+		{
+			throttled++;
+		}
+		else
+		{
+			usualNanos.put(method, usual == null ? nanos : usual + (nanos - usual) / 16);
+		}
+		long now = System.nanoTime();
+		if (overloaded || slow)
+		{
+			/*
+			 * The calls in progress all see the same overload, so the slots shrink only once per round trip.
+			 */
+			if (now - lastDecreaseNanos > nanos)
+			{
+				overloadLimit = limit;
+				limit = Math.max(1, limit * DECREASE_FACTOR);
+				lastDecreaseNanos = now;
+				decreases++;
+				logger.log(Level.FINE, "Calls to " + endpoint + " limited to " + (int) limit);
+			}
+		}
+		else if (saturated)
+		{
+			limit = Math.min(maxCalls, limit + 1 / (limit >= overloadLimit - 1 && overloadLimit > 0
+					? limit * CAREFUL_INCREASE : limit));
+		}
+		notifyAll();
+	}
+	/**
+	 * This method is used to wait before the next attempt, a random time up to an exponentially growing
+	 * bound, so that the callers throttled together do not come back together.
+	 */
+	private void backOff(String method, int attempt, RemoteException failure) throws RemoteException
+	{
+		long boundMillis = Math.min(BACKOFF_MAX_MILLIS, BACKOFF_BASE_MILLIS << (attempt - 1));
+		long delayMillis = ThreadLocalRandom.current().nextLong(boundMillis / 2, boundMillis + 1);
+		synchronized (this)
+		{
+			retries++;
+		}
+		logger.log(Level.INFO, method + " on " + endpoint + " failed due to " + failure.toString() + ", retrying in "
+				+ delayMillis + " ms");
+		try
+		{
+			Thread.sleep(delayMillis);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw failure;
+		}
+	}
+}
@@ -0,0 +1,30 @@
+package com.sjsu.cmpe281.vmware.hw2;
+/**
+ * @author Pratik Pandey.
+ *
+ * The commands write every line of their response to a response sink as soon as it is known, instead of
+ * collecting the whole response first, so that large listings reach the user row by row. Results are
+ * handed over as typed records, everything else (help, errors, summaries) as lines of text.
+ */
+interface ResponseSink
+{
+	/**
+	 * This method is used to hand over the next line of the response.
+	 */
+	void add(String response);
+	/**
+	 * This method is used to hand over the next result record. Sinks which only keep text get the record in
+	 * the table format.
+	 */
+	default void add(ResultRecord record)
+	{
+		add(record.toString());
+	}
+	/**
+	 * This method is used to pass on what has been handed over so far, for commands which keep writing
+	 * for a long time. Sinks which do not buffer need not do anything.
+	 */
+	default void flush()
+	{
+	}
+}
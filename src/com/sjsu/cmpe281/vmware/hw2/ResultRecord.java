@@ -0,0 +1,145 @@
+package com.sjsu.cmpe281.vmware.hw2;
+
+import java.util.ArrayList;
+import java.util.List;
+/**
+ * @author Pratik Pandey.
+ *
+ * This class is one typed result of a command, like one VM of the VM listing, made of named fields in a
+ * fixed order. The record encoders turn it into a table line, a JSON line or a CSV row. For the table
+ * format every field also has the label used in the human readable text (a null label hides the field
+ * from the table), and a record either is a row (label[index]: Field = value, ...) or a detail record
+ * which shows one field per line.
+ */
+class ResultRecord
+{
+	private final String type;
+	private final String rowLabel;
+	private final int index;
+	private String endpoint;
+	private final List<String> names = new ArrayList<String>();
+	private final List<String> labels = new ArrayList<String>();
+	private final List<Object> values = new ArrayList<Object>();
+	private final List<String> suffixes = new ArrayList<String>();
+	/**
+	 * Used for detail records, shown one field per line in the table format.
+	 */
+	public ResultRecord(String type)
+	{
+		this(type, null, -1);
+	}
+	/**
+	 * Used for row records, shown as rowLabel[index]: Field = value, ... in the table format, or as
+	 * rowLabel: Field = value, ... if the index is negative.
+	 */
+	public ResultRecord(String type, String rowLabel, int index)
+	{
+		this.type = type;
+		this.rowLabel = rowLabel;
+		this.index = index;
+	}
+	/**
+	 * This method is used to append a field and @return this record.
+	 */
+	public ResultRecord add(String name, String label, Object value)
+	{
+		return add(name, label, value, null);
+	}
+	/**
+	 * This method is used to append a field whose table text is followed by a suffix (like a unit) and
+	 * @return this record.
+	 */
+	public ResultRecord add(String name, String label, Object value, String suffix)
+	{
+		names.add(name);
+		labels.add(label);
+		values.add(value);
+		suffixes.add(suffix);
+		return this;
+	}
+
+	public String getType()
+	{
+		return type;
+	}
+
+	public String getRowLabel()
+	{
+		return rowLabel;
+	}
+
+	public int getIndex()
+	{
+		return index;
+	}
+
+	public boolean isRow()
+	{
+		return rowLabel != null;
+	}
+	/**
+	 * This method is used to @return the vCenter Server the record comes from, or null with one server.
+	 */
+	public String getEndpoint()
+	{
+		return endpoint;
+	}
+
+	public void setEndpoint(String endpoint)
+	{
+		this.endpoint = endpoint;
+	}
+
+	public int size()
+	{
+		return names.size();
+	}
+
+	public String getName(int field)
+	{
+		return names.get(field);
+	}
+
+	public String getLabel(int field)
+	{
+		return labels.get(field);
+	}
+
+	public Object getValue(int field)
+	{
+		return values.get(field);
+	}
+
+	public String getSuffix(int field)
+	{
+		return suffixes.get(field);
+	}
+	/**
+	 * This method is used to @return the value of the field of the given name, or null if absent.
+	 */
+	public Object get(String name)
+	{
+		int field = names.indexOf(name);
+		return field < 0 ? null : values.get(field);
+	}
+	/**
+	 * This method is used to @return the record in the table format, for sinks which only keep text.
+	 */
+	@Override
+	public String toString()
+	{
+		StringBuilder text = new StringBuilder();
+		try
+		{
+			new TableRecordEncoder().writeRecord(text, this);
+		}
+		catch (java.io.IOException e)
+		{
+			throw new IllegalStateException(e);
+		}
+		/*
+		 * The encoder ends every line with a line separator, which the text sinks add themselves.
+		 */
+		return text.toString().trim();
+	}
+}
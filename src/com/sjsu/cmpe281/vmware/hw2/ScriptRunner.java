@@ -0,0 +1,195 @@
+package com.sjsu.cmpe281.vmware.hw2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+/**
+ * @author Pratik Pandey.
+ *
+ * This class runs a whole script of commands without a prompt. All the commands are parsed first; the
+ * read commands (listings and info) are run concurrently, while the commands changing the inventory (the
+ * power operations) are run alone after everything before them has finished. The results are printed in
+ * the order of the script (a response is held until the responses before it are printed), a failing
+ * command is reported without stopping the script, and the run ends with the overall timing. The records
+ * of a response are held as they are, so the output sink writes them in the chosen output format.
+ */
+class ScriptRunner
+{
+	/**
+	 * Number of read commands running at the same time unless -threads=N is given.
+	 */
+	static final int DEFAULT_THREADS = 8;
+
+	private final CommandExecutor commandExecutor;
+	private final int threads;
+
+	public ScriptRunner(CommandExecutor commandExecutor, int threads)
+	{
+		this.commandExecutor = commandExecutor;
+		this.threads = threads;
+	}
+	/**
+	 * The operation performing one command line.
+	 */
+	interface CommandExecutor
+	{
+		void execute(String command, ResponseSink responseSink) throws Exception;
+	}
+	/**
+	 * This method is used to run all the commands of the script, writing the response of each command to
+	 * the output sink in script order, and @return the summary lines.
+	 */
+	public List<String> run(List<String> lines, ResponseSink out)
+	{
+		List<String> commands = new ArrayList<String>();
+		for (String line : lines)
+		{
+			String command = line.trim();
+			if (command.equalsIgnoreCase("exit"))
+			{
+				break;
+			}
+			if (!command.isEmpty() && !command.startsWith("#"))
+			{
+				commands.add(command);
+			}
+		}
+		ExecutorService executorService = Executors.newFixedThreadPool(threads);
+		List<Future<Outcome>> pending = new ArrayList<Future<Outcome>>();
+		long[] durations = new long[commands.size()];
+		int[] counts = new int[3];
+		long startTime = System.currentTimeMillis();
+		try
+		{
+			for (final String command : commands)
+			{
+				Callable<Outcome> callable = new Callable<Outcome>()
+				{
+					@Override
+					public Outcome call()
+					{
+						return executeSingle(command);
+					}
+				};
+				if (isReadCommand(command))
+				{
+					pending.add(executorService.submit(callable));
+				}
+				else
+				{
+					/*
+					 * A write is a barrier: the reads before it must see the inventory before the change.
+					 */
+					drain(pending, out, durations, counts);
+					counts[1]++;
+					print(callable.call(), out, durations, counts);
+				}
+			}
+			drain(pending, out, durations, counts);
+		}
+		catch (Exception e)
+		{
+			out.add("Script aborted due to " + e.toString());
+		}
+		finally
+		{
+			executorService.shutdownNow();
+		}
+		long elapsedMillis = Math.max(1, System.currentTimeMillis() - startTime);
+		long totalMillis = 0;
+		for (long duration : durations)
+		{
+			totalMillis += duration;
+		}
+		Arrays.sort(durations);
+		List<String> responseList = new ArrayList<String>();
+		responseList.add("Commands = " + commands.size() + ", writes run alone = " + counts[1] + ", failed = "
+				+ counts[2] + ", threads = " + threads);
+		responseList.add("Elapsed = " + elapsedMillis + " ms, sum of command times = " + totalMillis
+				+ " ms, throughput = " + String.format("%.2f", commands.size() * 1000.0 / elapsedMillis) + " commands/s");
+		if (durations.length > 0)
+		{
+			responseList.add("Command duration p50 = " + BatchPowerOperation.percentile(durations, 50) + " ms, p95 = "
+					+ BatchPowerOperation.percentile(durations, 95) + " ms, p99 = "
+					+ BatchPowerOperation.percentile(durations, 99) + " ms");
+		}
+		return responseList;
+	}
+	/**
+	 * This method is used to @return true if the command only reads from the vCenter Server and can
+	 * therefore run at the same time as other commands.
+	 */
+	static boolean isReadCommand(String command)
+	{
+		String[] cmdArrray = command.split(" ");
+		if (cmdArrray[0].equalsIgnoreCase("vm"))
+		{
+			return cmdArrray.length == 1 || cmdArrray[1].startsWith("-") || (cmdArrray.length > 2 && cmdArrray[2].equalsIgnoreCase("info"));
+		}
+		return cmdArrray[0].equalsIgnoreCase("host") || cmdArrray[0].equalsIgnoreCase("help")
+				|| cmdArrray[0].equalsIgnoreCase("cache") || cmdArrray[0].equalsIgnoreCase("search")
+				|| cmdArrray[0].equalsIgnoreCase("report") || cmdArrray[0].equalsIgnoreCase("perf")
+				|| cmdArrray[0].equalsIgnoreCase("datastore") || cmdArrray[0].equalsIgnoreCase("events")
+				|| cmdArrray[0].equalsIgnoreCase("tasks")
+				|| (cmdArrray[0].equalsIgnoreCase("snapshot") && cmdArrray.length > 1 && cmdArrray[1].equalsIgnoreCase("report"))
+				|| (cmdArrray[0].equalsIgnoreCase("topology") && !(cmdArrray.length > 1 && cmdArrray[1].equalsIgnoreCase("refresh")))
+				|| (cmdArrray[0].equalsIgnoreCase("stats") && cmdArrray.length == 1);
+	}
+	/**
+	 * This method is used to print the outcomes of the pending commands in script order.
+	 */
+	private void drain(List<Future<Outcome>> pending, ResponseSink out, long[] durations, int[] counts)
+			throws InterruptedException, ExecutionException
+	{
+		for (Future<Outcome> future : pending)
+		{
+			print(future.get(), out, durations, counts);
+		}
+		pending.clear();
+	}
+
+	private void print(Outcome outcome, ResponseSink out, long[] durations, int[] counts)
+	{
+		durations[counts[0]++] = outcome.durationMillis;
+		out.add("Pratik-256> " + outcome.command);
+		outcome.writeTo(out);
+		if (outcome.getError() != null)
+		{
+			counts[2]++;
+		}
+	}
+
+	private Outcome executeSingle(String command)
+	{
+		Outcome outcome = new Outcome(command);
+		long startTime = System.currentTimeMillis();
+		try
+		{
+			commandExecutor.execute(command, outcome);
+		}
+		catch (Exception e)
+		{
+			outcome.setError(e);
+		}
+		outcome.durationMillis = System.currentTimeMillis() - startTime;
+		return outcome;
+	}
+	/**
+	 * The response, or the error, of one command of the script, kept until its turn to be printed.
+	 */
+	private static class Outcome extends BufferedResponseSink
+	{
+		private final String command;
+		private long durationMillis;
+
+		private Outcome(String command)
+		{
+			this.command = command;
+		}
+	}
+}
@@ -0,0 +1,465 @@
+package com.sjsu.cmpe281.vmware.hw2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import com.vmware.vim25.ManagedObjectReference;
+/**
+ * @author Pratik Pandey.
+ *
+ * This class is a local search index over the names of the VMs and hosts, the guest IP addresses of the
+ * VMs and the host each VM runs on. Names and IP addresses are kept sorted for prefix queries (web-*), and
+ * split into trigrams for substring, glob and regex queries: the candidates are taken from the rarest
+ * trigram of the literal part of the query and only those are matched, so that a query does not scan the
+ * whole inventory. The index is updated entity by entity as the inventory cache receives changes, and only
+ * when the name, IP address or host of an entity actually changed. It is not thread safe; the inventory
+ * cache uses it under its own lock.
+ */
+class SearchIndex
+{
+	private static final int GRAM = 3;
+
+	private final Map<String, Entry> entriesByMOR = new HashMap<String, Entry>();
+	private final List<Entry> entriesById = new ArrayList<Entry>();
+	private final List<Integer> freeIds = new ArrayList<Integer>();
+	private final TreeMap<String, IdList> names = new TreeMap<String, IdList>();
+	private final TreeMap<String, IdList> ipAddresses = new TreeMap<String, IdList>();
+	private final Map<String, IdList> trigrams = new HashMap<String, IdList>();
+	private final Map<String, IdList> vmsByHost = new HashMap<String, IdList>();
+	/**
+	 * This method is used to add or update the entity, doing nothing if none of the indexed values changed.
+	 */
+	public void update(EntityProperties entity)
+	{
+		String name = entity.getName();
+		String ipAddress = entity.getString("guest.ipAddress");
+		Object host = entity.get("runtime.host");
+		String hostMOR = host instanceof ManagedObjectReference ? ((ManagedObjectReference) host).get_value() : null;
+		Entry entry = entriesByMOR.get(entity.getMOR().get_value());
+		if (entry != null)
+		{
+			if (equal(entry.name, name) && equal(entry.ipAddress, ipAddress) && equal(entry.hostMOR, hostMOR))
+			{
+				return;
+			}
+			unindex(entry);
+		}
+		else
+		{
+			int id = freeIds.isEmpty() ? entriesById.size() : freeIds.remove(freeIds.size() - 1);
+			entry = new Entry(id, entity.getMOR().get_value(), entity.getMOR().getType());
+			if (id == entriesById.size())
+			{
+				entriesById.add(entry);
+			}
+			else
+			{
+				entriesById.set(id, entry);
+			}
+			entriesByMOR.put(entry.mor, entry);
+		}
+		entry.name = name;
+		entry.ipAddress = ipAddress;
+		entry.hostMOR = hostMOR;
+		index(entry);
+	}
+	/**
+	 * This method is used to remove the entity with the given managed object reference value.
+	 */
+	public void remove(String morValue)
+	{
+		Entry entry = entriesByMOR.remove(morValue);
+		if (entry != null)
+		{
+			unindex(entry);
+			entriesById.set(entry.id, null);
+			freeIds.add(entry.id);
+		}
+	}
+	/**
+	 * This method is used to @return the managed object reference values of the entities of the given type
+	 * whose name or IP address matches the query, sorted by name. If hostMOR is not null only the VMs on
+	 * that host are returned.
+	 */
+	public List<String> search(String type, Query query, String hostMOR)
+	{
+		IdList candidates = getCandidates(query, hostMOR);
+		List<Entry> matches = new ArrayList<Entry>();
+		for (int i = 0; i < (candidates == null ? entriesById.size() : candidates.size); i++)
+		{
+			Entry entry = entriesById.get(candidates == null ? i : candidates.ids[i]);
+			if (entry != null && entry.type.equals(type) && (hostMOR == null || hostMOR.equals(entry.hostMOR))
+					&& (query.matches(entry.name) || query.matches(entry.ipAddress)))
+			{
+				matches.add(entry);
+			}
+		}
+		Collections.sort(matches, new Comparator<Entry>()
+		{
+			@Override
+			public int compare(Entry first, Entry second)
+			{
+				return String.valueOf(first.name).compareTo(String.valueOf(second.name));
+			}
+		});
+		List<String> morValues = new ArrayList<String>(matches.size());
+		for (Entry entry : matches)
+		{
+			morValues.add(entry.mor);
+		}
+		return morValues;
+	}
+	/**
+	 * This method is used to @return the number of indexed entities.
+	 */
+	public int size()
+	{
+		return entriesByMOR.size();
+	}
+	/**
+	 * This method is used to @return the number of distinct trigrams.
+	 */
+	public int getTrigramCount()
+	{
+		return trigrams.size();
+	}
+	/**
+	 * This method is used to @return the ids which may match, the smallest of the lists the query allows
+	 * to use, or null if every entity has to be matched.
+	 */
+	private IdList getCandidates(Query query, String hostMOR)
+	{
+		IdList candidates = hostMOR == null ? null : vmsByHost.get(hostMOR);
+		if (hostMOR != null && candidates == null)
+		{
+			return new IdList();
+		}
+		if (query.prefix != null)
+		{
+			/*
+			 * An entity whose name and IP address both start with the prefix is taken only once.
+			 */
+			IdList prefixed = new IdList();
+			BitSet taken = new BitSet(entriesById.size());
+			String lower = query.prefix.toLowerCase();
+			for (IdList ids : names.subMap(lower, lower + Character.MAX_VALUE).values())
+			{
+				prefixed.addAll(ids, taken);
+			}
+			for (IdList ids : ipAddresses.subMap(lower, lower + Character.MAX_VALUE).values())
+			{
+				prefixed.addAll(ids, taken);
+			}
+			return smaller(candidates, prefixed);
+		}
+		for (String literal : query.literals)
+		{
+			String lower = literal.toLowerCase();
+			for (int i = 0; i + GRAM <= lower.length(); i++)
+			{
+				IdList ids = trigrams.get(lower.substring(i, i + GRAM));
+				if (ids == null)
+				{
+					return new IdList();
+				}
+				candidates = smaller(candidates, ids);
+			}
+		}
+		return candidates;
+	}
+
+	private void index(Entry entry)
+	{
+		add(names, entry.name, entry.id);
+		add(ipAddresses, entry.ipAddress, entry.id);
+		add(vmsByHost, entry.hostMOR, entry.id);
+		for (String trigram : getTrigrams(entry))
+		{
+			add(trigrams, trigram, entry.id);
+		}
+	}
+
+	private void unindex(Entry entry)
+	{
+		remove(names, entry.name, entry.id);
+		remove(ipAddresses, entry.ipAddress, entry.id);
+		remove(vmsByHost, entry.hostMOR, entry.id);
+		for (String trigram : getTrigrams(entry))
+		{
+			remove(trigrams, trigram, entry.id);
+		}
+	}
+	/**
+	 * This method is used to @return the distinct lower case trigrams of the name and IP address.
+	 */
+	private static List<String> getTrigrams(Entry entry)
+	{
+		List<String> result = new ArrayList<String>();
+		for (String text : new String[] { entry.name, entry.ipAddress })
+		{
+			if (text == null)
+			{
+				continue;
+			}
+			String lower = text.toLowerCase();
+			for (int i = 0; i + GRAM <= lower.length(); i++)
+			{
+				String trigram = lower.substring(i, i + GRAM);
+				if (!result.contains(trigram))
+				{
+					result.add(trigram);
+				}
+			}
+		}
+		return result;
+	}
+
+	private static void add(Map<String, IdList> map, String key, int id)
+	{
+		if (key == null)
+		{
+			return;
+		}
+		String lower = map instanceof TreeMap ? key.toLowerCase() : key;
+		IdList ids = map.get(lower);
+		if (ids == null)
+		{
+			ids = new IdList();
+			map.put(lower, ids);
+		}
+		ids.add(id);
+	}
+
+	private static void remove(Map<String, IdList> map, String key, int id)
+	{
+		if (key == null)
+		{
+			return;
+		}
+		String lower = map instanceof TreeMap ? key.toLowerCase() : key;
+		IdList ids = map.get(lower);
+		if (ids != null && ids.remove(id) && ids.size == 0)
+		{
+			map.remove(lower);
+		}
+	}
+
+	private static IdList smaller(IdList first, IdList second)
+	{
+		return first == null || second.size < first.size ? second : first;
+	}
+
+	private static boolean equal(String first, String second)
+	{
+		return first == null ? second == null : first.equals(second);
+	}
+	/**
+	 * A search query: a /regex/ or a glob (web-*, *db?) matching the whole name, or a plain text matching
+	 * any part of the name, all of them ignoring case like the lower case lists of the index. Besides the
+	 * matching itself, it knows the prefix (for web-*) or the literal parts every match contains, which the
+	 * index uses to find the candidates.
+	 */
+	static class Query
+	{
+		private final String text;
+		private final Pattern pattern;
+		private final String prefix;
+		private final List<String> literals;
+
+		Query(String query)
+		{
+			if (query.length() > 2 && query.startsWith("/") && query.endsWith("/"))
+			{
+				String regex = query.substring(1, query.length() - 1);
+				text = null;
+				pattern = Pattern.compile(regex, Pattern.CASE_INSENSITIVE);
+				prefix = null;
+				literals = getRequiredLiterals(regex);
+			}
+			else if (query.contains("*") || query.contains("?"))
+			{
+				text = null;
+				String head = query.substring(0, query.length() - 1);
+				boolean prefixOnly = query.endsWith("*") && !head.contains("*") && !head.contains("?") && !head.isEmpty();
+				pattern = prefixOnly ? null : globToPattern(query);
+				prefix = prefixOnly ? head : null;
+				literals = Arrays.asList(query.split("[*?]"));
+			}
+			else
+			{
+				text = query;
+				pattern = null;
+				prefix = null;
+				literals = Collections.singletonList(query);
+			}
+		}
+		/**
+		 * This method is used to @return true if the name or IP address matches the query.
+		 */
+		boolean matches(String value)
+		{
+			if (value == null)
+			{
+				return false;
+			}
+			if (pattern != null)
+			{
+				return pattern.matcher(value).matches();
+			}
+			if (prefix != null)
+			{
+				return value.regionMatches(true, 0, prefix, 0, prefix.length());
+			}
+			for (int i = 0; i + text.length() <= value.length(); i++)
+			{
+				if (value.regionMatches(true, i, text, 0, text.length()))
+				{
+					return true;
+				}
+			}
+			return false;
+		}
+		/**
+		 * This method is used to @return true if the query is a glob or a /regex/ rather than a name.
+		 */
+		static boolean isPattern(String query)
+		{
+			return (query.length() > 2 && query.startsWith("/") && query.endsWith("/")) || query.contains("*")
+					|| query.contains("?");
+		}
+
+		private static Pattern globToPattern(String glob)
+		{
+			StringBuilder regex = new StringBuilder();
+			for (String literal : glob.split("((?<=[*?])|(?=[*?]))"))
+			{
+				if (literal.equals("*"))
+				{
+					regex.append(".*");
+				}
+				else if (literal.equals("?"))
+				{
+					regex.append('.');
+				}
+				else if (!literal.isEmpty())
+				{
+					regex.append(Pattern.quote(literal));
+				}
+			}
+			return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE);
+		}
+
+		/**
+		 * This method is used to @return the runs of plain characters every match of the regex must contain,
+		 * none if that is not obvious (alternations and groups are not analysed).
+		 */
+		private static List<String> getRequiredLiterals(String regex)
+		{
+			List<String> literals = new ArrayList<String>();
+			if (regex.contains("|") || regex.contains("("))
+			{
+				return literals;
+			}
+			StringBuilder run = new StringBuilder();
+			for (int i = 0; i <= regex.length(); i++)
+			{
+				char c = i < regex.length() ? regex.charAt(i) : 0;
+				boolean optional = i + 1 < regex.length() && "?*{".indexOf(regex.charAt(i + 1)) >= 0;
+				if ((Character.isLetterOrDigit(c) || c == '-' || c == '_') && !optional)
+				{
+					run.append(c);
+					continue;
+				}
+				if (run.length() > 0)
+				{
+					literals.add(run.toString());
+					run.setLength(0);
+				}
+				if (c == '\\')
+				{
+					i++;
+				}
+				else if (c == '[' || c == '{')
+				{
+					i = regex.indexOf(c == '[' ? ']' : '}', i + 1);
+					if (i < 0)
+					{
+						break;
+					}
+				}
+			}
+			return literals;
+		}
+	}
+	/**
+	 * The indexed values of one entity.
+	 */
+	private static class Entry
+	{
+		private final int id;
+		private final String mor;
+		private final String type;
+		private String name;
+		private String ipAddress;
+		private String hostMOR;
+
+		private Entry(int id, String mor, String type)
+		{
+			this.id = id;
+			this.mor = mor;
+			this.type = type;
+		}
+	}
+	/**
+	 * A growable list of entity ids, smaller than a set of boxed integers for the many trigram lists.
+	 */
+	private static class IdList
+	{
+		private int[] ids = new int[4];
+		private int size;
+
+		private void add(int id)
+		{
+			if (size == ids.length)
+			{
+				ids = Arrays.copyOf(ids, size * 2);
+			}
+			ids[size++] = id;
+		}
+
+		/**
+		 * This method is used to add the ids of the other list which are not taken yet, marking them taken.
+		 */
+		private void addAll(IdList other, BitSet taken)
+		{
+			for (int i = 0; i < other.size; i++)
+			{
+				if (!taken.get(other.ids[i]))
+				{
+					taken.set(other.ids[i]);
+					add(other.ids[i]);
+				}
+			}
+		}
+
+		private boolean remove(int id)
+		{
+			for (int i = 0; i < size; i++)
+			{
+				if (ids[i] == id)
+				{
+					ids[i] = ids[--size];
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+}
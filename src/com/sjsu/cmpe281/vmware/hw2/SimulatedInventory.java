@@ -0,0 +1,832 @@
+package com.sjsu.cmpe281.vmware.hw2;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+/**
+ * @author Pratik Pandey.
+ *
+ * This class is the synthetic inventory behind the vCenter Server simulator: one datacenter with the
+ * given number of hosts (each in its own compute resource, named by an IP address so that the host
+ * commands accept them), VMs spread over the hosts, and datastores and networks attached to every host.
+ * Every managed object holds its properties as the vim25 data objects a real server would return, so any
+ * property path can be read and serialized the same way. The inventory is generated from a seed, so the
+ * same settings always give the same inventory, and every change bumps its version and wakes up the
+ * waiting property collectors. The datastores hold the files of their VMs, every fifth VM with a snapshot
+ * (and every tenth with a child snapshot too) of up to 40 days ago, and every fourth datastore also the
+ * disks of a VM which no longer exists.
+ */
+class SimulatedInventory
+{
+	private static final String[] GUEST_OS = { "CentOS 4/5/6/7 (64-bit)", "Ubuntu Linux (64-bit)",
+			"Microsoft Windows Server 2012 (64-bit)" };
+	/**
+	 * The performance counters of the simulator: group, name, rollup, unit and stats type. The key of a
+	 * counter is its position plus one.
+	 */
+	static final String[][] PERF_COUNTERS = { { "cpu", "usage", "average", "percent", "rate" },
+			{ "cpu", "usagemhz", "average", "megaHertz", "rate" }, { "cpu", "ready", "summation", "millisecond", "delta" },
+			{ "mem", "usage", "average", "percent", "absolute" }, { "mem", "consumed", "average", "kiloBytes", "absolute" },
+			{ "net", "usage", "average", "kiloBytesPerSecond", "rate" },
+			{ "disk", "usage", "average", "kiloBytesPerSecond", "rate" } };
+
+	private final Map<String, Entity> entities = new LinkedHashMap<String, Entity>();
+	private final String rootFolder;
+	private long version;
+	private int nextTask;
+	/**
+	 * The folders of every datastore as its browser lists them, by the reference value of the browser.
+	 */
+	private final Map<String, Array> foldersByBrowser = new LinkedHashMap<String, Array>();
+
+	public SimulatedInventory(int serverIndex, int hostCount, int vmCount, int datastoresPerHost,
+			int networksPerHost, long seed)
+	{
+		Random random = new Random(seed);
+		rootFolder = "group-d1";
+		Entity root = add("Folder", rootFolder, "Datacenters", null);
+		Entity datacenter = add("Datacenter", "datacenter-2", "SimDC" + serverIndex, root);
+		Entity hostFolder = add("Folder", "group-h4", "host", datacenter);
+		Entity vmFolder = add("Folder", "group-v3", "vm", datacenter);
+		datacenter.set("hostFolder", mor(hostFolder));
+		datacenter.set("vmFolder", mor(vmFolder));
+
+		List<Entity> hosts = new ArrayList<Entity>();
+		List<Entity> datastores = new ArrayList<Entity>();
+		List<Entity> networks = new ArrayList<Entity>();
+		for (int h = 0; h < hostCount; h++)
+		{
+			String hostName = "10." + serverIndex + "." + (h / 250) + "." + (h % 250 + 1);
+			Entity cluster = add("ComputeResource", "domain-s" + (100 + h), hostName, hostFolder);
+			Entity host = add("HostSystem", "host-" + (100 + h), hostName, cluster);
+			cluster.set("host", array("ManagedObjectReference", mor(host)));
+			long memorySize = (64L + 32 * random.nextInt(4)) * 1024 * 1024 * 1024;
+			int cpuCores = 8 * (1 + random.nextInt(4));
+			host.set("runtime", data("HostRuntimeInfo")
+					.put("connectionState", leaf("HostSystemConnectionState", "connected"))
+					.put("powerState", leaf("HostSystemPowerState", "poweredOn"))
+					.put("inMaintenanceMode", leaf("xsd:boolean", "false")));
+			host.set("config", data("HostConfigInfo")
+					.put("host", mor(host))
+					.put("product", data("AboutInfo")
+							.put("name", leaf("xsd:string", "VMware ESXi"))
+							.put("fullName", leaf("xsd:string", "VMware ESXi 5.5.0 build-1331820"))
+							.put("vendor", leaf("xsd:string", "VMware, Inc."))
+							.put("version", leaf("xsd:string", "5.5.0"))
+							.put("build", leaf("xsd:string", "1331820"))
+							.put("osType", leaf("xsd:string", "vmnix-x86"))
+							.put("productLineId", leaf("xsd:string", "embeddedEsx"))
+							.put("apiType", leaf("xsd:string", "HostAgent"))
+							.put("apiVersion", leaf("xsd:string", "5.5"))));
+			host.set("hardware", data("HostHardwareInfo")
+					.put("cpuInfo", data("HostCpuInfo")
+							.put("numCpuPackages", leaf("xsd:short", "2"))
+							.put("numCpuCores", leaf("xsd:short", String.valueOf(cpuCores)))
+							.put("numCpuThreads", leaf("xsd:short", String.valueOf(2 * cpuCores)))
+							.put("hz", leaf("xsd:long", "2600000000")))
+					.put("memorySize", leaf("xsd:long", String.valueOf(memorySize))));
+			host.set("summary", data("HostListSummary")
+					.put("quickStats", data("HostListSummaryQuickStats")
+							.put("overallCpuUsage", leaf("xsd:int", String.valueOf(cpuCores * 2600 * random.nextInt(90) / 100)))
+							.put("overallMemoryUsage", leaf("xsd:int",
+									String.valueOf(memorySize / 1024 / 1024 * random.nextInt(90) / 100)))));
+			host.set("datastore", array("ManagedObjectReference"));
+			host.set("network", array("ManagedObjectReference"));
+			host.set("vm", array("ManagedObjectReference"));
+			for (int d = 0; d < datastoresPerHost; d++)
+			{
+				Entity datastore = add("Datastore", "datastore-" + (1000 + datastores.size()),
+						"datastore" + (datastores.size() + 1), datacenter);
+				long capacity = (500L + 500 * random.nextInt(4)) * 1024 * 1024 * 1024;
+				long freeSpace = (long) (capacity * (0.1 + 0.8 * random.nextDouble()));
+				datastore.set("summary", data("DatastoreSummary")
+						.put("datastore", mor(datastore))
+						.put("name", leaf("xsd:string", datastore.name))
+						.put("url", leaf("xsd:string", "ds:///vmfs/volumes/" + datastore.value + "/"))
+						.put("capacity", leaf("xsd:long", String.valueOf(capacity)))
+						.put("freeSpace", leaf("xsd:long", String.valueOf(freeSpace)))
+						.put("accessible", leaf("xsd:boolean", "true"))
+						.put("type", leaf("xsd:string", "VMFS")));
+				Entity browser = new Entity("HostDatastoreBrowser", "datastoreBrowser-" + datastore.value, null, false);
+				browser.set("datastore", array("ManagedObjectReference", mor(datastore)));
+				entities.put(browser.value, browser);
+				datastore.set("browser", mor(browser));
+				foldersByBrowser.put(browser.value, array("HostDatastoreBrowserSearchResults"));
+				if (datastores.size() % 4 == 3)
+				{
+					Data folder = addFolder(datastore, "old-" + datastore.name);
+					long diskSize = (20L + random.nextInt(80)) << 30;
+					Date modification = new Date(System.currentTimeMillis() - 90L * 24 * 60 * 60 * 1000);
+					addFile(folder, null, "old-" + datastore.name + ".vmdk", 512, modification);
+					addFile(folder, null, "old-" + datastore.name + "-flat.vmdk", diskSize, modification);
+				}
+				host.list("datastore").add(mor(datastore));
+				datastores.add(datastore);
+			}
+			for (int n = 0; n < networksPerHost; n++)
+			{
+				Entity network = add("Network", "network-" + (2000 + networks.size()), "VM Network " + (networks.size() + 1),
+						datacenter);
+				host.list("network").add(mor(network));
+				networks.add(network);
+			}
+			hosts.add(host);
+		}
+		for (int v = 0; v < vmCount && !hosts.isEmpty(); v++)
+		{
+			Entity host = hosts.get(v % hosts.size());
+			Entity vm = add("VirtualMachine", "vm-" + (3000 + v), String.format("sim%d-vm-%04d", serverIndex, v + 1), vmFolder);
+			vm.guestFullName = GUEST_OS[random.nextInt(GUEST_OS.length)];
+			vm.guestIpAddress = "192.168." + (v / 250) + "." + (v % 250 + 2);
+			vm.set("runtime", data("VirtualMachineRuntimeInfo")
+					.put("host", mor(host))
+					.put("connectionState", leaf("VirtualMachineConnectionState", "connected"))
+					.put("powerState", leaf("VirtualMachinePowerState", "poweredOff")));
+			vm.set("guest", data("GuestInfo"));
+			vm.set("summary", data("VirtualMachineSummary")
+					.put("config", data("VirtualMachineConfigSummary")
+							.put("name", leaf("xsd:string", vm.name))
+							.put("numCpu", leaf("xsd:int", String.valueOf(1 << random.nextInt(3))))
+							.put("memorySizeMB", leaf("xsd:int", String.valueOf(1024 << random.nextInt(4)))))
+					.put("storage", data("VirtualMachineStorageSummary")
+							.put("committed", leaf("xsd:long", String.valueOf((4L + random.nextInt(60)) << 30)))
+							.put("uncommitted", leaf("xsd:long", String.valueOf((long) random.nextInt(40) << 30)))
+							.put("unshared", leaf("xsd:long", String.valueOf((4L + random.nextInt(20)) << 30)))
+							.put("timestamp", leaf("xsd:dateTime", formatTime(new Date())))));
+			vm.set("datastore", host.list("datastore").isEmpty() ? array("ManagedObjectReference")
+					: array("ManagedObjectReference", host.list("datastore").get(0)));
+			vm.set("network", host.list("network").isEmpty() ? array("ManagedObjectReference")
+					: array("ManagedObjectReference", host.list("network").get(v / hosts.size() % host.list("network").size())));
+			vm.set("layoutEx", data("VirtualMachineFileLayoutEx")
+					.put("file", array("VirtualMachineFileLayoutExFileInfo"))
+					.put("disk", array("VirtualMachineFileLayoutExDiskLayout"))
+					.put("snapshot", array("VirtualMachineFileLayoutExSnapshotLayout"))
+					.put("timestamp", leaf("xsd:dateTime", formatTime(new Date()))));
+			if (!host.list("datastore").isEmpty())
+			{
+				Data folder = addFolder(entities.get(((Mor) host.list("datastore").get(0)).value), vm.name);
+				Date now = new Date();
+				addFile(folder, vm, vm.name + ".vmx", 3 << 10, now);
+				addFile(folder, vm, vm.name + ".nvram", 8 << 10, now);
+				int descriptorKey = addFile(folder, vm, vm.name + ".vmdk", 512, now);
+				int extentKey = addFile(folder, vm, vm.name + "-flat.vmdk", (8L + random.nextInt(56)) << 30, now);
+				vm.list("layoutEx.disk").add(data("VirtualMachineFileLayoutExDiskLayout")
+						.put("key", leaf("xsd:int", "2000"))
+						.put("chain", array("VirtualMachineFileLayoutExDiskUnit", diskUnit(descriptorKey, extentKey))));
+				addFile(folder, vm, "vmware.log", (long) random.nextInt(4096) << 10, now);
+				if (v % 5 == 0)
+				{
+					Date snapshotTime = new Date(now.getTime() - (v % 40) * 24L * 60 * 60 * 1000);
+					addFile(folder, vm, vm.name + ".vmsd", 1 << 10, snapshotTime);
+					Data snapshot = addSnapshot(folder, vm, null, 1, snapshotTime, random);
+					if (v % 10 == 0)
+					{
+						addSnapshot(folder, vm, snapshot, 2, new Date((snapshotTime.getTime() + now.getTime()) / 2), random);
+					}
+				}
+			}
+			setPowerState(vm, random.nextInt(10) < 7 ? "poweredOn" : "poweredOff");
+			host.list("vm").add(mor(vm));
+		}
+		for (String service : new String[] { "ServiceInstance", "SessionManager" })
+		{
+			entities.put(service, new Entity(service, service, null, false));
+		}
+		entities.put("PerfMgr", createPerformanceManager());
+	}
+	/**
+	 * This method is used to @return the performance manager with the counters hosts and VMs are sampled
+	 * for, and the historical intervals of a default vCenter Server.
+	 */
+	private static Entity createPerformanceManager()
+	{
+		Entity performanceManager = new Entity("PerformanceManager", "PerfMgr", null, false);
+		Array counters = array("PerfCounterInfo");
+		for (int key = 0; key < PERF_COUNTERS.length; key++)
+		{
+			String[] counter = PERF_COUNTERS[key];
+			counters.items.add(data("PerfCounterInfo")
+					.put("key", leaf("xsd:int", String.valueOf(key + 1)))
+					.put("nameInfo", description(counter[1]))
+					.put("groupInfo", description(counter[0]))
+					.put("unitInfo", description(counter[3]))
+					.put("rollupType", leaf("PerfSummaryType", counter[2]))
+					.put("statsType", leaf("PerfStatsType", counter[4]))
+					.put("level", leaf("xsd:int", "1")));
+		}
+		performanceManager.set("perfCounter", counters);
+		Array intervals = array("PerfInterval");
+		int[][] periods = { { 300, 86400 }, { 1800, 604800 }, { 7200, 2592000 }, { 86400, 31536000 } };
+		for (int key = 0; key < periods.length; key++)
+		{
+			intervals.items.add(data("PerfInterval")
+					.put("key", leaf("xsd:int", String.valueOf(key + 1)))
+					.put("samplingPeriod", leaf("xsd:int", String.valueOf(periods[key][0])))
+					.put("name", leaf("xsd:string", "Past " + periods[key][1] / 86400 + " day(s)"))
+					.put("length", leaf("xsd:int", String.valueOf(periods[key][1])))
+					.put("level", leaf("xsd:int", "1"))
+					.put("enabled", leaf("xsd:boolean", "true")));
+		}
+		performanceManager.set("historicalInterval", intervals);
+		return performanceManager;
+	}
+
+	private static Data description(String key)
+	{
+		return data("ElementDescription")
+				.put("label", leaf("xsd:string", key))
+				.put("summary", leaf("xsd:string", key))
+				.put("key", leaf("xsd:string", key));
+	}
+	/**
+	 * This method is used to add an empty folder to the datastore and @return it.
+	 */
+	private Data addFolder(Entity datastore, String name)
+	{
+		Data folder = data("HostDatastoreBrowserSearchResults")
+				.put("datastore", mor(datastore))
+				.put("folderPath", leaf("xsd:string", "[" + datastore.name + "] " + name + "/"))
+				.put("file", array("FileInfo"));
+		foldersByBrowser.get(((Mor) datastore.get("browser")).value).items.add(folder);
+		return folder;
+	}
+	/**
+	 * This method is used to take a snapshot of the VM, as a child of the parent snapshot tree or as a root
+	 * if it is null, and @return its tree. The disk as it is now becomes the disk of the snapshot and a new
+	 * delta disk is added on top of it, which gets the writes from then on.
+	 */
+	private Data addSnapshot(Data folder, Entity vm, Data parent, int id, Date createTime, Random random)
+	{
+		Entity snapshot = new Entity("VirtualMachineSnapshot", "snapshot-" + vm.value.substring(3) + "-" + id, null, false);
+		snapshot.set("vm", mor(vm));
+		entities.put(snapshot.value, snapshot);
+		int dataKey = addFile(folder, vm, vm.name + "-Snapshot" + id + ".vmsn", 32 << 10, createTime);
+		Data disk = (Data) vm.list("layoutEx.disk").get(0);
+		List<Object> chain = ((Array) disk.fields.get("chain")).items;
+		vm.list("layoutEx.snapshot").add(data("VirtualMachineFileLayoutExSnapshotLayout")
+				.put("key", mor(snapshot))
+				.put("dataKey", leaf("xsd:int", String.valueOf(dataKey)))
+				.put("disk", array("VirtualMachineFileLayoutExDiskLayout", data("VirtualMachineFileLayoutExDiskLayout")
+						.put("key", disk.fields.get("key"))
+						.put("chain", array("VirtualMachineFileLayoutExDiskUnit", chain.toArray())))));
+		String delta = vm.name + String.format("-%06d", id);
+		chain.add(diskUnit(addFile(folder, vm, delta + ".vmdk", 512, createTime),
+				addFile(folder, vm, delta + "-delta.vmdk", (1L + random.nextInt(20)) << 30, createTime)));
+		Data tree = data("VirtualMachineSnapshotTree")
+				.put("snapshot", mor(snapshot))
+				.put("vm", mor(vm))
+				.put("name", leaf("xsd:string", "Snapshot" + id))
+				.put("description", leaf("xsd:string", ""))
+				.put("id", leaf("xsd:int", String.valueOf(id)))
+				.put("createTime", leaf("xsd:dateTime", formatTime(createTime)))
+				.put("state", leaf("VirtualMachinePowerState", "poweredOff"))
+				.put("quiesced", leaf("xsd:boolean", "false"))
+				.put("childSnapshotList", array("VirtualMachineSnapshotTree"));
+		if (parent == null)
+		{
+			vm.set("snapshot", data("VirtualMachineSnapshotInfo")
+					.put("currentSnapshot", mor(snapshot))
+					.put("rootSnapshotList", array("VirtualMachineSnapshotTree", tree)));
+		}
+		else
+		{
+			((Array) parent.fields.get("childSnapshotList")).items.add(tree);
+			((Data) vm.get("snapshot")).put("currentSnapshot", mor(snapshot));
+		}
+		return tree;
+	}
+
+	private static Data diskUnit(int descriptorKey, int extentKey)
+	{
+		return data("VirtualMachineFileLayoutExDiskUnit")
+				.put("fileKey", array("xsd:int", leaf("xsd:int", String.valueOf(descriptorKey)),
+						leaf("xsd:int", String.valueOf(extentKey))));
+	}
+	/**
+	 * This method is used to remove the snapshot, keeping its children, as vCenter does after consolidating
+	 * the delta disks written on top of it into the disk of the snapshot: the children move up to the
+	 * parent of the snapshot, and the memory file and those delta disks are deleted.
+	 */
+	public synchronized void removeSnapshot(Entity snapshot)
+	{
+		Entity vm = entities.get(((Mor) snapshot.get("vm")).value);
+		Data snapshotInfo = (Data) vm.get("snapshot");
+		removeTree(vm, ((Array) snapshotInfo.fields.get("rootSnapshotList")).items, null, snapshot.value);
+		if (((Array) snapshotInfo.fields.get("rootSnapshotList")).items.isEmpty())
+		{
+			vm.properties.remove("snapshot");
+		}
+		Data layout = null;
+		for (Object item : vm.list("layoutEx.snapshot"))
+		{
+			if (((Mor) ((Data) item).fields.get("key")).value.equals(snapshot.value))
+			{
+				layout = (Data) item;
+			}
+		}
+		Set<Integer> removedFiles = new HashSet<Integer>();
+		if (layout != null)
+		{
+			vm.list("layoutEx.snapshot").remove(layout);
+			removedFiles.add(Integer.parseInt(((Leaf) layout.fields.get("dataKey")).text));
+			List<Object> chain = ((Array) ((Data) ((Array) layout.fields.get("disk")).items.get(0)).fields.get("chain")).items;
+			int lastFile = getFirstFileKey(chain.get(chain.size() - 1));
+			List<Object> disks = new ArrayList<Object>(vm.list("layoutEx.disk"));
+			for (Object item : vm.list("layoutEx.snapshot"))
+			{
+				disks.addAll(((Array) ((Data) item).fields.get("disk")).items);
+			}
+			for (Object disk : disks)
+			{
+				List<Object> units = ((Array) ((Data) disk).fields.get("chain")).items;
+				for (int i = 1; i < units.size(); i++)
+				{
+					if (getFirstFileKey(units.get(i - 1)) == lastFile)
+					{
+						for (Object fileKey : ((Array) ((Data) units.get(i)).fields.get("fileKey")).items)
+						{
+							removedFiles.add(Integer.parseInt(((Leaf) fileKey).text));
+						}
+						units.remove(i);
+					}
+				}
+			}
+		}
+		for (Iterator<Object> iterator = vm.list("layoutEx.file").iterator(); iterator.hasNext();)
+		{
+			Data file = (Data) iterator.next();
+			if (removedFiles.contains(Integer.parseInt(((Leaf) file.fields.get("key")).text)))
+			{
+				iterator.remove();
+				removeFolderFile(((Leaf) file.fields.get("name")).text);
+			}
+		}
+		entities.remove(snapshot.value);
+		changed(vm);
+	}
+	/**
+	 * This method is used to remove the tree of the snapshot from the trees, or from their children, moving
+	 * its children in its place, and @return true if it was found.
+	 */
+	private static boolean removeTree(Entity vm, List<Object> trees, Data parent, String snapshotValue)
+	{
+		for (int i = 0; i < trees.size(); i++)
+		{
+			Data tree = (Data) trees.get(i);
+			if (((Mor) tree.fields.get("snapshot")).value.equals(snapshotValue))
+			{
+				trees.remove(i);
+				trees.addAll(i, ((Array) tree.fields.get("childSnapshotList")).items);
+				Data snapshotInfo = (Data) vm.get("snapshot");
+				if (((Mor) snapshotInfo.fields.get("currentSnapshot")).value.equals(snapshotValue))
+				{
+					if (parent == null)
+					{
+						snapshotInfo.remove("currentSnapshot");
+					}
+					else
+					{
+						snapshotInfo.put("currentSnapshot", parent.fields.get("snapshot"));
+					}
+				}
+				return true;
+			}
+			if (removeTree(vm, ((Array) tree.fields.get("childSnapshotList")).items, tree, snapshotValue))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static int getFirstFileKey(Object diskUnit)
+	{
+		return Integer.parseInt(((Leaf) ((Array) ((Data) diskUnit).fields.get("fileKey")).items.get(0)).text);
+	}
+	/**
+	 * This method is used to remove the file of the given datastore path from its folder.
+	 */
+	private void removeFolderFile(String path)
+	{
+		for (Array folders : foldersByBrowser.values())
+		{
+			for (Object folder : folders.items)
+			{
+				String folderPath = ((Leaf) ((Data) folder).fields.get("folderPath")).text;
+				if (path.startsWith(folderPath))
+				{
+					Iterator<Object> files = ((Array) ((Data) folder).fields.get("file")).items.iterator();
+					while (files.hasNext())
+					{
+						if (((Leaf) ((Data) files.next()).fields.get("path")).text.equals(path.substring(folderPath.length())))
+						{
+							files.remove();
+						}
+					}
+				}
+			}
+		}
+	}
+	/**
+	 * This method is used to add a file to the folder and, unless the VM is null, to the layoutEx.file
+	 * of the VM, and @return its key in the layout, or -1 without a VM.
+	 */
+	private static int addFile(Data folder, Entity vm, String name, long size, Date modification)
+	{
+		((Array) folder.fields.get("file")).items.add(data("FileInfo")
+				.put("path", leaf("xsd:string", name))
+				.put("fileSize", leaf("xsd:long", String.valueOf(size)))
+				.put("modification", leaf("xsd:dateTime", formatTime(modification))));
+		if (vm != null)
+		{
+			List<Object> files = vm.list("layoutEx.file");
+			String type = name.endsWith(".vmx") ? "config" : name.endsWith(".nvram") ? "nvram" : name.endsWith(".log")
+					? "log" : name.endsWith(".vmsd") ? "snapshotList" : name.endsWith(".vmsn") ? "snapshotData"
+					: name.endsWith("-flat.vmdk") || name.endsWith("-delta.vmdk") ? "diskExtent" : "diskDescriptor";
+			/*
+			 * The key follows the last one, as the files of removed snapshots leave gaps.
+			 */
+			int key = files.isEmpty() ? 0
+					: Integer.parseInt(((Leaf) ((Data) files.get(files.size() - 1)).fields.get("key")).text) + 1;
+			files.add(data("VirtualMachineFileLayoutExFileInfo")
+					.put("key", leaf("xsd:int", String.valueOf(key)))
+					.put("name", leaf("xsd:string", ((Leaf) folder.fields.get("folderPath")).text + name))
+					.put("type", leaf("xsd:string", type))
+					.put("size", leaf("xsd:long", String.valueOf(size))));
+			return key;
+		}
+		return -1;
+	}
+	/**
+	 * This method is used to @return the folders of the datastore of the browser, or null if there is no
+	 * such browser.
+	 */
+	public synchronized Array getFolders(String browserValue)
+	{
+		return foldersByBrowser.get(browserValue);
+	}
+	/**
+	 * This method is used to @return the reference value of the root folder.
+	 */
+	public String getRootFolder()
+	{
+		return rootFolder;
+	}
+	/**
+	 * This method is used to @return the managed object of the given reference value, or null.
+	 */
+	public synchronized Entity get(String value)
+	{
+		return entities.get(value);
+	}
+	/**
+	 * This method is used to @return all the managed entities of the given types, of all types if empty.
+	 */
+	public synchronized List<Entity> list(Collection<String> types)
+	{
+		List<Entity> result = new ArrayList<Entity>();
+		for (Entity entity : entities.values())
+		{
+			if (entity.managedEntity && (types.isEmpty() || types.contains(entity.type)))
+			{
+				result.add(entity);
+			}
+		}
+		return result;
+	}
+	/**
+	 * This method is used to @return all the tasks, the oldest first.
+	 */
+	public synchronized List<Entity> listTasks()
+	{
+		List<Entity> result = new ArrayList<Entity>();
+		for (Entity entity : entities.values())
+		{
+			if (entity.type.equals("Task"))
+			{
+				result.add(entity);
+			}
+		}
+		return result;
+	}
+	/**
+	 * This method is used to @return the version, which changes whenever a property changes.
+	 */
+	public synchronized long getVersion()
+	{
+		return version;
+	}
+	/**
+	 * This method is used to wait until the version differs from the given one, the time is up or the
+	 * waiting collectors are woken up.
+	 */
+	public synchronized void awaitChange(long knownVersion, long timeoutMillis) throws InterruptedException
+	{
+		if (version == knownVersion && timeoutMillis > 0)
+		{
+			wait(timeoutMillis);
+		}
+	}
+	/**
+	 * This method is used to wake up the waiting collectors without a change, e.g., on a cancel or when a
+	 * new filter is created.
+	 */
+	public synchronized void wakeUp()
+	{
+		notifyAll();
+	}
+	/**
+	 * This method is used to create a task of the given method on the entity, in the running state, and
+	 * @return it.
+	 */
+	public synchronized Entity createTask(String method, String descriptionId, Entity entity)
+	{
+		String value = "task-" + (++nextTask);
+		Entity task = new Entity("Task", value, null, false);
+		task.set("info", data("TaskInfo")
+				.put("key", leaf("xsd:string", value))
+				.put("task", mor(task))
+				.put("name", leaf("xsd:string", method))
+				.put("descriptionId", leaf("xsd:string", descriptionId))
+				.put("entity", mor(entity))
+				.put("entityName", leaf("xsd:string", entity.name))
+				.put("state", leaf("TaskInfoState", "running"))
+				.put("cancelled", leaf("xsd:boolean", "false"))
+				.put("cancelable", leaf("xsd:boolean", "false"))
+				.put("queueTime", leaf("xsd:dateTime", formatTime(new Date())))
+				.put("startTime", leaf("xsd:dateTime", formatTime(new Date())))
+				.put("eventChainId", leaf("xsd:int", String.valueOf(nextTask)))
+				.put("reason", data("TaskReasonUser").put("userName", leaf("xsd:string", "simulated"))));
+		entities.put(value, task);
+		changed(task);
+		return task;
+	}
+	/**
+	 * This method is used to complete the task successfully with the given result.
+	 */
+	public synchronized void completeTask(Entity task, Object result)
+	{
+		((Data) task.get("info")).put("result", result);
+		completeTask(task, null, null);
+	}
+	/**
+	 * This method is used to complete the task, with the fault of the given type and message if it is not
+	 * null.
+	 */
+	public synchronized void completeTask(Entity task, String faultType, String message)
+	{
+		Data info = (Data) task.get("info");
+		if (faultType == null)
+		{
+			info.put("state", leaf("TaskInfoState", "success"));
+		}
+		else
+		{
+			info.put("state", leaf("TaskInfoState", "error"));
+			info.put("error", data("LocalizedMethodFault")
+					.put("fault", data(faultType))
+					.put("localizedMessage", leaf("xsd:string", message)));
+		}
+		info.put("completeTime", leaf("xsd:dateTime", formatTime(new Date())));
+		changed(task);
+	}
+	/**
+	 * This method is used to @return the power state of the VM.
+	 */
+	public synchronized String getPowerState(Entity vm)
+	{
+		return ((Leaf) vm.get("runtime.powerState")).text;
+	}
+	/**
+	 * This method is used to change the power state of the VM, together with the state of its guest as the
+	 * VMware tools would report it.
+	 */
+	public synchronized void setPowerState(Entity vm, String powerState)
+	{
+		boolean on = powerState.equals("poweredOn");
+		((Data) vm.get("runtime")).put("powerState", leaf("VirtualMachinePowerState", powerState));
+		if (on)
+		{
+			((Data) vm.get("runtime")).put("bootTime", leaf("xsd:dateTime", formatTime(new Date())));
+		}
+		else
+		{
+			((Data) vm.get("runtime")).remove("bootTime");
+		}
+		Data guest = data("GuestInfo")
+				.put("toolsRunningStatus", leaf("xsd:string", on ? "guestToolsRunning" : "guestToolsNotRunning"))
+				.put("guestFullName", leaf("xsd:string", vm.guestFullName))
+				.put("guestState", leaf("xsd:string", on ? "running" : "notRunning"));
+		if (on)
+		{
+			guest.put("ipAddress", leaf("xsd:string", vm.guestIpAddress));
+		}
+		vm.set("guest", guest);
+		changed(vm);
+	}
+
+	private void changed(Entity entity)
+	{
+		entity.modified = ++version;
+		notifyAll();
+	}
+
+	private Entity add(String type, String value, String name, Entity parent)
+	{
+		Entity entity = new Entity(type, value, name, true);
+		entity.set("name", leaf("xsd:string", name));
+		entity.set("overallStatus", leaf("ManagedEntityStatus", "green"));
+		if (parent != null)
+		{
+			entity.set("parent", mor(parent));
+			if (parent.type.equals("Folder"))
+			{
+				if (parent.get("childEntity") == null)
+				{
+					parent.set("childEntity", array("ManagedObjectReference"));
+				}
+				parent.list("childEntity").add(mor(entity));
+			}
+		}
+		entities.put(value, entity);
+		return entity;
+	}
+	/**
+	 * This method is used to @return the time in the xsd:dateTime format.
+	 */
+	static String formatTime(Date date)
+	{
+		SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+		sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return sdf.format(date);
+	}
+
+	static Leaf leaf(String xsiType, String text)
+	{
+		return new Leaf(xsiType, text);
+	}
+
+	static Mor mor(Entity entity)
+	{
+		return new Mor(entity.type, entity.value);
+	}
+
+	static Data data(String xsiType)
+	{
+		return new Data(xsiType);
+	}
+
+	static Array array(String elementType, Object... items)
+	{
+		Array array = new Array(elementType);
+		for (Object item : items)
+		{
+			array.items.add(item);
+		}
+		return array;
+	}
+	/**
+	 * One managed object with its properties.
+	 */
+	static class Entity
+	{
+		final String type;
+		final String value;
+		final String name;
+		final boolean managedEntity;
+		private final Data properties = new Data(null);
+		/**
+		 * What the VMware tools report about the guest of a VM while it runs.
+		 */
+		private String guestFullName;
+		private String guestIpAddress;
+		/**
+		 * The version of the inventory at the last change of a property of this object.
+		 */
+		private long modified;
+
+		private Entity(String type, String value, String name, boolean managedEntity)
+		{
+			this.type = type;
+			this.value = value;
+			this.name = name;
+			this.managedEntity = managedEntity;
+		}
+		/**
+		 * This method is used to @return the value of the property path, like runtime.powerState, or null
+		 * if it is not set.
+		 */
+		long getModified()
+		{
+			return modified;
+		}
+		/**
+		 * This method is used to @return the names of the properties set on this object.
+		 */
+		List<String> getPropertyNames()
+		{
+			return new ArrayList<String>(properties.fields.keySet());
+		}
+
+		Object get(String path)
+		{
+			Object value = properties;
+			for (String part : path.split("\\."))
+			{
+				if (!(value instanceof Data))
+				{
+					return null;
+				}
+				value = ((Data) value).fields.get(part);
+			}
+			return value;
+		}
+
+		void set(String property, Object value)
+		{
+			properties.put(property, value);
+		}
+
+		List<Object> list(String property)
+		{
+			return ((Array) get(property)).items;
+		}
+	}
+	/**
+	 * A value of a primitive or enum type, e.g., xsd:long or VirtualMachinePowerState.
+	 */
+	static class Leaf
+	{
+		final String xsiType;
+		final String text;
+
+		private Leaf(String xsiType, String text)
+		{
+			this.xsiType = xsiType;
+			this.text = text;
+		}
+	}
+	/**
+	 * A managed object reference.
+	 */
+	static class Mor
+	{
+		final String type;
+		final String value;
+
+		Mor(String type, String value)
+		{
+			this.type = type;
+			this.value = value;
+		}
+	}
+	/**
+	 * A data object, e.g., VirtualMachineRuntimeInfo, with its fields in order.
+	 */
+	static class Data
+	{
+		final String xsiType;
+		final Map<String, Object> fields = new LinkedHashMap<String, Object>();
+
+		private Data(String xsiType)
+		{
+			this.xsiType = xsiType;
+		}
+
+		Data put(String field, Object value)
+		{
+			if (value != null)
+			{
+				fields.put(field, value);
+			}
+			return this;
+		}
+
+		void remove(String field)
+		{
+			fields.remove(field);
+		}
+	}
+	/**
+	 * An array, serialized as ArrayOfXxx when it is the value of a property.
+	 */
+	static class Array
+	{
+		final String elementType;
+		final List<Object> items = new ArrayList<Object>();
+
+		private Array(String elementType)
+		{
+			this.elementType = elementType;
+		}
+	}
+}
@@ -0,0 +1,521 @@
+package com.sjsu.cmpe281.vmware.hw2;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import com.vmware.vim25.LocalizedMethodFault;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.VirtualMachineFileLayoutExDiskLayout;
+import com.vmware.vim25.VirtualMachineFileLayoutExDiskUnit;
+import com.vmware.vim25.VirtualMachineFileLayoutExFileInfo;
+import com.vmware.vim25.VirtualMachineFileLayoutExSnapshotLayout;
+import com.vmware.vim25.VirtualMachineSnapshotInfo;
+import com.vmware.vim25.VirtualMachineSnapshotTree;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.Task;
+import com.vmware.vim25.mo.VirtualMachineSnapshot;
+import com.vmware.vim25.mo.util.PropertyCollectorUtil;
+/**
+ * @author Pratik Pandey.
+ *
+ * This class flattens the snapshot trees of all the VMs, fetched with their file layout in one bulk
+ * retrieval, into a list of snapshots ranked by age and by size, and removes the old ones. The size of a
+ * snapshot is its memory file plus the delta disks written on top of it, which is what keeps growing and
+ * slowing the disk down until the snapshot is removed. The snapshots of one VM are removed one after the
+ * other, as vCenter runs one task per VM at a time, while many VMs are done in parallel up to a limit and
+ * up to a lower limit per datastore, so that the consolidation of the disks does not load one array with
+ * all of them.
+ */
+class SnapshotReport
+{
+	/**
+	 * Used for logging purposes.
+	 */
+	private final Logger logger = Logger.getLogger(SnapshotReport.class.getName());
+	/**
+	 * Properties fetched in bulk for the report.
+	 */
+	static final String[] VM_PROPERTIES = { "name", "snapshot", "layoutEx.file", "layoutEx.disk", "layoutEx.snapshot" };
+	/**
+	 * Number of snapshots in each ranking unless -top=N is given, number of VMs whose snapshots are removed
+	 * at the same time unless -parallel=N is given and, of them, on the same datastore unless
+	 * -per-datastore=N is given.
+	 */
+	static final int DEFAULT_TOP = 20;
+	static final int DEFAULT_CONCURRENCY = 8;
+	static final int DEFAULT_PER_DATASTORE = 2;
+	/**
+	 * Consolidating a large delta disk may take long, so the removal is only given up on after this time.
+	 */
+	private static final long REMOVE_TIMEOUT_MILLIS = 30 * 60 * 1000;
+	private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+	private final ServiceInstance serviceInstance;
+	private final TaskCompletionTracker taskTracker;
+	/**
+	 * The metrics the SOAP calls are recorded in, null if they are not measured.
+	 */
+	private final SoapCallMetrics callMetrics;
+	private final List<Snapshot> snapshots = new ArrayList<Snapshot>();
+	private final long now = System.currentTimeMillis();
+	private int vmCount;
+	private int vmsWithSnapshots;
+	private int maxDepth;
+
+	public SnapshotReport(ServiceInstance serviceInstance, TaskCompletionTracker taskTracker,
+			SoapCallMetrics callMetrics, List<EntityProperties> virtualMachines)
+	{
+		this.serviceInstance = serviceInstance;
+		this.taskTracker = taskTracker;
+		this.callMetrics = callMetrics;
+		for (EntityProperties virtualMachine : virtualMachines)
+		{
+			vmCount++;
+			addSnapshots(virtualMachine);
+		}
+	}
+	/**
+	 * This method is used to write the oldest and the largest snapshots, top of each, followed by the totals.
+	 */
+	public void write(int top, ResponseSink responseSink)
+	{
+		List<Snapshot> ranking = new ArrayList<Snapshot>(snapshots);
+		Collections.sort(ranking, (first, second) -> Long.compare(first.created, second.created));
+		for (int i = 0; i < Math.min(top, ranking.size()); i++)
+		{
+			responseSink.add(getRecord("snapshotAge", "Oldest", i, ranking.get(i)));
+		}
+		Long oldestDays = ranking.isEmpty() ? null : getAgeDays(ranking.get(0));
+		Collections.sort(ranking, (first, second) -> Long.compare(second.size, first.size));
+		for (int i = 0; i < Math.min(top, ranking.size()); i++)
+		{
+			responseSink.add(getRecord("snapshotSize", "Largest", i, ranking.get(i)));
+		}
+		long size = 0;
+		for (Snapshot snapshot : snapshots)
+		{
+			size += snapshot.size;
+		}
+		responseSink.add(new ResultRecord("snapshotTotal", "Total", -1)
+				.add("vms", "VMs", vmCount)
+				.add("vmsWithSnapshots", "With snapshots", vmsWithSnapshots)
+				.add("snapshots", "Snapshots", snapshots.size())
+				.add("sizeGB", "Size", toGigabytes(size), " GB")
+				.add("oldestDays", "Oldest", oldestDays, " days")
+				.add("maxDepth", "Deepest tree", maxDepth));
+	}
+	/**
+	 * This method is used to remove the snapshots created more than the given number of days ago, of at
+	 * most concurrency VMs at once and perDatastore VMs per datastore, writing each outcome to the response
+	 * sink as soon as the snapshots of its VM are done, followed by the summary. A dry run only writes what
+	 * would be removed.
+	 */
+	public void prune(int olderThanDays, int concurrency, int perDatastore, boolean dryRun, ResponseSink responseSink)
+	{
+		concurrency = Math.max(1, concurrency);
+		perDatastore = Math.max(1, perDatastore);
+		long createdBefore = now - olderThanDays * DAY_MILLIS;
+		List<Snapshot> ranking = new ArrayList<Snapshot>(snapshots);
+		Collections.sort(ranking, (first, second) -> Long.compare(first.created, second.created));
+		/*
+		 * The snapshots are grouped by the reference of their VM, as VMs of different folders or
+		 * datacenters may have the same name; the name is only shown.
+		 */
+		Map<String, List<Snapshot>> snapshotsByVM = new LinkedHashMap<String, List<Snapshot>>();
+		int count = 0;
+		for (Snapshot snapshot : ranking)
+		{
+			if (snapshot.created < createdBefore)
+			{
+				snapshotsByVM.computeIfAbsent(snapshot.vmMOR, vmMOR -> new ArrayList<Snapshot>()).add(snapshot);
+				count++;
+			}
+		}
+		if (count == 0)
+		{
+			responseSink.add("No snapshot is older than " + olderThanDays + " day(s)");
+			return;
+		}
+		if (dryRun)
+		{
+			int index = 0;
+			long size = 0;
+			for (List<Snapshot> vmSnapshots : snapshotsByVM.values())
+			{
+				for (Snapshot snapshot : vmSnapshots)
+				{
+					responseSink.add(getRecord("snapshotPrune", "Would remove", index++, snapshot));
+					size += snapshot.size;
+				}
+			}
+			responseSink.add(new ResultRecord("snapshotPruneTotal", "Total", -1)
+					.add("snapshots", "Would remove", count)
+					.add("vms", "VMs", snapshotsByVM.size())
+					.add("freedGB", "Would free", toGigabytes(size), " GB"));
+			return;
+		}
+		responseSink.add("Removing " + count + " snapshot(s) of " + snapshotsByVM.size() + " VM(s), " + concurrency
+				+ " at a time and " + perDatastore + " per datastore");
+		ExecutorService executorService = Executors.newFixedThreadPool(Math.min(concurrency, snapshotsByVM.size()));
+		CompletionService<List<Removal>> completionService = new ExecutorCompletionService<List<Removal>>(executorService);
+		List<List<Snapshot>> pending = new LinkedList<List<Snapshot>>(snapshotsByVM.values());
+		Map<String, Integer> inProgress = new HashMap<String, Integer>();
+		final String commandName = callMetrics == null ? null : callMetrics.getCommand();
+		long startTime = System.currentTimeMillis();
+		int running = 0;
+		int index = 0;
+		int failures = 0;
+		int maxPerDatastore = 0;
+		long freed = 0;
+		try
+		{
+			while (!pending.isEmpty() || running > 0)
+			{
+				/*
+				 * Start the VMs in their order as long as their datastores have room, skipping the ones
+				 * which wait for a busy datastore; with nothing running the first one always has room.
+				 */
+				for (Iterator<List<Snapshot>> iterator = pending.iterator(); iterator.hasNext() && running < concurrency;)
+				{
+					final List<Snapshot> vmSnapshots = iterator.next();
+					Set<String> datastores = vmSnapshots.get(0).datastores;
+					if (hasRoom(inProgress, datastores, perDatastore))
+					{
+						iterator.remove();
+						for (String datastore : datastores)
+						{
+							inProgress.merge(datastore, 1, Integer::sum);
+							maxPerDatastore = Math.max(maxPerDatastore, inProgress.get(datastore));
+						}
+						running++;
+						completionService.submit(new Callable<List<Removal>>()
+						{
+							@Override
+							public List<Removal> call()
+							{
+								setCommandName(commandName);
+								try
+								{
+									return removeAll(vmSnapshots);
+								}
+								finally
+								{
+									setCommandName(null);
+								}
+							}
+						});
+					}
+				}
+				List<Removal> removals = completionService.take().get();
+				running--;
+				for (String datastore : removals.get(0).snapshot.datastores)
+				{
+					inProgress.merge(datastore, -1, Integer::sum);
+				}
+				for (Removal removal : removals)
+				{
+					if (removal.success)
+					{
+						freed += removal.snapshot.size;
+					}
+					else
+					{
+						failures++;
+					}
+					responseSink.add(getRecord("snapshotPrune", "Snapshot", index++, removal.snapshot)
+							.add("status", "Status", removal.status)
+							.add("millis", "Time", removal.millis, " ms"));
+				}
+			}
+			long elapsedMillis = Math.max(1, System.currentTimeMillis() - startTime);
+			responseSink.add(new ResultRecord("snapshotPruneTotal", "Total", -1)
+					.add("removed", "Removed", count - failures)
+					.add("failed", "Failed", failures)
+					.add("freedGB", "Freed", toGigabytes(freed), " GB")
+					.add("maxPerDatastore", "Most per datastore", maxPerDatastore)
+					.add("millis", "Elapsed", elapsedMillis, " ms"));
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			responseSink.add("Snapshot prune was interrupted");
+		}
+		catch (ExecutionException e)
+		{
+			logger.log(Level.SEVERE, "Snapshot prune failed", e.getCause());
+			responseSink.add("Snapshot prune failed: " + e.getCause());
+		}
+		finally
+		{
+			executorService.shutdownNow();
+		}
+	}
+	/**
+	 * This method is used to @return true if none of the datastores already has the maximum number of VMs
+	 * whose snapshots are being removed.
+	 */
+	private static boolean hasRoom(Map<String, Integer> inProgress, Set<String> datastores, int perDatastore)
+	{
+		for (String datastore : datastores)
+		{
+			if (inProgress.getOrDefault(datastore, 0) >= perDatastore)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+	/**
+	 * This method is used to count the SOAP calls of the current thread for the given command, null for none,
+	 * so that the worker threads count their calls for the command which started them.
+	 */
+	private void setCommandName(String commandName)
+	{
+		if (callMetrics != null)
+		{
+			callMetrics.setCommand(commandName);
+		}
+	}
+	/**
+	 * This method is used to remove the snapshots of one VM, oldest first, and @return the outcome of each.
+	 * Errors of one snapshot are reported in its outcome so that they do not stop the rest.
+	 */
+	private List<Removal> removeAll(List<Snapshot> vmSnapshots)
+	{
+		List<Removal> removals = new ArrayList<Removal>();
+		for (Snapshot snapshot : vmSnapshots)
+		{
+			long startTime = System.currentTimeMillis();
+			Removal removal = new Removal(snapshot);
+			try
+			{
+				/*
+				 * Only this snapshot goes, its children are kept, and the disks are consolidated right away.
+				 */
+				Task task = new VirtualMachineSnapshot(serviceInstance.getServerConnection(), snapshot.mor)
+						.removeSnapshot_Task(false, Boolean.TRUE);
+				EntityProperties taskState = taskTracker.waitForTask(task, REMOVE_TIMEOUT_MILLIS);
+				if (taskState == null)
+				{
+					removal.status = "timed out after " + (REMOVE_TIMEOUT_MILLIS / 1000) + " seconds";
+				}
+				else if (Task.SUCCESS.equals(taskState.getString("info.state")))
+				{
+					removal.status = "removed";
+					removal.success = true;
+				}
+				else
+				{
+					LocalizedMethodFault error = (LocalizedMethodFault) taskState.get("info.error");
+					removal.status = error == null ? "failed" : "failed due to " + error.getLocalizedMessage();
+				}
+			}
+			catch (Exception e)
+			{
+				removal.status = "failed due to " + e.toString();
+			}
+			removal.millis = System.currentTimeMillis() - startTime;
+			removals.add(removal);
+		}
+		return removals;
+	}
+	/**
+	 * This method is used to add the snapshots of the VM to the list, walking its snapshot tree.
+	 */
+	private void addSnapshots(EntityProperties virtualMachine)
+	{
+		VirtualMachineSnapshotInfo snapshotInfo = (VirtualMachineSnapshotInfo) virtualMachine.get("snapshot");
+		if (snapshotInfo == null || snapshotInfo.getRootSnapshotList() == null)
+		{
+			return;
+		}
+		vmsWithSnapshots++;
+		Map<Integer, Long> fileSizes = new HashMap<Integer, Long>();
+		Set<String> datastores = new TreeSet<String>();
+		Object files = convert(virtualMachine.get("layoutEx.file"));
+		if (files instanceof VirtualMachineFileLayoutExFileInfo[])
+		{
+			for (VirtualMachineFileLayoutExFileInfo file : (VirtualMachineFileLayoutExFileInfo[]) files)
+			{
+				fileSizes.put(file.getKey(), file.getSize());
+				if (file.getName().startsWith("[") && file.getName().indexOf(']') > 0)
+				{
+					datastores.add(file.getName().substring(1, file.getName().indexOf(']')));
+				}
+			}
+		}
+		/*
+		 * The disk chains of the VM now and at each snapshot, base disk first, give the delta disks
+		 * written on top of every disk unit: the ones following it in any chain.
+		 */
+		Map<Integer, Set<Integer>> followingFiles = new HashMap<Integer, Set<Integer>>();
+		Map<String, VirtualMachineFileLayoutExSnapshotLayout> layouts = new HashMap<String, VirtualMachineFileLayoutExSnapshotLayout>();
+		addFollowingFiles(convert(virtualMachine.get("layoutEx.disk")), followingFiles);
+		Object snapshotLayouts = convert(virtualMachine.get("layoutEx.snapshot"));
+		if (snapshotLayouts instanceof VirtualMachineFileLayoutExSnapshotLayout[])
+		{
+			for (VirtualMachineFileLayoutExSnapshotLayout layout : (VirtualMachineFileLayoutExSnapshotLayout[]) snapshotLayouts)
+			{
+				layouts.put(layout.getKey().get_value(), layout);
+				addFollowingFiles(layout.getDisk(), followingFiles);
+			}
+		}
+		String currentSnapshot = snapshotInfo.getCurrentSnapshot() == null ? null
+				: snapshotInfo.getCurrentSnapshot().get_value();
+		List<Object[]> stack = new ArrayList<Object[]>();
+		for (VirtualMachineSnapshotTree tree : snapshotInfo.getRootSnapshotList())
+		{
+			stack.add(new Object[] { tree, "", 1 });
+		}
+		while (!stack.isEmpty())
+		{
+			Object[] entry = stack.remove(stack.size() - 1);
+			VirtualMachineSnapshotTree tree = (VirtualMachineSnapshotTree) entry[0];
+			String path = entry[1] + tree.getName();
+			int depth = (Integer) entry[2];
+			Snapshot snapshot = new Snapshot(virtualMachine.getName(), virtualMachine.getMOR().get_value(),
+					tree.getSnapshot(), path, tree.getCreateTime() == null ? now : tree.getCreateTime().getTimeInMillis(), depth,
+					tree.getSnapshot().get_value().equals(currentSnapshot), datastores);
+			VirtualMachineFileLayoutExSnapshotLayout layout = layouts.get(tree.getSnapshot().get_value());
+			if (layout != null)
+			{
+				snapshot.size = fileSizes.getOrDefault(layout.getDataKey(), 0L);
+				for (VirtualMachineFileLayoutExDiskLayout disk : layout.getDisk() == null
+						? new VirtualMachineFileLayoutExDiskLayout[0] : layout.getDisk())
+				{
+					if (disk.getChain() != null && disk.getChain().length > 0)
+					{
+						int[] lastUnit = disk.getChain()[disk.getChain().length - 1].getFileKey();
+						for (int fileKey : followingFiles.getOrDefault(lastUnit[0], Collections.<Integer>emptySet()))
+						{
+							snapshot.size += fileSizes.getOrDefault(fileKey, 0L);
+						}
+					}
+				}
+			}
+			snapshots.add(snapshot);
+			maxDepth = Math.max(maxDepth, depth);
+			if (tree.getChildSnapshotList() != null)
+			{
+				for (VirtualMachineSnapshotTree child : tree.getChildSnapshotList())
+				{
+					stack.add(new Object[] { child, path + " > ", depth + 1 });
+				}
+			}
+		}
+	}
+	/**
+	 * This method is used to add the files of every unit of the disk chains to the files following the
+	 * unit before it, which is known by its first file.
+	 */
+	private static void addFollowingFiles(Object disks, Map<Integer, Set<Integer>> followingFiles)
+	{
+		if (!(disks instanceof VirtualMachineFileLayoutExDiskLayout[]))
+		{
+			return;
+		}
+		for (VirtualMachineFileLayoutExDiskLayout disk : (VirtualMachineFileLayoutExDiskLayout[]) disks)
+		{
+			VirtualMachineFileLayoutExDiskUnit[] chain = disk.getChain();
+			for (int i = 1; chain != null && i < chain.length; i++)
+			{
+				Set<Integer> files = followingFiles.computeIfAbsent(chain[i - 1].getFileKey()[0],
+						fileKey -> new HashSet<Integer>());
+				for (int fileKey : chain[i].getFileKey())
+				{
+					files.add(fileKey);
+				}
+			}
+		}
+	}
+	/**
+	 * This method is used to @return the array of the property, converting an ArrayOfXxx holder if needed.
+	 */
+	private static Object convert(Object value)
+	{
+		return value == null || value.getClass().isArray() ? value : PropertyCollectorUtil.convertProperty(value);
+	}
+
+	private ResultRecord getRecord(String type, String rowLabel, int index, Snapshot snapshot)
+	{
+		SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy HH:mm:ss");
+		return new ResultRecord(type, rowLabel, index)
+				.add("vm", "VM", snapshot.vmName)
+				.add("snapshot", "Snapshot", snapshot.path + (snapshot.current ? " (current)" : ""))
+				.add("created", "Created", sdf.format(snapshot.created))
+				.add("ageDays", "Age", getAgeDays(snapshot), " days")
+				.add("depth", "Depth", snapshot.depth)
+				.add("sizeGB", "Size", toGigabytes(snapshot.size), " GB");
+	}
+
+	private long getAgeDays(Snapshot snapshot)
+	{
+		return Math.max(0, now - snapshot.created) / DAY_MILLIS;
+	}
+
+	private static double toGigabytes(long bytes)
+	{
+		return Math.round(bytes / 1024.0 / 1024.0 / 1024.0 * 100) / 100.0;
+	}
+	/**
+	 * One snapshot of a VM, with the reference value of the VM and the datastores of the files of the VM.
+	 */
+	private static class Snapshot
+	{
+		private final String vmName;
+		private final String vmMOR;
+		private final ManagedObjectReference mor;
+		private final String path;
+		private final long created;
+		private final int depth;
+		private final boolean current;
+		private final Set<String> datastores;
+		private long size;
+
+		private Snapshot(String vmName, String vmMOR, ManagedObjectReference mor, String path, long created,
+				int depth, boolean current, Set<String> datastores)
+		{
+			this.vmName = vmName;
+			this.vmMOR = vmMOR;
+			this.mor = mor;
+			this.path = path;
+			this.created = created;
+			this.depth = depth;
+			this.current = current;
+			this.datastores = datastores;
+		}
+	}
+	/**
+	 * The outcome of the removal of one snapshot.
+	 */
+	private static class Removal
+	{
+		private final Snapshot snapshot;
+		private String status;
+		private boolean success;
+		private long millis;
+
+		private Removal(Snapshot snapshot)
+		{
+			this.snapshot = snapshot;
+		}
+	}
+}
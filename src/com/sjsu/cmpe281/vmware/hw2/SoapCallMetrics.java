@@ -0,0 +1,420 @@
+package com.sjsu.cmpe281.vmware.hw2;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import com.sun.net.httpserver.HttpServer;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.ws.VimPortType;
+/**
+ * @author Pratik Pandey.
+ *
+ * This class records every SOAP call made to the vCenter Servers: the method, its latency as a histogram,
+ * the bytes sent and received and whether it failed, grouped by the command which caused it. Most calls
+ * are hidden behind the property getters of vijava, so they are recorded below vijava by an instrumented
+ * SOAP client. The figures are shown by the stats command and can be exported through JMX and as a
+ * Prometheus text endpoint on localhost.
+ */
+class SoapCallMetrics implements SoapCallMetricsMXBean
+{
+	/**
+	 * Used for logging purposes.
+	 */
+	private final Logger logger = Logger.getLogger(SoapCallMetrics.class.getName());
+	/**
+	 * Upper bounds of the latency buckets in seconds, the last bucket takes everything above.
+	 */
+	static final double[] BUCKET_SECONDS = { 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+	/**
+	 * The command of calls made outside of any command, like those of the inventory cache updater.
+	 */
+	static final String BACKGROUND = "background";
+	private static final String OBJECT_NAME = "com.sjsu.cmpe281.vmware.hw2:type=SoapCallMetrics";
+
+	private final Map<String, CallStats> callStats = new ConcurrentHashMap<String, CallStats>();
+	private final ThreadLocal<String> command = new ThreadLocal<String>();
+	/**
+	 * Bytes sent and received by the call in progress on the current thread.
+	 */
+	private final ThreadLocal<long[]> payloadBytes = ThreadLocal.withInitial(() -> new long[2]);
+	private HttpServer httpServer;
+	/**
+	 * This method is used to replace the SOAP client of the logged in service instance by one which
+	 * records the calls, schedules them with the request scheduler unless it is null and sends them through
+	 * the transport unless it is null. vijava offers no way to pass in a client, so the field is set by
+	 * reflection; if that fails the session keeps working uninstrumented.
+	 */
+	public void instrument(ServiceInstance serviceInstance, RequestScheduler requestScheduler, SoapTransport transport)
+	{
+		VimPortType vimService = serviceInstance.getServerConnection().getVimService();
+		try
+		{
+			if (vimService.getWsc() instanceof InstrumentedWSClient)
+			{
+				return;
+			}
+			Field field = VimPortType.class.getDeclaredField("wsc");
+			field.setAccessible(true);
+			field.set(vimService, new InstrumentedWSClient(vimService.getWsc(),
+					serviceInstance.getServiceContent().getAbout().getApiVersion(), this, requestScheduler, transport));
+		}
+		catch (ReflectiveOperationException | IOException | RuntimeException e)
+		{
+			logger.log(Level.WARNING, "SOAP calls cannot be measured: " + e.toString());
+		}
+	}
+	/**
+	 * This method is used to set the command the calls of the current thread are counted for, null for none.
+	 */
+	public void setCommand(String commandName)
+	{
+		if (commandName == null)
+		{
+			command.remove();
+		}
+		else
+		{
+			command.set(commandName);
+		}
+	}
+	/**
+	 * This method is used to @return the command the calls of the current thread are counted for, or null.
+	 */
+	public String getCommand()
+	{
+		return command.get();
+	}
+	/**
+	 * This method is used to count bytes sent by the call in progress on the current thread.
+	 */
+	void addRequestBytes(long bytes)
+	{
+		payloadBytes.get()[0] += bytes;
+	}
+	/**
+	 * This method is used to count bytes received by the call in progress on the current thread.
+	 */
+	void addResponseBytes(long bytes)
+	{
+		payloadBytes.get()[1] += bytes;
+	}
+	/**
+	 * This method is used to record a finished call of the current thread.
+	 */
+	void record(String method, long nanos, boolean failed)
+	{
+		long[] bytes = payloadBytes.get();
+		String commandName = command.get() == null ? BACKGROUND : command.get();
+		callStats.computeIfAbsent(commandName + "\t" + method, key -> new CallStats(commandName, method))
+				.add(nanos, failed, bytes[0], bytes[1]);
+		bytes[0] = 0;
+		bytes[1] = 0;
+	}
+	/**
+	 * This method is used to write one record per command and SOAP method, sorted by command and method.
+	 */
+	public void writeStats(ResponseSink responseSink)
+	{
+		if (callStats.isEmpty())
+		{
+			responseSink.add("No SOAP calls recorded");
+			return;
+		}
+		for (CallStats stats : getSortedStats())
+		{
+			responseSink.add(stats.toRecord());
+		}
+	}
+	/**
+	 * This method is used to @return all the figures in the Prometheus text exposition format.
+	 */
+	public String toPrometheus()
+	{
+		StringBuilder text = new StringBuilder();
+		text.append("# HELP vcenter_soap_calls_total SOAP calls made to the vCenter Servers.\n");
+		text.append("# TYPE vcenter_soap_calls_total counter\n");
+		text.append("# HELP vcenter_soap_call_errors_total SOAP calls which failed.\n");
+		text.append("# TYPE vcenter_soap_call_errors_total counter\n");
+		text.append("# HELP vcenter_soap_request_bytes_total Bytes sent to the vCenter Servers.\n");
+		text.append("# TYPE vcenter_soap_request_bytes_total counter\n");
+		text.append("# HELP vcenter_soap_response_bytes_total Bytes received from the vCenter Servers.\n");
+		text.append("# TYPE vcenter_soap_response_bytes_total counter\n");
+		text.append("# HELP vcenter_soap_call_duration_seconds Latency of the SOAP calls.\n");
+		text.append("# TYPE vcenter_soap_call_duration_seconds histogram\n");
+		for (CallStats stats : getSortedStats())
+		{
+			stats.appendPrometheus(text);
+		}
+		return text.toString();
+	}
+	/**
+	 * This method is used to register the metrics with the platform MBean server.
+	 */
+	public void registerMBean() throws JMException
+	{
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+		logger.log(Level.INFO, "SOAP call metrics registered as " + OBJECT_NAME);
+	}
+	/**
+	 * This method is used to serve the metrics in the Prometheus text format at
+	 * http://127.0.0.1:port/metrics.
+	 */
+	public void startHttpEndpoint(int port) throws IOException
+	{
+		httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		httpServer.createContext("/metrics", exchange -> {
+			byte[] response = toPrometheus().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, response.length);
+			try (OutputStream out = exchange.getResponseBody())
+			{
+				out.write(response);
+			}
+		});
+		httpServer.start();
+		logger.log(Level.INFO, "SOAP call metrics served on http://127.0.0.1:" + port + "/metrics");
+	}
+	/**
+	 * This method is used to stop the Prometheus endpoint and to unregister the MBean, if started.
+	 */
+	public void stop()
+	{
+		if (httpServer != null)
+		{
+			httpServer.stop(0);
+		}
+		try
+		{
+			ObjectName objectName = new ObjectName(OBJECT_NAME);
+			if (ManagementFactory.getPlatformMBeanServer().isRegistered(objectName))
+			{
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			}
+		}
+		catch (JMException e)
+		{
+			logger.log(Level.WARNING, "Could not unregister the SOAP call metrics: " + e.toString());
+		}
+	}
+
+	@Override
+	public long getCalls()
+	{
+		long calls = 0;
+		for (CallStats stats : callStats.values())
+		{
+			calls += stats.getCalls();
+		}
+		return calls;
+	}
+
+	@Override
+	public long getErrors()
+	{
+		long errors = 0;
+		for (CallStats stats : callStats.values())
+		{
+			errors += stats.getErrors();
+		}
+		return errors;
+	}
+
+	@Override
+	public long getTotalMillis()
+	{
+		long nanos = 0;
+		for (CallStats stats : callStats.values())
+		{
+			nanos += stats.getTotalNanos();
+		}
+		return nanos / 1000000;
+	}
+
+	@Override
+	public long getRequestBytes()
+	{
+		long bytes = 0;
+		for (CallStats stats : callStats.values())
+		{
+			bytes += stats.getRequestBytes();
+		}
+		return bytes;
+	}
+
+	@Override
+	public long getResponseBytes()
+	{
+		long bytes = 0;
+		for (CallStats stats : callStats.values())
+		{
+			bytes += stats.getResponseBytes();
+		}
+		return bytes;
+	}
+
+	@Override
+	public String[] getSummary()
+	{
+		List<String> lines = new ArrayList<String>();
+		for (CallStats stats : getSortedStats())
+		{
+			lines.add(stats.toRecord().toString());
+		}
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	@Override
+	public void reset()
+	{
+		callStats.clear();
+	}
+
+	private List<CallStats> getSortedStats()
+	{
+		return new ArrayList<CallStats>(new TreeMap<String, CallStats>(callStats).values());
+	}
+	/**
+	 * The figures of one SOAP method called by one command.
+	 */
+	private static class CallStats
+	{
+		private final String command;
+		private final String method;
+		private final long[] buckets = new long[BUCKET_SECONDS.length + 1];
+		private long calls;
+		private long errors;
+		private long totalNanos;
+		private long maxNanos;
+		private long requestBytes;
+		private long responseBytes;
+
+		private CallStats(String command, String method)
+		{
+			this.command = command;
+			this.method = method;
+		}
+
+		private synchronized void add(long nanos, boolean failed, long sent, long received)
+		{
+			int bucket = 0;
+			while (bucket < BUCKET_SECONDS.length && nanos > BUCKET_SECONDS[bucket] * 1e9)
+			{
+				bucket++;
+			}
+			buckets[bucket]++;
+			calls++;
+			errors += failed ? 1 : 0;
+			totalNanos += nanos;
+			maxNanos = Math.max(maxNanos, nanos);
+			requestBytes += sent;
+			responseBytes += received;
+		}
+
+		private synchronized long getCalls()
+		{
+			return calls;
+		}
+
+		private synchronized long getErrors()
+		{
+			return errors;
+		}
+
+		private synchronized long getTotalNanos()
+		{
+			return totalNanos;
+		}
+
+		private synchronized long getRequestBytes()
+		{
+			return requestBytes;
+		}
+
+		private synchronized long getResponseBytes()
+		{
+			return responseBytes;
+		}
+		/**
+		 * This method is used to @return the upper bound of the bucket holding the given percentile in
+		 * milliseconds, or the slowest call if that is above the last bound.
+		 */
+		private double getPercentileMillis(int percentile)
+		{
+			long rank = (long) Math.ceil(percentile / 100.0 * calls);
+			long count = 0;
+			for (int i = 0; i < BUCKET_SECONDS.length; i++)
+			{
+				count += buckets[i];
+				if (count >= rank)
+				{
+					return Math.min(BUCKET_SECONDS[i] * 1000, maxNanos / 1e6);
+				}
+			}
+			return maxNanos / 1e6;
+		}
+
+		private synchronized ResultRecord toRecord()
+		{
+			return new ResultRecord("soapCall", "call", -1)
+					.add("command", "Command", command)
+					.add("method", "Method", method)
+					.add("calls", "Calls", calls)
+					.add("errors", "Errors", errors)
+					.add("avgMs", "Avg", round(calls == 0 ? 0 : totalNanos / 1e6 / calls), " ms")
+					.add("p50Ms", "p50", round(getPercentileMillis(50)), " ms")
+					.add("p95Ms", "p95", round(getPercentileMillis(95)), " ms")
+					.add("p99Ms", "p99", round(getPercentileMillis(99)), " ms")
+					.add("maxMs", "Max", round(maxNanos / 1e6), " ms")
+					.add("requestBytes", "Sent", requestBytes, " bytes")
+					.add("responseBytes", "Received", responseBytes, " bytes");
+		}
+
+		private synchronized void appendPrometheus(StringBuilder text)
+		{
+			String labels = "command=\"" + escape(command) + "\",method=\"" + escape(method) + "\"";
+			text.append("vcenter_soap_calls_total{").append(labels).append("} ").append(calls).append('\n');
+			text.append("vcenter_soap_call_errors_total{").append(labels).append("} ").append(errors).append('\n');
+			text.append("vcenter_soap_request_bytes_total{").append(labels).append("} ").append(requestBytes).append('\n');
+			text.append("vcenter_soap_response_bytes_total{").append(labels).append("} ").append(responseBytes).append('\n');
+			long count = 0;
+			for (int i = 0; i < BUCKET_SECONDS.length; i++)
+			{
+				count += buckets[i];
+				text.append("vcenter_soap_call_duration_seconds_bucket{").append(labels).append(",le=\"")
+						.append(BUCKET_SECONDS[i]).append("\"} ").append(count).append('\n');
+			}
+			text.append("vcenter_soap_call_duration_seconds_bucket{").append(labels).append(",le=\"+Inf\"} ")
+					.append(calls).append('\n');
+			text.append("vcenter_soap_call_duration_seconds_sum{").append(labels).append("} ")
+					.append(totalNanos / 1e9).append('\n');
+			text.append("vcenter_soap_call_duration_seconds_count{").append(labels).append("} ").append(calls)
+					.append('\n');
+		}
+
+		/**
+		 * This method is used to @return the text as the value of a Prometheus label.
+		 */
+		private static String escape(String text)
+		{
+			return text.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+		}
+
+		private static double round(double millis)
+		{
+			return Math.round(millis * 100) / 100.0;
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package com.sjsu.cmpe281.vmware.hw2;
+/**
+ * @author Pratik Pandey.
+ *
+ * The management interface of the SOAP call metrics, registered with the platform MBean server under
+ * com.sjsu.cmpe281.vmware.hw2:type=SoapCallMetrics when the command line is started with -jmx=true.
+ */
+public interface SoapCallMetricsMXBean
+{
+	/**
+	 * This method is used to @return the number of SOAP calls made.
+	 */
+	long getCalls();
+	/**
+	 * This method is used to @return the number of SOAP calls which failed.
+	 */
+	long getErrors();
+	/**
+	 * This method is used to @return the time spent in SOAP calls in milliseconds.
+	 */
+	long getTotalMillis();
+	/**
+	 * This method is used to @return the number of bytes sent to the servers.
+	 */
+	long getRequestBytes();
+	/**
+	 * This method is used to @return the number of bytes received from the servers.
+	 */
+	long getResponseBytes();
+	/**
+	 * This method is used to @return one line per command and SOAP method, as shown by the stats command.
+	 */
+	String[] getSummary();
+	/**
+	 * This method is used to start counting from zero again.
+	 */
+	void reset();
+}
@@ -0,0 +1,279 @@
+package com.sjsu.cmpe281.vmware.hw2;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+/**
+ * @author Pratik Pandey.
+ *
+ * This class sends the SOAP calls in place of the stock transport of vijava, which encodes every request
+ * into a new array that the connection then copies into a buffer of its own, asks for the response
+ * uncompressed and leaves the JDK to keep at most 5 idle connections per server, so that with more calls
+ * in parallel the others are closed and opened again with new TCP and TLS handshakes. Here the request is
+ * encoded into a buffer kept per thread, the response is asked for gzip compressed and handed to the XML
+ * parser of vijava as it arrives, uncompressed on the way by an inflater kept per thread, the pool keeps
+ * as many idle connections as calls may be in progress, and every response is read up to its end when
+ * closed, so that its connection always goes back to the pool.
+ */
+class SoapTransport
+{
+	/**
+	 * Initial size of the request buffer of a thread, which grows to the largest request of the thread.
+	 */
+	private static final int INITIAL_BUFFER_SIZE = 8192;
+	private static final int GZIP_DEFLATE = 8;
+	private static final int GZIP_HEADER_CRC = 2;
+	private static final int GZIP_EXTRA = 4;
+	private static final int GZIP_NAME = 8;
+	private static final int GZIP_COMMENT = 16;
+
+	private final ThreadLocal<ByteBuffer> requestBuffers = ThreadLocal.withInitial(
+			() -> ByteBuffer.allocate(INITIAL_BUFFER_SIZE));
+	private final ThreadLocal<CharsetEncoder> encoders = ThreadLocal.withInitial(() -> StandardCharsets.UTF_8
+			.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE));
+	private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+	private final ThreadLocal<byte[]> drainBuffers = ThreadLocal.withInitial(() -> new byte[INITIAL_BUFFER_SIZE]);
+	private final AtomicLong calls = new AtomicLong();
+	private final AtomicLong compressedResponses = new AtomicLong();
+	/**
+	 * Used to keep up to the given number of idle connections per server (the JDK keeps 5 by default),
+	 * which has to be set before the JDK caches the first connection; an explicit http.maxConnections is
+	 * left alone.
+	 */
+	public SoapTransport(int idleConnections)
+	{
+		if (System.getProperty("http.maxConnections") == null)
+		{
+			System.setProperty("http.maxConnections", String.valueOf(Math.max(1, idleConnections)));
+		}
+	}
+	/**
+	 * This method is used to send the SOAP message and @return the stream of the response, uncompressed.
+	 * The cookie handler gets the session cookie if the server sets one, and the bytes on the wire are
+	 * counted in the call metrics unless they are null. A fault comes back as the stream of the response
+	 * too, as vijava expects.
+	 * @throws IOException if the server cannot be reached.
+	 */
+	public InputStream post(URL url, String soapAction, String cookie, String soapMsg, int connectTimeout,
+			int readTimeout, Consumer<String> cookieHandler, final SoapCallMetrics callMetrics) throws IOException
+	{
+		ByteBuffer request = encode(soapMsg);
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		if (connectTimeout > 0)
+		{
+			connection.setConnectTimeout(connectTimeout);
+		}
+		if (readTimeout > 0)
+		{
+			connection.setReadTimeout(readTimeout);
+		}
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setDoInput(true);
+		connection.setRequestProperty("SOAPAction", soapAction);
+		connection.setRequestProperty("Content-Type", "text/xml; charset=utf-8");
+		connection.setRequestProperty("Accept-Encoding", "gzip");
+		if (cookie != null)
+		{
+			connection.setRequestProperty("Cookie", cookie);
+		}
+		try (OutputStream out = connection.getOutputStream())
+		{
+			out.write(request.array(), request.position(), request.remaining());
+		}
+		if (callMetrics != null)
+		{
+			callMetrics.addRequestBytes(request.remaining());
+		}
+		calls.incrementAndGet();
+		InputStream in;
+		try
+		{
+			in = connection.getInputStream();
+		}
+		catch (IOException e)
+		{
+			in = connection.getErrorStream();
+			if (in == null)
+			{
+				throw e;
+			}
+		}
+		if (connection.getHeaderField("Set-Cookie") != null)
+		{
+			cookieHandler.accept(connection.getHeaderField("Set-Cookie"));
+		}
+		InputStream wire = new FilterInputStream(in)
+		{
+			@Override
+			public int read() throws IOException
+			{
+				int b = super.read();
+				if (b >= 0 && callMetrics != null)
+				{
+					callMetrics.addResponseBytes(1);
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] buffer, int offset, int length) throws IOException
+			{
+				int count = super.read(buffer, offset, length);
+				if (count > 0 && callMetrics != null)
+				{
+					callMetrics.addResponseBytes(count);
+				}
+				return count;
+			}
+
+			@Override
+			public void close() throws IOException
+			{
+				/*
+				 * The JDK only reuses a connection whose response has been read up to its end.
+				 */
+				try
+				{
+					byte[] drainBuffer = drainBuffers.get();
+					while (read(drainBuffer, 0, drainBuffer.length) > 0)
+					{
+					}
+				}
+				finally
+				{
+					super.close();
+				}
+			}
+		};
+		if ("gzip".equalsIgnoreCase(connection.getContentEncoding()))
+		{
+			compressedResponses.incrementAndGet();
+			return inflate(wire);
+		}
+		return wire;
+	}
+	/**
+	 * This method is used to @return the record describing the transport for the stats command.
+	 */
+	public ResultRecord getRecord()
+	{
+		return new ResultRecord("transport", "transport", -1)
+				.add("calls", "Calls", calls.get())
+				.add("compressed", "Compressed", compressedResponses.get())
+				.add("idleConnections", "Idle connections", System.getProperty("http.maxConnections"));
+	}
+	/**
+	 * This method is used to skip the gzip header of the response and @return the stream inflating the rest
+	 * with the inflater of the thread. The trailer is left to the wire stream, which reads it when closed.
+	 * @throws IOException if the response is not gzip compressed.
+	 */
+	private InputStream inflate(InputStream wire) throws IOException
+	{
+		if (readByte(wire) != 0x1f || readByte(wire) != 0x8b || readByte(wire) != GZIP_DEFLATE)
+		{
+			throw new IOException("The response is not gzip compressed");
+		}
+		int flags = readByte(wire);
+		skip(wire, 6);
+		if ((flags & GZIP_EXTRA) != 0)
+		{
+			skip(wire, readByte(wire) | readByte(wire) << 8);
+		}
+		if ((flags & GZIP_NAME) != 0)
+		{
+			while (readByte(wire) != 0)
+			{
+			}
+		}
+		if ((flags & GZIP_COMMENT) != 0)
+		{
+			while (readByte(wire) != 0)
+			{
+			}
+		}
+		if ((flags & GZIP_HEADER_CRC) != 0)
+		{
+			skip(wire, 2);
+		}
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		return new InflaterInputStream(wire, inflater, 2048)
+		{
+			@Override
+			public void close() throws IOException
+			{
+				/*
+				 * The inflater is kept for the next response of the thread, so only the wire stream is closed.
+				 */
+				in.close();
+			}
+		};
+	}
+	/**
+	 * This method is used to @return the next byte of the stream.
+	 * @throws IOException if the stream ends.
+	 */
+	private static int readByte(InputStream in) throws IOException
+	{
+		int b = in.read();
+		if (b < 0)
+		{
+			throw new IOException("The gzip header of the response is truncated");
+		}
+		return b;
+	}
+	/**
+	 * This method is used to skip the given number of bytes of the stream.
+	 * @throws IOException if the stream ends.
+	 */
+	private static void skip(InputStream in, int count) throws IOException
+	{
+		for (int i = 0; i < count; i++)
+		{
+			readByte(in);
+		}
+	}
+	/**
+	 * This method is used to encode the message as UTF-8 into the buffer of the thread, growing it if it is
+	 * too small, and @return the buffer ready to be read.
+	 */
+	private ByteBuffer encode(String soapMsg)
+	{
+		CharsetEncoder encoder = encoders.get();
+		ByteBuffer buffer = requestBuffers.get();
+		CharBuffer chars = CharBuffer.wrap(soapMsg);
+		while (true)
+		{
+			buffer.clear();
+			encoder.reset();
+			chars.rewind();
+			CoderResult result = encoder.encode(chars, buffer, true);
+			if (!result.isOverflow())
+			{
+				result = encoder.flush(buffer);
+			}
+			if (!result.isOverflow())
+			{
+				buffer.flip();
+				return buffer;
+			}
+			buffer = ByteBuffer.allocate(Math.max(buffer.capacity() * 2,
+					(int) (soapMsg.length() * encoder.maxBytesPerChar())));
+			requestBuffers.set(buffer);
+		}
+	}
+}
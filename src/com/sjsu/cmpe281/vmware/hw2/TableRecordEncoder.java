@@ -0,0 +1,83 @@
+package com.sjsu.cmpe281.vmware.hw2;
+
+import java.io.IOException;
+/**
+ * @author Pratik Pandey.
+ *
+ * This class writes the records as the human readable text the command line has always printed, e.g.,
+ * vm[0]: Name = demo-centos7-123, Power state = poweredOn, ... for a row, or one Field = value line per
+ * field for a detail record. Records of another server than the only one are prefixed by [server].
+ */
+class TableRecordEncoder implements RecordEncoder
+{
+	@Override
+	public void writeRecord(Appendable out, ResultRecord record) throws IOException
+	{
+		if (record.isRow())
+		{
+			appendEndpoint(out, record);
+			out.append(record.getRowLabel());
+			if (record.getIndex() >= 0)
+			{
+				out.append('[');
+				RecordEncoder.appendLong(out, record.getIndex());
+				out.append(']');
+			}
+			out.append(": ");
+			boolean first = true;
+			for (int field = 0; field < record.size(); field++)
+			{
+				if (record.getLabel(field) != null)
+				{
+					if (!first)
+					{
+						out.append(", ");
+					}
+					appendField(out, record, field);
+					first = false;
+				}
+			}
+			out.append(System.lineSeparator());
+		}
+		else
+		{
+			for (int field = 0; field < record.size(); field++)
+			{
+				if (record.getLabel(field) != null)
+				{
+					appendEndpoint(out, record);
+					appendField(out, record, field);
+					out.append(System.lineSeparator());
+				}
+			}
+		}
+	}
+
+	@Override
+	public void writeMessage(Appendable out, String message) throws IOException
+	{
+		out.append(message);
+		out.append(System.lineSeparator());
+	}
+
+	private static void appendField(Appendable out, ResultRecord record, int field) throws IOException
+	{
+		out.append(record.getLabel(field));
+		out.append(" = ");
+		RecordEncoder.appendValue(out, record.getValue(field));
+		if (record.getSuffix(field) != null)
+		{
+			out.append(record.getSuffix(field));
+		}
+	}
+
+	private static void appendEndpoint(Appendable out, ResultRecord record) throws IOException
+	{
+		if (record.getEndpoint() != null)
+		{
+			out.append('[');
+			out.append(record.getEndpoint());
+			out.append("] ");
+		}
+	}
+}
@@ -0,0 +1,428 @@
+package com.sjsu.cmpe281.vmware.hw2;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import com.vmware.vim25.InvalidProperty;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.ObjectUpdateKind;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.RuntimeFault;
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.WaitOptions;
+import com.vmware.vim25.mo.ListView;
+import com.vmware.vim25.mo.ManagedObject;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.Task;
+import com.vmware.vim25.mo.VirtualMachine;
+/**
+ * @author Pratik Pandey.
+ *
+ * This class waits for tasks to complete and for VMs to reach a power state without polling. All the
+ * watched objects are put in one ListView, which one filter on a dedicated PropertyCollector follows, and
+ * a single background thread long-polls that collector with WaitForUpdatesEx and wakes up the waiters
+ * whose property reached the expected value. So the waiters are notified as soon as the server reports
+ * the change, any number of outstanding operations share the one filter and the one long-poll, and a
+ * wait costs a single ModifyListView call: the objects no longer watched are only taken out of the view
+ * along with the next object put in, or by the background thread between two polls.
+ */
+class TaskCompletionTracker implements Runnable
+{
+	/**
+	 * Used for logging purposes.
+	 */
+	private final Logger logger = Logger.getLogger(TaskCompletionTracker.class.getName());
+	/**
+	 * Properties watched for tasks and VMs.
+	 */
+	private static final String[] TASK_PROPERTIES = { "info.state", "info.error", "info.completeTime" };
+	private static final String[] VM_PROPERTIES = { "runtime.powerState" };
+	private static final int MAX_WAIT_SECONDS = 20;
+	private static final long RETRY_DELAY_MILLIS = 1000;
+
+	private final ServiceInstance serviceInstance;
+	/**
+	 * Held while the list view is changed, which is a call to the server and so is not made holding the
+	 * lock of the tracker, which the background thread needs to hand over the updates.
+	 */
+	private final Object viewLock = new Object();
+	/**
+	 * The objects in the list view keyed by the value of their managed object reference, and the ones
+	 * among them which no longer have a waiter and are to be taken out of the view.
+	 */
+	private final Map<String, Watched> watchedByMOR = new HashMap<String, Watched>();
+	private final Set<String> unwatched = new LinkedHashSet<String>();
+
+	private PropertyCollector propertyCollector;
+	private ListView listView;
+	private Thread updateThread;
+	private volatile boolean running;
+	private volatile String version = "";
+
+	public TaskCompletionTracker(ServiceInstance serviceInstance)
+	{
+		this.serviceInstance = serviceInstance;
+	}
+	/**
+	 * This method is used to wait until the task has succeeded or failed and @return its info.state,
+	 * info.error and info.completeTime properties, or null if it did not complete within the timeout.
+	 * @throws InvalidProperty, RuntimeFault, RemoteException, InterruptedException
+	 */
+	public EntityProperties waitForTask(Task task, long timeoutMillis)
+			throws InvalidProperty, RuntimeFault, RemoteException, InterruptedException
+	{
+		return waitFor(task, "info.state", new String[] { "success", "error" }, timeoutMillis);
+	}
+	/**
+	 * This method is used to wait until the VM has reached the power state and @return its
+	 * runtime.powerState property, or null if it did not reach it within the timeout.
+	 * @throws InvalidProperty, RuntimeFault, RemoteException, InterruptedException
+	 */
+	public EntityProperties waitForPowerState(VirtualMachine virtualMachine, String powerState, long timeoutMillis)
+			throws InvalidProperty, RuntimeFault, RemoteException, InterruptedException
+	{
+		return waitFor(virtualMachine, "runtime.powerState", new String[] { powerState }, timeoutMillis);
+	}
+	/**
+	 * This method is used to stop the background thread, to release the collector and the view on the
+	 * server and to fail the waiters still waiting.
+	 */
+	public void stop()
+	{
+		synchronized (viewLock)
+		{
+			running = false;
+			if (propertyCollector == null)
+			{
+				return;
+			}
+			try
+			{
+				propertyCollector.cancelWaitForUpdates();
+				listView.destroyView();
+				propertyCollector.destroyPropertyCollector();
+			}
+			catch (RemoteException e)
+			{
+				logger.log(Level.WARNING, "Could not release the task tracker on the server: " + e.toString());
+			}
+			updateThread.interrupt();
+			propertyCollector = null;
+			listView = null;
+			synchronized (this)
+			{
+				failWaiters();
+				watchedByMOR.clear();
+				unwatched.clear();
+			}
+		}
+	}
+	/**
+	 * The background loop which long-polls the server for changes of all the watched objects.
+	 */
+	@Override
+	public void run()
+	{
+		WaitOptions waitOptions = new WaitOptions();
+		waitOptions.setMaxWaitSeconds(MAX_WAIT_SECONDS);
+		PropertyCollector collector = propertyCollector;
+		while (running)
+		{
+			try
+			{
+				UpdateSet updateSet = collector.waitForUpdatesEx(version, waitOptions);
+				if (updateSet != null)
+				{
+					dispatch(updateSet);
+				}
+				synchronized (viewLock)
+				{
+					if (running)
+					{
+						modifyView(null);
+					}
+				}
+			}
+			catch (RemoteException e)
+			{
+				if (!running)
+				{
+					break;
+				}
+				logger.log(Level.WARNING, "Task tracker update failed, retrying: " + e.toString());
+				if (!pauseBeforeRetry())
+				{
+					break;
+				}
+			}
+			catch (RuntimeException e)
+			{
+				if (!running)
+				{
+					break;
+				}
+				/*
+				 * The update may have been handed over only in part, so all the values are fetched again.
+				 */
+				logger.log(Level.WARNING, "Task tracker update failed, fetching all the values again", e);
+				version = "";
+				if (!pauseBeforeRetry())
+				{
+					break;
+				}
+			}
+		}
+		/*
+		 * Ended without stop, e.g. interrupted: the tracker is released so that its waiters fail at once and
+		 * the next wait starts it again. After a stop, the collector is gone or already a new one.
+		 */
+		synchronized (viewLock)
+		{
+			if (propertyCollector == collector)
+			{
+				stop();
+			}
+		}
+	}
+
+	private EntityProperties waitFor(ManagedObject managedObject, String property, String[] expectedValues,
+			long timeoutMillis) throws InvalidProperty, RuntimeFault, RemoteException, InterruptedException
+	{
+		Waiter waiter = new Waiter(property, expectedValues);
+		try
+		{
+			watch(managedObject, waiter);
+			if (!waiter.latch.await(timeoutMillis, TimeUnit.MILLISECONDS))
+			{
+				return null;
+			}
+			synchronized (this)
+			{
+				if (waiter.failed)
+				{
+					throw new RemoteException("The task tracker stopped before " + property + " was reached");
+				}
+				return new EntityProperties(waiter.watched.entity);
+			}
+		}
+		finally
+		{
+			unwatch(waiter);
+		}
+	}
+	/**
+	 * This method is used to register the waiter of the object and to put the object in the list view,
+	 * unless it is in it already, in which case the waiter is checked against the values known so far.
+	 * The waiter is registered before the object is put in, so that its first update cannot be missed.
+	 */
+	private void watch(ManagedObject managedObject, Waiter waiter) throws InvalidProperty, RuntimeFault, RemoteException
+	{
+		synchronized (viewLock)
+		{
+			startIfNeeded();
+			ManagedObject added = null;
+			synchronized (this)
+			{
+				String morValue = managedObject.getMOR().get_value();
+				Watched watched = watchedByMOR.get(morValue);
+				if (watched == null)
+				{
+					watched = new Watched(managedObject);
+					watchedByMOR.put(morValue, watched);
+					added = managedObject;
+				}
+				unwatched.remove(morValue);
+				watched.waiters.add(waiter);
+				waiter.watched = watched;
+				if (added == null && waiter.isDone())
+				{
+					waiter.latch.countDown();
+				}
+			}
+			if (added != null)
+			{
+				modifyView(added);
+			}
+		}
+	}
+	/**
+	 * This method is used to drop the waiter. Its object stays in the list view until the next change of
+	 * the view, so that dropping a waiter does not cost a call to the server.
+	 */
+	private synchronized void unwatch(Waiter waiter)
+	{
+		Watched watched = waiter.watched;
+		if (watched != null && watched.waiters.remove(waiter) && watched.waiters.isEmpty())
+		{
+			unwatched.add(watched.managedObject.getMOR().get_value());
+		}
+	}
+	/**
+	 * This method is used to put the object, unless it is null, in the list view and to take the objects
+	 * no longer watched out of it, in one call. Must be called holding the view lock.
+	 */
+	private void modifyView(ManagedObject added) throws RuntimeFault, RemoteException
+	{
+		List<ManagedObject> removed = new ArrayList<ManagedObject>();
+		synchronized (this)
+		{
+			for (String morValue : unwatched)
+			{
+				removed.add(watchedByMOR.remove(morValue).managedObject);
+			}
+			unwatched.clear();
+		}
+		if (added != null || !removed.isEmpty())
+		{
+			listView.modifyListView(added == null ? null : new ManagedObject[] { added },
+					removed.isEmpty() ? null : removed.toArray(new ManagedObject[removed.size()]));
+		}
+	}
+	/**
+	 * This method is used to create the collector, the list view and the one filter following it, and to
+	 * start the background thread, unless they are there already. Must be called holding the view lock.
+	 */
+	private void startIfNeeded() throws InvalidProperty, RuntimeFault, RemoteException
+	{
+		if (propertyCollector != null)
+		{
+			return;
+		}
+		PropertyCollector collector = serviceInstance.getPropertyCollector().createPropertyCollector();
+		ListView view = serviceInstance.getViewManager().createListView(new ManagedObject[0]);
+		PropertyFilterSpec filterSpec = new PropertyFilterSpec();
+		filterSpec.setObjectSet(new ObjectSpec[] { PropertyRetriever.createObjectSpec(view) });
+		filterSpec.setPropSet(new PropertySpec[] { PropertyRetriever.createPropertySpec("Task", TASK_PROPERTIES),
+				PropertyRetriever.createPropertySpec("VirtualMachine", VM_PROPERTIES) });
+		collector.createFilter(filterSpec, true);
+		propertyCollector = collector;
+		listView = view;
+		version = "";
+		running = true;
+		updateThread = new Thread(this, "task-completion-tracker");
+		updateThread.setDaemon(true);
+		updateThread.start();
+	}
+	/**
+	 * This method is used to wake up all the waiters with a failure once the background thread has ended,
+	 * so that they do not wait until their timeout.
+	 */
+	private synchronized void failWaiters()
+	{
+		for (Watched watched : watchedByMOR.values())
+		{
+			for (Waiter waiter : watched.waiters)
+			{
+				waiter.failed = true;
+				waiter.latch.countDown();
+			}
+		}
+	}
+	/**
+	 * This method is used to wait before the next attempt and @return false if the thread was interrupted
+	 * meanwhile.
+	 */
+	private boolean pauseBeforeRetry()
+	{
+		try
+		{
+			Thread.sleep(RETRY_DELAY_MILLIS);
+			return true;
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+	/**
+	 * This method is used to hand the changes of one update set to the watched objects and to wake up the
+	 * waiters which are done.
+	 */
+	private synchronized void dispatch(UpdateSet updateSet)
+	{
+		version = updateSet.getVersion();
+		if (updateSet.getFilterSet() == null)
+		{
+			return;
+		}
+		for (PropertyFilterUpdate filterUpdate : updateSet.getFilterSet())
+		{
+			if (filterUpdate.getObjectSet() == null)
+			{
+				continue;
+			}
+			for (ObjectUpdate objectUpdate : filterUpdate.getObjectSet())
+			{
+				Watched watched = watchedByMOR.get(objectUpdate.getObj().get_value());
+				if (watched == null || objectUpdate.getKind() == ObjectUpdateKind.leave || objectUpdate.getChangeSet() == null)
+				{
+					continue;
+				}
+				for (PropertyChange change : objectUpdate.getChangeSet())
+				{
+					watched.entity.put(change.getName(), change.getVal());
+				}
+				for (Waiter waiter : watched.waiters)
+				{
+					if (waiter.isDone())
+					{
+						waiter.latch.countDown();
+					}
+				}
+			}
+		}
+	}
+	/**
+	 * One object in the list view: its latest known values and its waiters.
+	 */
+	private static class Watched
+	{
+		private final ManagedObject managedObject;
+		private final EntityProperties entity;
+		private final List<Waiter> waiters = new ArrayList<Waiter>();
+
+		private Watched(ManagedObject managedObject)
+		{
+			this.managedObject = managedObject;
+			this.entity = new EntityProperties(managedObject.getMOR());
+		}
+	}
+	/**
+	 * One waiting caller: the property to check and the values which end the wait.
+	 */
+	private static class Waiter
+	{
+		private final String property;
+		private final Set<String> expectedValues;
+		private final CountDownLatch latch = new CountDownLatch(1);
+		private Watched watched;
+		private boolean failed;
+
+		private Waiter(String property, String[] expectedValues)
+		{
+			this.property = property;
+			this.expectedValues = new HashSet<String>(Arrays.asList(expectedValues));
+		}
+
+		private boolean isDone()
+		{
+			return expectedValues.contains(watched.entity.getString(property));
+		}
+	}
+}
@@ -0,0 +1,418 @@
+package com.sjsu.cmpe281.vmware.hw2;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import com.vmware.vim25.ManagedObjectReference;
+/**
+ * @author Pratik Pandey.
+ *
+ * This class is the graph of the hosts, VMs, networks (standard networks and distributed port groups),
+ * distributed switches and datastores, built from one bulk retrieval of each type. A VM is connected to
+ * its host, networks and datastores, a host to its networks and datastores, and a port group to its
+ * switch. The nodes are numbered, and the edges of all the nodes are kept in two int arrays (the
+ * neighbors of node n are neighbors[offsets[n]] up to neighbors[offsets[n + 1]]), so that the neighborhood
+ * and reachability queries only walk arrays, without any objects per edge.
+ */
+class TopologyGraph
+{
+	/**
+	 * Properties fetched in bulk for the graph.
+	 */
+	static final String[] HOST_PROPERTIES = { "name", "network", "datastore" };
+	static final String[] VM_PROPERTIES = { "name", "runtime.host", "network", "datastore" };
+	static final String[] NETWORK_PROPERTIES = { "name" };
+	static final String[] PORTGROUP_PROPERTIES = { "config.distributedVirtualSwitch" };
+	static final String[] SWITCH_PROPERTIES = { "name" };
+	static final String[] DATASTORE_PROPERTIES = { "name" };
+	/**
+	 * The kinds of nodes, by the word used for them on the command line.
+	 */
+	static final String[] KINDS = { "host", "vm", "network", "switch", "datastore" };
+	private static final String[] KIND_LABELS = { "Hosts", "VMs", "Networks", "Switches", "Datastores" };
+	private static final byte HOST = 0;
+	private static final byte VM = 1;
+	private static final byte NETWORK = 2;
+	private static final byte SWITCH = 3;
+	private static final byte DATASTORE = 4;
+
+	private final long builtMillis = System.currentTimeMillis();
+	private final long buildNanos;
+	private final Map<String, Integer> nodesByMOR = new HashMap<String, Integer>();
+	private final Map<String, int[]> nodesByName = new HashMap<String, int[]>();
+	private String[] names = new String[64];
+	private byte[] kinds = new byte[64];
+	private int nodeCount;
+	private int[] edgeEnds = new int[128];
+	private int edgeCount;
+	private final int[] offsets;
+	private final int[] neighbors;
+	/**
+	 * Work arrays of the queries, reused so that a query allocates nothing in proportion to the graph. A
+	 * node is marked by the current stamp, which makes clearing the marks unnecessary.
+	 */
+	private final int[] marks;
+	private final int[] queue;
+	private final int[] previous;
+	private int stamp;
+
+	public TopologyGraph(List<EntityProperties> hosts, List<EntityProperties> virtualMachines,
+			List<EntityProperties> networks, List<EntityProperties> portGroups, List<EntityProperties> switches,
+			List<EntityProperties> datastores)
+	{
+		long startTime = System.nanoTime();
+		addNodes(hosts, HOST);
+		addNodes(virtualMachines, VM);
+		addNodes(networks, NETWORK);
+		addNodes(switches, SWITCH);
+		addNodes(datastores, DATASTORE);
+		for (EntityProperties host : hosts)
+		{
+			addEdges(host, host.get("network"));
+			addEdges(host, host.get("datastore"));
+		}
+		for (EntityProperties virtualMachine : virtualMachines)
+		{
+			addEdges(virtualMachine, virtualMachine.get("runtime.host"));
+			addEdges(virtualMachine, virtualMachine.get("network"));
+			addEdges(virtualMachine, virtualMachine.get("datastore"));
+		}
+		for (EntityProperties portGroup : portGroups)
+		{
+			addEdges(portGroup, portGroup.get("config.distributedVirtualSwitch"));
+		}
+		/*
+		 * Every edge goes into the lists of both its ends: count the degrees, turn them into offsets and
+		 * fill the lists in place.
+		 */
+		offsets = new int[nodeCount + 1];
+		for (int i = 0; i < edgeCount * 2; i++)
+		{
+			offsets[edgeEnds[i] + 1]++;
+		}
+		for (int node = 0; node < nodeCount; node++)
+		{
+			offsets[node + 1] += offsets[node];
+		}
+		neighbors = new int[edgeCount * 2];
+		int[] fill = Arrays.copyOf(offsets, nodeCount);
+		for (int edge = 0; edge < edgeCount; edge++)
+		{
+			int from = edgeEnds[edge * 2];
+			int to = edgeEnds[edge * 2 + 1];
+			neighbors[fill[from]++] = to;
+			neighbors[fill[to]++] = from;
+		}
+		edgeEnds = null;
+		marks = new int[nodeCount];
+		queue = new int[nodeCount];
+		previous = new int[nodeCount];
+		buildNanos = System.nanoTime() - startTime;
+	}
+	/**
+	 * This method is used to @return the kind of node of the word, -1 for any, or throw if it is none.
+	 */
+	static int getKind(String word)
+	{
+		if (word == null || word.equals("*"))
+		{
+			return -1;
+		}
+		int kind = Arrays.asList(KINDS).indexOf(word.toLowerCase());
+		if (kind < 0)
+		{
+			throw new IllegalArgumentException("There is no kind " + word + ", the kinds are " + Arrays.toString(KINDS));
+		}
+		return kind;
+	}
+	/**
+	 * This method is used to write the number of nodes of every kind and of edges.
+	 */
+	public void writeStats(ResponseSink responseSink)
+	{
+		int[] counts = new int[KINDS.length];
+		for (int node = 0; node < nodeCount; node++)
+		{
+			counts[kinds[node]]++;
+		}
+		ResultRecord record = new ResultRecord("topologyStats");
+		for (int kind = 0; kind < KINDS.length; kind++)
+		{
+			record.add(KINDS[kind] + "s", KIND_LABELS[kind], counts[kind]);
+		}
+		responseSink.add(record
+				.add("edges", "Edges", neighbors.length / 2)
+				.add("buildMillis", "Built in", buildNanos / 1000000.0, " ms")
+				.add("ageSeconds", "Age", (System.currentTimeMillis() - builtMillis) / 1000, " s"));
+	}
+	/**
+	 * This method is used to write the nodes of the given kind (-1 for any) directly connected to a node of
+	 * the given name, e.g., the VMs sharing a port group, and @return false if there is no such node.
+	 */
+	public synchronized boolean writeNeighbors(String name, int kind, ResponseSink responseSink)
+	{
+		int[] sources = nodesByName.get(name);
+		if (sources == null)
+		{
+			return false;
+		}
+		long startTime = System.nanoTime();
+		int count = 0;
+		stamp++;
+		for (int source : sources)
+		{
+			marks[source] = stamp;
+		}
+		for (int source : sources)
+		{
+			for (int i = offsets[source]; i < offsets[source + 1]; i++)
+			{
+				int node = neighbors[i];
+				if (marks[node] != stamp && (kind < 0 || kinds[node] == kind))
+				{
+					marks[node] = stamp;
+					queue[count++] = node;
+				}
+			}
+		}
+		writeNodes(count, startTime, responseSink);
+		return true;
+	}
+	/**
+	 * This method is used to write the nodes of the given kind (-1 for any) reachable from a node of the
+	 * given name in at most maxDepth steps (0 for any number), e.g., all the datastores a VM can get to
+	 * through its host, and @return false if there is no such node.
+	 */
+	public synchronized boolean writeReachable(String name, int kind, int maxDepth, ResponseSink responseSink)
+	{
+		int[] sources = nodesByName.get(name);
+		if (sources == null)
+		{
+			return false;
+		}
+		long startTime = System.nanoTime();
+		int end = search(sources, -1, maxDepth);
+		/*
+		 * The queue holds the nodes in the order they were reached, the sources first; only the ones of the
+		 * kind asked for are kept, moved to the front.
+		 */
+		int count = 0;
+		for (int i = sources.length; i < end; i++)
+		{
+			if (kind < 0 || kinds[queue[i]] == kind)
+			{
+				queue[count++] = queue[i];
+			}
+		}
+		writeNodes(count, startTime, responseSink);
+		return true;
+	}
+	/**
+	 * This method is used to write the nodes of the given kind not directly connected to any node of the
+	 * given name, e.g., the hosts lacking a network, and @return false if there is no such node.
+	 */
+	public synchronized boolean writeLacking(int kind, String name, ResponseSink responseSink)
+	{
+		int[] targets = nodesByName.get(name);
+		if (targets == null)
+		{
+			return false;
+		}
+		long startTime = System.nanoTime();
+		stamp++;
+		for (int target : targets)
+		{
+			for (int i = offsets[target]; i < offsets[target + 1]; i++)
+			{
+				marks[neighbors[i]] = stamp;
+			}
+		}
+		int count = 0;
+		for (int node = 0; node < nodeCount; node++)
+		{
+			if (kinds[node] == kind && marks[node] != stamp)
+			{
+				queue[count++] = node;
+			}
+		}
+		writeNodes(count, startTime, responseSink);
+		return true;
+	}
+	/**
+	 * This method is used to write a shortest path from a node of the first name to one of the second
+	 * name, and @return false if there is no node of one of the names.
+	 */
+	public synchronized boolean writePath(String fromName, String toName, ResponseSink responseSink)
+	{
+		int[] sources = nodesByName.get(fromName);
+		int[] targets = nodesByName.get(toName);
+		if (sources == null || targets == null)
+		{
+			return false;
+		}
+		long startTime = System.nanoTime();
+		stamp++;
+		int targetStamp = stamp;
+		for (int target : targets)
+		{
+			marks[target] = targetStamp;
+		}
+		int end = search(sources, targetStamp, 0);
+		int last = end > 0 ? queue[end - 1] : -1;
+		if (last < 0 || !contains(targets, last))
+		{
+			responseSink.add("There is no path from " + fromName + " to " + toName);
+			return true;
+		}
+		int count = 0;
+		for (int node = last; node >= 0; node = previous[node])
+		{
+			queue[count++] = node;
+		}
+		for (int i = 0; i < count / 2; i++)
+		{
+			int node = queue[i];
+			queue[i] = queue[count - 1 - i];
+			queue[count - 1 - i] = node;
+		}
+		writeNodes(count, startTime, responseSink);
+		return true;
+	}
+	/**
+	 * This method is used to search breadth first from the sources, leaving the nodes reached in the queue
+	 * in the order they were reached, with the node each one was reached from in previous. The search stops
+	 * after maxDepth steps unless it is 0, and at the first node marked with the target stamp unless it is
+	 * -1, which is then the last one in the queue. @return the number of nodes in the queue.
+	 */
+	private int search(int[] sources, int targetStamp, int maxDepth)
+	{
+		stamp++;
+		int end = 0;
+		for (int source : sources)
+		{
+			if (marks[source] == targetStamp)
+			{
+				previous[source] = -1;
+				queue[end++] = source;
+				return end;
+			}
+			if (marks[source] != stamp)
+			{
+				marks[source] = stamp;
+				previous[source] = -1;
+				queue[end++] = source;
+			}
+		}
+		int head = 0;
+		for (int depth = 1; head < end && (maxDepth == 0 || depth <= maxDepth); depth++)
+		{
+			int levelEnd = end;
+			for (; head < levelEnd; head++)
+			{
+				int node = queue[head];
+				for (int i = offsets[node]; i < offsets[node + 1]; i++)
+				{
+					int next = neighbors[i];
+					if (marks[next] == stamp)
+					{
+						continue;
+					}
+					boolean target = marks[next] == targetStamp;
+					marks[next] = stamp;
+					previous[next] = node;
+					queue[end++] = next;
+					if (target)
+					{
+						return end;
+					}
+				}
+			}
+		}
+		return targetStamp == -1 ? end : 0;
+	}
+
+	private static boolean contains(int[] nodes, int node)
+	{
+		for (int candidate : nodes)
+		{
+			if (candidate == node)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+	/**
+	 * This method is used to write the first count nodes of the queue, followed by the time the query took.
+	 */
+	private void writeNodes(int count, long startTime, ResponseSink responseSink)
+	{
+		long queryNanos = System.nanoTime() - startTime;
+		for (int i = 0; i < count; i++)
+		{
+			responseSink.add(new ResultRecord("node", "node", i)
+					.add("name", "Name", names[queue[i]])
+					.add("kind", "Kind", KINDS[kinds[queue[i]]]));
+		}
+		responseSink.add(count + " node(s) in " + String.format("%.3f", queryNanos / 1000000.0) + " ms");
+	}
+
+	private void addNodes(List<EntityProperties> entities, byte kind)
+	{
+		for (EntityProperties entity : entities)
+		{
+			String morValue = entity.getMOR().get_value();
+			if (nodesByMOR.containsKey(morValue))
+			{
+				continue;
+			}
+			if (nodeCount == names.length)
+			{
+				names = Arrays.copyOf(names, nodeCount * 2);
+				kinds = Arrays.copyOf(kinds, nodeCount * 2);
+			}
+			String name = entity.getName() == null ? morValue : entity.getName();
+			names[nodeCount] = name;
+			kinds[nodeCount] = kind;
+			nodesByMOR.put(morValue, nodeCount);
+			int[] sameName = nodesByName.get(name);
+			if (sameName == null)
+			{
+				nodesByName.put(name, new int[] { nodeCount });
+			}
+			else
+			{
+				int[] nodes = Arrays.copyOf(sameName, sameName.length + 1);
+				nodes[sameName.length] = nodeCount;
+				nodesByName.put(name, nodes);
+			}
+			nodeCount++;
+		}
+	}
+	/**
+	 * This method is used to connect the entity to every node referenced by the value, a reference or an
+	 * array of them. References to entities outside the graph are left out.
+	 */
+	private void addEdges(EntityProperties entity, Object value)
+	{
+		Integer from = nodesByMOR.get(entity.getMOR().get_value());
+		ManagedObjectReference[] references = value instanceof ManagedObjectReference
+				? new ManagedObjectReference[] { (ManagedObjectReference) value } : CapacityReport.getReferences(value);
+		for (ManagedObjectReference reference : references)
+		{
+			Integer to = nodesByMOR.get(reference.get_value());
+			if (from == null || to == null)
+			{
+				continue;
+			}
+			if (edgeCount * 2 == edgeEnds.length)
+			{
+				edgeEnds = Arrays.copyOf(edgeEnds, edgeEnds.length * 2);
+			}
+			edgeEnds[edgeCount * 2] = from;
+			edgeEnds[edgeCount * 2 + 1] = to;
+			edgeCount++;
+		}
+	}
+}
@@ -1,17 +1,29 @@
 package com.sjsu.cmpe281.vmware.hw2;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
 import java.net.MalformedURLException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.rmi.RemoteException;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 import com.vmware.vim25.InvalidPowerState;
 import com.vmware.vim25.RuntimeFault;
-import com.vmware.vim25.mo.Folder;
+import com.vmware.vim25.TaskInfoState;
 import com.vmware.vim25.mo.ServiceInstance;
 /**
  * @author Pratik Pandey.
@@ -27,13 +39,38 @@ public class VCenterServerCommandLine
 	 */
 	private Logger logger = Logger.getLogger(VCenterServerCommandLine.class.getName());
 	/**
-	 * To store the object of root folder.
+	 * To store the sessions of all the vCenter Servers.
 	 */
-	private Folder cloudServerFolder;
+	private CloudServerPool cloudServerPool;
 	/**
-	 * To store the object of service instance.
+	 * To store the simulated vCenter Servers started with -simulate=..., if any.
 	 */
-	private ServiceInstance serviceInstance;
+	private final List<VCenterSimulator> simulators = new ArrayList<VCenterSimulator>();
+	/**
+	 * Set to stop the running watch commands.
+	 */
+	private final AtomicBoolean watchStopped = new AtomicBoolean();
+	/**
+	 * To record the SOAP calls made to all the servers.
+	 */
+	private final SoapCallMetrics callMetrics = new SoapCallMetrics();
+	/**
+	 * To run the power operations, and the commands ending with &, in the background.
+	 */
+	private final JobManager jobManager = new JobManager(this::executeCommand);
+	/**
+	 * The transport of the SOAP calls to all the servers, null with -transport=vijava.
+	 */
+	private SoapTransport soapTransport;
+	/**
+	 * Set when the commands are answered from the inventory snapshots without connecting.
+	 */
+	private boolean offline;
+	/**
+	 * The name of the inventory snapshot files in the snapshot directory.
+	 */
+	private static final String SNAPSHOT_PREFIX = "inventory-";
+	private static final String SNAPSHOT_SUFFIX = ".snapshot";
 
 	public static void main(String[] args) throws Exception
 	{
@@ -49,7 +86,6 @@ public class VCenterServerCommandLine
 	private void startExecution(String[] args) throws RuntimeFault, RemoteException
 	{
 		Scanner scanner = new Scanner(System.in);
-		CloudServer cloudServer = null;
 		String value = null;
 		try
 		{
@@ -58,103 +94,111 @@ public class VCenterServerCommandLine
 			String ipAddress = getValue("-ip=", args);
 			String username = getValue("-username=", args);
 			String password = getValue("-password=", args);
+			String format = getFormat(args);
+			RecordEncoder.forFormat(format);
+			offline = Boolean.parseBoolean(getValue("-offline=", args)) || getValue("--offline", args) != null;
+			File snapshotDirectory = getSnapshotDirectory(args);
 			
-			cloudServer = instantiateCloudServer(ipAddress, username, password, args);
-			if (cloudServer != null)
+			List<CloudSession> sessions;
+			if (offline)
+			{
+				sessions = createOfflineSessions(ipAddress, snapshotDirectory);
+			}
+			else
 			{
-				cloudServerFolder = cloudServer.getCloudServerRootFolder();
-				serviceInstance = cloudServer.getServerInstance();			
+				List<CloudServer> cloudServers = getValue("-simulate=", args) == null
+						? instantiateCloudServers(ipAddress, username, password, args)
+						: startSimulators(getValue("-simulate=", args));
+				sessions = createSessions(cloudServers, snapshotDirectory, args);
 			}
+			startMetricsExport(args);
+			cloudServerPool = new CloudServerPool(sessions, callMetrics);
+			cloudServerPool.open();
 			
-			System.out.println("Successfully connected to vCenter Server!");
-			System.out.println("Pratik-256>");
+			if (offline)
+			{
+				System.out.println("Working offline on the inventory snapshots of " + cloudServerPool.size() + " vCenter Server(s)!");
+			}
+			else
+			{
+				System.out.println("Connecting to " + cloudServerPool.size() + " vCenter Server(s) in the background!");
+			}
+			if (getValue("-script=", args) != null)
+			{
+				runScript(getValue("-script=", args), format, args);
+				return;
+			}
+			/*
+			 * The time to the first prompt, from the start of the JVM, as the logins no longer hold it up.
+			 */
+			logger.log(Level.INFO, "Prompt ready after " + (System.currentTimeMillis()
+					- ManagementFactory.getRuntimeMXBean().getStartTime()) + " ms");
+			printPrompt();
 			value = scanner.nextLine();
-			CloudServerCommand cloudServerCommand = new CloudServerCommand(cloudServerFolder, serviceInstance);
-			do
+			boolean timing = Boolean.parseBoolean(getValue("-timing=", args));
+			while (!value.equalsIgnoreCase("exit"))
 			{
-				String command = value;
-				String[] cmdArrray = command.split(" ");
-				List<String> responseList = new ArrayList<String>();
-				boolean ipFlag = false;
 				/*
-				 * Performing various operations based on inputs as commands.
+				 * --format=... after a command overrides the output format of the session for that command.
 				 */
-				if (cmdArrray[0].equalsIgnoreCase("help"))
+				String[] cmdArrray = value.split(" ");
+				String commandFormat = getValue("--format=", cmdArrray) == null ? format : getValue("--format=", cmdArrray);
+				RecordEncoder recordEncoder;
+				try
 				{
-					responseList = cloudServerCommand.getHelpResponse();
+					recordEncoder = RecordEncoder.forFormat(commandFormat);
 				}
-				else if (cmdArrray[0].equalsIgnoreCase("vm"))
+				catch (IllegalArgumentException e)
 				{
-					if (cmdArrray.length > 2)
-					{
-						String vmName = cmdArrray[1];
-						if (cmdArrray[2].equalsIgnoreCase("info"))
-						{
-							responseList = cloudServerCommand.getVMInfo(vmName);
-						}
-						else if (cmdArrray[2].equalsIgnoreCase("on"))
-						{
-							responseList = cloudServerCommand.startVM(vmName);
-						}
-						else if (cmdArrray[2].equalsIgnoreCase("off"))
-						{
-							responseList = cloudServerCommand.stopVM(vmName);
-						}
-						else if (cmdArrray[2].equalsIgnoreCase("shutdown"))
-						{
-							responseList = cloudServerCommand.shutdownVM(vmName);
-						}
-						else
-						{
-							System.out.println("Invalid Command, try again!!");
-						}
-					}
-					else
-					{
-						responseList = cloudServerCommand.getAllVMList();
-					}
+					System.out.println(e.getMessage());
+					printPrompt();
+					value = scanner.nextLine();
+					continue;
 				}
-				else if (cmdArrray[0].equalsIgnoreCase("host"))
+				ConsoleResponseSink responseSink = new ConsoleResponseSink(System.out, recordEncoder);
+				String command = value.replaceAll("\\s*--format=\\S*", "");
+				try
 				{
-					if (cmdArrray.length > 2)
+					if (cmdArrray[0].equalsIgnoreCase("watch") || cmdArrray[0].equalsIgnoreCase("wait")
+							|| (cmdArrray[0].equalsIgnoreCase("perf") && getValue("-seconds=", cmdArrray) != null))
 					{
-						String hostName = cmdArrray[1];
-						ipFlag = cloudServerCommand.checkIPAddress(hostName);
-						if(ipFlag){
-							if (cmdArrray[2].equalsIgnoreCase("info"))
-							{
-								responseList = cloudServerCommand.getHostInfo(hostName);
-							}
-							else if (cmdArrray[2].equalsIgnoreCase("datastore"))
-							{
-								responseList = cloudServerCommand.getHostDataStores(hostName);
-							}
-							else if (cmdArrray[2].equalsIgnoreCase("network")) 
-							{
-								responseList = cloudServerCommand.getHostNetworks(hostName);
-							}
-							else
-							{
-								System.out.println("Invalid Command, try again!!");
-							}
-						}else{
-							System.out.println("Invalid Host IP Address "+hostName);
-						}
+						executeUntilEnter(command, responseSink, scanner);
+					}
+					else if (isBackgroundCommand(command))
+					{
+						JobManager.Job job = jobManager.submit(command.replaceAll("\\s*&$", ""));
+						responseSink.add("[" + job.getId() + "] started: " + job.getCommand());
 					}
 					else
 					{
-						responseList = cloudServerCommand.getAllHostList();
+						executeCommand(command, responseSink);
 					}
 				}
-				else if (cmdArrray[0].equalsIgnoreCase("exit"))
+				catch (IllegalArgumentException e)
 				{
-					break;
+					/*
+					 * A bad argument only fails its own command, the session goes on.
+					 */
+					responseSink.add("Invalid Command due to \"" + e.toString() + "\", try again!!");
 				}
-				printResponse(responseList);
-				System.out.println("Pratik-256>");
+				finally
+				{
+					responseSink.flush();
+				}
+				if (timing)
+				{
+					/*
+					 * The timing is no part of a machine readable response, so it goes to the error stream then.
+					 */
+					(recordEncoder instanceof TableRecordEncoder ? System.out : System.err).println(responseSink.getTiming());
+				}
+				printPrompt();
 				value = scanner.nextLine();
 			}
-			while (!value.equalsIgnoreCase("exit"));
+			if (jobManager.getRunningCount() > 0)
+			{
+				System.out.println("Cancelling " + jobManager.getRunningCount() + " running job(s)");
+			}
 
 		}catch(InvalidPowerState e){
 			SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy HH:mm:ss");
@@ -180,8 +224,11 @@ public class VCenterServerCommandLine
 			System.out.println();
 			try
 			{
-				System.out.println("Time : "+sdf.format(serviceInstance.currentTime().getTime())+" when error occurred.");
-				
+				ServiceInstance serviceInstance = getConnectedServiceInstance();
+				if (serviceInstance != null)
+				{
+					System.out.println("Time : "+sdf.format(serviceInstance.currentTime().getTime())+" when error occurred.");
+				}
 			}
 			catch (RuntimeFault e1)
 			{
@@ -203,71 +250,799 @@ public class VCenterServerCommandLine
 			System.out.println("The last attempted operation cannot be performed due to \"" 
 					+ ex.toString() + "\"\nerror occurred.");
 			System.out.println();
-			System.out.println("Time : "+sdf.format(serviceInstance.currentTime().getTime())+" when error occurred.");
-			System.out.println();
+			ServiceInstance serviceInstance = getConnectedServiceInstance();
+			if (serviceInstance != null)
+			{
+				System.out.println("Time : "+sdf.format(serviceInstance.currentTime().getTime())+" when error occurred.");
+				System.out.println();
+			}
 		}
 		finally
 		{
 			System.out.println("********************************************************************************************");
 			System.out.println("********************************************************************************************");
 			scanner.close();
-			if (cloudServer != null)
+			jobManager.stop();
+			if (cloudServerPool != null)
 			{
-				cloudServer.logoutFromCloudService();
+				cloudServerPool.close();
 			}
+			for (VCenterSimulator simulator : simulators)
+			{
+				simulator.stop();
+			}
+			callMetrics.stop();
 			System.out.println("Thank you for using Pratik's VCenter Command Line Server!! GoodBye!!");
 		}
 	}
+	/**
+	 * This method is used to perform the operation of one command and to write its response to the
+	 * response sink. It is safe to call for several read commands at the same time.
+	 */
+	void executeCommand(String command, ResponseSink responseSink) throws Exception
+	{
+		callMetrics.setCommand(getCommandName(command.split(" ")));
+		try
+		{
+			dispatchCommand(command, responseSink);
+		}
+		finally
+		{
+			callMetrics.setCommand(null);
+		}
+	}
+	/**
+	 * This method is used to perform the operation of one command.
+	 */
+	private void dispatchCommand(String command, ResponseSink responseSink) throws Exception
+	{
+		final CloudServerPool pool = cloudServerPool;
+		final String[] cmdArrray = command.split(" ");
+		boolean ipFlag = false;
+		if (offline && !isOfflineCommand(cmdArrray))
+		{
+			responseSink.add("Not available offline, only help, vm, vm vname info, host, search, cache stats and stats are");
+			return;
+		}
+		/*
+		 * Performing various operations based on inputs as commands. Listings go to all the
+		 * servers, commands on one VM or host go to the server which has it.
+		 */
+		if (cmdArrray[0].equalsIgnoreCase("help"))
+		{
+			CloudServerCommand.getHelpResponse(responseSink);
+		}
+		else if (cmdArrray[0].equalsIgnoreCase("vm"))
+		{
+			if (cmdArrray.length > 2 && isPowerOperation(cmdArrray[1]))
+			{
+				final Integer concurrency = getIntValue("-parallel=", cmdArrray, BatchPowerOperation.DEFAULT_CONCURRENCY, 1,
+						responseSink);
+				if (concurrency == null)
+				{
+					return;
+				}
+				pool.fanOut((cloudServerCommand, sink) -> {
+					BatchPowerOperation batchPowerOperation = new BatchPowerOperation(cloudServerCommand,
+							cmdArrray[1], concurrency);
+					batchPowerOperation.execute(batchPowerOperation.resolveTargets(cmdArrray[2], pool.size() > 1), sink);
+				}, responseSink);
+			}
+			else if (cmdArrray.length > 2 && cmdArrray[2].equalsIgnoreCase("info") && getValue("--export", cmdArrray) != null)
+			{
+				pool.fanOut((CloudSession.ReadCommand) (cloudServerCommand, sink) -> cloudServerCommand.exportVMInfo(cmdArrray[1], sink),
+						responseSink);
+			}
+			else if (cmdArrray.length > 2 && cmdArrray[2].equalsIgnoreCase("info") && SearchIndex.Query.isPattern(cmdArrray[1]))
+			{
+				pool.fanOut((CloudSession.ReadCommand) (cloudServerCommand, sink) -> {
+					for (String vmName : cloudServerCommand.findVMNames(cmdArrray[1]))
+					{
+						cloudServerCommand.getVMInfo(vmName, sink);
+					}
+				}, responseSink);
+			}
+			else if (cmdArrray.length > 2)
+			{
+				final String vmName = cmdArrray[1];
+				CloudSession session = pool.route("VirtualMachine", vmName);
+				if (cmdArrray[2].equalsIgnoreCase("info"))
+				{
+					session.execute((CloudSession.ReadCommand) (cloudServerCommand, sink) -> cloudServerCommand.getVMInfo(vmName, sink),
+							responseSink);
+				}
+				else if (cmdArrray[2].equalsIgnoreCase("on"))
+				{
+					session.execute((cloudServerCommand, sink) -> cloudServerCommand.startVM(vmName, sink), responseSink);
+				}
+				else if (cmdArrray[2].equalsIgnoreCase("off"))
+				{
+					session.execute((cloudServerCommand, sink) -> cloudServerCommand.stopVM(vmName, sink), responseSink);
+				}
+				else if (cmdArrray[2].equalsIgnoreCase("shutdown"))
+				{
+					session.execute((cloudServerCommand, sink) -> cloudServerCommand.shutdownVM(vmName, sink), responseSink);
+				}
+				else
+				{
+					responseSink.add("Invalid Command, try again!!");
+				}
+			}
+			else
+			{
+				pool.fanOut((CloudSession.ReadCommand) (cloudServerCommand, sink) -> cloudServerCommand.getAllVMList(sink), responseSink);
+			}
+		}
+		else if (cmdArrray[0].equalsIgnoreCase("host"))
+		{
+			if (cmdArrray.length > 2)
+			{
+				final String hostName = cmdArrray[1];
+				ipFlag = pool.getPrimary().getCommand().checkIPAddress(hostName);
+				if(ipFlag){
+					CloudSession session = pool.route("HostSystem", hostName);
+					if (cmdArrray[2].equalsIgnoreCase("info"))
+					{
+						session.execute((cloudServerCommand, sink) -> cloudServerCommand.getHostInfo(hostName, sink), responseSink);
+					}
+					else if (cmdArrray[2].equalsIgnoreCase("datastore"))
+					{
+						session.execute((cloudServerCommand, sink) -> cloudServerCommand.getHostDataStores(hostName, sink), responseSink);
+					}
+					else if (cmdArrray[2].equalsIgnoreCase("network")) 
+					{
+						session.execute((cloudServerCommand, sink) -> cloudServerCommand.getHostNetworks(hostName, sink), responseSink);
+					}
+					else
+					{
+						responseSink.add("Invalid Command, try again!!");
+					}
+				}else{
+					responseSink.add("Invalid Host IP Address "+hostName);
+				}
+			}
+			else
+			{
+				pool.fanOut((CloudSession.ReadCommand) (cloudServerCommand, sink) -> cloudServerCommand.getAllHostList(sink), responseSink);
+			}
+		}
+		else if (cmdArrray[0].equalsIgnoreCase("watch"))
+		{
+			if (cmdArrray.length > 1 && (cmdArrray[1].equalsIgnoreCase("vm") || cmdArrray[1].equalsIgnoreCase("host")))
+			{
+				final String type = cmdArrray[1].equalsIgnoreCase("vm") ? "VirtualMachine" : "HostSystem";
+				final String filter = cmdArrray.length > 2 && !cmdArrray[2].startsWith("-") ? cmdArrray[2] : null;
+				final Integer maxChanges = getIntValue("-count=", cmdArrray, 0, 0, responseSink);
+				final Integer seconds = getIntValue("-seconds=", cmdArrray, 0, 0, responseSink);
+				if (maxChanges == null || seconds == null)
+				{
+					return;
+				}
+				pool.fanOut((cloudServerCommand, sink) -> cloudServerCommand.watch(type, filter, maxChanges, seconds * 1000L,
+						watchStopped, sink), responseSink);
+			}
+			else
+			{
+				responseSink.add("Invalid Command, try again!!");
+			}
+		}
+		else if (cmdArrray[0].equalsIgnoreCase("perf"))
+		{
+			if (cmdArrray.length > 2 && (cmdArrray[1].equalsIgnoreCase("vm") || cmdArrray[1].equalsIgnoreCase("host")))
+			{
+				final String type = cmdArrray[1].equalsIgnoreCase("vm") ? "VirtualMachine" : "HostSystem";
+				String[] counters = PerformanceSampler.DEFAULT_COUNTERS;
+				int interval = PerformanceSampler.REALTIME_INTERVAL;
+				for (int i = 3; i < cmdArrray.length; i++)
+				{
+					if (cmdArrray[i].matches("\\d+"))
+					{
+						interval = Integer.parseInt(cmdArrray[i]);
+					}
+					else if (!cmdArrray[i].startsWith("-"))
+					{
+						counters = cmdArrray[i].split(",");
+					}
+				}
+				final String[] counterNames = counters;
+				final int intervalSeconds = interval;
+				final Integer seconds = getIntValue("-seconds=", cmdArrray, -1, 0, responseSink);
+				if (seconds == null)
+				{
+					return;
+				}
+				pool.fanOut((cloudServerCommand, sink) -> cloudServerCommand.samplePerformance(type, cmdArrray[2],
+						counterNames, intervalSeconds, seconds < 0 ? -1 : seconds * 1000L, watchStopped, sink), responseSink);
+			}
+			else
+			{
+				responseSink.add("Invalid Command, try again!!");
+			}
+		}
+		else if (cmdArrray[0].equalsIgnoreCase("search"))
+		{
+			final String hostName = getValue("-host=", cmdArrray);
+			final String query = cmdArrray.length > 1 && !cmdArrray[1].startsWith("-host=") ? cmdArrray[1] : "*";
+			if (cmdArrray.length > 1)
+			{
+				pool.fanOut((CloudSession.ReadCommand) (cloudServerCommand, sink) -> cloudServerCommand.search(query, hostName, sink),
+						responseSink);
+			}
+			else
+			{
+				responseSink.add("Invalid Command, try again!!");
+			}
+		}
+		else if (cmdArrray[0].equalsIgnoreCase("report"))
+		{
+			if (cmdArrray.length > 1 && cmdArrray[1].equalsIgnoreCase("capacity"))
+			{
+				pool.fanOut((cloudServerCommand, sink) -> cloudServerCommand.getCapacityReport(sink), responseSink);
+			}
+			else if (cmdArrray.length > 1 && cmdArrray[1].equalsIgnoreCase("datastore"))
+			{
+				pool.fanOut((cloudServerCommand, sink) -> cloudServerCommand.getDatastoreReport(sink), responseSink);
+			}
+			else
+			{
+				responseSink.add("Invalid Command, try again!!");
+			}
+		}
+		else if (cmdArrray[0].equalsIgnoreCase("datastore"))
+		{
+			if (cmdArrray.length > 1 && cmdArrray[1].equalsIgnoreCase("scan"))
+			{
+				final String pattern = cmdArrray.length > 2 && !cmdArrray[2].startsWith("-") ? cmdArrray[2] : "*";
+				final Integer concurrency = getIntValue("-parallel=", cmdArrray, DatastoreScanner.DEFAULT_CONCURRENCY, 1,
+						responseSink);
+				final Integer staleDays = getIntValue("-days=", cmdArrray, DatastoreScanner.DEFAULT_STALE_DAYS, 1, responseSink);
+				if (concurrency == null || staleDays == null)
+				{
+					return;
+				}
+				pool.fanOut((cloudServerCommand, sink) -> cloudServerCommand.scanDatastores(pattern, concurrency, staleDays,
+						sink), responseSink);
+			}
+			else
+			{
+				responseSink.add("Invalid Command, try again!!");
+			}
+		}
+		else if (cmdArrray[0].equalsIgnoreCase("events") || cmdArrray[0].equalsIgnoreCase("tasks"))
+		{
+			final String entityName = cmdArrray.length > 1 && !cmdArrray[1].startsWith("-") ? cmdArrray[1] : null;
+			final String since = getValue("--since=", cmdArrray) == null ? HistoryReader.DEFAULT_SINCE
+					: getValue("--since=", cmdArrray);
+			try
+			{
+				HistoryReader.parseSince(since, System.currentTimeMillis());
+			}
+			catch (ParseException | NumberFormatException e)
+			{
+				responseSink.add("Invalid --since=" + since + ", it is given as 7d, 12h, 30m or MM/dd/yyyy");
+				return;
+			}
+			CloudSession.SessionCommand sessionCommand;
+			if (cmdArrray[0].equalsIgnoreCase("events"))
+			{
+				final String[] eventTypeIds = getValue("--type=", cmdArrray) == null ? null
+						: getValue("--type=", cmdArrray).split(",");
+				sessionCommand = (cloudServerCommand, sink) -> cloudServerCommand.getEvents(entityName, since, eventTypeIds, sink);
+			}
+			else
+			{
+				TaskInfoState[] states = null;
+				if (getValue("--state=", cmdArrray) != null)
+				{
+					String[] stateNames = getValue("--state=", cmdArrray).split(",");
+					states = new TaskInfoState[stateNames.length];
+					for (int i = 0; i < stateNames.length; i++)
+					{
+						for (TaskInfoState state : TaskInfoState.values())
+						{
+							if (state.toString().equals(stateNames[i]))
+							{
+								states[i] = state;
+							}
+						}
+						if (states[i] == null)
+						{
+							responseSink.add("Invalid state " + stateNames[i] + ", the states are queued,running,success,error");
+							return;
+						}
+					}
+				}
+				final TaskInfoState[] taskStates = states;
+				sessionCommand = (cloudServerCommand, sink) -> cloudServerCommand.getTasks(entityName, since, taskStates, sink);
+			}
+			if (entityName == null)
+			{
+				pool.fanOut(sessionCommand, responseSink);
+			}
+			else
+			{
+				/*
+				 * The hosts are named by their IP address, anything else is taken for a VM.
+				 */
+				pool.route(entityName.matches("[0-9.]+") ? "HostSystem" : "VirtualMachine", entityName)
+						.execute(sessionCommand, responseSink);
+			}
+		}
+		else if (cmdArrray[0].equalsIgnoreCase("snapshot"))
+		{
+			final String pattern = cmdArrray.length > 2 && !cmdArrray[2].startsWith("-") ? cmdArrray[2] : "*";
+			if (cmdArrray.length > 1 && cmdArrray[1].equalsIgnoreCase("report"))
+			{
+				final Integer top = getIntValue("-top=", cmdArrray, SnapshotReport.DEFAULT_TOP, 1, responseSink);
+				if (top == null)
+				{
+					return;
+				}
+				pool.fanOut((cloudServerCommand, sink) -> cloudServerCommand.getSnapshotReport(pattern, top, sink),
+						responseSink);
+			}
+			else if (cmdArrray.length > 1 && cmdArrray[1].equalsIgnoreCase("prune") && getValue("--older-than=", cmdArrray) != null)
+			{
+				/*
+				 * Less than a day would take every snapshot of every matching VM, so it is refused.
+				 */
+				final Integer olderThanDays = getIntValue("--older-than=", cmdArrray, 0, 1, responseSink);
+				final Integer concurrency = getIntValue("-parallel=", cmdArrray, SnapshotReport.DEFAULT_CONCURRENCY, 1,
+						responseSink);
+				final Integer perDatastore = getIntValue("-per-datastore=", cmdArrray, SnapshotReport.DEFAULT_PER_DATASTORE, 1,
+						responseSink);
+				if (olderThanDays == null || concurrency == null || perDatastore == null)
+				{
+					return;
+				}
+				final boolean dryRun = getValue("--dry-run", cmdArrray) != null;
+				pool.fanOut((cloudServerCommand, sink) -> cloudServerCommand.pruneSnapshots(pattern, olderThanDays,
+						concurrency, perDatastore, dryRun, sink), responseSink);
+			}
+			else
+			{
+				responseSink.add("Invalid Command, try again!!");
+			}
+		}
+		else if (cmdArrray[0].equalsIgnoreCase("topology"))
+		{
+			/*
+			 * Names may contain spaces, so everything after the query and the kind is the name.
+			 */
+			final String query = cmdArrray.length > 1 ? cmdArrray[1].toLowerCase() : "stats";
+			List<String> words = new ArrayList<String>();
+			for (int i = 2; i < cmdArrray.length; i++)
+			{
+				if (!cmdArrray[i].startsWith("-"))
+				{
+					words.add(cmdArrray[i]);
+				}
+			}
+			int kind = -1;
+			if ((query.equals("neighbors") || query.equals("reach") || query.equals("lacking")) && words.size() > 1
+					&& Arrays.asList(TopologyGraph.KINDS).contains(words.get(0).toLowerCase()))
+			{
+				kind = TopologyGraph.getKind(words.remove(0));
+			}
+			String name = String.join(" ", words);
+			String otherName = null;
+			if (query.equals("path") && name.contains(" to "))
+			{
+				otherName = name.substring(name.indexOf(" to ") + 4);
+				name = name.substring(0, name.indexOf(" to "));
+			}
+			final int nodeKind = kind;
+			final String nodeName = name;
+			final String toName = otherName;
+			final Integer maxDepth = getIntValue("-depth=", cmdArrray, 0, 0, responseSink);
+			if (maxDepth == null)
+			{
+				return;
+			}
+			boolean valid = query.equals("stats") || query.equals("refresh")
+					|| ((query.equals("neighbors") || query.equals("reach")) && !name.isEmpty())
+					|| (query.equals("lacking") && kind >= 0 && !name.isEmpty())
+					|| (query.equals("path") && toName != null);
+			if (valid)
+			{
+				pool.fanOut((cloudServerCommand, sink) -> cloudServerCommand.queryTopology(query, nodeKind, nodeName, toName,
+						maxDepth, query.equals("refresh"), sink), responseSink);
+			}
+			else
+			{
+				responseSink.add("Invalid Command, try again!!");
+			}
+		}
+		else if (cmdArrray[0].equalsIgnoreCase("stats"))
+		{
+			if (cmdArrray.length > 1 && cmdArrray[1].equalsIgnoreCase("reset"))
+			{
+				callMetrics.reset();
+				responseSink.add("SOAP call metrics reset");
+			}
+			else
+			{
+				callMetrics.writeStats(responseSink);
+				for (CloudSession session : pool.getSessions())
+				{
+					if (session.getRequestScheduler() != null)
+					{
+						responseSink.add(session.getRequestScheduler().getRecord());
+					}
+				}
+				if (soapTransport != null)
+				{
+					responseSink.add(soapTransport.getRecord());
+				}
+			}
+		}
+		else if (cmdArrray[0].equalsIgnoreCase("jobs"))
+		{
+			jobManager.writeJobs(responseSink);
+		}
+		else if (cmdArrray[0].equalsIgnoreCase("wait"))
+		{
+			jobManager.waitFor(cmdArrray.length > 1 ? cmdArrray[1] : null, watchStopped, responseSink);
+		}
+		else if (cmdArrray[0].equalsIgnoreCase("cancel"))
+		{
+			if (cmdArrray.length > 1)
+			{
+				jobManager.cancel(cmdArrray[1], responseSink);
+			}
+			else
+			{
+				responseSink.add("Invalid Command, try again!!");
+			}
+		}
+		else if (cmdArrray[0].equalsIgnoreCase("cache"))
+		{
+			if (cmdArrray.length > 1 && cmdArrray[1].equalsIgnoreCase("stats"))
+			{
+				pool.fanOut((CloudSession.ReadCommand) (cloudServerCommand, sink) -> cloudServerCommand.getCacheStats(sink), responseSink);
+			}
+			else
+			{
+				responseSink.add("Invalid Command, try again!!");
+			}
+		}
+	}
+	/**
+	 * This method is used to print the notices of the jobs which have finished, followed by the prompt.
+	 */
+	private void printPrompt()
+	{
+		for (String notice : cloudServerPool.takeOpenNotices())
+		{
+			System.out.println(notice);
+		}
+		for (String notice : jobManager.takeFinishedNotices())
+		{
+			System.out.println(notice);
+		}
+		System.out.println("Pratik-256>");
+	}
+	/**
+	 * This method is used to @return the service instance of the first server, used to report the server
+	 * time, or null if it is not logged in (yet).
+	 */
+	private ServiceInstance getConnectedServiceInstance()
+	{
+		if (cloudServerPool == null || cloudServerPool.getPrimary().isOffline())
+		{
+			return null;
+		}
+		return cloudServerPool.getPrimary().getCloudServer().getServiceInstance();
+	}
+	/**
+	 * This method is used to @return true if the command is to run as a background job: the power
+	 * operations and snapshot prunes, which wait for their tasks, and every command ending with &.
+	 */
+	private boolean isBackgroundCommand(String command)
+	{
+		String[] cmdArrray = command.split(" ");
+		return command.endsWith("&") || (cmdArrray[0].equalsIgnoreCase("vm") && cmdArrray.length > 2
+				&& (isPowerOperation(cmdArrray[1]) || isPowerOperation(cmdArrray[2])))
+				|| (cmdArrray[0].equalsIgnoreCase("snapshot") && cmdArrray.length > 1
+						&& cmdArrray[1].equalsIgnoreCase("prune") && getValue("--dry-run", cmdArrray) == null);
+	}
+	/**
+	 * This method is used to perform a command which runs until it is stopped, like watch, in the background
+	 * while the prompt waits for Enter to stop it.
+	 */
+	private void executeUntilEnter(final String command, final ResponseSink responseSink, Scanner scanner) throws Exception
+	{
+		final Exception[] failure = new Exception[1];
+		Thread commandThread = new Thread(() -> {
+			try
+			{
+				executeCommand(command, responseSink);
+			}
+			catch (Exception e)
+			{
+				failure[0] = e;
+			}
+		}, "watch");
+		System.out.println("Press Enter to stop");
+		watchStopped.set(false);
+		commandThread.start();
+		while (commandThread.isAlive())
+		{
+			if (System.in.available() > 0)
+			{
+				scanner.nextLine();
+				watchStopped.set(true);
+			}
+			commandThread.join(200);
+		}
+		if (failure[0] != null)
+		{
+			throw failure[0];
+		}
+	}
+	/**
+	 * This method is used to @return true if the command only reads the inventory and can therefore be
+	 * answered from the inventory snapshot.
+	 */
+	private boolean isOfflineCommand(String[] cmdArrray)
+	{
+		String name = cmdArrray[0].toLowerCase();
+		if (name.equals("vm"))
+		{
+			return cmdArrray.length == 1
+					|| (cmdArrray.length > 2 && !isPowerOperation(cmdArrray[1]) && cmdArrray[2].equalsIgnoreCase("info"));
+		}
+		if (name.equals("cache"))
+		{
+			return cmdArrray.length > 1 && cmdArrray[1].equalsIgnoreCase("stats");
+		}
+		return name.equals("help") || name.equals("search") || name.equals("stats") || name.equals("jobs")
+				|| name.equals("wait") || name.equals("cancel")
+				|| (name.equals("host") && cmdArrray.length == 1);
+	}
+	/**
+	 * This method is used to @return the name the SOAP calls of the command are counted under. The names
+	 * of the VMs and hosts are left out, so that e.g. all the vm x info commands add up.
+	 */
+	private String getCommandName(String[] cmdArrray)
+	{
+		String name = cmdArrray[0].toLowerCase();
+		if (cmdArrray.length > 2 && (name.equals("vm") || name.equals("host")))
+		{
+			return name + " " + (isPowerOperation(cmdArrray[1]) ? cmdArrray[1] + " *" : cmdArrray[2]).toLowerCase();
+		}
+		return cmdArrray.length > 1 && !cmdArrray[1].startsWith("-")
+				&& (name.equals("watch") || name.equals("cache") || name.equals("report") || name.equals("topology")
+						|| name.equals("datastore") || name.equals("snapshot"))
+				? name + " " + cmdArrray[1].toLowerCase() : name;
+	}
+	/**
+	 * This method is used to export the SOAP call metrics through JMX with -jmx=true and as a Prometheus text
+	 * endpoint on localhost with -metrics-port=N.
+	 */
+	private void startMetricsExport(String[] args) throws Exception
+	{
+		if (Boolean.parseBoolean(getValue("-jmx=", args)))
+		{
+			callMetrics.registerMBean();
+		}
+		if (getValue("-metrics-port=", args) != null)
+		{
+			callMetrics.startHttpEndpoint(Integer.parseInt(getValue("-metrics-port=", args)));
+		}
+	}
+	/**
+	 * This method is used to run the commands of the script file (or of the standard input for -script=-)
+	 * without prompting, reading commands in parallel as given by -threads=N, and writing the responses in
+	 * the output format of the session.
+	 */
+	private void runScript(String scriptName, String format, String[] args) throws IOException
+	{
+		List<String> lines = scriptName.equals("-")
+				? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)).lines().collect(Collectors.toList())
+				: Files.readAllLines(Paths.get(scriptName), StandardCharsets.UTF_8);
+		int threads = getValue("-threads=", args) == null ? ScriptRunner.DEFAULT_THREADS
+				: Integer.parseInt(getValue("-threads=", args));
+		ScriptRunner scriptRunner = new ScriptRunner(this::executeCommand, threads);
+		ConsoleResponseSink responseSink = new ConsoleResponseSink(System.out, RecordEncoder.forFormat(format));
+		try
+		{
+			for (String response : scriptRunner.run(lines, responseSink))
+			{
+				responseSink.add(response);
+			}
+		}
+		finally
+		{
+			responseSink.flush();
+		}
+	}
 	/**
 	 * This method is used to pass the inputs to Cloud Server class taken either by defaults or by command line 
-	 * arguments for connection with the remote vCenter Server.
+	 * arguments for connection with the remote vCenter Servers. Several servers can be given as a comma
+	 * separated list of IP addresses sharing the same login, e.g., -ip=130.65.159.14,130.65.159.15
 	 */
-	private CloudServer instantiateCloudServer(String ipAddress, String username, String password, String[] args)
+	private List<CloudServer> instantiateCloudServers(String ipAddress, String username, String password, String[] args)
 	{
-		CloudServer cloudServer = null;
+		List<CloudServer> cloudServers = new ArrayList<CloudServer>();
 		boolean useDefaultLogin = Boolean.parseBoolean(getValue("-default=", args));
 
 		try
 		{
 			if(useDefaultLogin)
 			{
-				cloudServer = new CloudServer();	
+				cloudServers.add(new CloudServer());	
 			}
 			else
 			{
-				cloudServer = new CloudServer(ipAddress, username, password);	
+				for (String serverAddress : ipAddress.split(","))
+				{
+					cloudServers.add(new CloudServer(serverAddress.trim(), username, password));
+				}
 			}
 		}
-		catch (MalformedURLException | RemoteException e)
+		catch (MalformedURLException e)
 		{
 			logger.log(Level.SEVERE, "Exception found while getting cloud server folder");
 			e.printStackTrace();
 		}
 
-		return cloudServer;
+		return cloudServers;
 	}
 	/**
-	 * This method is used to @return the value in String of the parameter passed as argument in command line.
+	 * This method is used to @return the directory the inventory snapshots are kept in, given as
+	 * -snapshot=dir and ~/.vcenter-cli by default, or null if they are turned off with -snapshot=false.
+	 * The simulated servers only use snapshots if the directory is given explicitly.
 	 */
-	private String getValue(String parameterName, String[] args)
+	private File getSnapshotDirectory(String[] args)
 	{
-		for (String value : args)
+		String directory = getValue("-snapshot=", args);
+		if ("false".equalsIgnoreCase(directory) || (directory == null && getValue("-simulate=", args) != null))
 		{
-			if (value.startsWith(parameterName))
+			return null;
+		}
+		return directory == null ? new File(System.getProperty("user.home"), ".vcenter-cli") : new File(directory);
+	}
+	/**
+	 * This method is used to @return the sessions of the servers, each keeping its inventory snapshot in the
+	 * snapshot directory unless that is null. The SOAP calls to every server are limited to -max-calls=N
+	 * in progress and -rate=N per second (0 for no limit), and sent over pooled, compressed connections
+	 * unless -transport=vijava asks for the stock transport.
+	 */
+	private List<CloudSession> createSessions(List<CloudServer> cloudServers, File snapshotDirectory, String[] args)
+	{
+		int maxCalls = getValue("-max-calls=", args) == null ? RequestScheduler.DEFAULT_MAX_CALLS
+				: Integer.parseInt(getValue("-max-calls=", args));
+		double callsPerSecond = getValue("-rate=", args) == null ? RequestScheduler.DEFAULT_CALLS_PER_SECOND
+				: Double.parseDouble(getValue("-rate=", args));
+		soapTransport = "vijava".equalsIgnoreCase(getValue("-transport=", args)) ? null : new SoapTransport(maxCalls);
+		List<CloudSession> sessions = new ArrayList<CloudSession>();
+		for (CloudServer cloudServer : cloudServers)
+		{
+			sessions.add(new CloudSession(cloudServer, callMetrics,
+					new RequestScheduler(cloudServer.getIpAddress(), maxCalls, callsPerSecond), soapTransport,
+					snapshotDirectory == null ? null : getSnapshotFile(snapshotDirectory, cloudServer.getIpAddress())));
+		}
+		return sessions;
+	}
+	/**
+	 * This method is used to @return the offline sessions of the servers given with -ip=..., or of all the
+	 * servers with a snapshot in the snapshot directory if none is given.
+	 * @throws IOException if there is no snapshot to work on.
+	 */
+	private List<CloudSession> createOfflineSessions(String ipAddress, File snapshotDirectory) throws IOException
+	{
+		if (snapshotDirectory == null)
+		{
+			throw new IOException("Offline mode needs the inventory snapshots, remove -snapshot=false");
+		}
+		List<CloudSession> sessions = new ArrayList<CloudSession>();
+		if (ipAddress != null)
+		{
+			for (String serverAddress : ipAddress.split(","))
 			{
-				return value.substring(parameterName.length());
+				sessions.add(new CloudSession(serverAddress.trim(), getSnapshotFile(snapshotDirectory, serverAddress.trim())));
+			}
+			return sessions;
+		}
+		File[] snapshotFiles = snapshotDirectory.listFiles();
+		if (snapshotFiles != null)
+		{
+			for (File snapshotFile : snapshotFiles)
+			{
+				String fileName = snapshotFile.getName();
+				if (fileName.startsWith(SNAPSHOT_PREFIX) && fileName.endsWith(SNAPSHOT_SUFFIX))
+				{
+					sessions.add(new CloudSession(fileName.substring(SNAPSHOT_PREFIX.length(),
+							fileName.length() - SNAPSHOT_SUFFIX.length()), snapshotFile));
+				}
+			}
+		}
+		if (sessions.isEmpty())
+		{
+			throw new IOException("There is no inventory snapshot in " + snapshotDirectory);
+		}
+		return sessions;
+	}
+	/**
+	 * This method is used to @return the snapshot file of the server in the snapshot directory.
+	 */
+	private File getSnapshotFile(File snapshotDirectory, String serverAddress)
+	{
+		return new File(snapshotDirectory, SNAPSHOT_PREFIX + serverAddress.replaceAll("[^A-Za-z0-9._-]", "_") + SNAPSHOT_SUFFIX);
+	}
+	/**
+	 * This method is used to start the simulated vCenter Servers, as many as given by servers=N in the
+	 * settings (one by default), and @return the servers connected to them.
+	 */
+	private List<CloudServer> startSimulators(String settings) throws IOException
+	{
+		List<CloudServer> cloudServers = new ArrayList<CloudServer>();
+		for (int i = 1; i <= VCenterSimulator.getSetting(settings, "servers", 1); i++)
+		{
+			VCenterSimulator simulator = new VCenterSimulator(i, settings);
+			simulators.add(simulator);
+			simulator.start();
+			cloudServers.add(new CloudServer(simulator.getAddress(), simulator.getUrl(), "simulator", "simulator"));
+		}
+		return cloudServers;
+	}
+	/**
+	 * This method is used to @return true if the word is one of the power operations which can be applied
+	 * to many VMs at once.
+	 */
+	private boolean isPowerOperation(String word)
+	{
+		return word.equalsIgnoreCase("on") || word.equalsIgnoreCase("off") || word.equalsIgnoreCase("shutdown");
+	}
+	/**
+	 * This method is used to @return the output format given as -format=... or --format=..., or null for
+	 * the table format.
+	 */
+	private String getFormat(String[] args)
+	{
+		return getValue("--format=", args) == null ? getValue("-format=", args) : getValue("--format=", args);
+	}
+	/**
+	 * This method is used to @return the whole number value of the parameter passed with the command, the
+	 * default value if it is not passed, or null if it is no whole number of at least the minimum, in which
+	 * case the command is answered with an Invalid line instead.
+	 */
+	private Integer getIntValue(String parameterName, String[] cmdArrray, int defaultValue, int minimum,
+			ResponseSink responseSink)
+	{
+		String value = getValue(parameterName, cmdArrray);
+		if (value == null)
+		{
+			return defaultValue;
+		}
+		try
+		{
+			int number = Integer.parseInt(value);
+			if (number >= minimum)
+			{
+				return number;
 			}
 		}
+		catch (NumberFormatException e)
+		{
+			// reported below like a number out of range
+		}
+		responseSink.add("Invalid " + parameterName + value + ", a whole number of at least " + minimum + " is expected");
 		return null;
 	}
 	/**
-	 * This method is used to print the results of the commands after being processed.
+	 * This method is used to @return the value in String of the parameter passed as argument in command line.
 	 */
-	private void printResponse(List<String> responseList)
+	private String getValue(String parameterName, String[] args)
 	{
-		for (String response : responseList)
+		for (String value : args)
 		{
-			System.out.println(response);
+			if (value.startsWith(parameterName))
+			{
+				return value.substring(parameterName.length());
+			}
 		}
+		return null;
 	}
 }
@@ -0,0 +1,1410 @@
+package com.sjsu.cmpe281.vmware.hw2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+/**
+ * @author Pratik Pandey.
+ *
+ * This class is a stand-in for the /sdk/vimService endpoint of a vCenter Server, listening on localhost,
+ * so that every command can be run end to end without a network, e.g., for benchmarks and regression runs
+ * (start the command line with -simulate=hosts=4,vms=200). It answers the vim25 SOAP calls the command
+ * line makes (login, the property collector with container and list views, paging and WaitForUpdatesEx, the
+ * power operations and snapshot removals with their tasks and QueryPerf) from a synthetic inventory, with the same XML a real
+ * server sends.
+ *
+ * The settings are a comma separated list of key=value: hosts, vms, datastores and networks (per host)
+ * size the inventory, latency adds milliseconds to every call, faults is the percentage of the command
+ * calls failing with a SystemError, power is the time in milliseconds a power operation takes, session the
+ * idle time in seconds after which a session expires (0 for never), and seed the seed of the inventory.
+ * limit makes the simulator behave like an overloaded server: with more calls in progress than the limit,
+ * every call gets slower by the latency times the load over the limit, and the calls beyond the limit are
+ * canceled with RequestCanceled (0, the default, for no limit). bandwidth makes the responses take as long
+ * as over a link of that many Mbit/s (0, the default, for no limit), to compare the SOAP transports.
+ * events is the number of events in the history of the last 7 days (20 per VM by default), which are
+ * read through event history collectors like the tasks of the simulator through task history collectors.
+ */
+class VCenterSimulator
+{
+	/**
+	 * Used for logging purposes.
+	 */
+	private final Logger logger = Logger.getLogger(VCenterSimulator.class.getName());
+
+	private static final String SESSION_COOKIE = "vmware_soap_session";
+	private static final String SDK_PATH = "/sdk/vimService";
+	/**
+	 * Responses smaller than this are sent uncompressed even to the clients accepting gzip, as compressing
+	 * them saves next to nothing.
+	 */
+	private static final int MIN_GZIP_BYTES = 1024;
+	/**
+	 * The time the event history goes back, and its events by type with their message, in which {vm},
+	 * {host} and {dc} stand for the names of the entities of the event.
+	 */
+	private static final long HISTORY_MILLIS = TimeUnit.DAYS.toMillis(7);
+	private static final String[][] EVENT_TYPES = { { "VmPoweredOnEvent", "{vm} on {host} in {dc} is powered on" },
+			{ "VmPoweredOffEvent", "{vm} on {host} in {dc} is powered off" },
+			{ "VmReconfiguredEvent", "Reconfigured {vm} on {host} in {dc}" },
+			{ "VmGuestShutdownEvent", "Guest OS shut down for {vm} on {host} in {dc}" },
+			{ "AlarmStatusChangedEvent", "Alarm 'Virtual machine CPU usage' on {vm} changed from Green to Yellow" },
+			{ "UserLoginSessionEvent", "User root logged in as VMware vim-java 1.0" },
+			{ "HostConnectionLostEvent", "Host {host} in {dc} is not responding" } };
+	/**
+	 * The calls which may be failed on purpose. Session handling and the background waits are left alone,
+	 * so that an injected fault always shows up in the result of a command.
+	 */
+	private static final Set<String> FAULTY_METHODS = new HashSet<String>(Arrays.asList("RetrieveProperties",
+			"RetrievePropertiesEx", "ContinueRetrievePropertiesEx", "CreateContainerView", "PowerOnVM_Task",
+			"PowerOffVM_Task", "ShutdownGuest", "CurrentTime", "SearchDatastoreSubFolders_Task", "RemoveSnapshot_Task"));
+	/**
+	 * The long polls, which do not count as load.
+	 */
+	private static final Set<String> WAIT_METHODS = new HashSet<String>(Arrays.asList("WaitForUpdatesEx",
+			"WaitForUpdates", "CancelWaitForUpdates"));
+
+	private final int serverIndex;
+	private final SimulatedInventory inventory;
+	private final long latencyMillis;
+	private final double faultRate;
+	private final long powerMillis;
+	private final long sessionTimeoutMillis;
+	private final int callLimit;
+	private final int bandwidthMbps;
+	private final long eventCount;
+	private final long historyEnd = System.currentTimeMillis();
+	private final List<SimulatedInventory.Entity> historyVMs;
+	private final Map<String, History> histories = new ConcurrentHashMap<String, History>();
+	private final Random random = new Random();
+	private final AtomicInteger callsInProgress = new AtomicInteger();
+
+	private final Map<String, Long> sessions = new ConcurrentHashMap<String, Long>();
+	private final Map<String, View> views = new ConcurrentHashMap<String, View>();
+	private final Map<String, Collector> collectors = new ConcurrentHashMap<String, Collector>();
+	private final Map<String, Filter> filters = new ConcurrentHashMap<String, Filter>();
+	private final Map<String, List<String>> pages = new ConcurrentHashMap<String, List<String>>();
+	private final AtomicInteger nextId = new AtomicInteger();
+	private final AtomicLong calls = new AtomicLong();
+	private final AtomicLong bytesSent = new AtomicLong();
+
+	private HttpServer httpServer;
+	private ExecutorService requestExecutor;
+	private ScheduledExecutorService taskExecutor;
+
+	public VCenterSimulator(int serverIndex, String settings)
+	{
+		this.serverIndex = serverIndex;
+		this.inventory = new SimulatedInventory(serverIndex, getSetting(settings, "hosts", 4),
+				getSetting(settings, "vms", 100), getSetting(settings, "datastores", 2), getSetting(settings, "networks", 2),
+				getSetting(settings, "seed", 1) + serverIndex);
+		this.latencyMillis = getSetting(settings, "latency", 0);
+		this.faultRate = getSetting(settings, "faults", 0) / 100.0;
+		this.powerMillis = getSetting(settings, "power", 500);
+		this.sessionTimeoutMillis = getSetting(settings, "session", 0) * 1000L;
+		this.callLimit = getSetting(settings, "limit", 0);
+		this.bandwidthMbps = getSetting(settings, "bandwidth", 0);
+		this.eventCount = getSetting(settings, "events", 20 * getSetting(settings, "vms", 100));
+		this.historyVMs = inventory.list(Arrays.asList("VirtualMachine"));
+		collectors.put("propertyCollector", new Collector());
+	}
+	/**
+	 * This method is used to start listening on a free port of localhost.
+	 */
+	public void start() throws IOException
+	{
+		/*
+		 * Without TCP_NODELAY the body of a small response waits for the client to acknowledge the headers,
+		 * which adds up to 40 ms to a call where a real server adds nothing.
+		 */
+		if (System.getProperty("sun.net.httpserver.nodelay") == null)
+		{
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+		httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		requestExecutor = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "vcenter-simulator-" + serverIndex);
+			thread.setDaemon(true);
+			return thread;
+		});
+		taskExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "vcenter-simulator-tasks-" + serverIndex);
+			thread.setDaemon(true);
+			return thread;
+		});
+		httpServer.setExecutor(requestExecutor);
+		httpServer.createContext("/sdk", exchange -> handle(exchange));
+		httpServer.start();
+		logger.log(Level.INFO, "Simulated vCenter Server listening on " + getUrl());
+	}
+	/**
+	 * This method is used to stop listening and to end the pending tasks.
+	 */
+	public void stop()
+	{
+		if (httpServer != null)
+		{
+			httpServer.stop(0);
+			requestExecutor.shutdownNow();
+			taskExecutor.shutdownNow();
+		}
+	}
+	/**
+	 * This method is used to @return the address, host:port, given to the command line as the server.
+	 */
+	public String getAddress()
+	{
+		return "127.0.0.1:" + httpServer.getAddress().getPort();
+	}
+	/**
+	 * This method is used to @return the URL of the SDK endpoint.
+	 */
+	public String getUrl()
+	{
+		return "http://" + getAddress() + SDK_PATH;
+	}
+	/**
+	 * This method is used to @return the number of calls answered so far.
+	 */
+	public long getCalls()
+	{
+		return calls.get();
+	}
+	/**
+	 * This method is used to @return the number of response bytes sent so far, after compression.
+	 */
+	public long getBytesSent()
+	{
+		return bytesSent.get();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException
+	{
+		int status = 200;
+		StringBuilder body = new StringBuilder();
+		int load = 0;
+		try (InputStream in = exchange.getRequestBody())
+		{
+			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+			factory.setNamespaceAware(true);
+			Element envelope = factory.newDocumentBuilder().parse(in).getDocumentElement();
+			Element method = firstChild(child(envelope, "Body"));
+			String name = method.getLocalName();
+			if (callLimit > 0 && !WAIT_METHODS.contains(name))
+			{
+				load = callsInProgress.incrementAndGet();
+			}
+			long delayMillis = latencyMillis + (load > callLimit ? latencyMillis * (load - callLimit) / callLimit : 0);
+			if (delayMillis > 0)
+			{
+				Thread.sleep(delayMillis);
+			}
+			try
+			{
+				String sessionId = getSessionId(exchange);
+				if (!name.equals("RetrieveServiceContent") && !name.equals("Login") && !isAuthenticated(sessionId))
+				{
+					throw new SimulatedFault("NotAuthenticated", "The session is not authenticated.",
+							"<object type=\"SessionManager\">SessionManager</object><privilegeId>System.View</privilegeId>");
+				}
+				if (load > callLimit)
+				{
+					throw new SimulatedFault("RequestCanceled", "The request was canceled: " + load
+							+ " calls in progress, the limit is " + callLimit, "");
+				}
+				if (faultRate > 0 && FAULTY_METHODS.contains(name) && random.nextDouble() < faultRate)
+				{
+					throw new SimulatedFault("SystemError", "A general system error occurred: simulated fault",
+							"<reason>simulated fault</reason>");
+				}
+				body.append('<').append(name).append("Response xmlns=\"urn:vim25\">");
+				body.append(invoke(name, method, exchange));
+				body.append("</").append(name).append("Response>");
+			}
+			catch (SimulatedFault fault)
+			{
+				status = 500;
+				body.setLength(0);
+				body.append("<soapenv:Fault><faultcode>ServerFaultCode</faultcode><faultstring>");
+				escape(body, fault.getMessage());
+				body.append("</faultstring><detail><").append(fault.type).append("Fault xmlns=\"urn:vim25\" xsi:type=\"")
+						.append(fault.type).append("\">").append(fault.detail).append("</").append(fault.type)
+						.append("Fault></detail></soapenv:Fault>");
+			}
+		}
+		catch (Exception e)
+		{
+			logger.log(Level.WARNING, "Simulated call failed", e);
+			status = 500;
+			body.setLength(0);
+			body.append("<soapenv:Fault><faultcode>ServerFaultCode</faultcode><faultstring>");
+			escape(body, e.toString());
+			body.append("</faultstring></soapenv:Fault>");
+		}
+		if (load > 0)
+		{
+			callsInProgress.decrementAndGet();
+		}
+		byte[] response = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+				+ "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\""
+				+ " xmlns:xsd=\"http://www.w3.org/2001/XMLSchema\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">"
+				+ "<soapenv:Body>" + body + "</soapenv:Body></soapenv:Envelope>").getBytes(StandardCharsets.UTF_8);
+		String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+		if (acceptEncoding != null && acceptEncoding.contains("gzip") && response.length > MIN_GZIP_BYTES)
+		{
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream(response.length / 4);
+			try (GZIPOutputStream gzip = new GZIPOutputStream(compressed))
+			{
+				gzip.write(response);
+			}
+			response = compressed.toByteArray();
+			exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+		}
+		if (bandwidthMbps > 0)
+		{
+			try
+			{
+				Thread.sleep(response.length * 8L / (bandwidthMbps * 1000L));
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+		calls.incrementAndGet();
+		bytesSent.addAndGet(response.length);
+		exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=utf-8");
+		exchange.sendResponseHeaders(status, response.length);
+		try (OutputStream out = exchange.getResponseBody())
+		{
+			out.write(response);
+		}
+	}
+	/**
+	 * This method is used to perform the call and @return the content of its response element.
+	 */
+	private String invoke(String name, Element method, HttpExchange exchange) throws SimulatedFault, InterruptedException
+	{
+		StringBuilder xml = new StringBuilder();
+		switch (name)
+		{
+		case "RetrieveServiceContent":
+			appendValue(xml, "returnval", createServiceContent(), false);
+			break;
+		case "Login":
+			String sessionId = "52" + Long.toHexString(random.nextLong());
+			sessions.put(sessionId, System.currentTimeMillis());
+			exchange.getResponseHeaders().add("Set-Cookie", SESSION_COOKIE + "=\"" + sessionId + "\"; Path=/; HttpOnly");
+			appendValue(xml, "returnval", createUserSession(sessionId, text(method, "userName")), false);
+			break;
+		case "Logout":
+			sessions.remove(getSessionId(exchange));
+			break;
+		case "CurrentTime":
+			xml.append("<returnval>").append(SimulatedInventory.formatTime(new Date())).append("</returnval>");
+			break;
+		case "CreateContainerView":
+			View view = new View(child(method, "container").getTextContent(), texts(method, "type"));
+			String viewValue = "session[" + getSessionId(exchange) + "]view-" + nextId.incrementAndGet();
+			views.put(viewValue, view);
+			appendReference(xml, "returnval", "ContainerView", viewValue);
+			break;
+		case "CreateListView":
+			String listViewValue = "session[" + getSessionId(exchange) + "]view-" + nextId.incrementAndGet();
+			views.put(listViewValue, new View(texts(method, "obj")));
+			appendReference(xml, "returnval", "ListView", listViewValue);
+			break;
+		case "ModifyListView":
+			View listView = views.get(text(method, "_this"));
+			if (listView == null || listView.objects == null)
+			{
+				throw new SimulatedFault("ManagedObjectNotFound", "The object has already been deleted or has not been completely created",
+						"<obj type=\"ListView\">" + text(method, "_this") + "</obj>");
+			}
+			synchronized (listView.objects)
+			{
+				listView.objects.addAll(texts(method, "add"));
+				listView.objects.removeAll(texts(method, "remove"));
+			}
+			inventory.wakeUp();
+			break;
+		case "DestroyView":
+			views.remove(child(method, "_this").getTextContent());
+			break;
+		case "RetrieveProperties":
+			for (String objectContent : retrieve(children(method, "specSet")))
+			{
+				xml.append("<returnval>").append(objectContent).append("</returnval>");
+			}
+			break;
+		case "RetrievePropertiesEx":
+			List<String> objectContents = retrieve(children(method, "specSet"));
+			Element maxObjects = child(child(method, "options"), "maxObjects");
+			appendPage(xml, objectContents, maxObjects == null ? Integer.MAX_VALUE
+					: Integer.parseInt(maxObjects.getTextContent().trim()));
+			break;
+		case "ContinueRetrievePropertiesEx":
+			List<String> remaining = pages.remove(text(method, "token"));
+			if (remaining == null)
+			{
+				throw new SimulatedFault("InvalidArgument", "A specified parameter was not correct: token",
+						"<invalidProperty>token</invalidProperty>");
+			}
+			appendPage(xml, remaining, Integer.parseInt(text(method, "token").split("-")[2]));
+			break;
+		case "CancelRetrievePropertiesEx":
+			pages.remove(text(method, "token"));
+			break;
+		case "CreatePropertyCollector":
+			String collectorValue = "session[" + getSessionId(exchange) + "]pc-" + nextId.incrementAndGet();
+			collectors.put(collectorValue, new Collector());
+			appendReference(xml, "returnval", "PropertyCollector", collectorValue);
+			break;
+		case "DestroyPropertyCollector":
+			Collector destroyed = collectors.remove(text(method, "_this"));
+			if (destroyed != null)
+			{
+				filters.values().removeIf(filter -> filter.collector == destroyed);
+				destroyed.cancelled = true;
+				inventory.wakeUp();
+			}
+			break;
+		case "CreateFilter":
+			Collector collector = getCollector(text(method, "_this"));
+			String filterValue = "session[" + getSessionId(exchange) + "]filter-" + nextId.incrementAndGet();
+			filters.put(filterValue, new Filter(collector, child(method, "spec")));
+			inventory.wakeUp();
+			appendReference(xml, "returnval", "PropertyFilter", filterValue);
+			break;
+		case "DestroyPropertyFilter":
+			filters.remove(text(method, "_this"));
+			break;
+		case "WaitForUpdatesEx":
+			Element maxWaitSeconds = child(child(method, "options"), "maxWaitSeconds");
+			waitForUpdates(xml, text(method, "_this"), text(method, "version"),
+					maxWaitSeconds == null ? Long.MAX_VALUE : Long.parseLong(maxWaitSeconds.getTextContent().trim()) * 1000);
+			break;
+		case "CancelWaitForUpdates":
+			getCollector(text(method, "_this")).cancelled = true;
+			inventory.wakeUp();
+			break;
+		case "PowerOnVM_Task":
+			appendReference(xml, "returnval", "Task", powerOperation(getVM(method), "PowerOnVM_Task", "poweredOn", "Powered on"));
+			break;
+		case "PowerOffVM_Task":
+			appendReference(xml, "returnval", "Task", powerOperation(getVM(method), "PowerOffVM_Task", "poweredOff", "Powered off"));
+			break;
+		case "ShutdownGuest":
+			shutdownGuest(getVM(method));
+			break;
+		case "RemoveSnapshot_Task":
+			appendReference(xml, "returnval", "Task", removeSnapshot(method));
+			break;
+		case "SearchDatastoreSubFolders_Task":
+			appendReference(xml, "returnval", "Task", searchDatastore(method));
+			break;
+		case "QueryPerf":
+			for (Element querySpec : children(method, "querySpec"))
+			{
+				appendValue(xml, "returnval", queryPerf(querySpec), false);
+			}
+			break;
+		case "CreateCollectorForEvents":
+		case "CreateCollectorForTasks":
+			String historyValue = "session[" + nextId.incrementAndGet() + "]history";
+			histories.put(historyValue, new History(name.equals("CreateCollectorForTasks"), child(method, "filter")));
+			appendReference(xml, "returnval", name.endsWith("Events") ? "EventHistoryCollector" : "TaskHistoryCollector",
+					historyValue);
+			break;
+		case "ReadNextEvents":
+		case "ReadNextTasks":
+			readHistory(xml, getHistory(text(method, "_this")), Integer.parseInt(text(method, "maxCount")));
+			break;
+		case "DestroyCollector":
+			histories.remove(text(method, "_this"));
+			break;
+		default:
+			throw new SimulatedFault("NotImplemented", name + " is not implemented by the simulator", "");
+		}
+		return xml.toString();
+	}
+	/**
+	 * This method is used to @return the object contents of all the objects selected by the filter specs,
+	 * serialized at once so that every page shows the same state of the inventory.
+	 */
+	private List<String> retrieve(List<Element> specSet)
+	{
+		List<String> objectContents = new ArrayList<String>();
+		synchronized (inventory)
+		{
+			for (Element spec : specSet)
+			{
+				FilterSpec filterSpec = new FilterSpec(spec);
+				for (SimulatedInventory.Entity entity : select(filterSpec))
+				{
+					StringBuilder xml = new StringBuilder();
+					appendReference(xml, "obj", entity.type, entity.value);
+					for (String path : filterSpec.getPaths(entity))
+					{
+						Object value = getProperty(entity, path);
+						if (value != null)
+						{
+							xml.append("<propSet><name>").append(path).append("</name>");
+							appendValue(xml, "val", value, true);
+							xml.append("</propSet>");
+						}
+					}
+					objectContents.add(xml.toString());
+				}
+			}
+		}
+		return objectContents;
+	}
+	/**
+	 * This method is used to write one page of object contents, with the token of the next page if more
+	 * are left. The token carries the page size.
+	 */
+	private void appendPage(StringBuilder xml, List<String> objectContents, int maxObjects)
+	{
+		if (objectContents.isEmpty())
+		{
+			return;
+		}
+		xml.append("<returnval>");
+		int size = Math.min(maxObjects, objectContents.size());
+		if (size < objectContents.size())
+		{
+			String token = "token-" + nextId.incrementAndGet() + "-" + maxObjects;
+			pages.put(token, new ArrayList<String>(objectContents.subList(size, objectContents.size())));
+			xml.append("<token>").append(token).append("</token>");
+		}
+		for (String objectContent : objectContents.subList(0, size))
+		{
+			xml.append("<objects>").append(objectContent).append("</objects>");
+		}
+		xml.append("</returnval>");
+	}
+	/**
+	 * This method is used to write the changes of the objects selected by the filters of the collector,
+	 * waiting for a change for at most the given time. An empty version starts over with all the objects.
+	 */
+	private void waitForUpdates(StringBuilder xml, String collectorValue, String version, long maxWaitMillis)
+			throws SimulatedFault, InterruptedException
+	{
+		Collector collector = getCollector(collectorValue);
+		long deadline = maxWaitMillis == Long.MAX_VALUE ? Long.MAX_VALUE : System.currentTimeMillis() + maxWaitMillis;
+		if (version == null || version.isEmpty())
+		{
+			for (Filter filter : filters.values())
+			{
+				if (filter.collector == collector)
+				{
+					filter.reset();
+				}
+			}
+		}
+		while (true)
+		{
+			long inventoryVersion = inventory.getVersion();
+			StringBuilder filterSet = new StringBuilder();
+			synchronized (inventory)
+			{
+				for (Map.Entry<String, Filter> filter : filters.entrySet())
+				{
+					if (filter.getValue().collector == collector)
+					{
+						filter.getValue().appendUpdates(filterSet, filter.getKey(), inventoryVersion);
+					}
+				}
+			}
+			if (filterSet.length() > 0)
+			{
+				xml.append("<returnval><version>").append(++collector.version).append("</version>").append(filterSet)
+						.append("<truncated>false</truncated></returnval>");
+				return;
+			}
+			if (collector.cancelled)
+			{
+				collector.cancelled = false;
+				throw new SimulatedFault("RequestCanceled", "The task was canceled by a user.", "");
+			}
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+			{
+				return;
+			}
+			inventory.awaitChange(inventoryVersion, Math.min(remaining, 1000));
+		}
+	}
+	/**
+	 * This method is used to start the power operation as a task and @return the task, which completes
+	 * after the power time with the new power state, or with InvalidPowerState if the VM already has it.
+	 */
+	private String powerOperation(final SimulatedInventory.Entity vm, String method, final String powerState,
+			final String stateText)
+	{
+		final SimulatedInventory.Entity task = inventory.createTask(method,
+				"VirtualMachine." + (powerState.equals("poweredOn") ? "powerOn" : "powerOff"), vm);
+		taskExecutor.schedule(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				synchronized (inventory)
+				{
+					if (inventory.getPowerState(vm).equals(powerState))
+					{
+						inventory.completeTask(task, "InvalidPowerState",
+								"The attempted operation cannot be performed in the current state (" + stateText + ").");
+					}
+					else
+					{
+						inventory.setPowerState(vm, powerState);
+						inventory.completeTask(task, null, null);
+					}
+				}
+			}
+		}, powerMillis, TimeUnit.MILLISECONDS);
+		return task.value;
+	}
+	/**
+	 * This method is used to start the search of all the folders of the datastore of the browser as a task
+	 * and @return the task, which completes after the power time with the folders and their files.
+	 */
+	private String searchDatastore(Element method) throws SimulatedFault
+	{
+		SimulatedInventory.Entity browser = inventory.get(text(method, "_this"));
+		if (browser == null || !browser.type.equals("HostDatastoreBrowser"))
+		{
+			throw new SimulatedFault("ManagedObjectNotFound", "The object has already been deleted or has not been completely created",
+					"<obj type=\"HostDatastoreBrowser\">" + text(method, "_this") + "</obj>");
+		}
+		SimulatedInventory.Entity datastore = inventory.get(((SimulatedInventory.Mor) browser.list("datastore").get(0)).value);
+		final SimulatedInventory.Entity task = inventory.createTask("SearchDatastoreSubFolders_Task",
+				"HostDatastoreBrowser.searchSubFolders", datastore);
+		taskExecutor.schedule(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				inventory.completeTask(task, inventory.getFolders(browser.value));
+			}
+		}, powerMillis, TimeUnit.MILLISECONDS);
+		return task.value;
+	}
+	/**
+	 * This method is used to start the removal of the snapshot as a task and @return the task, which
+	 * completes after the power time with the snapshot gone and its delta disks consolidated.
+	 */
+	private String removeSnapshot(Element method) throws SimulatedFault
+	{
+		final SimulatedInventory.Entity snapshot = inventory.get(text(method, "_this"));
+		if (snapshot == null || !snapshot.type.equals("VirtualMachineSnapshot"))
+		{
+			throw new SimulatedFault("ManagedObjectNotFound", "The object has already been deleted or has not been completely created",
+					"<obj type=\"VirtualMachineSnapshot\">" + text(method, "_this") + "</obj>");
+		}
+		SimulatedInventory.Entity vm = inventory.get(((SimulatedInventory.Mor) snapshot.get("vm")).value);
+		final SimulatedInventory.Entity task = inventory.createTask("RemoveSnapshot_Task", "VirtualMachineSnapshot.remove", vm);
+		taskExecutor.schedule(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				synchronized (inventory)
+				{
+					inventory.removeSnapshot(snapshot);
+					inventory.completeTask(task, null, null);
+				}
+			}
+		}, powerMillis, TimeUnit.MILLISECONDS);
+		return task.value;
+	}
+	/**
+	 * This method is used to shut the guest down, which powers the VM off after twice the power time.
+	 */
+	private void shutdownGuest(final SimulatedInventory.Entity vm) throws SimulatedFault
+	{
+		if (!inventory.getPowerState(vm).equals("poweredOn"))
+		{
+			throw new SimulatedFault("InvalidPowerState",
+					"The attempted operation cannot be performed in the current state (Powered off).",
+					"<requestedState>poweredOn</requestedState><existingState>" + inventory.getPowerState(vm)
+							+ "</existingState>");
+		}
+		taskExecutor.schedule(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				inventory.setPowerState(vm, "poweredOff");
+			}
+		}, 2 * powerMillis, TimeUnit.MILLISECONDS);
+	}
+	/**
+	 * This method is used to append the next entries of the history, up to maxCount, moving it on. The events
+	 * are made up from their index as they are read, so that a history of millions of events takes no memory.
+	 */
+	private void readHistory(StringBuilder xml, History history, int maxCount)
+	{
+		synchronized (history)
+		{
+			int count = 0;
+			while (count < maxCount && history.next < history.end)
+			{
+				long index = history.next++;
+				Object entry = history.tasks ? history.matchingTasks.get((int) index) : createEvent(index, history);
+				if (entry != null)
+				{
+					synchronized (inventory)
+					{
+						appendValue(xml, "returnval", history.tasks ? ((SimulatedInventory.Entity) entry).get("info") : entry, false);
+					}
+					count++;
+				}
+			}
+		}
+	}
+	/**
+	 * This method is used to @return the event of the given index of the history, or null if the filter of
+	 * the history leaves it out. The type and the VM of an event follow from its index alone.
+	 */
+	private SimulatedInventory.Data createEvent(long index, History history)
+	{
+		long hash = mix(index + serverIndex);
+		String[] eventType = EVENT_TYPES[(int) (hash % EVENT_TYPES.length)];
+		if (!history.eventTypeIds.isEmpty() && !history.eventTypeIds.contains(eventType[0]))
+		{
+			return null;
+		}
+		SimulatedInventory.Entity vm = historyVMs.isEmpty() || eventType[1].indexOf("{vm}") < 0 ? null
+				: historyVMs.get((int) (hash / EVENT_TYPES.length % historyVMs.size()));
+		SimulatedInventory.Mor hostMor = vm != null ? (SimulatedInventory.Mor) vm.get("runtime.host")
+				: eventType[1].indexOf("{host}") < 0 || historyVMs.isEmpty() ? null
+						: (SimulatedInventory.Mor) historyVMs.get((int) (hash / EVENT_TYPES.length % historyVMs.size())).get("runtime.host");
+		if (history.entity != null && !history.entity.equals(inventory.getRootFolder()) && !history.entity.equals("datacenter-2")
+				&& (vm == null || !history.entity.equals(vm.value)) && (hostMor == null || !history.entity.equals(hostMor.value)))
+		{
+			return null;
+		}
+		SimulatedInventory.Entity host = hostMor == null ? null : inventory.get(hostMor.value);
+		SimulatedInventory.Entity datacenter = inventory.get("datacenter-2");
+		String message = eventType[1].replace("{vm}", vm == null ? "" : vm.name).replace("{host}", host == null ? "" : host.name)
+				.replace("{dc}", datacenter.name);
+		SimulatedInventory.Data event = SimulatedInventory.data(eventType[0])
+				.put("key", SimulatedInventory.leaf("xsd:int", String.valueOf(index + 1)))
+				.put("chainId", SimulatedInventory.leaf("xsd:int", String.valueOf(index + 1)))
+				.put("createdTime", SimulatedInventory.leaf("xsd:dateTime", SimulatedInventory.formatTime(
+						new Date(historyEnd - HISTORY_MILLIS + index * HISTORY_MILLIS / Math.max(1, eventCount)))))
+				.put("userName", SimulatedInventory.leaf("xsd:string", eventType[0].startsWith("User") ? "root" : "vpxuser"))
+				.put("datacenter", SimulatedInventory.data("DatacenterEventArgument")
+						.put("name", SimulatedInventory.leaf("xsd:string", datacenter.name))
+						.put("datacenter", SimulatedInventory.mor(datacenter)));
+		if (host != null)
+		{
+			event.put("host", SimulatedInventory.data("HostEventArgument")
+					.put("name", SimulatedInventory.leaf("xsd:string", host.name))
+					.put("host", hostMor));
+		}
+		if (vm != null)
+		{
+			event.put("vm", SimulatedInventory.data("VmEventArgument")
+					.put("name", SimulatedInventory.leaf("xsd:string", vm.name))
+					.put("vm", SimulatedInventory.mor(vm)));
+		}
+		return event.put("fullFormattedMessage", SimulatedInventory.leaf("xsd:string", message));
+	}
+
+	private History getHistory(String value) throws SimulatedFault
+	{
+		History history = histories.get(value);
+		if (history == null)
+		{
+			throw new SimulatedFault("ManagedObjectNotFound", "The object has already been deleted or has not been completely created",
+					"<obj type=\"HistoryCollector\">" + value + "</obj>");
+		}
+		return history;
+	}
+	/**
+	 * This method is used to @return the objects selected by the filter spec: the contents of a container
+	 * view, or an object and, if the spec traverses from it, everything below it.
+	 */
+	private Set<SimulatedInventory.Entity> select(FilterSpec filterSpec)
+	{
+		Set<SimulatedInventory.Entity> selected = new LinkedHashSet<SimulatedInventory.Entity>();
+		for (ObjectSpec objectSpec : filterSpec.objectSet)
+		{
+			View view = views.get(objectSpec.value);
+			SimulatedInventory.Entity start = inventory.get(objectSpec.value);
+			if (view != null && view.objects != null)
+			{
+				synchronized (view.objects)
+				{
+					for (String value : view.objects)
+					{
+						if (inventory.get(value) != null)
+						{
+							selected.add(inventory.get(value));
+						}
+					}
+				}
+			}
+			else if (view != null)
+			{
+				for (SimulatedInventory.Entity entity : inventory.list(view.types))
+				{
+					if (isBelow(entity, view.container))
+					{
+						selected.add(entity);
+					}
+				}
+			}
+			else if (start != null)
+			{
+				if (!objectSpec.skip)
+				{
+					selected.add(start);
+				}
+				if (objectSpec.traverse)
+				{
+					for (SimulatedInventory.Entity entity : inventory.list(new HashSet<String>()))
+					{
+						if (entity != start && isBelow(entity, start.value))
+						{
+							selected.add(entity);
+						}
+					}
+				}
+			}
+		}
+		selected.removeIf(entity -> filterSpec.getPropertySpec(entity) == null);
+		return selected;
+	}
+
+	private boolean isBelow(SimulatedInventory.Entity entity, String container)
+	{
+		for (SimulatedInventory.Entity current = entity; current != null;)
+		{
+			if (current.value.equals(container))
+			{
+				return true;
+			}
+			SimulatedInventory.Mor parent = (SimulatedInventory.Mor) current.get("parent");
+			current = parent == null ? null : inventory.get(parent.value);
+		}
+		return false;
+	}
+	/**
+	 * This method is used to @return the value of the property, including the ones which depend on the
+	 * caller like the current session.
+	 */
+	private Object getProperty(SimulatedInventory.Entity entity, String path)
+	{
+		if (entity.type.equals("SessionManager") && path.equals("currentSession"))
+		{
+			return createUserSession("current", "simulated");
+		}
+		return entity.get(path);
+	}
+
+	/**
+	 * This method is used to @return the samples of the counters of one entity asked for by the query spec:
+	 * one per interval up to now, after the start time or else the most recent maxSample ones (one hour of
+	 * real-time samples by default). The values follow from the entity, the counter and the time alone, so
+	 * that asking twice gives the same samples.
+	 */
+	private SimulatedInventory.Data queryPerf(Element querySpec) throws SimulatedFault
+	{
+		Element entity = child(querySpec, "entity");
+		int interval = text(querySpec, "intervalId") == null ? 20 : Integer.parseInt(text(querySpec, "intervalId"));
+		int maxSample = text(querySpec, "maxSample") == null ? 180 : Integer.parseInt(text(querySpec, "maxSample"));
+		long intervalMillis = interval * 1000L;
+		long last = System.currentTimeMillis() / intervalMillis * intervalMillis;
+		long first = last - (maxSample - 1) * intervalMillis;
+		if (text(querySpec, "startTime") != null)
+		{
+			first = Math.max(first, (parseTime(text(querySpec, "startTime")) / intervalMillis + 1) * intervalMillis);
+		}
+		SimulatedInventory.Array sampleInfo = SimulatedInventory.array("PerfSampleInfo");
+		for (long time = first; time <= last; time += intervalMillis)
+		{
+			sampleInfo.items.add(SimulatedInventory.data("PerfSampleInfo")
+					.put("timestamp", SimulatedInventory.leaf("xsd:dateTime", SimulatedInventory.formatTime(new Date(time))))
+					.put("interval", SimulatedInventory.leaf("xsd:int", String.valueOf(interval))));
+		}
+		SimulatedInventory.Array series = SimulatedInventory.array("PerfMetricIntSeries");
+		for (Element metricId : children(querySpec, "metricId"))
+		{
+			int counterId = Integer.parseInt(text(metricId, "counterId"));
+			if (counterId < 1 || counterId > SimulatedInventory.PERF_COUNTERS.length)
+			{
+				throw new SimulatedFault("InvalidArgument", "A specified parameter was not correct: querySpec.metricId",
+						"<invalidProperty>querySpec.metricId</invalidProperty>");
+			}
+			SimulatedInventory.Array values = SimulatedInventory.array("xsd:long");
+			for (long time = first; time <= last; time += intervalMillis)
+			{
+				values.items.add(SimulatedInventory.leaf("xsd:long", String.valueOf(
+						simulateCounter(entity.getTextContent().trim(), counterId, time / intervalMillis))));
+			}
+			series.items.add(SimulatedInventory.data("PerfMetricIntSeries")
+					.put("id", SimulatedInventory.data("PerfMetricId")
+							.put("counterId", SimulatedInventory.leaf("xsd:int", String.valueOf(counterId)))
+							.put("instance", SimulatedInventory.leaf("xsd:string", "")))
+					.put("value", values));
+		}
+		return SimulatedInventory.data("PerfEntityMetric")
+				.put("entity", new SimulatedInventory.Mor(entity.getAttribute("type"), entity.getTextContent().trim()))
+				.put("sampleInfo", first <= last ? sampleInfo : null)
+				.put("value", first <= last ? series : null);
+	}
+	/**
+	 * This method is used to @return a value of the counter which stays around a level of its own per
+	 * entity, percentages in hundredths of a percent.
+	 */
+	private static long simulateCounter(String entity, int counterId, long sample)
+	{
+		long level = mix(entity.hashCode() * 31L + counterId) % 6000;
+		long noise = mix(entity.hashCode() * 31L + counterId + sample * 1000003L) % 2000;
+		long value = 500 + level + noise;
+		String unit = SimulatedInventory.PERF_COUNTERS[counterId - 1][3];
+		return unit.equals("percent") ? value : unit.equals("kiloBytes") ? value * 1024 : value / 4;
+	}
+
+	private static long mix(long value)
+	{
+		value = (value ^ (value >>> 33)) * 0xff51afd7ed558ccdL;
+		value = (value ^ (value >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		return (value ^ (value >>> 33)) & Long.MAX_VALUE;
+	}
+
+	private static long parseTime(String text) throws SimulatedFault
+	{
+		try
+		{
+			return DatatypeFactory.newInstance().newXMLGregorianCalendar(text).toGregorianCalendar().getTimeInMillis();
+		}
+		catch (DatatypeConfigurationException | IllegalArgumentException e)
+		{
+			throw new SimulatedFault("InvalidArgument", "A specified parameter was not correct: startTime",
+					"<invalidProperty>startTime</invalidProperty>");
+		}
+	}
+
+	private SimulatedInventory.Entity getVM(Element method) throws SimulatedFault
+	{
+		SimulatedInventory.Entity vm = inventory.get(text(method, "_this"));
+		if (vm == null || !vm.type.equals("VirtualMachine"))
+		{
+			throw new SimulatedFault("ManagedObjectNotFound", "The object has already been deleted or has not been completely created",
+					"<obj type=\"VirtualMachine\">" + text(method, "_this") + "</obj>");
+		}
+		return vm;
+	}
+
+	private Collector getCollector(String value) throws SimulatedFault
+	{
+		Collector collector = collectors.get(value);
+		if (collector == null)
+		{
+			throw new SimulatedFault("ManagedObjectNotFound", "The object has already been deleted or has not been completely created",
+					"<obj type=\"PropertyCollector\">" + value + "</obj>");
+		}
+		return collector;
+	}
+
+	private boolean isAuthenticated(String sessionId)
+	{
+		Long lastActive = sessionId == null ? null : sessions.get(sessionId);
+		long now = System.currentTimeMillis();
+		if (lastActive == null || (sessionTimeoutMillis > 0 && now - lastActive > sessionTimeoutMillis))
+		{
+			return false;
+		}
+		sessions.put(sessionId, now);
+		return true;
+	}
+
+	private static String getSessionId(HttpExchange exchange)
+	{
+		String cookie = exchange.getRequestHeaders().getFirst("Cookie");
+		if (cookie == null)
+		{
+			return null;
+		}
+		for (String part : cookie.split(";"))
+		{
+			String[] pair = part.trim().split("=", 2);
+			if (pair.length == 2 && pair[0].equals(SESSION_COOKIE))
+			{
+				return pair[1].replace("\"", "");
+			}
+		}
+		return null;
+	}
+
+	private SimulatedInventory.Data createServiceContent()
+	{
+		return SimulatedInventory.data("ServiceContent")
+				.put("rootFolder", new SimulatedInventory.Mor("Folder", inventory.getRootFolder()))
+				.put("propertyCollector", new SimulatedInventory.Mor("PropertyCollector", "propertyCollector"))
+				.put("viewManager", new SimulatedInventory.Mor("ViewManager", "ViewManager"))
+				.put("about", SimulatedInventory.data("AboutInfo")
+						.put("name", SimulatedInventory.leaf("xsd:string", "VMware vCenter Server"))
+						.put("fullName", SimulatedInventory.leaf("xsd:string", "VMware vCenter Server 5.5.0 build-1312298 (simulated)"))
+						.put("vendor", SimulatedInventory.leaf("xsd:string", "VMware, Inc."))
+						.put("version", SimulatedInventory.leaf("xsd:string", "5.5.0"))
+						.put("build", SimulatedInventory.leaf("xsd:string", "1312298"))
+						.put("localeVersion", SimulatedInventory.leaf("xsd:string", "INTL"))
+						.put("localeBuild", SimulatedInventory.leaf("xsd:string", "000"))
+						.put("osType", SimulatedInventory.leaf("xsd:string", "linux-x64"))
+						.put("productLineId", SimulatedInventory.leaf("xsd:string", "vpx"))
+						.put("apiType", SimulatedInventory.leaf("xsd:string", "VirtualCenter"))
+						.put("apiVersion", SimulatedInventory.leaf("xsd:string", "5.5"))
+						.put("instanceUuid", SimulatedInventory.leaf("xsd:string", "simulated-vcenter-" + serverIndex)))
+				.put("sessionManager", new SimulatedInventory.Mor("SessionManager", "SessionManager"))
+				.put("searchIndex", new SimulatedInventory.Mor("SearchIndex", "SearchIndex"))
+				.put("taskManager", new SimulatedInventory.Mor("TaskManager", "TaskManager"))
+				.put("eventManager", new SimulatedInventory.Mor("EventManager", "EventManager"))
+				.put("perfManager", new SimulatedInventory.Mor("PerformanceManager", "PerfMgr"));
+	}
+
+	private static SimulatedInventory.Data createUserSession(String key, String userName)
+	{
+		String now = SimulatedInventory.formatTime(new Date());
+		return SimulatedInventory.data("UserSession")
+				.put("key", SimulatedInventory.leaf("xsd:string", key))
+				.put("userName", SimulatedInventory.leaf("xsd:string", userName))
+				.put("fullName", SimulatedInventory.leaf("xsd:string", userName))
+				.put("loginTime", SimulatedInventory.leaf("xsd:dateTime", now))
+				.put("lastActiveTime", SimulatedInventory.leaf("xsd:dateTime", now))
+				.put("locale", SimulatedInventory.leaf("xsd:string", "en"))
+				.put("messageLocale", SimulatedInventory.leaf("xsd:string", "en"))
+				.put("extensionSession", SimulatedInventory.leaf("xsd:boolean", "false"));
+	}
+	/**
+	 * This method is used to write the value as the element of the given name. A property value carries its
+	 * xsi:type, as the declared type of a property is xsd:anyType; arrays inside a data object repeat the
+	 * element, while an array property is wrapped into ArrayOfXxx.
+	 */
+	static void appendValue(StringBuilder xml, String element, Object value, boolean typed)
+	{
+		if (value instanceof SimulatedInventory.Leaf)
+		{
+			SimulatedInventory.Leaf leaf = (SimulatedInventory.Leaf) value;
+			xml.append('<').append(element);
+			if (typed)
+			{
+				xml.append(" xsi:type=\"").append(leaf.xsiType).append('"');
+			}
+			xml.append('>');
+			escape(xml, leaf.text);
+			xml.append("</").append(element).append('>');
+		}
+		else if (value instanceof SimulatedInventory.Mor)
+		{
+			SimulatedInventory.Mor mor = (SimulatedInventory.Mor) value;
+			xml.append('<').append(element);
+			if (typed)
+			{
+				xml.append(" xsi:type=\"ManagedObjectReference\"");
+			}
+			xml.append(" type=\"").append(mor.type).append("\">").append(mor.value).append("</").append(element).append('>');
+		}
+		else if (value instanceof SimulatedInventory.Data)
+		{
+			SimulatedInventory.Data data = (SimulatedInventory.Data) value;
+			xml.append('<').append(element).append(" xsi:type=\"").append(data.xsiType).append("\">");
+			for (Map.Entry<String, Object> field : data.fields.entrySet())
+			{
+				/*
+				 * The result of a task may be of any type, so it carries its type like a property value.
+				 */
+				appendValue(xml, field.getKey(), field.getValue(), field.getKey().equals("result"));
+			}
+			xml.append("</").append(element).append('>');
+		}
+		else if (value instanceof SimulatedInventory.Array)
+		{
+			SimulatedInventory.Array array = (SimulatedInventory.Array) value;
+			if (typed)
+			{
+				xml.append('<').append(element).append(" xsi:type=\"ArrayOf").append(array.elementType).append("\">");
+				for (Object item : array.items)
+				{
+					appendValue(xml, array.elementType, item, false);
+				}
+				xml.append("</").append(element).append('>');
+			}
+			else
+			{
+				for (Object item : array.items)
+				{
+					appendValue(xml, element, item, false);
+				}
+			}
+		}
+	}
+
+	private static void appendReference(StringBuilder xml, String element, String type, String value)
+	{
+		appendValue(xml, element, new SimulatedInventory.Mor(type, value), false);
+	}
+
+	private static void escape(StringBuilder xml, String text)
+	{
+		for (int i = 0; i < text.length(); i++)
+		{
+			char c = text.charAt(i);
+			switch (c)
+			{
+			case '<':
+				xml.append("&lt;");
+				break;
+			case '>':
+				xml.append("&gt;");
+				break;
+			case '&':
+				xml.append("&amp;");
+				break;
+			case '"':
+				xml.append("&quot;");
+				break;
+			default:
+				xml.append(c);
+			}
+		}
+	}
+	/**
+	 * This method is used to @return the integer setting of the given key, or the default if it is absent.
+	 */
+	static int getSetting(String settings, String key, int defaultValue)
+	{
+		if (settings != null)
+		{
+			for (String setting : settings.split(","))
+			{
+				String[] pair = setting.trim().split("=", 2);
+				if (pair.length == 2 && pair[0].equalsIgnoreCase(key))
+				{
+					return Integer.parseInt(pair[1].trim());
+				}
+			}
+		}
+		return defaultValue;
+	}
+
+	private static Element child(Element parent, String localName)
+	{
+		if (parent == null)
+		{
+			return null;
+		}
+		List<Element> children = children(parent, localName);
+		return children.isEmpty() ? null : children.get(0);
+	}
+
+	private static List<Element> children(Element parent, String localName)
+	{
+		List<Element> children = new ArrayList<Element>();
+		for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling())
+		{
+			if (node instanceof Element && localName.equals(node.getLocalName()))
+			{
+				children.add((Element) node);
+			}
+		}
+		return children;
+	}
+
+	private static Element firstChild(Element parent)
+	{
+		for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling())
+		{
+			if (node instanceof Element)
+			{
+				return (Element) node;
+			}
+		}
+		throw new IllegalArgumentException("Empty SOAP body");
+	}
+
+	private static String text(Element parent, String localName)
+	{
+		Element element = child(parent, localName);
+		return element == null ? null : element.getTextContent().trim();
+	}
+
+	private static List<String> texts(Element parent, String localName)
+	{
+		List<String> texts = new ArrayList<String>();
+		for (Element element : children(parent, localName))
+		{
+			texts.add(element.getTextContent().trim());
+		}
+		return texts;
+	}
+	/**
+	 * A container view: the types it shows and the container it starts at, or a list view: the objects
+	 * put in it.
+	 */
+	private static class View
+	{
+		private final String container;
+		private final Set<String> types;
+		private final Set<String> objects;
+
+		private View(String container, List<String> types)
+		{
+			this.container = container.trim();
+			this.types = new HashSet<String>(types);
+			this.objects = null;
+		}
+
+		private View(List<String> objects)
+		{
+			this.container = null;
+			this.types = null;
+			this.objects = new LinkedHashSet<String>(objects);
+		}
+	}
+	/**
+	 * A property collector with the version of its last update set.
+	 */
+	private static class Collector
+	{
+		private volatile boolean cancelled;
+		private long version;
+	}
+	/**
+	 * One object spec of a filter spec.
+	 */
+	private static class ObjectSpec
+	{
+		private final String value;
+		private final boolean skip;
+		private final boolean traverse;
+
+		private ObjectSpec(Element objectSpec)
+		{
+			this.value = text(objectSpec, "obj");
+			this.skip = Boolean.parseBoolean(text(objectSpec, "skip"));
+			this.traverse = child(objectSpec, "selectSet") != null;
+		}
+	}
+	/**
+	 * An event or task history collector: its filter and the position of its next entry. The events are
+	 * positioned by their index, which follows their time, and the tasks by their index in the tasks which
+	 * matched the filter when the collector was created.
+	 */
+	private class History
+	{
+		private final boolean tasks;
+		private final String entity;
+		private final Set<String> eventTypeIds;
+		private final List<SimulatedInventory.Entity> matchingTasks = new ArrayList<SimulatedInventory.Entity>();
+		private long next;
+		private long end;
+
+		private History(boolean tasks, Element filter) throws SimulatedFault
+		{
+			this.tasks = tasks;
+			Element time = child(filter, "time");
+			long beginTime = time == null || text(time, "beginTime") == null ? 0 : parseTime(text(time, "beginTime"));
+			long endTime = time == null || text(time, "endTime") == null ? Long.MAX_VALUE : parseTime(text(time, "endTime"));
+			this.entity = child(filter, "entity") == null ? null : text(child(filter, "entity"), "entity");
+			this.eventTypeIds = new HashSet<String>(texts(filter, "eventTypeId"));
+			if (tasks)
+			{
+				Set<String> states = new HashSet<String>(texts(filter, "state"));
+				synchronized (inventory)
+				{
+					for (SimulatedInventory.Entity task : inventory.listTasks())
+					{
+						long queueTime = parseTime(((SimulatedInventory.Leaf) task.get("info.queueTime")).text);
+						SimulatedInventory.Entity taskEntity = inventory.get(((SimulatedInventory.Mor) task.get("info.entity")).value);
+						SimulatedInventory.Mor host = taskEntity == null ? null : (SimulatedInventory.Mor) taskEntity.get("runtime.host");
+						if (queueTime >= beginTime && queueTime <= endTime
+								&& (states.isEmpty() || states.contains(((SimulatedInventory.Leaf) task.get("info.state")).text))
+								&& (entity == null || entity.equals(inventory.getRootFolder()) || entity.equals(taskEntity.value)
+										|| (host != null && entity.equals(host.value))))
+						{
+							matchingTasks.add(task);
+						}
+					}
+				}
+				this.end = matchingTasks.size();
+			}
+			else
+			{
+				long historyStart = historyEnd - HISTORY_MILLIS;
+				this.next = Math.max(0, (long) Math.ceil((beginTime - historyStart) * (double) eventCount / HISTORY_MILLIS));
+				this.end = endTime >= historyEnd ? eventCount
+						: Math.max(0, (long) Math.floor((endTime - historyStart) * (double) eventCount / HISTORY_MILLIS) + 1);
+				this.end = Math.min(eventCount, end);
+			}
+		}
+	}
+	/**
+	 * A filter spec: the objects to select and the properties to read per type.
+	 */
+	private static class FilterSpec
+	{
+		private final List<ObjectSpec> objectSet = new ArrayList<ObjectSpec>();
+		private final Map<String, Element> propSet = new LinkedHashMap<String, Element>();
+
+		private FilterSpec(Element spec)
+		{
+			for (Element objectSpec : children(spec, "objectSet"))
+			{
+				objectSet.add(new ObjectSpec(objectSpec));
+			}
+			for (Element propertySpec : children(spec, "propSet"))
+			{
+				propSet.put(text(propertySpec, "type"), propertySpec);
+			}
+		}
+
+		private Element getPropertySpec(SimulatedInventory.Entity entity)
+		{
+			Element propertySpec = propSet.get(entity.type);
+			return propertySpec != null || !entity.managedEntity ? propertySpec : propSet.get("ManagedEntity");
+		}
+
+		private List<String> getPaths(SimulatedInventory.Entity entity)
+		{
+			Element propertySpec = getPropertySpec(entity);
+			if (Boolean.parseBoolean(text(propertySpec, "all")))
+			{
+				return entity.getPropertyNames();
+			}
+			return texts(propertySpec, "pathSet");
+		}
+	}
+	/**
+	 * A property filter with the values last reported for every object it selects.
+	 */
+	private class Filter
+	{
+		private final Collector collector;
+		private final FilterSpec filterSpec;
+		private final Map<String, Map<String, String>> reported = new HashMap<String, Map<String, String>>();
+		private long reportedVersion;
+
+		private Filter(Collector collector, Element spec)
+		{
+			this.collector = collector;
+			this.filterSpec = new FilterSpec(spec);
+		}
+
+		private void reset()
+		{
+			reported.clear();
+			reportedVersion = 0;
+		}
+		/**
+		 * This method is used to write the updates of the objects which changed since the last report, as
+		 * a filter update, or nothing if none changed. Must be called holding the lock of the inventory.
+		 */
+		private void appendUpdates(StringBuilder xml, String filterValue, long inventoryVersion)
+		{
+			StringBuilder objectSet = new StringBuilder();
+			Set<String> present = new HashSet<String>();
+			for (SimulatedInventory.Entity entity : select(filterSpec))
+			{
+				present.add(entity.value);
+				Map<String, String> previous = reported.get(entity.value);
+				if (previous != null && entity.getModified() <= reportedVersion)
+				{
+					continue;
+				}
+				Map<String, String> current = new HashMap<String, String>();
+				StringBuilder changeSet = new StringBuilder();
+				for (String path : filterSpec.getPaths(entity))
+				{
+					Object value = getProperty(entity, path);
+					StringBuilder val = new StringBuilder();
+					appendValue(val, "val", value, true);
+					current.put(path, val.toString());
+					if (previous == null ? value != null : !val.toString().equals(previous.get(path)))
+					{
+						changeSet.append("<changeSet><name>").append(path).append("</name><op>assign</op>").append(val)
+								.append("</changeSet>");
+					}
+				}
+				reported.put(entity.value, current);
+				if (previous == null || changeSet.length() > 0)
+				{
+					objectSet.append("<objectSet><kind>").append(previous == null ? "enter" : "modify").append("</kind>");
+					appendReference(objectSet, "obj", entity.type, entity.value);
+					objectSet.append(changeSet).append("</objectSet>");
+				}
+			}
+			for (String value : new ArrayList<String>(reported.keySet()))
+			{
+				if (!present.contains(value))
+				{
+					reported.remove(value);
+					SimulatedInventory.Entity entity = inventory.get(value);
+					objectSet.append("<objectSet><kind>leave</kind>");
+					appendReference(objectSet, "obj", entity == null ? "ManagedEntity" : entity.type, value);
+					objectSet.append("</objectSet>");
+				}
+			}
+			reportedVersion = inventoryVersion;
+			if (objectSet.length() > 0)
+			{
+				xml.append("<filterSet>");
+				appendReference(xml, "filter", "PropertyFilter", filterValue);
+				xml.append(objectSet).append("</filterSet>");
+			}
+		}
+	}
+	/**
+	 * A fault answered instead of the result, with the type of the vim25 fault and its detail elements.
+	 */
+	private static class SimulatedFault extends Exception
+	{
+		private static final long serialVersionUID = 1L;
+		private final String type;
+		private final String detail;
+
+		private SimulatedFault(String type, String message, String detail)
+		{
+			super(message);
+			this.type = type;
+			this.detail = detail;
+		}
+	}
+}